@@ -0,0 +1,404 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//FAT Class
+// Table from 0 to TotalBlockNumbers-1.
+// The index of the block number contains the link to the next
+// block. The table is kept in pages that are only made (or read
+// from disk) the first time one of their entries is used, so a
+// large volume costs nothing until its blocks are handed out.
+// Entries of the blocks a volume was made with are kept in the FAT
+// blocks from block 2 on; each region the volume grew by keeps its
+// entries in its own first blocks (an extent). The entries of those
+// first blocks always read -1, whatever is on disk, so growing the
+// volume changes no FAT block.
+class FAT{
+	static final int PAGE_ENTRIES = 1024; //Entries per page of the table, a whole number of FAT blocks
+
+	//Creating class variables
+	int BLOCK_SIZE;
+	int fatSize;//number of entries
+	volatile AtomicReferenceArray<int[]> pages; //Pages of the table, null until first used
+	volatile AtomicReferenceArray<int[]> refPages; //Number of files sharing each block besides the first one (clones), null pages are all 0
+	volatile int[] extents; //First entry of each extent, in order
+
+	int numBlocks; //Size of fat at block 2 in blocks of bytes
+	TreeSet<Integer> dirty = new TreeSet<Integer>(); //Disk blocks of FAT changed since they were last written, guarded by the allocator lock
+	int lastDirty = -1; //Disk block setEntry last marked dirty, most entries set in a row share it
+
+	//Copies (snapshots) share pages with the table they are made from until
+	//one of them changes a page
+	List<FAT> copies = new CopyOnWriteArrayList<FAT>(); //Copies made from this table, each gets a page as it was before it changes here
+	FAT source = null; //Table this one is a copy of, pages not taken yet come from it
+	BitSet owned; //Pages a copy changed, so no other table has them
+
+	//Where pages not used yet are read from, null if the table is new
+	TFSDiskInputOutput disk = null;
+	int loadBelow; //Pages starting at or past loadBelow and ending before loadFrom were never written
+	int loadFrom;
+
+	//Object constructor
+	FAT(int size, int BLOCK_SIZE){
+		this(size, new int[0], BLOCK_SIZE);
+	}
+
+	//Object constructor of a table that grew by extents
+	FAT(int size, int[] extents, int BLOCK_SIZE){
+			this.BLOCK_SIZE = BLOCK_SIZE;
+			this.fatSize = size; //Setting size of FAT in entries
+			this.extents = extents.clone();
+			int base = (extents.length > 0) ? extents[0] : size;
+			numBlocks = (int)(((long)base * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE); //*4 because an int is 4 bytes in java
+			int numPages = (size + PAGE_ENTRIES - 1) / PAGE_ENTRIES;
+			pages = new AtomicReferenceArray<int[]>(numPages);
+			refPages = new AtomicReferenceArray<int[]>(numPages); //Kept in memory only, rebuilt from the chains when FAT is read
+	}
+
+	//attach method:
+	//	Makes pages not used yet come from the FAT on disk. Entries from
+	//	loadBelow up to loadFrom were never handed out, so pages wholly
+	//	inside that range are not read. A page is only read before any of
+	//	its entries changes, so what is on disk is still up to date.
+	public void attach(TFSDiskInputOutput disk, int loadBelow, int loadFrom){
+		this.disk = disk;
+		this.loadBelow = loadBelow;
+		this.loadFrom = loadFrom;
+	}
+
+	//get method:
+	//	Value of a FAT entry
+	public int get(int entry){
+		return page(entry / PAGE_ENTRIES)[entry % PAGE_ENTRIES];
+	}
+
+	//setEntry method:
+	//	Sets a FAT entry, marking its block of bytes dirty so only changed
+	//	blocks are written
+	public void setEntry(int entry, int value){
+		int i = entry / PAGE_ENTRIES;
+		int[] p = page(i);
+		if (source != null || !copies.isEmpty()){
+			p = own(i, p);
+		}
+		p[entry % PAGE_ENTRIES] = value;
+		int block = diskBlock(entry);
+		if (block != lastDirty || dirty.isEmpty()){ //Empty once written, then it has to be marked again
+			dirty.add(block);
+			lastDirty = block;
+		}
+	}
+
+	//diskBlock method:
+	//	Disk block holding a FAT entry
+	public int diskBlock(int entry){
+		int start = extentStart(entry);
+		return blockBase(start) + (entry - start) / (BLOCK_SIZE/4);
+	}
+
+	//diskIndex method:
+	//	Place of a FAT entry among the entries of its disk block
+	public int diskIndex(int entry){
+		return (entry - extentStart(entry)) % (BLOCK_SIZE/4);
+	}
+
+	//extentStart method:
+	//	First entry of the extent holding entry, 0 for the FAT at block 2
+	private int extentStart(int entry){
+		int[] extents = this.extents;
+		for (int j = extents.length - 1; j >= 0; j--){
+			if (entry >= extents[j]){
+				return extents[j];
+			}
+		}
+		return 0;
+	}
+
+	//blockBase method:
+	//	Disk block holding the first entries of the extent starting at start
+	private int blockBase(int start){
+		return (start == 0) ? 2 : start;
+	}
+
+	//extentFatEnd method:
+	//	Entry after the last block holding the FAT of the extent starting
+	//	at start
+	private int extentFatEnd(int start){
+		return start + (int)(((long)(extentEnd(start) - start) * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+
+	//markExtentFat method:
+	//	Sets the entries of page i that belong to blocks holding the FAT
+	//	of an extent to -1, those blocks are never handed out
+	private void markExtentFat(int i, int[] p){
+		long first = (long)i * PAGE_ENTRIES;
+		for (int start : extents){
+			long from = Math.max(first, start);
+			long to = Math.min(first + PAGE_ENTRIES, extentFatEnd(start));
+			for (long entry = from; entry < to; entry++){
+				p[(int)(entry - first)] = -1;
+			}
+		}
+	}
+
+	//extentEnd method:
+	//	Entry after the last one of the extent starting at start
+	private int extentEnd(int start){
+		int[] extents = this.extents;
+		for (int j = 0; j < extents.length; j++){
+			if (extents[j] > start){
+				return extents[j];
+			}
+		}
+		return fatSize;
+	}
+
+	//grow method:
+	//	Adds the extent for entries from the current size up to size. The
+	//	caller holds the allocator lock; readers still holding the old pages
+	//	array see the same pages. Only a page already made can hold
+	//	entries of the new FAT blocks, later pages get them when made.
+	public void grow(int size){
+		int numPages = (size + PAGE_ENTRIES - 1) / PAGE_ENTRIES;
+		AtomicReferenceArray<int[]> p = new AtomicReferenceArray<int[]>(numPages);
+		AtomicReferenceArray<int[]> r = new AtomicReferenceArray<int[]>(numPages);
+		for (int i = 0; i < pages.length(); i++){
+			p.set(i, pages.get(i));
+			r.set(i, refPages.get(i));
+		}
+		extents = Arrays.copyOf(extents, extents.length + 1);
+		extents[extents.length - 1] = fatSize;
+		pages = p;
+		refPages = r;
+		fatSize = size;
+		int i = extents[extents.length - 1] / PAGE_ENTRIES;
+		int[] last = p.get(i);
+		if (last != null){
+			markExtentFat(i, last);
+		}
+	}
+
+	//refs method:
+	//	Number of files sharing a block besides the first one
+	public int refs(int entry){
+		int[] p = refPages.get(entry / PAGE_ENTRIES);
+		return (p == null) ? 0 : p[entry % PAGE_ENTRIES];
+	}
+
+	//setRefs method:
+	//	Sets the number of files sharing a block besides the first one
+	public void setRefs(int entry, int value){
+		int i = entry / PAGE_ENTRIES;
+		AtomicReferenceArray<int[]> refPages = this.refPages;
+		int[] p = refPages.get(i);
+		if (p == null){
+			if (value == 0){
+				return; //Already 0
+			}
+			refPages.compareAndSet(i, null, new int[PAGE_ENTRIES]);
+			p = refPages.get(i);
+		}
+		p[entry % PAGE_ENTRIES] = value;
+	}
+
+	//page method:
+	//	Page i of the table, made or read from disk the first time it is
+	//	used. A copy takes it from the table it was made from, which has not
+	//	changed it since or the copy would have it already.
+	private int[] page(int i){
+		AtomicReferenceArray<int[]> pages = this.pages; //Same array all through, even if the table grows
+		int[] p = pages.get(i);
+		if (p == null){
+			//Two threads may read the same page, only one of them is kept
+			pages.compareAndSet(i, null, (source != null) ? source.page(i) : loadPage(i));
+			p = pages.get(i);
+		}
+		return p;
+	}
+
+	//own method:
+	//	Page i of the table, p, ready to be changed. Copies that have not
+	//	taken the page yet get it as it is now; if one of them has it, this
+	//	table changes a clone of it instead. The caller holds the lock every
+	//	change of the table is made under.
+	private int[] own(int i, int[] p){
+		boolean shared = source != null && !owned.get(i);
+		for (FAT c : copies){
+			AtomicReferenceArray<int[]> cp = c.pages;
+			if (i < cp.length()){
+				cp.compareAndSet(i, null, p);
+				shared |= cp.get(i) == p;
+			}
+		}
+		if (!shared){
+			return p;
+		}
+		int[] mine = p.clone();
+		pages.set(i, mine);
+		if (source != null){
+			owned.set(i);
+		}
+		return mine;
+	}
+
+	//needsRead method:
+	//	True if page i may hold entries that were written to disk
+	private boolean needsRead(int i){
+		long first = (long)i * PAGE_ENTRIES;
+		return disk != null && (first < loadBelow || first + PAGE_ENTRIES > loadFrom);
+	}
+
+	//loadPage method:
+	//	Reads page i from the FAT blocks on disk, all 0s (free) if it was
+	//	never written, but for the blocks holding the FAT of an extent
+	private int[] loadPage(int i){
+		int[] p = new int[PAGE_ENTRIES];
+		if (needsRead(i)){
+			readPage(i, p);
+		}
+		markExtentFat(i, p);
+		return p;
+	}
+
+	//readPage method:
+	//	Reads the entries of page i from the FAT blocks on disk into p
+	private void readPage(int i, int[] p){
+		byte[] fatBuffer = new byte[BLOCK_SIZE];
+		int perBlock = BLOCK_SIZE/4;
+		int read = -1; //FAT block in fatBuffer
+		for (int k = 0; k < PAGE_ENTRIES; k++){
+			long entry = (long)i * PAGE_ENTRIES + k;
+			if (entry >= fatSize){
+				break;
+			}
+			int start = extentStart((int)entry);
+			int block = blockBase(start) + (int)(entry - start) / perBlock;
+			if (block != read){
+				disk.tfs_dio_read_block(block, fatBuffer);
+				read = block;
+			}
+			int j = (int)(entry - start) % perBlock;
+			//Converting 4 bytes into int
+			p[k] = (((fatBuffer[j*4] & 0xFF) << 24)|((fatBuffer[(j*4)+1] & 0xFF) << 16)|((fatBuffer[(j*4)+2] & 0xFF) << 8)|(fatBuffer[(j*4)+3] & 0xFF));
+		}
+	}
+
+	//blockBytes method:
+	//	FAT block of bytes kept on disk block block_no as it is written to disk
+	public byte[] blockBytes(int block_no){
+		byte[] tmp = new byte[BLOCK_SIZE];
+		int perBlock = BLOCK_SIZE/4;
+		int start = 0;
+		int[] extents = this.extents;
+		for (int j = extents.length - 1; j >= 0; j--){
+			if (block_no >= extents[j]){
+				start = extents[j]; //FAT blocks of an extent are its first blocks
+				break;
+			}
+		}
+		int first = start + (block_no - blockBase(start)) * perBlock;
+		int end = extentEnd(start);
+		for (int j = 0; j < perBlock; j++){
+			int entry = first + j;
+			if (entry >= end){
+				break;
+			}
+			int value = get(entry);
+			tmp[j*4] = (byte)(value>>24); tmp[(j*4)+1] = (byte)(value>>16); tmp[(j*4)+2] = (byte)(value>>8); tmp[(j*4)+3] = (byte)value;
+		}
+		return tmp;
+	}
+
+	//copy method:
+	//	Copy of the table kept in memory only, as snapshots use it. It
+	//	shares the pages of this table, nothing is read or cloned: a page is
+	//	cloned by the first table to change it, and a page not used yet is
+	//	taken from this table when the copy needs it. The caller holds the
+	//	lock every change of this table is made under.
+	public FAT copy(){
+		FAT c = new FAT(fatSize, extents, BLOCK_SIZE);
+		c.source = this;
+		c.owned = new BitSet();
+		AtomicReferenceArray<int[]> pages = this.pages;
+		for (int i = 0; i < pages.length(); i++){
+			int[] p = pages.get(i);
+			if (p != null){
+				c.pages.set(i, p);
+			}
+		}
+		copies.add(c);
+		return c;
+	}
+
+	//release method:
+	//	Stops giving pages to copy c, which is not used anymore
+	public void release(FAT c){
+		copies.remove(c);
+	}
+
+	//detach method:
+	//	Takes every page this copy has not taken yet from the table it was
+	//	made from, which is going away
+	public void detach(){
+		if (source == null){
+			return;
+		}
+		for (int i = 0; i < pages.length(); i++){
+			page(i);
+		}
+		source.release(this);
+	}
+
+	//nextOf method:
+	//	Next block from a FAT entry value. Hole blocks keep their next block
+	//	encoded as a value below -1 so they can be told apart.
+	static int nextOf(int value){
+		return isHole(value) ? -3 - value : value;
+	}
+
+	//isHole method:
+	//	True if the FAT entry value belongs to a hole block
+	static boolean isHole(int value){
+		return value < -1;
+	}
+
+	//holeValue method:
+	//	FAT entry value of a hole block followed by next (-2 if it ends the chain)
+	static int holeValue(int next){
+		return -3 - next;
+	}
+
+	//setNextBlock method:
+	//	Links block to next, keeping it a hole block if it is one
+	public void setNextBlock(int block, int next){
+		setEntry(block, isHole(get(block)) ? holeValue(next) : next);
+	}
+
+	//findFreeRun method:
+	//	Finds the first count free blocks in a row from block from up to (not
+	//	including) block to
+	//	Returns the first of them, -1 if there are not that many in a row
+	public int findFreeRun(int from, int to, int count){
+		int run = 0;
+		for (int i = from; i < to; i++){
+			run = (get(i) == 0) ? run + 1 : 0;
+			if (run == count){
+				return i - count + 1;
+			}
+		}
+		return -1;
+	}
+
+	//findFreeBlock method:
+	//	Goes through in memory fat from block from up to (not including)
+	//	block to and finds a free block
+	//	Returns -1 if no free blocks are available
+	public int findFreeBlock(int from, int to){
+		for (int i = from; i < to; i++){
+			if (get(i) == 0){
+				return i;
+			}
+		}
+		return -1; //Returns -1 if no free blocks
+	}
+}
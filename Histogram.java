@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.*;
+
+//Histogram Class
+//	Counts of values in power of two buckets: bucket i holds values from 2^(i-1)
+//	up to 2^i - 1, bucket 0 holds 0. Percentiles are read within a bucket as
+//	if its values were spread evenly.
+class Histogram{
+	LongAdder[] buckets = new LongAdder[64];
+	LongAdder sum = new LongAdder();
+	LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	Histogram(){
+		for (int i = 0; i < buckets.length; i++){
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long value){
+		if (value < 0){
+			value = 0;
+		}
+		buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long count(){
+		long n = 0;
+		for (LongAdder b : buckets){
+			n += b.sum();
+		}
+		return n;
+	}
+
+	double mean(){
+		long n = count();
+		return (n == 0) ? 0 : (double)sum.sum() / n;
+	}
+
+	long max(){
+		return max.get();
+	}
+
+	//percentile method:
+	//	Value p percent of the recorded values are at or below
+	long percentile(double p){
+		long[] counts = new long[buckets.length];
+		long n = 0;
+		for (int i = 0; i < buckets.length; i++){
+			counts[i] = buckets[i].sum();
+			n += counts[i];
+		}
+		if (n == 0){
+			return 0;
+		}
+		double rank = n * p / 100;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++){
+			if (counts[i] > 0 && seen + counts[i] >= rank){
+				if (i == 0){
+					return 0;
+				}
+				long low = 1L << (i - 1);
+				long width = (i == 63) ? Long.MAX_VALUE - low : low;
+				long value = low + (long)(width * ((rank - seen) / counts[i]));
+				return Math.min(value, max());
+			}
+			seen += counts[i];
+		}
+		return max();
+	}
+
+	void reset(){
+		for (LongAdder b : buckets){
+			b.reset();
+		}
+		sum.reset();
+		max.reset();
+	}
+}
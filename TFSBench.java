@@ -0,0 +1,387 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//TFSBench Class
+//	Synthetic workload against a mounted volume, like fio but through TFS
+//	paths and file descriptors. Threads each get files of their own spread
+//	over a tree of directories, fill them and then read and write them for
+//	a while, sequentially or at random offsets, optionally making and
+//	deleting files between I/O. Throughput, IOPS and latency percentiles
+//	of every kind of operation are reported at the end.
+//
+//	Options, as name=value:
+//		threads	threads doing I/O (1)
+//		time	ms the workload runs (5000)
+//		rw	read, write, randread, randwrite, rw or randrw (randrw)
+//		mix	percent of reads in rw and randrw (70)
+//		bs	bytes per read or write (4096)
+//		size	bytes per file (16384, so the default files fit the
+//			default 2048 block volume)
+//		files	files per thread (4)
+//		fanout	directories under each directory (4)
+//		depth	levels of directories (2)
+//		churn	percent of operations that create, write and delete a
+//			file instead of reading or writing one (0)
+//		dir	directory the workload goes in (/bench)
+//		keep	1 to leave the files when done (0)
+//
+//	Shell: bench [name=value ...]
+//	Command line: java TFSBench [-disk file] [name=value ...], which makes
+//	the volume first if it can't be mounted (blocks=n sets its size).
+public class TFSBench
+{
+	static final String[] OPTIONS = {"threads", "time", "rw", "mix", "bs", "size", "files", "fanout", "depth", "churn", "dir", "keep", "blocks"};
+	static final String[] KINDS = {"read", "write", "churn"};
+	static final int READ = 0;
+	static final int WRITE = 1;
+	static final int CHURN = 2;
+
+	TFSFileSystem fs;
+	int threads = 1;
+	long time = 5000;
+	boolean reads = true; //Workload reads
+	boolean writes = true; //Workload writes
+	boolean random = true; //Offsets at random, one after the other otherwise
+	int mix = 70;
+	int bs = 4096;
+	long size = 16384;
+	int files = 4;
+	int fanout = 4;
+	int depth = 2;
+	int churn = 0;
+	String dir = "/bench";
+	boolean keep = false;
+	int blocks = 0; //Size of a volume made from the command line, 0 picks one
+
+	Histogram[] latency = new Histogram[KINDS.length]; //ns of every operation
+	LongAdder[] bytes = new LongAdder[KINDS.length];
+	AtomicLong churnNames = new AtomicLong(); //Names of files made by churn
+	AtomicLong errors = new AtomicLong();
+
+	public static void main(String args[])
+	{
+		String disk = TFSFileSystem.DISK_FILE;
+		List<String> options = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++){
+			if (args[i].equals("-disk") && i + 1 < args.length){
+				disk = args[++i];
+			} else {
+				options.add(args[i]);
+			}
+		}
+		TFSFileSystem fs = new TFSFileSystem(disk);
+		TFSBench bench = new TFSBench(fs);
+		String error = bench.parse(options);
+		if (error != null){
+			System.out.println(error);
+			System.exit(2);
+		}
+		if (fs.tfs_mount() == -1){
+			int blocks = bench.blocks;
+			if (blocks == 0){
+				long needed = (long)bench.threads * bench.files * (bench.size / TFSFileSystem.BLOCK_SIZE + 2) * 2 + 8192;
+				blocks = (int)Math.min(needed, Integer.MAX_VALUE);
+			}
+			if (fs.tfs_mkfs(blocks) == -1){
+				System.out.println("Could not make a volume in " + disk + ".");
+				System.exit(1);
+			}
+		}
+		System.out.print(bench.run());
+		fs.tfs_exit();
+		System.exit(bench.errors.get() == 0 ? 0 : 1);
+	}
+
+	TFSBench(TFSFileSystem fs)
+	{
+		this.fs = fs;
+		for (int i = 0; i < KINDS.length; i++){
+			latency[i] = new Histogram();
+			bytes[i] = new LongAdder();
+		}
+	}
+
+	//parse method:
+	//	Takes options as name=value. Returns what is wrong with them, null
+	//	if nothing is
+	String parse(List<String> options)
+	{
+		try {
+			for (String option : options){
+				int eq = option.indexOf('=');
+				String name = (eq == -1) ? option : option.substring(0, eq);
+				String value = (eq == -1) ? "" : option.substring(eq + 1);
+				if (!Arrays.asList(OPTIONS).contains(name) || eq == -1){
+					return "Unknown option " + option + ", options are " + String.join("=, ", OPTIONS) + "=";
+				}
+				if (name.equals("rw")){
+					if (!Arrays.asList("read", "write", "randread", "randwrite", "rw", "randrw").contains(value)){
+						return "rw is read, write, randread, randwrite, rw or randrw";
+					}
+					random = value.startsWith("rand");
+					reads = !value.endsWith("write");
+					writes = !value.endsWith("read");
+				} else if (name.equals("dir")){
+					if (!value.startsWith("/") || value.equals("/")){
+						return "dir is a directory path under /";
+					}
+					dir = value;
+				} else if (name.equals("time")){
+					time = Long.parseLong(value);
+				} else if (name.equals("size")){
+					size = Long.parseLong(value);
+				} else {
+					int v = Integer.parseInt(value);
+					switch (name){
+						case "threads": threads = v; break;
+						case "mix": mix = v; break;
+						case "bs": bs = v; break;
+						case "files": files = v; break;
+						case "fanout": fanout = v; break;
+						case "depth": depth = v; break;
+						case "churn": churn = v; break;
+						case "keep": keep = (v != 0); break;
+						case "blocks": blocks = v; break;
+					}
+				}
+			}
+		} catch (NumberFormatException nfe){
+			return "Option values are numbers: " + nfe.getMessage();
+		}
+		if (threads < 1 || time < 1 || bs < 1 || size < bs || files < 1 || fanout < 1 || depth < 0
+			|| mix < 0 || mix > 100 || churn < 0 || churn > 100){
+			return "threads, time, bs and files are positive, size is at least bs, mix and churn are percents";
+		}
+		return null;
+	}
+
+	//run method:
+	//	Makes the files, runs the workload and returns the report. Whatever
+	//	it made is closed, and deleted unless keep is set, even when it
+	//	fails half way; failures count as errors.
+	String run()
+	{
+		//Files of every thread, spread over the leaf directories
+		final int[][] fds = new int[threads][files];
+		final String[][] names = new String[threads][files];
+		for (int[] row : fds){
+			Arrays.fill(row, -1);
+		}
+		Thread[] workers = new Thread[threads];
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch go = new CountDownLatch(1);
+		try {
+			List<String> leaves = new ArrayList<String>();
+			if (makeTree(dir, 0, leaves) == -1){
+				errors.incrementAndGet();
+				return "Could not make the directories under " + dir + ".\n";
+			}
+			byte[] fill = new byte[bs];
+			for (int t = 0; t < threads; t++){
+				for (int i = 0; i < files; i++){
+					names[t][i] = leaves.get((t * files + i) % leaves.size()) + "/t" + t + "f" + i;
+					byte[] name = names[t][i].getBytes();
+					int fd = fs.tfs_open(name, name.length);
+					if (fd == -1){
+						fd = fs.tfs_create(name, name.length);
+					}
+					if (fd == -1){
+						errors.incrementAndGet();
+						return "Could not make " + names[t][i] + ".\n";
+					}
+					fds[t][i] = fd;
+					for (long off = 0; off < size; off += bs){
+						if (fs.tfs_pwrite(fd, fill, (int)Math.min(bs, size - off), off) == -1){
+							errors.incrementAndGet();
+							return "Could not fill " + names[t][i] + ", the volume may be too small.\n";
+						}
+					}
+				}
+			}
+			fs.tfs_sync();
+
+			final List<String> churnDirs = leaves;
+			final CountDownLatch ready = new CountDownLatch(threads);
+			for (int t = 0; t < threads; t++){
+				final int id = t;
+				workers[t] = new Thread(() -> {
+					ready.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException ie){
+						return;
+					}
+					work(id, fds[id], churnDirs, running);
+				}, "tfs-bench-" + t);
+				workers[t].start();
+			}
+			long began;
+			try {
+				ready.await();
+				began = System.nanoTime();
+				go.countDown();
+				Thread.sleep(time);
+			} catch (InterruptedException ie){
+				Thread.currentThread().interrupt();
+				errors.incrementAndGet();
+				return "Interrupted.\n";
+			}
+			running.set(false);
+			join(workers);
+			return report(System.nanoTime() - began);
+		} finally {
+			running.set(false);
+			go.countDown(); //Workers still waiting to start see running is false
+			join(workers); //Files are closed once nothing uses them
+			for (int t = 0; t < threads; t++){
+				for (int i = 0; i < files; i++){
+					if (fds[t][i] == -1){
+						continue;
+					}
+					fs.tfs_close(fds[t][i]);
+					if (!keep){
+						byte[] name = names[t][i].getBytes();
+						fs.tfs_delete(name, name.length);
+					}
+				}
+			}
+			if (!keep){
+				removeTree(dir, 0);
+			}
+		}
+	}
+
+	//join method:
+	//	Waits for the workers that were started to be done. Workers are
+	//	never interrupted, they may be in the middle of disk I/O.
+	void join(Thread[] workers)
+	{
+		boolean interrupted = false;
+		for (Thread w : workers){
+			while (w != null && w.isAlive()){
+				try {
+					w.join();
+				} catch (InterruptedException ie){
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//work method:
+	//	Operations of one thread until running goes false
+	void work(int id, int[] fds, List<String> dirs, AtomicBoolean running)
+	{
+		SplittableRandom rnd = new SplittableRandom(id * 1000003L + 1);
+		byte[] buf = new byte[bs];
+		long[] cursor = new long[fds.length]; //Next offset of every file when sequential
+		long slots = size / bs; //Places of bs bytes in a file
+		while (running.get()){
+			if (churn > 0 && rnd.nextInt(100) < churn){
+				String name = dirs.get(rnd.nextInt(dirs.size())) + "/c" + churnNames.incrementAndGet();
+				byte[] n = name.getBytes();
+				long start = System.nanoTime();
+				int fd = fs.tfs_create(n, n.length);
+				int r = (fd == -1) ? -1 : fs.tfs_write(fd, buf, bs);
+				if (fd != -1){
+					fs.tfs_close(fd);
+				}
+				if (fd == -1 || fs.tfs_delete(n, n.length) == -1 || r == -1){
+					errors.incrementAndGet();
+				}
+				latency[CHURN].record(System.nanoTime() - start);
+				bytes[CHURN].add(bs);
+				continue;
+			}
+			int f = rnd.nextInt(fds.length);
+			long offset;
+			if (random){
+				offset = rnd.nextLong(slots) * bs;
+			} else {
+				offset = cursor[f];
+				cursor[f] = (offset + bs + bs > size) ? 0 : offset + bs;
+			}
+			boolean read = reads && (!writes || rnd.nextInt(100) < mix);
+			long start = System.nanoTime();
+			int r = read ? fs.tfs_pread(fds[f], buf, bs, offset) : fs.tfs_pwrite(fds[f], buf, bs, offset);
+			int kind = read ? READ : WRITE;
+			latency[kind].record(System.nanoTime() - start);
+			if (r < 0){
+				errors.incrementAndGet();
+			} else {
+				bytes[kind].add(r);
+			}
+		}
+	}
+
+	//makeTree method:
+	//	Makes path and fanout directories under it down to depth levels,
+	//	keeping the last level in leaves. Returns -1 if one can't be made
+	int makeTree(String path, int level, List<String> leaves)
+	{
+		byte[] name = path.getBytes();
+		int fd = fs.tfs_open(name, name.length);
+		if (fd == -1){
+			fd = fs.tfs_create_dir(name, name.length);
+		}
+		if (fd == -1){
+			return -1;
+		}
+		fs.tfs_close(fd);
+		if (level == depth){
+			leaves.add(path);
+			return 0;
+		}
+		for (int i = 0; i < fanout; i++){
+			if (makeTree(path + "/d" + i, level + 1, leaves) == -1){
+				return -1;
+			}
+		}
+		return 0;
+	}
+
+	//removeTree method:
+	//	Deletes the directories makeTree made, deepest first
+	void removeTree(String path, int level)
+	{
+		if (level < depth){
+			for (int i = 0; i < fanout; i++){
+				removeTree(path + "/d" + i, level + 1);
+			}
+		}
+		byte[] name = path.getBytes();
+		fs.tfs_delete_dir(name, name.length);
+	}
+
+	//report method:
+	//	Throughput, IOPS and latency percentiles of every kind of operation
+	String report(long elapsed)
+	{
+		double seconds = elapsed / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "threads %d  rw %s%s  bs %d  size %d  files %d  dirs %d^%d  churn %d%%  %.1f s%n",
+			threads, random ? "rand" : "", reads && writes ? "rw mix " + mix : (reads ? "read" : "write"),
+			bs, size, threads * files, fanout, depth, churn, seconds));
+		sb.append(String.format("%-6s %10s %10s %10s %9s %9s %9s %9s %9s %9s%n", "op", "ops", "IOPS", "MB/s",
+			"mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+		long total = 0;
+		for (int k = 0; k < KINDS.length; k++){
+			Histogram h = latency[k];
+			long n = h.count();
+			if (n == 0){
+				continue;
+			}
+			total += n;
+			sb.append(String.format(Locale.ROOT, "%-6s %10d %10.0f %10.2f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", KINDS[k], n,
+				n / seconds, bytes[k].sum() / seconds / (1 << 20), h.mean() / 1000, h.percentile(50) / 1000.0,
+				h.percentile(90) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+		}
+		sb.append(String.format(Locale.ROOT, "total  %10d %10.0f  errors %d%n", total, total / seconds, errors.get()));
+		return sb.toString();
+	}
+}
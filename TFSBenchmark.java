@@ -0,0 +1,693 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//TFSBenchmark Class
+//	Benchmarks of the hot paths of the file system: block I/O of the disk
+//	file, path lookup, the allocator scan, file reads and writes, sync,
+//	mount and mkfs. Every benchmark runs warmup iterations and then
+//	measured ones of a fixed time, for every combination of its parameters
+//	and every thread count, and prints one line per result so runs can be
+//	compared to find out when a hot path regressed.
+//
+//	Usage: java TFSBenchmark [-b name,...] [-t threads,...] [-p param=value,...]
+//				[-w warmup] [-i iterations] [-r ms] [-f csv|json]
+//				[-o file] [-d directory] [-l]
+//
+//		-b	benchmarks to run, all of them if left out
+//		-t	thread counts, 1 if left out. Benchmarks of code that is
+//			not thread safe only run with 1 thread
+//		-p	values of a parameter, replaces its defaults (may repeat)
+//		-w -i	warmup and measured iterations, 2 and 5 if left out
+//		-r	time of an iteration in ms, 1000 if left out
+//		-f	output format: csv (the default) or json, one object a line
+//		-o	file the results go to, standard output if left out
+//		-d	directory of the disk files, the temporary one if left out
+//		-l	lists benchmarks and their parameters
+//
+//	Block size is fixed by the layout, so the size of each request (run of
+//	blocks for the disk file, bytes for files) is the parameter instead.
+public class TFSBenchmark
+{
+	static final String CSV_HEADER = "benchmark,params,threads,iterations,ops_per_s,stddev,ns_per_op";
+
+	int warmup = 2;
+	int iterations = 5;
+	long iterationMillis = 1000;
+	String format = "csv";
+	File dir = new File(System.getProperty("java.io.tmpdir"));
+	PrintStream out = System.out;
+
+	public static void main(String args[]) throws Exception
+	{
+		TFSBenchmark bench = new TFSBenchmark();
+		List<String> names = new ArrayList<String>();
+		List<Integer> threads = new ArrayList<Integer>();
+		Map<String, String[]> params = new HashMap<String, String[]>();
+		String outFile = null;
+		try {
+			for (int i = 0; i < args.length; i++){
+				String arg = args[i];
+				if (arg.equals("-l")){
+					for (Benchmark b : benchmarks()){
+						System.out.println(b.name + "\t" + b.describe() + (b.threadSafe ? "" : "\t(1 thread)"));
+					}
+					return;
+				}
+				if (i + 1 == args.length){
+					throw new IllegalArgumentException("missing value of " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("-b")){
+					names.addAll(Arrays.asList(value.split(",")));
+				} else if (arg.equals("-t")){
+					for (String t : value.split(",")){
+						threads.add(Integer.parseInt(t));
+					}
+				} else if (arg.equals("-p")){
+					int eq = value.indexOf('=');
+					if (eq == -1){
+						throw new IllegalArgumentException("-p takes param=value,...");
+					}
+					params.put(value.substring(0, eq), value.substring(eq + 1).split(","));
+				} else if (arg.equals("-w")){
+					bench.warmup = Integer.parseInt(value);
+				} else if (arg.equals("-i")){
+					bench.iterations = Integer.parseInt(value);
+				} else if (arg.equals("-r")){
+					bench.iterationMillis = Long.parseLong(value);
+				} else if (arg.equals("-f")){
+					bench.format = value;
+				} else if (arg.equals("-o")){
+					outFile = value;
+				} else if (arg.equals("-d")){
+					bench.dir = new File(value);
+				} else {
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if (!bench.format.equals("csv") && !bench.format.equals("json")){
+				throw new IllegalArgumentException("unknown format " + bench.format);
+			}
+			if (bench.iterations < 1 || bench.warmup < 0 || bench.iterationMillis < 1){
+				throw new IllegalArgumentException("iterations and time must be positive");
+			}
+		} catch (IllegalArgumentException iae){
+			System.out.println("TFSBenchmark: " + iae.getMessage());
+			System.out.println("Usage: java TFSBenchmark [-b name,...] [-t threads,...] [-p param=value,...] [-w warmup] [-i iterations] [-r ms] [-f csv|json] [-o file] [-d directory] [-l]");
+			System.exit(2);
+		}
+		if (threads.isEmpty()){
+			threads.add(1);
+		}
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for (Benchmark b : benchmarks()){
+			if (names.isEmpty() || names.contains(b.name)){
+				selected.add(b);
+			}
+		}
+		if (selected.size() < names.size()){
+			System.out.println("TFSBenchmark: unknown benchmark in " + names + ", -l lists them");
+			System.exit(2);
+		}
+		if (outFile != null){
+			bench.out = new PrintStream(new FileOutputStream(outFile), true);
+		}
+		System.setOut(System.err); //Messages of the file system stay out of the results
+		bench.run(selected, threads, params);
+		bench.out.flush();
+		System.exit(0); //Volumes left by a failed benchmark may still have threads running
+	}
+
+	//run method:
+	//	Runs every benchmark for every combination of its parameters and
+	//	every thread count, printing each result as it is done
+	void run(List<Benchmark> selected, List<Integer> threadCounts, Map<String, String[]> overrides) throws Exception
+	{
+		if (format.equals("csv")){
+			out.println(CSV_HEADER);
+		}
+		for (Benchmark b : selected){
+			for (Map<String, String> p : combinations(b, overrides)){
+				for (int threads : threadCounts){
+					if (threads < 1 || (threads > 1 && !b.threadSafe)){
+						continue;
+					}
+					System.err.println("# " + b.name + " " + paramString(p) + " threads " + threads);
+					b.setup(this, p, threads);
+					try {
+						double[] scores = new double[iterations];
+						for (int i = 0; i < warmup + iterations; i++){
+							double score = iteration(b, threads);
+							if (i >= warmup){
+								scores[i - warmup] = score;
+							}
+						}
+						report(b, p, threads, scores);
+					} finally {
+						b.teardown();
+					}
+				}
+			}
+		}
+	}
+
+	//iteration method:
+	//	Runs the operation of b on threads threads for iterationMillis and
+	//	returns the operations done per second
+	double iteration(final Benchmark b, int threads) throws Exception
+	{
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		final long[] counts = new long[threads];
+		final Exception[] failure = new Exception[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++){
+			final int id = t;
+			workers[t] = new Thread(){
+				public void run(){
+					SplittableRandom random = new SplittableRandom(id * 7919L + 17);
+					long n = 0;
+					try {
+						start.await();
+						while (running.get()){
+							b.op(id, random);
+							n++;
+						}
+					} catch (Exception e){
+						synchronized (failure){
+							failure[0] = e;
+						}
+					}
+					counts[id] = n;
+				}
+			};
+			workers[t].start();
+		}
+		start.await();
+		long began = System.nanoTime();
+		Thread.sleep(iterationMillis);
+		running.set(false);
+		for (Thread w : workers){
+			w.join();
+		}
+		long elapsed = System.nanoTime() - began;
+		if (failure[0] != null){
+			throw failure[0];
+		}
+		long total = 0;
+		for (long n : counts){
+			total += n;
+		}
+		return total * 1e9 / elapsed;
+	}
+
+	//report method:
+	//	Prints the mean and standard deviation of the measured iterations
+	void report(Benchmark b, Map<String, String> p, int threads, double[] scores)
+	{
+		double mean = 0;
+		for (double s : scores){
+			mean += s;
+		}
+		mean /= scores.length;
+		double var = 0;
+		for (double s : scores){
+			var += (s - mean) * (s - mean);
+		}
+		double stddev = (scores.length > 1) ? Math.sqrt(var / (scores.length - 1)) : 0;
+		double nsPerOp = (mean > 0) ? threads * 1e9 / mean : 0; //Time one thread takes for one operation
+		if (format.equals("csv")){
+			out.println(b.name + "," + paramString(p) + "," + threads + "," + scores.length + ","
+				+ String.format(Locale.ROOT, "%.1f,%.1f,%.1f", mean, stddev, nsPerOp));
+		} else {
+			StringBuilder params = new StringBuilder();
+			for (Map.Entry<String, String> e : p.entrySet()){
+				params.append(params.length() == 0 ? "" : ",").append('"').append(e.getKey()).append("\":\"").append(e.getValue()).append('"');
+			}
+			out.println("{\"benchmark\":\"" + b.name + "\",\"params\":{" + params + "},\"threads\":" + threads
+				+ ",\"iterations\":" + scores.length + String.format(Locale.ROOT, ",\"ops_per_s\":%.1f,\"stddev\":%.1f,\"ns_per_op\":%.1f}", mean, stddev, nsPerOp));
+		}
+	}
+
+	//combinations method:
+	//	Every combination of the values of the parameters of b, overrides
+	//	replacing the defaults of the parameters they name
+	static List<Map<String, String>> combinations(Benchmark b, Map<String, String[]> overrides)
+	{
+		List<Map<String, String>> all = new ArrayList<Map<String, String>>();
+		all.add(new LinkedHashMap<String, String>());
+		for (Map.Entry<String, String[]> param : b.params.entrySet()){
+			String[] values = overrides.containsKey(param.getKey()) ? overrides.get(param.getKey()) : param.getValue();
+			List<Map<String, String>> next = new ArrayList<Map<String, String>>();
+			for (Map<String, String> partial : all){
+				for (String v : values){
+					Map<String, String> m = new LinkedHashMap<String, String>(partial);
+					m.put(param.getKey(), v);
+					next.add(m);
+				}
+			}
+			all = next;
+		}
+		return all;
+	}
+
+	//paramString method:
+	//	Parameters as name=value separated by ;, which keeps csv columns apart
+	static String paramString(Map<String, String> p)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : p.entrySet()){
+			sb.append(sb.length() == 0 ? "" : ";").append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	//diskFile method:
+	//	Path of a disk file used by a benchmark, gone before it is used
+	String diskFile(String name)
+	{
+		File f = new File(dir, "TFSBench-" + name);
+		f.delete();
+		return f.getPath();
+	}
+
+	//benchmarks method:
+	//	Every benchmark, in the order they run
+	static List<Benchmark> benchmarks()
+	{
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new DiskBenchmark("dio_read", false));
+		list.add(new DiskBenchmark("dio_write", true));
+		list.add(new LookupBenchmark());
+		list.add(new FreeBlockBenchmark());
+		list.add(new FileBenchmark("read_seq", false, false));
+		list.add(new FileBenchmark("read_rand", false, true));
+		list.add(new FileBenchmark("write_seq", true, false));
+		list.add(new FileBenchmark("write_rand", true, true));
+		list.add(new SyncBenchmark());
+		list.add(new MountBenchmark());
+		list.add(new MkfsBenchmark());
+		return list;
+	}
+}
+
+//Benchmark Class
+//	One benchmark: its parameters with their default values and the
+//	operation that is timed. setup makes what the operation needs for one
+//	combination of parameters, teardown throws it away.
+abstract class Benchmark
+{
+	String name;
+	boolean threadSafe = true; //False if op may only run on one thread
+	LinkedHashMap<String, String[]> params = new LinkedHashMap<String, String[]>();
+
+	Benchmark(String name)
+	{
+		this.name = name;
+	}
+
+	void param(String name, String... defaults)
+	{
+		params.put(name, defaults);
+	}
+
+	String describe()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String[]> e : params.entrySet()){
+			sb.append(sb.length() == 0 ? "" : " ").append(e.getKey()).append('=').append(String.join(",", e.getValue()));
+		}
+		return sb.toString();
+	}
+
+	abstract void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception;
+
+	//Timed operation, thread is 0 up to the number of threads
+	abstract void op(int thread, SplittableRandom random) throws Exception;
+
+	void teardown() throws Exception
+	{
+	}
+
+	//Fails the benchmark if a call of the file system failed
+	static void check(int response, String what) throws IOException
+	{
+		if (response < 0){
+			throw new IOException(what + " failed");
+		}
+	}
+}
+
+//DiskBenchmark Class
+//	tfs_dio_read_block or tfs_dio_write_block of runs of blocks at random
+//	places of a disk file
+class DiskBenchmark extends Benchmark
+{
+	boolean write;
+	TFSDiskInputOutput disk;
+	String path;
+	int blocks;
+	int run;
+	byte[][] buffers;
+
+	DiskBenchmark(String name, boolean write)
+	{
+		super(name);
+		this.write = write;
+		param("blocks", "2048", "262144");
+		param("run", "1", "8", "64");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception
+	{
+		blocks = Integer.parseInt(p.get("blocks"));
+		run = Integer.parseInt(p.get("run"));
+		path = bench.diskFile("dio");
+		byte[] name = path.getBytes();
+		disk = new TFSDiskInputOutput();
+		check(disk.tfs_dio_create(name, name.length, blocks), "tfs_dio_create");
+		check(disk.tfs_dio_open(name, name.length), "tfs_dio_open");
+		buffers = new byte[threads][TFSDiskInputOutput.BLOCK_SIZE];
+		byte[] fill = new byte[TFSDiskInputOutput.BLOCK_SIZE];
+		Arrays.fill(fill, (byte)0x5A);
+		for (int i = 0; i < blocks; i++){
+			disk.tfs_dio_write_block(i, fill); //Reads go to the file, not sparse holes
+		}
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		byte[] buf = buffers[thread];
+		int first = random.nextInt(blocks - run + 1);
+		for (int i = first; i < first + run; i++){
+			check(write ? disk.tfs_dio_write_block(i, buf) : disk.tfs_dio_read_block(i, buf), name);
+		}
+	}
+
+	void teardown()
+	{
+		disk.tfs_dio_close();
+		new File(path).delete();
+	}
+}
+
+//LookupBenchmark Class
+//	_tfs_search_dir of the last entry of a directory depth levels down,
+//	every directory on the way holding entries entries
+class LookupBenchmark extends Benchmark
+{
+	TFSFileSystem fs;
+	String path;
+	byte[] target;
+
+	LookupBenchmark()
+	{
+		super("search_dir");
+		param("depth", "1", "4", "8");
+		param("entries", "8", "64", "512");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception
+	{
+		int depth = Integer.parseInt(p.get("depth"));
+		int entries = Integer.parseInt(p.get("entries"));
+		path = bench.diskFile("search");
+		fs = new TFSFileSystem(path);
+		check(fs.tfs_mkfs(depth * entries * 4 + 4096), "tfs_mkfs");
+		String dirPath = "";
+		for (int d = 0; d < depth; d++){
+			for (int e = 1; e < entries; e++){
+				byte[] name = (dirPath + "/f" + e).getBytes();
+				int fd = fs.tfs_create(name, name.length);
+				check(fd, "tfs_create");
+				fs.tfs_close(fd);
+			}
+			if (d < depth - 1){
+				dirPath += "/d" + d; //Last entry of every level is the directory of the next one
+				byte[] name = dirPath.getBytes();
+				int fd = fs.tfs_create_dir(name, name.length);
+				check(fd, "tfs_create_dir");
+				fs.tfs_close(fd);
+			}
+		}
+		target = (dirPath + "/last").getBytes();
+		int fd = fs.tfs_create(target, target.length);
+		check(fd, "tfs_create");
+		fs.tfs_close(fd);
+		fs.tfs_sync();
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		check(fs._tfs_search_dir(target, target.length), name);
+	}
+
+	void teardown()
+	{
+		fs.tfs_exit();
+		new File(path).delete();
+	}
+}
+
+//FreeBlockBenchmark Class
+//	FAT.findFreeBlock from a random block to the end of a table that is
+//	fill percent full, blocks in use spread at random. FAT is guarded by
+//	the allocator lock, so this runs on one thread.
+class FreeBlockBenchmark extends Benchmark
+{
+	FAT fat;
+	int blocks;
+
+	FreeBlockBenchmark()
+	{
+		super("find_free");
+		threadSafe = false;
+		param("blocks", "65536");
+		param("fill", "0", "50", "90", "99");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads)
+	{
+		blocks = Integer.parseInt(p.get("blocks"));
+		int fill = Integer.parseInt(p.get("fill"));
+		fat = new FAT(blocks, TFSFileSystem.BLOCK_SIZE);
+		SplittableRandom random = new SplittableRandom(1);
+		for (int i = 0; i < blocks; i++){
+			if (random.nextInt(100) < fill){
+				fat.setEntry(i, -1);
+			}
+		}
+	}
+
+	void op(int thread, SplittableRandom random)
+	{
+		fat.findFreeBlock(random.nextInt(blocks), blocks);
+	}
+}
+
+//FileBenchmark Class
+//	tfs_pread or tfs_pwrite of io bytes, one after the other or at random
+//	offsets of a file of its own for every thread
+class FileBenchmark extends Benchmark
+{
+	boolean write;
+	boolean randomOffsets;
+	TFSFileSystem fs;
+	String path;
+	int io;
+	long fileSize;
+	int[] fds;
+	long[] positions;
+	byte[][] buffers;
+
+	FileBenchmark(String name, boolean write, boolean randomOffsets)
+	{
+		super(name);
+		this.write = write;
+		this.randomOffsets = randomOffsets;
+		param("io", "128", "4096", "65536");
+		param("file", "1048576");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception
+	{
+		io = Integer.parseInt(p.get("io"));
+		fileSize = Long.parseLong(p.get("file"));
+		if (fileSize < io){
+			throw new IllegalArgumentException("file is smaller than io");
+		}
+		path = bench.diskFile("file");
+		fs = new TFSFileSystem(path);
+		long blocks = (fileSize / TFSFileSystem.BLOCK_SIZE + 2) * threads * 2 + 4096;
+		check(fs.tfs_mkfs((int)Math.min(blocks, Integer.MAX_VALUE)), "tfs_mkfs");
+		fds = new int[threads];
+		positions = new long[threads];
+		buffers = new byte[threads][io];
+		byte[] chunk = new byte[65536];
+		Arrays.fill(chunk, (byte)0x5A);
+		for (int t = 0; t < threads; t++){
+			byte[] name = ("/bench" + t).getBytes();
+			fds[t] = fs.tfs_create(name, name.length);
+			check(fds[t], "tfs_create");
+			for (long written = 0; written < fileSize; written += chunk.length){
+				int n = (int)Math.min(chunk.length, fileSize - written);
+				check(fs.tfs_write(fds[t], chunk, n), "tfs_write");
+			}
+		}
+		fs.tfs_sync();
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		long offset;
+		if (randomOffsets){
+			offset = random.nextLong(fileSize - io + 1);
+		} else {
+			offset = positions[thread];
+			positions[thread] = (offset + io + io > fileSize) ? 0 : offset + io;
+		}
+		int fd = fds[thread];
+		byte[] buf = buffers[thread];
+		check(write ? fs.tfs_pwrite(fd, buf, io, offset) : fs.tfs_pread(fd, buf, io, offset), name);
+	}
+
+	void teardown()
+	{
+		for (int fd : fds){
+			fs.tfs_close(fd);
+		}
+		fs.tfs_exit();
+		new File(path).delete();
+	}
+}
+
+//SyncBenchmark Class
+//	tfs_pwrite of io bytes followed by tfs_sync, so every sync has a dirty
+//	page and a transaction to commit
+class SyncBenchmark extends Benchmark
+{
+	TFSFileSystem fs;
+	String path;
+	int[] fds;
+	byte[][] buffers;
+
+	SyncBenchmark()
+	{
+		super("sync");
+		param("io", "128", "4096");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception
+	{
+		int io = Integer.parseInt(p.get("io"));
+		path = bench.diskFile("sync");
+		fs = new TFSFileSystem(path);
+		check(fs.tfs_mkfs(threads * (io / TFSFileSystem.BLOCK_SIZE + 2) + 4096), "tfs_mkfs");
+		fds = new int[threads];
+		buffers = new byte[threads][io];
+		for (int t = 0; t < threads; t++){
+			byte[] name = ("/sync" + t).getBytes();
+			fds[t] = fs.tfs_create(name, name.length);
+			check(fds[t], "tfs_create");
+		}
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		byte[] buf = buffers[thread];
+		check(fs.tfs_pwrite(fds[thread], buf, buf.length, 0), "tfs_pwrite");
+		check(fs.tfs_sync(), name);
+	}
+
+	void teardown()
+	{
+		for (int fd : fds){
+			fs.tfs_close(fd);
+		}
+		fs.tfs_exit();
+		new File(path).delete();
+	}
+}
+
+//MountBenchmark Class
+//	tfs_exit and tfs_mount of a volume holding files files in its root
+//	directory. Mount is one volume at a time, so this runs on one thread.
+class MountBenchmark extends Benchmark
+{
+	TFSFileSystem fs;
+	String path;
+
+	MountBenchmark()
+	{
+		super("mount");
+		threadSafe = false;
+		param("blocks", "2048", "1048576");
+		param("files", "16", "256");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads) throws Exception
+	{
+		int files = Integer.parseInt(p.get("files"));
+		path = bench.diskFile("mount");
+		fs = new TFSFileSystem(path);
+		check(fs.tfs_mkfs(Integer.parseInt(p.get("blocks"))), "tfs_mkfs");
+		byte[] data = new byte[TFSFileSystem.BLOCK_SIZE * 2];
+		for (int i = 0; i < files; i++){
+			byte[] name = ("/m" + i).getBytes();
+			int fd = fs.tfs_create(name, name.length);
+			check(fd, "tfs_create");
+			check(fs.tfs_write(fd, data, data.length), "tfs_write");
+			fs.tfs_close(fd);
+		}
+		fs.tfs_sync();
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		fs.tfs_exit();
+		fs = new TFSFileSystem(path);
+		check(fs.tfs_mount(), name);
+	}
+
+	void teardown()
+	{
+		fs.tfs_exit();
+		new File(path).delete();
+	}
+}
+
+//MkfsBenchmark Class
+//	tfs_mkfs of a volume of blocks blocks over the one made before
+class MkfsBenchmark extends Benchmark
+{
+	TFSFileSystem fs;
+	String path;
+	int blocks;
+
+	MkfsBenchmark()
+	{
+		super("mkfs");
+		threadSafe = false;
+		param("blocks", "2048", "1048576", "67108864");
+	}
+
+	void setup(TFSBenchmark bench, Map<String, String> p, int threads)
+	{
+		blocks = Integer.parseInt(p.get("blocks"));
+		path = bench.diskFile("mkfs");
+		fs = new TFSFileSystem(path);
+	}
+
+	void op(int thread, SplittableRandom random) throws Exception
+	{
+		check(fs.tfs_mkfs(blocks), name);
+	}
+
+	void teardown()
+	{
+		fs.tfs_exit();
+		new File(path).delete();
+	}
+}
@@ -0,0 +1,248 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//TFSBlockTier Class
+//	Memory tier of the blocks of one disk file that are read most often,
+//	such as root and directory blocks every lookup goes through. The disk
+//	file is the cold tier and always holds every block: writes go to it
+//	and then to the copy in memory, if there is one, so nothing is lost
+//	when the tier goes away and the journal works as before.
+//
+//	Reads of single blocks are counted in a table of counters indexed by
+//	a hash of the block number (blocks sharing a counter look hotter than
+//	they are, which is harmless). A block read from the disk file
+//	PROMOTE_AT times is queued, and the thread of the tier moves it into
+//	memory in the background, in place of the coldest block in memory if
+//	it is full and that one was read less. Every DECAY_PASSES passes the
+//	counters are halved, so blocks no longer read cool down, and blocks
+//	in memory whose counter reached 0 leave it. Like the flusher it is
+//	stopped with shutdown and never interrupted.
+class TFSBlockTier extends Thread{
+	static final int COUNTERS = 1 << 16; //Counters of reads, power of 2
+	static final int PROMOTE_AT = 4; //Reads from the disk file that make a block hot
+	static final int PASS_MILLIS = 100; //Milliseconds between passes of the thread
+	static final int DECAY_PASSES = 10; //Passes between two halvings of the counters
+	static final int LOCKS = 64; //Lock stripes, power of 2
+
+	TFSDiskInputOutput dio; //Disk file whose blocks are kept
+	volatile int capacity; //Most blocks kept in memory
+	volatile boolean stopped = false;
+	final Map<Integer, byte[]> blocks = new ConcurrentHashMap<Integer, byte[]>(); //Block -> its contents, never changed once in the map
+	final AtomicIntegerArray counts = new AtomicIntegerArray(COUNTERS);
+	final BlockingQueue<Integer> hot = new ArrayBlockingQueue<Integer>(1024); //Blocks that became hot, to move into memory
+	final Object[] locks = new Object[LOCKS]; //Moving a block in or out and updating its copy take the lock of its stripe
+
+	TFSBlockTier(TFSDiskInputOutput dio, int capacity){
+		this.dio = dio;
+		this.capacity = capacity;
+		for (int i = 0; i < LOCKS; i++){
+			locks[i] = new Object();
+		}
+		setDaemon(true); //Don't keep the shell from exiting
+		setName("tfs-tier");
+	}
+
+	//counter method:
+	//	Index of the counter of a block
+	static int counter(int block_no){
+		return (block_no * 0x9e3779b9) >>> 16 & (COUNTERS - 1);
+	}
+
+	//get method:
+	//	Contents of the block if it is in memory, null otherwise. Either
+	//	way the read is counted.
+	byte[] get(int block_no){
+		byte[] image = blocks.get(block_no);
+		if (image != null){
+			counts.incrementAndGet(counter(block_no));
+			if (dio.stats != null){
+				dio.stats.tierHits.increment();
+			}
+		}
+		return image;
+	}
+
+	//missed method:
+	//	Counts a read of the block from the disk file, and queues the block
+	//	to move into memory the time it becomes hot
+	void missed(int block_no){
+		if (dio.stats != null){
+			dio.stats.tierMisses.increment();
+		}
+		if (counts.incrementAndGet(counter(block_no)) == PROMOTE_AT){
+			hot.offer(block_no); //Full: it is queued again when it is read after the next halving
+		}
+	}
+
+	//written method:
+	//	Brings the copy of the block in memory, if any, up to date with the
+	//	block written to the disk file from buf at offset. The disk file is
+	//	written first and the copy is looked for under the lock promote
+	//	holds while it reads the block, so a block moving into memory at
+	//	the same time reads either what is written or gets its copy
+	//	replaced here.
+	void written(int block_no, byte[] buf, int offset){
+		synchronized (locks[block_no & (LOCKS - 1)]){
+			if (blocks.containsKey(block_no)){
+				blocks.put(block_no, Arrays.copyOfRange(buf, offset, offset + TFSDiskInputOutput.BLOCK_SIZE));
+			}
+		}
+	}
+
+	//dropFrom method:
+	//	Takes blocks from size on out of memory, the disk file was cut there
+	void dropFrom(int size){
+		for (Integer block_no : blocks.keySet()){
+			if (block_no >= size){
+				demote(block_no);
+			}
+		}
+	}
+
+	//setCapacity method:
+	//	Sets the most blocks kept in memory, the coldest over it leave on
+	//	the next pass
+	synchronized void setCapacity(int capacity){
+		this.capacity = capacity;
+		notifyAll();
+	}
+
+	//shutdown method:
+	//	Stops the thread after the pass it is making, if any
+	synchronized void shutdown(){
+		stopped = true;
+		notifyAll();
+	}
+
+	//finish method:
+	//	Waits for the thread to stop after shutdown
+	void finish(){
+		boolean interrupted = false;
+		while (isAlive()){
+			try {
+				join();
+			} catch (InterruptedException ie){
+				interrupted = true;
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run(){
+		int pass = 0;
+		while (!stopped){
+			synchronized (this){
+				try {
+					wait(PASS_MILLIS);
+				} catch (InterruptedException ie){
+					return;
+				}
+			}
+			if (stopped){
+				break;
+			}
+			if (++pass % DECAY_PASSES == 0){
+				decay();
+			}
+			migrate();
+		}
+		blocks.clear();
+	}
+
+	//decay method:
+	//	Halves every counter and takes blocks in memory that went cold out
+	void decay(){
+		for (int i = 0; i < COUNTERS; i++){
+			int c = counts.get(i);
+			if (c != 0){
+				counts.compareAndSet(i, c, c / 2); //A read in between is lost, or is the next one
+			}
+		}
+		for (Integer block_no : blocks.keySet()){
+			if (counts.get(counter(block_no)) == 0){
+				demote(block_no);
+			}
+		}
+	}
+
+	//migrate method:
+	//	Moves the blocks that became hot into memory, each in place of the
+	//	coldest block there if it is full and that one is colder, and
+	//	takes the coldest blocks out while there are more than capacity
+	void migrate(){
+		List<Integer> coldest = null; //Blocks in memory, coldest first, made when one has to leave
+		int next = 0;
+		Integer block_no;
+		while ((block_no = hot.poll()) != null){
+			if (blocks.containsKey(block_no)){
+				continue;
+			}
+			if (blocks.size() >= capacity){
+				if (coldest == null){
+					coldest = coldest();
+				}
+				while (next < coldest.size() && !blocks.containsKey(coldest.get(next))){
+					next++;
+				}
+				if (next == coldest.size() || counts.get(counter(coldest.get(next))) >= counts.get(counter(block_no))){
+					continue; //Not hotter than anything in memory
+				}
+				demote(coldest.get(next++));
+			}
+			promote(block_no);
+		}
+		if (blocks.size() > capacity){
+			coldest = coldest();
+			for (int i = 0; i < coldest.size() && blocks.size() > capacity; i++){
+				demote(coldest.get(i));
+			}
+		}
+	}
+
+	//coldest method:
+	//	Blocks in memory, least read first
+	List<Integer> coldest(){
+		List<Integer> list = new ArrayList<Integer>(blocks.keySet());
+		final Map<Integer, Integer> c = new HashMap<Integer, Integer>();
+		for (Integer b : list){
+			c.put(b, counts.get(counter(b)));
+		}
+		Collections.sort(list, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Integer.compare(c.get(a), c.get(b));
+			}
+		});
+		return list;
+	}
+
+	//promote method:
+	//	Reads the block from the disk file into memory
+	void promote(int block_no){
+		byte[] image = new byte[TFSDiskInputOutput.BLOCK_SIZE];
+		synchronized (locks[block_no & (LOCKS - 1)]){
+			if (blocks.containsKey(block_no) || dio.tfs_dio_read_disk(block_no, image) == -1){
+				return;
+			}
+			blocks.put(block_no, image);
+		}
+		if (dio.stats != null){
+			dio.stats.tierPromotions.increment();
+		}
+	}
+
+	//demote method:
+	//	Leaves the block in the disk file only
+	void demote(int block_no){
+		synchronized (locks[block_no & (LOCKS - 1)]){
+			if (blocks.remove(block_no) == null){
+				return;
+			}
+		}
+		if (dio.stats != null){
+			dio.stats.tierDemotions.increment();
+		}
+	}
+}
@@ -1,6 +1,13 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
+//TFSDiskInputOutput Class
+//	Blocks of one disk file. With a memory tier set (tfs_dio_set_tier)
+//	the blocks read most often are also kept in memory, see TFSBlockTier:
+//	reads of them don't go to the disk file, writes go to both, so the
+//	disk file always holds every block.
 public class TFSDiskInputOutput
 {
 	/*
@@ -11,36 +18,43 @@ public class TFSDiskInputOutput
 	 //	-Add if (buf.length < blocksize: return -1) Only do this after testing is done with actual blocks
 
 	 public static final int BLOCK_SIZE = 128;
-	 //Class variables:
-	 static RandomAccessFile raf = null; //RandomAccessFile object that class methods will interact with
-	 static int numBlocks = 0; //This tracker variable is updated when tfs_dio_get_size is called
+	 //Object variables, one disk file per object:
+	 RandomAccessFile raf = null; //RandomAccessFile object that class methods will interact with
+	 FileChannel channel = null; //Channel of raf. Reads and writes give their position, so threads can share it
+	 int numBlocks = 0; //This tracker variable is updated when tfs_dio_get_size is called
+	 TFSStats stats = null; //Counts block reads and writes of the volume, if it has one
+	 volatile TFSBlockTier tier = null; //Memory tier of hot blocks while the file is open, null if there is none
+	 int tierBlocks = 0; //Capacity of the memory tier in blocks, 0 for none, kept while the file is closed
 
 	 //For testing purposes only
 	 public static void main (String args[]){
 
+		 TFSDiskInputOutput dio = new TFSDiskInputOutput();
 		 byte[] test = {'h', 'e', 'l', 'l', 'o'};
-		 tfs_dio_create(test, test.length, 2048);
-		 tfs_dio_open(test, test.length);
-		 tfs_dio_get_size();
-		 System.out.println("Number of blocks: " + numBlocks);
+		 dio.tfs_dio_create(test, test.length, 2048);
+		 dio.tfs_dio_open(test, test.length);
+		 dio.tfs_dio_get_size();
+		 System.out.println("Number of blocks: " + dio.numBlocks);
 
 		 //Writing and reading test
-		 tfs_dio_write_block(2, test);
-		 byte[] arr = new byte[test.length];
-		 tfs_dio_read_block(2, arr);
-		 System.out.println(new String(arr));
+		 byte[] block = new byte[BLOCK_SIZE];
+		 System.arraycopy(test, 0, block, 0, test.length);
+		 dio.tfs_dio_write_block(2, block);
+		 byte[] arr = new byte[BLOCK_SIZE];
+		 dio.tfs_dio_read_block(2, arr);
+		 System.out.println(new String(arr, 0, test.length));
 
-		 tfs_dio_close();
+		 dio.tfs_dio_close();
 	 }
 
 	 //tfs_dio_create method:
 	 // Attempts to create a disk file and catches exception.
-	public static int tfs_dio_create(byte[] name, int nlength, int size)
+	public int tfs_dio_create(byte[] name, int nlength, int size)
 	{
 		//Note: Will not overwrite file if already created
 		//Creating file
 		File f = null;
-		raf = null;
+		RandomAccessFile raf = null; //Only used to size the file, tfs_dio_open opens it for use
 
 		try {
 			//Creating and initializing file
@@ -54,7 +68,7 @@ public class TFSDiskInputOutput
 
 			raf = new RandomAccessFile(f, "rw");
 			//Set the length of the file now
-			raf.setLength(size * BLOCK_SIZE); //size = blocks and 128bytes is the size each block
+			raf.setLength((long)size * BLOCK_SIZE); //size = blocks and 128bytes is the size each block, blocks not written take no space
 
 		} catch(IOException ioe){
 			System.out.println("IOException error: " + ioe.getMessage());
@@ -67,29 +81,64 @@ public class TFSDiskInputOutput
 				}
 			}
 		}
-		raf = null; //Set RandomAccessFile object back to null
 		return 0; //Return no error
 	}
 
 	//tfs_dio_open method:
 	// Opens the disk file.
-	public static int tfs_dio_open(byte[] name, int nlength)
+	public int tfs_dio_open(byte[] name, int nlength)
 	{
 		//Try opening file and catch exception
 		try{
 			File f = new File(new String(name)); //Creating File object
 			raf = new RandomAccessFile(f, "rw"); //Initializing RAF object
+			channel = raf.getChannel();
 		} catch (IOException ioe){
 			System.out.println("There was an error opening the file: " + ioe.getMessage());
 			return -1;
 		}
+		tfs_dio_set_tier(tierBlocks);
 
 		return 0;
 	}
 
+	//tfs_dio_set_tier method:
+	// Keeps at most blocks of the blocks read most often in memory, 0 to
+	// keep none. Blocks over the new capacity move back to the disk file
+	// only. Kept when the file is closed and opened again.
+	// Returns -1 if blocks is negative.
+	public synchronized int tfs_dio_set_tier(int blocks)
+	{
+		if (blocks < 0){
+			return -1;
+		}
+		tierBlocks = blocks;
+		TFSBlockTier t = tier;
+		if (blocks == 0 || channel == null){
+			if (t != null){
+				tier = null;
+				t.shutdown();
+				t.finish();
+			}
+		} else if (t == null){
+			tier = new TFSBlockTier(this, blocks);
+			tier.start();
+		} else {
+			t.setCapacity(blocks);
+		}
+		return 0;
+	}
+
+	//tfs_dio_is_open method:
+	// True while the disk file is open
+	public boolean tfs_dio_is_open()
+	{
+		return channel != null;
+	}
+
 	//tfs_dio_get_size method:
 	// Returns the size of the disk file
-	public static int tfs_dio_get_size()
+	public int tfs_dio_get_size()
 	{
 		//Blocks are 128bytes long
 		//Try to get size of file and catch exception
@@ -102,16 +151,69 @@ public class TFSDiskInputOutput
 		return 0;
 	}
 
+	//tfs_dio_set_size method:
+	// Sets the size of the disk file in blocks. Blocks past it are dropped,
+	// the file grows sparsely so blocks never written take no space and
+	// read as 0s.
+	// Returns -1 if there is an error.
+	public int tfs_dio_set_size(int size)
+	{
+		try{
+			raf.setLength((long)size * BLOCK_SIZE);
+			TFSBlockTier t = tier;
+			if (t != null){
+				t.dropFrom(size); //Blocks past the end read as 0s again
+			}
+		} catch(IOException ioe){
+			System.out.println("There was an error sizing the file: " + ioe.getMessage());
+			return -1;
+		} catch (NullPointerException npe){
+			System.out.println("There was an error sizing the file: " + npe.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
 	//tfs_dio_read_block method:
 	// Reads the a block of bytes in disk file into byte buffer that is passed as parameter.
+	// Blocks in the memory tier are copied from it instead.
 	// Returns -1 if there is an error.
-	public static int tfs_dio_read_block(int block_no, byte[] buf)
+	// Safe to call from many threads at once, the file pointer is not used.
+	public int tfs_dio_read_block(int block_no, byte[] buf)
+	{
+		TFSBlockTier t = tier;
+		if (t == null){
+			return tfs_dio_read_disk(block_no, buf);
+		}
+		byte[] image = t.get(block_no);
+		if (image != null){
+			System.arraycopy(image, 0, buf, 0, BLOCK_SIZE);
+			return 0;
+		}
+		int response = tfs_dio_read_disk(block_no, buf);
+		if (response == 0){
+			t.missed(block_no);
+		}
+		return response;
+	}
+
+	//tfs_dio_read_disk method:
+	// Reads a block from the disk file itself, never from the memory tier.
+	// Returns -1 if there is an error.
+	int tfs_dio_read_disk(int block_no, byte[] buf)
 	{
 		//Try to read from disk and catch exceptions
 		try {
-			int pos = BLOCK_SIZE * block_no; //Get byte position to read from
-			raf.seek(pos); //Update pointer position
-			raf.read(buf, 0, BLOCK_SIZE); //Read bytes available into byte array buffer
+			long pos = (long)BLOCK_SIZE * block_no; //Get byte position to read from
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, BLOCK_SIZE);
+			//Read bytes available into byte array buffer
+			while (bb.hasRemaining() && channel.read(bb, pos + bb.position()) > 0){
+			}
+			//Blocks past the end of the file were never written, so they read as 0s
+			Arrays.fill(buf, bb.position(), BLOCK_SIZE, (byte)0);
+			if (stats != null){
+				stats.blockRead();
+			}
 		} catch(IOException ioe){
 			System.out.println("There was an error reading from disk: " + ioe.getMessage());
 			return -1;
@@ -124,25 +226,128 @@ public class TFSDiskInputOutput
 
 	//tfs_dio_write_block method:
 	// Writes block of bytes in disk file from byte buffer that is passed as a parameter.
+	// A copy in the memory tier is brought up to date after the disk file.
 	// Returns -1 if there is an error.
-	public static int tfs_dio_write_block(int block_no, byte[] buf)
+	// Safe to call from many threads at once, the file pointer is not used.
+	public int tfs_dio_write_block(int block_no, byte[] buf)
 	{
 		//Try to write to disk and catch exception
 		try{
-			int pos = BLOCK_SIZE * block_no; //Get byte position to write to
-			raf.seek(pos); //Update pointer position
-			raf.write(buf, 0, BLOCK_SIZE); //Write bytes from byte array to pointer curr position
+			long pos = (long)BLOCK_SIZE * block_no; //Get byte position to write to
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, BLOCK_SIZE);
+			//Write bytes from byte array to their position
+			while (bb.hasRemaining()){
+				channel.write(bb, pos + bb.position());
+			}
+			if (stats != null){
+				stats.blockWrite();
+			}
+			TFSBlockTier t = tier;
+			if (t != null){
+				t.written(block_no, buf, 0);
+			}
 		} catch(IOException ioe){
 			System.out.println("There was an error writing to the disk: " + ioe.getMessage());
 			return -1;
+		} catch (NullPointerException npe){
+			System.out.println("There was an error writing to the disk: " + npe.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	//tfs_dio_read_blocks method:
+	// Reads count blocks in a row starting at block_no into buf with one read.
+	// The disk file is up to date, so the memory tier is not looked at,
+	// and reads of whole runs don't make their blocks hot.
+	// Returns -1 if there is an error.
+	// Safe to call from many threads at once, the file pointer is not used.
+	public int tfs_dio_read_blocks(int block_no, int count, byte[] buf)
+	{
+		try {
+			long pos = (long)BLOCK_SIZE * block_no;
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, BLOCK_SIZE * count);
+			while (bb.hasRemaining() && channel.read(bb, pos + bb.position()) > 0){
+			}
+			//Blocks past the end of the file were never written, so they read as 0s
+			Arrays.fill(buf, bb.position(), BLOCK_SIZE * count, (byte)0);
+			if (stats != null){
+				stats.blocksRead(count);
+			}
+		} catch(IOException ioe){
+			System.out.println("There was an error reading from disk: " + ioe.getMessage());
+			return -1;
+		} catch (NullPointerException npe){
+			System.out.println("There was an error reading from disk: " + npe.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	//tfs_dio_write_blocks method:
+	// Writes count blocks in a row starting at block_no from buf with one write.
+	// Returns -1 if there is an error.
+	// Safe to call from many threads at once, the file pointer is not used.
+	public int tfs_dio_write_blocks(int block_no, int count, byte[] buf)
+	{
+		try{
+			long pos = (long)BLOCK_SIZE * block_no;
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, BLOCK_SIZE * count);
+			while (bb.hasRemaining()){
+				channel.write(bb, pos + bb.position());
+			}
+			if (stats != null){
+				stats.blocksWritten(count);
+			}
+			TFSBlockTier t = tier;
+			if (t != null){
+				for (int i = 0; i < count; i++){
+					t.written(block_no + i, buf, i * BLOCK_SIZE);
+				}
+			}
+		} catch(IOException ioe){
+			System.out.println("There was an error writing to the disk: " + ioe.getMessage());
+			return -1;
+		} catch (NullPointerException npe){
+			System.out.println("There was an error writing to the disk: " + npe.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	//tfs_dio_force method:
+	// Forces every block written so far out to the device.
+	// Returns -1 if there is an error.
+	public int tfs_dio_force()
+	{
+		try{
+			channel.force(false);
+			if (stats != null){
+				stats.forces.increment();
+			}
+		} catch(IOException ioe){
+			System.out.println("There was an error forcing the disk: " + ioe.getMessage());
+			return -1;
+		} catch (NullPointerException npe){
+			System.out.println("There was an error forcing the disk: " + npe.getMessage());
+			return -1;
 		}
 		return 0;
 	}
 
 	//tfs_dio_close method:
-	// Attemps to close the file.
-	public static void tfs_dio_close()
+	// Attemps to close the file. The memory tier goes with it.
+	public void tfs_dio_close()
 	{
+		TFSBlockTier t;
+		synchronized (this){
+			t = tier;
+			tier = null;
+		}
+		if (t != null){
+			t.shutdown();
+			t.finish();
+		}
 		//Try closing the file, catch exception
 		if (raf != null){
 			try {
@@ -152,5 +357,6 @@ public class TFSDiskInputOutput
 			}
 		}
 		raf = null;
+		channel = null;
 	}
 }
@@ -45,24 +45,188 @@
 				 reference fd number that the methods use to reference a file
 				 descriptor. The FileDescriptor object contains many attributes about
 				 an opened file in the system.
+				 ***
+				 The FDT is now an array of slots with a stack of free slots. The fd
+				 number holds the slot index in its low bits and the generation of
+				 the slot in its high bits. Closing a file bumps the generation of its
+				 slot, so an fd that was already closed is detected instead of
+				 pointing at whichever file reused the slot. Lookup is O(1) and fd
+				 numbers of other open files never change.
+				 ***
+				 A FileDescriptor only holds the file pointer and flags of one open.
+				 Everything else about the file (entry, size, block map, dirty
+				 pages) is in an OpenFile kept in the open file table by path and
+				 shared by every fd of the file, so opening a file that is already
+				 open is a hash lookup and its fds never disagree about its size.
+	Concurrency:
+		Every TFSFileSystem object is one volume with its own disk file, PCB,
+		FAT and FDT, so several volumes can be mounted at once. Any number of
+		threads can call the API of a volume. Directories are locked by their
+		first block and files by their entry, each with one of a fixed number
+		of read/write locks (striped), so readers share them and only writers
+		of the same directory or file wait for each other. Lookups of entries
+		take no lock at all: they read the directory and check that no writer
+		of its stripe got in the way, and only take the read lock after
+		several tries that did. FAT, reference
+		counts and the free block pointer have an allocator lock of their own
+		that is only held while entries change. Disk reads and writes give
+		their position, so they don't share a file pointer.
+	Journal:
+		The last JOURNAL_BLOCKS blocks of the volume are a circular log of
+		metadata blocks (PCB, FAT and directory blocks). Their new contents
+		are kept in memory and logged instead of being written in place.
+		Every operation that changes metadata runs inside the running
+		transaction; a commit closes it once no operation is half way, writes
+		the images of its blocks, one descriptor block per JOURNAL_TAGS
+		blocks and a commit block with their checksum, and forces the disk
+		once. Operations waiting at the same time share that commit (group
+		commit). Committed blocks are written in place by a checkpoint, in
+		the background when the journal is getting full or the volume is
+		idle, and the header block of the journal then moves its tail past
+		them. Operations that don't wait for their commit are committed once
+		the running transaction holds half of the journal. A transaction
+		never outgrows the journal: every operation keeps OP_BLOCKS of it
+		when it starts, after a commit if the running transaction has no
+		room left, and the ones that can log more (flushes, truncates,
+		frees of long chains, new chains) check for room before every step
+		and go on in another operation, where no entry sees a half done
+		step. Mount replays
+		every complete transaction after the tail, so a
+		crash never leaves FAT and directories disagreeing. Data blocks are
+		written in place and forced by the next commit. Volumes made before
+		the journal (no journal in the PCB) write metadata in place as before.
+	Large volumes:
+		mkfs only writes PCB, root and the FAT blocks they use, the disk
+		file grows sparsely. FAT is kept in memory in pages read the first
+		time they are used. Byte offsets and file sizes have 64 bits, the
+		high half of the size of an entry is in bytes 0 to 3 of it. Block
+		numbers stay ints, which with 128 byte blocks is 256 GB a volume.
+		PCB holds the version of the layout; tfs_upgrade brings volumes
+		made before it up to date in place. tfs_grow makes a mounted
+		volume larger: the new blocks are an extent whose FAT is in its
+		own first blocks, listed in the PCB. With auto grow on, the
+		flusher thread grows the volume before it runs out of blocks.
+	Fragmentation:
+		Blocks are handed out lowest first, so files growing at the same
+		time end up interleaved. tfs_frag reports the runs of blocks in a
+		row of every file and of the free space. A defragmenter thread
+		moves the blocks of one file at a time into a free run, a few
+		blocks a step, each step its own transaction relinking the chain
+		and entry, at a rate it is given.
+	Bulk creation:
+		tfs_create_entries makes the entries of one directory a batch at a
+		time, each batch with one scan of the directory and one transaction,
+		files with their contents already in chains of blocks in a row.
+		TFSImport copies directory trees of the host with it.
+	Tiers:
+		With tfs_set_tier the disk layer keeps the blocks read most often
+		in memory too (TFSBlockTier), up to a number of blocks. Reads of
+		single blocks are counted, a thread moves blocks that got hot in
+		and blocks that went cold out. Writes go to the disk file first,
+		so it stays the whole volume and the journal is unchanged.
 */
 
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
 
 public class TFSFileSystem
 {
 	static final String DISK_FILE = "TFSDiskFile"; //Name of Disk file to be created
 	static final int DISK_FILE_SIZE = 2048; //Number of blocks
 	static final int BLOCK_SIZE = 128; //Number of byes per block
-
-	static TFSDiskInputOutput disk = new TFSDiskInputOutput();
-	static PCB pcb; //Creating Partition Control Block
-	static FAT fat; //Creating File Allocation Table
-	static Directory root; //Creating Root directory
-
-	static List<FileDescriptor> fdt = new LinkedList<FileDescriptor>(); //Declaring File Descriptor table (implemented as a list)
+	static final int TFS_VERSION = 2; //Layout of volumes made by mkfs, 0 for volumes made before it had a version, 2 since FAT extents
+	static final long MAX_FILE_SIZE = (long)Integer.MAX_VALUE * BLOCK_SIZE; //Block indexes in a file are ints
+
+	static final int LOCK_STRIPES = 64; //Number of directory locks and of file locks, power of 2
+	static final int OPTIMISTIC_TRIES = 8; //Lock free tries of a directory lookup before it takes the read lock
+
+	static final int JOURNAL_BLOCKS = 128; //Blocks at the end of the volume kept for the journal, header block included
+	static final int JOURNAL_TAGS = (BLOCK_SIZE - 12) / 4; //Block numbers held by one descriptor block
+	static final int JOURNAL_HEADER = 0x54464a48; //"TFJH", header block of the journal
+	static final int JOURNAL_DESCRIPTOR = 0x54464a44; //"TFJD", descriptor block, lists the blocks whose images follow it
+	static final int JOURNAL_COMMIT = 0x54464a43; //"TFJC", commit block, ends a transaction
+
+	static final int OP_BLOCKS = 16; //Blocks of the journal an operation keeps for itself when it starts, steps that may log more check for room first
+	static final int CHAIN_STEP = (OP_BLOCKS / 2 - 2) * (BLOCK_SIZE / 4); //Most blocks a chain grows by in one step, their FAT blocks and the link to them take half of OP_BLOCKS
+
+	static final int CREATE_BATCH = 16; //Most entries tfs_create_entries makes in one transaction, so it fits in the journal
+	static final int CREATE_BATCH_BLOCKS = (JOURNAL_BLOCKS / 16) * (BLOCK_SIZE / 4); //Most blocks of the files it writes for one batch
+	static final int COPY_RUN = 256; //Most blocks tfs_copy reads or writes with one disk call
+	static final int COPY_BUFFERS = 4; //Buffers of COPY_RUN blocks in the ring between its reader and writer
+	static final int DUMP_ALL = 0; //tfs_dump filters: every block
+	static final int DUMP_FREE = 1; //Free blocks
+	static final int DUMP_END = 2; //Blocks ending a chain
+	static final int DUMP_CHAIN = 3; //Blocks of the chain of one file, in chain order
+	static final int DUMP_MAGIC = 0x54465344; //"TFSD", binary dump
+	static final int DUMP_FORMAT = 1;
+
+	final String diskFile; //Name of the disk file holding this volume
+	TFSDiskInputOutput disk = new TFSDiskInputOutput();
+	final TFSStats stats = new TFSStats(); //Counters and latencies of this volume, see TFSStats
+	PCB pcb; //Creating Partition Control Block
+	FAT fat; //Creating File Allocation Table
+	Directory root; //Creating Root directory
+
+	FileDescriptorTable fdt = new FileDescriptorTable(); //Declaring File Descriptor table (implemented as an array of slots)
+	Map<String, OpenFile> openFiles = new HashMap<String, OpenFile>(); //Open file table, shared state of every open file by path
+	List<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>(); //Snapshots of the volume, oldest first
+	int nextSnapshotId = 1; //Id given to the next snapshot
+
+	volatile int dirtyCeiling = 64 * 1024; //Most bytes of dirty pages kept in memory before writers flush their own pages
+	volatile int dirtyBackground = 16 * 1024; //Bytes of dirty pages over which the flusher is woken up to write the oldest files
+	volatile int writeBehindDelay = 1000; //Milliseconds a dirty page may wait before the flusher writes it
+	AtomicInteger dirtyBytes = new AtomicInteger(); //Bytes of dirty pages held by all file descriptors
+	volatile TFSFlusher flusher; //Background write behind thread, runs while the volume is mounted
+	final Object flusherLock = new Object(); //Guards starting and stopping the flusher
+
+	//Locks, always taken in this order:
+	//	FileDescriptor monitor, txLock, file lock, directory lock, syncLock, snapshotLock, fatLock
+	//txLock is taken (by _tfs_begin_op) before any lock other than the
+	//FileDescriptor monitor, or again by a thread that already holds it.
+	//journalLock comes before txLock and is only taken by commits and
+	//checkpoints, which hold no other lock.
+	//Directory locks are never held two at a time except by tfs_delete_dir,
+	//which takes them in stripe order. No lock is held while waiting for the
+	//monitor of another FileDescriptor.
+	final ReentrantReadWriteLock[] dirLocks = new ReentrantReadWriteLock[LOCK_STRIPES]; //Striped by first block of a directory
+	final StampedLock[] dirStamps = new StampedLock[LOCK_STRIPES]; //Write locked while a directory of the stripe changes, lookups validate against it
+	final long[] dirWriteStamps = new long[LOCK_STRIPES]; //Stamp of the write lock on dirStamps, used by the holder of the directory write lock
+	final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES]; //Striped by entry (parent directory and name) of a file
+	final ReentrantLock syncLock = new ReentrantLock(); //Keeps PCB and FAT writes to disk in order
+	final Object snapshotLock = new Object(); //Guards preserved blocks of every snapshot
+	final ReentrantLock fatLock = new ReentrantLock(); //Allocator lock: FAT table, reference counts and free block pointer
+
+	//Metadata journal, journalBlocks is 0 on volumes made before it
+	int journalStart; //Header block of the journal, the circular area of records follows it
+	volatile int journalBlocks; //Blocks in the circular area
+	int journalHead; //Position in the area where the next transaction is written
+	int journalUsed; //Blocks of the area holding transactions not checkpointed yet
+	int journalSeq; //Sequence number written with the next transaction
+	final ReentrantLock journalLock = new ReentrantLock(); //Journal area, held by commits and checkpoints
+	final ReentrantReadWriteLock txLock = new ReentrantReadWriteLock(); //Shared by operations changing metadata, taken alone to close the running transaction
+	Map<Integer, byte[]> runningImages = new ConcurrentHashMap<Integer, byte[]>(); //Block -> image logged by the running transaction
+	final Map<Integer, byte[]> metaCache = new ConcurrentHashMap<Integer, byte[]>(); //Block -> newest image not in place yet, read instead of the disk
+	final Map<Integer, byte[]> committedImages = new HashMap<Integer, byte[]>(); //Block -> newest committed image not in place yet, guarded by journalLock
+	long runningSeq = 1; //Id of the running transaction, changes under txLock
+	long committedSeq = 0; //Id of the last transaction committed, guarded by commitMonitor
+	boolean committing = false; //A thread is writing a group commit, guarded by commitMonitor
+	final Object commitMonitor = new Object();
+	byte[] loggedPcb; //PCB block as it was last logged
+	int txReserved; //Blocks of the journal kept by the operations running, guarded by fatLock
+	volatile int refsAdded; //Changes whenever blocks get one more reference, so a walk of a chain stopped half way can tell it has to start over, changes under fatLock
+	final Deque<Integer> chainsToFree = new ConcurrentLinkedDeque<Integer>(); //Chains no entry reaches whose blocks did not fit in the transaction that let go of them
+	final ReentrantLock freeLock = new ReentrantLock(); //Held by the thread giving back chainsToFree
+	volatile int autoGrowIncrement = 0; //Fewest blocks the volume grows by when it runs low on free blocks, 0 to never grow on its own
+	volatile boolean growWanted = false; //Set by the allocator, the flusher grows the volume in the background
+	volatile int journalCommitDelay = 0; //0: operations wait for their group commit, otherwise most milliseconds before the journal thread commits them
+	TFSJournalThread journalThread; //Background commit and checkpoint thread, guarded by flusherLock
+	TFSDefragmenter defragmenter; //Background defragmenter, null until it is started, guarded by flusherLock
 
 	 //Main method:
 	 // Used for testing purposes. Some commented out code to keep things
@@ -85,9 +249,63 @@ public class TFSFileSystem
 	 /*
  	 * TFS Constructor
  	 */
-	public void TFSFileSystem()
+	public TFSFileSystem()
+	{
+		this(DISK_FILE);
+	}
+
+	//Each instance is one volume, kept in the disk file named diskFile
+	public TFSFileSystem(String diskFile)
+	{
+		this.diskFile = diskFile;
+		for (int i = 0; i < LOCK_STRIPES; i++){
+			dirLocks[i] = new ReentrantReadWriteLock();
+			dirStamps[i] = new StampedLock();
+			fileLocks[i] = new ReentrantReadWriteLock();
+		}
+		disk.stats = stats;
+		stats.gauge("FdtOpen", () -> fdt.size());
+		stats.gauge("FdtPeak", () -> fdt.peak());
+		stats.gauge("DirtyBytes", () -> dirtyBytes.get());
+		stats.gauge("MetaCacheBlocks", () -> metaCache.size());
+		stats.gauge("TierBlocks", () -> {
+			TFSBlockTier t = disk.tier;
+			return (t == null) ? 0 : t.blocks.size();
+		});
+	}
+
+	//tfs_stats method:
+	//	Statistics of the volume, kept from when this instance was made
+	public TFSStats tfs_stats()
+	{
+		return stats;
+	}
+
+	//tfs_trace_start method:
+	//	Records every tfs_* call made from now on into file, see TFSTrace.
+	//	A trace already being recorded is closed first.
+	//	Returns -1 if file can't be written
+	public synchronized int tfs_trace_start(String file)
 	{
+		tfs_trace_stop();
+		try {
+			stats.tracer = new TFSTrace(file, (pcb == null) ? 0 : pcb.fatSize, autoGrowIncrement);
+		} catch (IOException ioe){
+			System.out.println("There was an error starting the trace: " + ioe.getMessage());
+			return -1;
+		}
+		return 0;
+	}
 
+	//tfs_trace_stop method:
+	//	Stops recording calls and closes the trace file
+	public synchronized void tfs_trace_stop()
+	{
+		TFSTrace t = stats.tracer;
+		if (t != null){
+			stats.tracer = null;
+			t.close();
+		}
 	}
 
 
@@ -98,864 +316,4517 @@ public class TFSFileSystem
 	// Opens the disk file, creates and initializes PCB, FAT and
 	// Directory objects in memory. It also writes PCB and FAT to
 	// disk.
-	public static int tfs_mkfs()
+	public synchronized int tfs_mkfs()
 	{
-		//Try to open disk open if there is an error, return -1
-		byte[] name = DISK_FILE.getBytes();
-		int response = disk.tfs_dio_open(name, name.length);
-		if (response == -1){
-			return response; //Return error if cannot open
-		}
-
-		//initialize PCB object in memory
-		pcb = new PCB(DISK_FILE_SIZE, BLOCK_SIZE);
-		//initialize FAT object in memory
-		fat = new FAT(pcb.fatSize, BLOCK_SIZE);
-		//initialize root Directory object in memory
-		String str = "/";
-		byte[] b_str = str.getBytes();
-		byte[] n = new byte[16];
-		for (int i = 0; i < b_str.length; i++){
-			n[i] = b_str[i];
-		}
-		//Root initialized at block 67
-		root = new Directory(n, (byte)n.length, (byte)0, 67, 0); //Starting at block 68 (root) Size = 0 because it is empty at beginning
-		//Write the directory to disk
-		byte[] tmp = new byte[BLOCK_SIZE];
-		_tfs_read_block(67, tmp);
-		_tfs_put_bytes_block(tmp, 0, root.dirBlock, root.dirBlock.length);
-
-
-		//Update FAT since root is on block 67 now
-		fat.fatTable[67] = -1;//Points to -1 since it is also the end of the file
-		//fat.updateFATBlocks();
-		fat.updateBlocksFromTable(67, -1);
+		return tfs_mkfs(DISK_FILE_SIZE);
+	}
 
-		int freeBlock = fat.findFreeBlock(); //Find new free block
-		//If free block returned -1 then there are not blocks available
-		if (freeBlock == -1){
-			System.out.println("There are no blocks available in FAT.");
-			return -1;
+	//tfs_mkfs method:
+	// Same as above for a volume of size blocks. Only PCB, the root
+	// directory, the journal header and the FAT blocks they use are
+	// written. The disk file grows sparsely and FAT blocks never written
+	// read as 0s (free), the allocator hands out blocks from its high
+	// water mark on, so formatting takes the same time at any size.
+	public synchronized int tfs_mkfs(int size)
+	{
+		long start = stats.begin(size);
+		try {
+			//initialize PCB object in memory
+			PCB newPcb = new PCB(size, BLOCK_SIZE);
+			int rootBlock = newPcb.numFatBlocks + 3; //Block 0, PCB, FAT and one spare block come first
+			int journal = size - JOURNAL_BLOCKS; //Journal takes the last blocks of the disk, they are never handed out
+			if (journal < rootBlock + 2){
+				System.out.println("The volume is too small, it needs at least " + (rootBlock + 2 + JOURNAL_BLOCKS) + " blocks.");
+				return -1;
+			}
+			//Try to open disk open if there is an error, return -1
+			byte[] name = diskFile.getBytes();
+			disk.tfs_dio_close(); //Formatting a volume that is already open
+			disk.tfs_dio_create(name, name.length, size); //Returns -1 if the disk file already exists, which is fine
+			int response = disk.tfs_dio_open(name, name.length);
+			if (response == -1){
+				return stats.result(response); //Return error if cannot open
+			}
+			//Old volume goes away whole, blocks not written below read as 0s
+			if (disk.tfs_dio_set_size(0) == -1 || disk.tfs_dio_set_size(size) == -1){
+				return -1;
+			}
+			_tfs_journal_reset(); //Blocks logged for the old volume go away with it
+
+			pcb = newPcb;
+			//initialize FAT object in memory, its pages are made as they are used
+			fat = new FAT(pcb.fatSize, BLOCK_SIZE);
+			//initialize root Directory object in memory
+			String str = "/";
+			byte[] b_str = str.getBytes();
+			//Root entry lives on the block after FAT and the spare one, its entries start on the next one
+			root = new Directory(b_str, (byte)b_str.length, (byte)0, rootBlock + 1, 0); //Size = 0 because it is empty at beginning
+			//Write the directory to disk
+			byte[] tmp = new byte[BLOCK_SIZE];
+			_tfs_put_bytes_block(tmp, 0, root.dirBlock, root.dirBlock.length);
+			_tfs_write_block(rootBlock, tmp);
+			//Root entries block starts out empty, as the disk file is
+
+			//Update FAT since root is on its two blocks now
+			fat.setEntry(rootBlock, -1);//Points to -1 since it is also the end of the file
+			fat.setEntry(rootBlock + 1, -1);
+			for (int i = journal; i < size; i++){
+				fat.setEntry(i, -1);
+			}
+			pcb.updateJournal(journal, JOURNAL_BLOCKS - 1);
+			//Every block after root is free and was never used
+			pcb.updateHighWater(rootBlock + 2);
+			pcb.updateFreeBlockPointer(rootBlock + 2);
+			pcb.updateVersion(TFS_VERSION);
+
+			//Writing PCB and FAT from memory to disk, in place as the journal is not started yet
+			tfs_sync();
+
+			_tfs_journal_open(journal, JOURNAL_BLOCKS - 1, 0, 1);
+			_tfs_start_flusher();
+			stats.register(new File(diskFile).getAbsolutePath());
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.MKFS, start);
 		}
-		pcb.updateFreeBlockPointer(freeBlock);
-
-
-		//Writing PCB and FAT from memory to disk
-		tfs_sync();
-
-
-		//Writing root directory to disk at block 67
-		_tfs_create_entry_dir(68, root.name, root.nLength, root.isDirectory, root.firstBlockNo+1, root.size);
-
-		return 0;
 	}
 
 	//tfs_exit method:
 	// Calls tfs_unmount and closes the disk file.
 	// Returns a string.
-	public static String tfs_exit(){
-		tfs_umount();
-		disk.tfs_dio_close();
-		return "tfs_exit from TFSFileSystem.java called.";
+	public synchronized String tfs_exit(){
+		long start = stats.begin();
+		try {
+			tfs_defrag_stop();
+			//Write back every dirty page and stop the write behind thread
+			_tfs_flush_all();
+			TFSFlusher stopping;
+			synchronized (flusherLock){
+				stopping = flusher;
+				if (flusher != null){
+					flusher.shutdown();
+					flusher = null;
+				}
+			}
+			if (stopping != null){
+				stopping.finish(); //It may be growing the volume, which must not outlive the disk file
+			}
+			//Snapshots only live while mounted, give their blocks back
+			while (!snapshots.isEmpty()){
+				Snapshot snap = snapshots.get(0);
+				snap.mounted = false;
+				tfs_snapshot_delete(snap.id);
+			}
+			tfs_umount();
+			synchronized (flusherLock){
+				if (journalThread != null){
+					journalThread.shutdown();
+					journalThread = null;
+				}
+			}
+			_tfs_journal_reset(); //Journal was checkpointed by tfs_umount
+			disk.tfs_dio_close();
+			stats.unregister();
+			return "tfs_exit from TFSFileSystem.java called.";
+		} finally {
+			stats.end(TFSStats.EXIT, start);
+		}
 	}
 
 	//tfs_mount method:
-	//	Writes PCB and FAT to disk
-	public static int tfs_mount()
+	//	Opens the disk file of this volume and reads PCB and FAT from disk
+	//	to memory
+	public synchronized int tfs_mount()
 	{
-		//Write PCB from memory to disk
-		_tfs_write_pcb();
-		//Write FAT from memory to disk
-		_tfs_write_fat();
-		return 0;
+		long start = stats.begin();
+		try {
+			if (!disk.tfs_dio_is_open()){
+				byte[] name = diskFile.getBytes();
+				if (!new File(diskFile).exists() || disk.tfs_dio_open(name, name.length) == -1){
+					return -1; //Volume was never created with tfs_mkfs
+				}
+			}
+			//Snapshots taken before outlive the FAT they share pages with
+			for (Snapshot snap : snapshots){
+				snap.fat.detach();
+			}
+			//Mounting again, every block kept in memory goes in place first
+			_tfs_journal_checkpoint_all();
+			_tfs_journal_reset();
+
+			byte[] pcbBuffer = new byte[BLOCK_SIZE];
+			_tfs_read_block(1, pcbBuffer);
+			pcb = new PCB(pcbBuffer, BLOCK_SIZE);
+			if (pcb.version > TFS_VERSION){
+				System.out.println("The volume was made by a newer version of the file system.");
+				pcb = null;
+				return -1;
+			}
+			if (pcb.journalBlocks > 0){
+				//Complete transactions not checkpointed before a crash go in place, PCB may be one of them
+				_tfs_journal_replay(pcb.journalStart, pcb.journalBlocks);
+				_tfs_read_block(1, pcbBuffer);
+				pcb = new PCB(pcbBuffer, BLOCK_SIZE);
+			}
+			fat = new FAT(pcb.fatSize, pcb.extents, BLOCK_SIZE);
+			//Read FAT
+			BitSet reached = _tfs_read_fat();
+			loggedPcb = pcb.pcbBlock.clone();
+			_tfs_free_lost_blocks(reached);
+			_tfs_start_flusher();
+			stats.register(new File(diskFile).getAbsolutePath());
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.MOUNT, start);
+		}
 	}
 
-	//tfs_umount method:
-	//	Reads PCB and FAT from disk to memory
-	public static int tfs_umount()
+	//tfs_grow method:
+	//	Grows the mounted volume to size blocks while it is in use. The
+	//	blocks it had stay where they are; volumes made before the layout
+	//	had a version are upgraded first.
+	//	Returns -1 if the volume is not mounted, size is not larger or the
+	//	PCB has no room for another extent
+	public int tfs_grow(int size)
 	{
-		//Read PCB
-		_tfs_read_pcb();
-		//Read FAT
-		_tfs_read_fat();
-		return 0;
+		long start = stats.begin(size);
+		try {
+			if (pcb == null || (pcb.version < 1 && tfs_upgrade() == -1)){
+				return -1;
+			}
+			int response;
+			_tfs_begin_op();
+			fatLock.lock();
+			try {
+				response = _tfs_grow_locked(size);
+			} finally {
+				fatLock.unlock();
+				_tfs_end_op(true);
+			}
+			return stats.result(response);
+		} finally {
+			stats.end(TFSStats.GROW, start);
+		}
 	}
 
-	//tfs_sync method:
-	//	Synchronizes the file system (memory with disk)
-	public static int tfs_sync()
+	//tfs_set_auto_grow method:
+	//	Sets how many blocks the volume grows by when it runs low on free
+	//	blocks, at least; a volume larger than that doubles instead. The
+	//	flusher thread grows it in the background before it is full; an
+	//	allocation that still finds no free block grows it right away. 0
+	//	(the default) turns it off.
+	public int tfs_set_auto_grow(int blocks)
 	{
-		_tfs_write_pcb();
-		_tfs_write_fat();
+		if (blocks < 0){
+			return -1;
+		}
+		autoGrowIncrement = blocks;
 		return 0;
 	}
 
-	//tfs_prrfs method:
-	// Loads PCB and FAT from disk into a buffer.
-	// Returns both in a string.
-	public static String tfs_prrfs()
+	//tfs_set_tier method:
+	//	Keeps up to blocks of the blocks of the volume read most often in
+	//	memory as well as in the disk file, moved in and out in the
+	//	background as they get hot and cold. 0 (the default) keeps none.
+	//	Kept across tfs_exit and tfs_mount.
+	public int tfs_set_tier(int blocks)
 	{
-		String blocksInDisk = null;
-
-		byte[] pcbBuffer = new byte[BLOCK_SIZE]; //Buffer for pcb block - PCB is one block in length
-		byte[] fatBuffer = new byte[BLOCK_SIZE]; //Buffer for fat of length of fat
-
-		_tfs_read_block(1, pcbBuffer);
-
-		//Saving root pointer from memory retrieved pcb buffer into variable
-		int fatSize = (((pcbBuffer[0] & 0xFF) << 24)|((pcbBuffer[1] & 0xFF) << 16)|((pcbBuffer[2] & 0xFF) << 8)|(pcbBuffer[3] & 0xFF))*4/128;
-		//Saving free block pointer from memory retrieved pcb buffer into variable
-		int rootPointer = (((pcbBuffer[4] & 0xFF) << 24)|((pcbBuffer[5] & 0xFF) << 16)|((pcbBuffer[6] & 0xFF) << 8)|(pcbBuffer[7] & 0xFF));
-		//Saving fat size from pointer from memory retrieved pcb buffer into variable
-		int freeBlockPointer = (((pcbBuffer[8] & 0xFF) << 24)|((pcbBuffer[9] & 0xFF) << 16)|((pcbBuffer[10] & 0xFF) << 8)|(pcbBuffer[11] & 0xFF));
+		return disk.tfs_dio_set_tier(blocks);
+	}
 
-		blocksInDisk = "\nIn File System:\n";
-		blocksInDisk += "PCB:\nRoot Pointer (block #): " + rootPointer +  "\tFirst Free Block: " + freeBlockPointer +  "\tSize of FAT (blocks): " + fatSize + "\n";
-		blocksInDisk += "FAT:\n";
+	//tfs_frag method:
+	//	Reports how fragmented the files and the free space of the mounted
+	//	volume are: blocks a run (blocks in a row on disk) on average for
+	//	every file and for the free blocks, and the files in the most runs.
+	//	Blocks of the volume itself (_tfs_system_block) are not free space.
+	//	Returns null if no file system is mounted
+	public String tfs_frag()
+	{
+		if (pcb == null || !disk.tfs_dio_is_open()){
+			return null;
+		}
+		long blocks = 0;
+		long runs = 0;
+		int fragmented = 0; //Files in more than one run
+		final Map<String, int[]> files = new HashMap<String, int[]>(); //Path -> blocks and runs
+		for (Map.Entry<String, Integer> e : _tfs_list_files().entrySet()){
+			int[] chain = _tfs_chain_runs(e.getValue());
+			files.put(e.getKey(), chain);
+			blocks += chain[0];
+			runs += chain[1];
+			if (chain[1] > 1){
+				fragmented++;
+			}
+		}
+		//Free space is looked up in FAT up to the high water mark only, the
+		//blocks past it were never used; blocks of the volume itself are not
+		//free space and end a run
+		long free = 0;
+		long freeRuns = 0;
+		long largest = 0;
+		long run = 0;
+		int highWater = Math.min(pcb.highWater, fat.fatSize);
+		int pos = _tfs_root_block() + 1;
+		List<int[]> system = _tfs_system_ranges();
+		system.add(new int[]{fat.fatSize, fat.fatSize});
+		for (int[] s : system){
+			int stop = Math.min(s[0], fat.fatSize);
+			for (int i = pos; i < Math.min(stop, highWater); i++){
+				if (fat.get(i) == 0){
+					free++;
+					if (run++ == 0){
+						freeRuns++;
+					}
+					largest = Math.max(largest, run);
+				} else {
+					run = 0;
+				}
+			}
+			int never = stop - Math.max(pos, highWater); //Free blocks in a row past the high water mark
+			if (never > 0){
+				free += never;
+				if (run == 0){
+					freeRuns++;
+				}
+				run += never;
+				largest = Math.max(largest, run);
+			}
+			run = 0;
+			pos = Math.max(pos, s[1]);
+		}
 
-		//Iterate through fatBlocks in disk file and append it to string
-		byte[] tmp = new byte[4];
-		int num;
-		//Iterating to read each block of fat starting at block 2
-		for (int i = 2; i < fat.numBlocks+2; i++){
-			_tfs_read_block(i, fatBuffer); //Reading FAT block into buffer
-			//Iterating through fatBuffer and translating bytes to ints into returning string
-			for (int j = 0; j < fatBuffer.length/4; j++) { //Divided by 4 because each int is represented by 4 bytes
-				//Storing four bytes that form an int into tmp
-				tmp[0] = fatBuffer[j*4]; tmp[1] = fatBuffer[(j*4)+1]; tmp[2] = fatBuffer[(j*4)+2]; tmp[3] = fatBuffer[(j*4)+3];
-				//Converting 4 bytes into int
-				num = (((tmp[0] & 0xFF) << 24)|((tmp[1] & 0xFF) << 16)|((tmp[2] & 0xFF) << 8)|(tmp[3] & 0xFF));
-				//Appending it to returning string
-				blocksInDisk += (j + ((i-2)*BLOCK_SIZE/4) + ": " + num + "\t");
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "Files: %d, %d blocks in %d runs, %.1f blocks a run, %d in more than one run%n",
+			files.size(), blocks, runs, (runs == 0) ? 0.0 : (double)blocks / runs, fragmented));
+		sb.append(String.format(Locale.ROOT, "Free: %d blocks in %d runs, %.1f blocks a run, largest %d%n",
+			free, freeRuns, (freeRuns == 0) ? 0.0 : (double)free / freeRuns, largest));
+		List<String> worst = new ArrayList<String>(files.keySet());
+		Collections.sort(worst, new Comparator<String>(){
+			public int compare(String a, String b){
+				return Integer.compare(files.get(b)[1], files.get(a)[1]);
 			}
+		});
+		for (int i = 0; i < Math.min(10, worst.size()) && files.get(worst.get(i))[1] > 1; i++){
+			int[] chain = files.get(worst.get(i));
+			sb.append(String.format(Locale.ROOT, "  %-32s %8d blocks %6d runs %8.1f blocks a run%n",
+				worst.get(i), chain[0], chain[1], (double)chain[0] / chain[1]));
 		}
-		return blocksInDisk;
+		return sb.toString();
 	}
 
-	//tfs_prmfs method:
-	//	Writes PCB and FAT from disk to a string that is returned
-	public static String tfs_prmfs()
+	//tfs_defrag_start method:
+	//	Starts moving the blocks of every file of the mounted volume into
+	//	runs of blocks in a row, in the background and at most rate blocks
+	//	a second. Files stay in use while their blocks move.
+	//	Returns -1 if no file system is mounted or it is already running
+	public int tfs_defrag_start(int rate)
 	{
-		//Building string to be returned
-		String inMemory = "\nIn Memory:\n";
-		inMemory += "PCB:\nRoot Pointer (block #): " + pcb.rootPointer + "\tFirst Free Block: " + pcb.freeBlockPointer + "\tSize of FAT (blocks): " + pcb.numFatBlocks + "\n";
-		inMemory += "FAT:\n";
-		//Itereating through fat and appending each value
-		for (int i = 0; i < fat.fatTable.length; i++){
-			inMemory += i + ": " + fat.fatTable[i] + "\t";
+		if (rate <= 0 || pcb == null || !disk.tfs_dio_is_open()){
+			return -1;
 		}
-		return inMemory;
+		synchronized (flusherLock){
+			if (defragmenter != null && defragmenter.isAlive()){
+				return -1;
+			}
+			defragmenter = new TFSDefragmenter(this, rate);
+			defragmenter.start();
+		}
+		return 0;
 	}
 
-	//tfs_open method:
-	//	Opens a file descriptor entry into fdt
-	public static int tfs_open(byte[] name, int nlength)
+	//tfs_defrag_stop method:
+	//	Stops the defragmenter after the step it is taking, if it is running
+	public void tfs_defrag_stop()
 	{
-		return _tfs_open_fd(name, nlength );
+		TFSDefragmenter stopping;
+		synchronized (flusherLock){
+			stopping = defragmenter;
+		}
+		if (stopping != null){
+			stopping.shutdown();
+			stopping.finish(); //Its steps may flush, which starts the flusher under flusherLock
+		}
 	}
 
-	//tfs_read_dir() method:
-	//	Reads directory entries into arrays
-	public static int tfs_read_dir(int fd, byte[] is_directory, byte[] nlength, byte[][] name, int[] first_block_no, int[] file_size){
-		//Create FileDescriptor object from fd number given
-		FileDescriptor f = fdt.get(fd); //Creating a reference to it
-		byte[] tmp = new byte[BLOCK_SIZE]; //This is where bytes will be temporarily stored
-		byte[] bDir = new byte[32];
-		int entry = f.startingBlock; //This is where the entries are held
-		boolean empty = true;
-		int count = 0;
-
-		while (true){
-			_tfs_read_block(entry, tmp);
-			//Iterate through entries and saving them to array
-			for (int i = 0; i < 4; i++){
-				empty = true; //Reset variable
-				//Get directory entry
-				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+	//tfs_defrag_status method:
+	//	How far the defragmenter got, null if it was never started
+	public String tfs_defrag_status()
+	{
+		TFSDefragmenter d;
+		synchronized (flusherLock){
+			d = defragmenter;
+		}
+		return (d == null) ? null : d.status();
+	}
 
-				//If there is an entry then save it
-				//If it is empty then move to next entry
-				for (int j = 0; j < 32; j++){
-					if (bDir[j] != 0){
-						empty = false; //If we get here, that means the entry is not empty
-					}
+	//tfs_upgrade method:
+	//	Brings the mounted volume up to the layout of this version in place.
+	//	Sizes of entries were ints and their high bytes were always 0, so
+	//	entries stay as they are. The high water mark is set past the last
+	//	block in use, and volumes made before the journal get one if the
+	//	blocks at the end of the volume are free.
+	//	Returns -1 if the volume is not mounted
+	public synchronized int tfs_upgrade()
+	{
+		long start = stats.begin();
+		try {
+			if (pcb == null){
+				return -1; //Not mounted
+			}
+			if (pcb.version >= TFS_VERSION){
+				return stats.result(0); //Up to date
+			}
+			tfs_sync();
+			int journal = -1;
+			_tfs_begin_op();
+			if (_tfs_repair_root() == -1){
+				_tfs_end_op(false);
+				return -1;
+			}
+			fatLock.lock();
+			try {
+				int high = (pcb.journalBlocks > 0) ? pcb.journalStart : pcb.fatSize;
+				while (high > _tfs_root_block() + 2 && fat.get(high - 1) == 0){
+					high--;
 				}
-				if (empty == true){
-					continue; //If entry is empty, go to next entry
+				if (pcb.journalBlocks == 0 && pcb.fatSize - JOURNAL_BLOCKS >= high){
+					//Free blocks at the end of the volume become the journal
+					journal = pcb.fatSize - JOURNAL_BLOCKS;
+					for (int i = journal; i < pcb.fatSize; i++){
+						fat.setEntry(i, -1);
+					}
+					pcb.updateJournal(journal, JOURNAL_BLOCKS - 1);
+					if (pcb.freeBlockPointer >= journal){
+						pcb.updateFreeBlockPointer(-1);
+					}
 				}
-				//If we get to this part of the code, it means the entry is not empty
-				//is_directory, nlength, name[][], first_block_no[] int, file_size[] int
-				is_directory[count] = bDir[4];
-				nlength[count] = bDir[5];
-				for (int k = 8; k < 24; k++){
-					name[count][k-8] = bDir[k];
+				pcb.updateHighWater(high);
+				pcb.updateVersion(TFS_VERSION);
+			} finally {
+				fatLock.unlock();
+				_tfs_end_op(false);
+			}
+			//Still without a journal, so this writes PCB and FAT in place
+			tfs_sync();
+			if (journal != -1){
+				byte[] zero = new byte[BLOCK_SIZE];
+				for (int i = journal + 1; i < pcb.fatSize; i++){
+					disk.tfs_dio_write_block(i, zero); //Old contents must never be replayed
 				}
-				first_block_no[count] = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
-				file_size[count] = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF)); //Retrieve filesize of directory entries
+				_tfs_journal_open(journal, JOURNAL_BLOCKS - 1, 0, 1);
+			}
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.UPGRADE, start);
+		}
+	}
 
-				count++; //Increment count variable
+	//_tfs_repair_root method:
+	//	The first mkfs put the entries of the root directory on the block of
+	//	its own entry, so the root entry "/" was one of them and the root
+	//	listed itself, once for every mkfs. Moves the entries to a block of
+	//	their own, leaving out every entry of a directory starting on the
+	//	root block. Does nothing on volumes laid out as mkfs does now.
+	//	Returns -1 if there is no free block for the entries
+	private int _tfs_repair_root()
+	{
+		int rootBlock = _tfs_root_block();
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
+		byte[] rootName = "/".getBytes();
+		if (_tfs_get_entry_dir(rootBlock, rootName, (byte)rootName.length, is_directory, fbn, size) == -1 || fbn[0] != rootBlock){
+			return 0;
+		}
+		_tfs_dir_write_lock(rootBlock);
+		try {
+			int entries = _tfs_allocate_block_fat();
+			if (entries == -1){
+				System.out.println("There is no free block to move the entries of the root directory to.");
+				return -1;
 			}
-			int nextBlock = fat.fatTable[entry];
-			if (nextBlock == -1){
-				return count;
+			byte[] tmp = new byte[BLOCK_SIZE];
+			byte[] moved = new byte[BLOCK_SIZE];
+			_tfs_read_block(rootBlock, tmp);
+			for (int i = 0; i < 4; i++){
+				boolean self = (_tfs_get_byte_block(tmp, (i*32)+4) == 0 && _tfs_get_int_block(tmp, (i*32)+24) == rootBlock);
+				if (!self){
+					System.arraycopy(tmp, i*32, moved, i*32, 32);
+				}
 			}
-			entry = nextBlock;
+			_tfs_write_meta_block(entries, moved);
+			_tfs_set_fat(entries, fat.get(rootBlock)); //Blocks the root grew by follow the moved entries
+			_tfs_set_fat(rootBlock, -1);
+			//Later blocks of the root may hold more copies of "/"
+			for (int b = fat.get(entries); b > 0 && b < fat.fatSize; b = fat.get(b)){
+				_tfs_read_block(b, tmp);
+				boolean changed = false;
+				for (int i = 0; i < 4; i++){
+					if (_tfs_get_byte_block(tmp, (i*32)+4) == 0 && _tfs_get_int_block(tmp, (i*32)+24) == rootBlock){
+						Arrays.fill(tmp, i*32, (i+1)*32, (byte)0);
+						changed = true;
+					}
+				}
+				if (changed){
+					_tfs_write_meta_block(b, tmp);
+				}
+			}
+			Directory root = new Directory(rootName, (byte)rootName.length, (byte)0, entries, size[0]);
+			byte[] block = new byte[BLOCK_SIZE];
+			_tfs_put_bytes_block(block, 0, root.dirBlock, root.dirBlock.length);
+			_tfs_write_meta_block(rootBlock, block);
+			return 0;
+		} finally {
+			_tfs_dir_write_unlock(rootBlock);
 		}
-
 	}
 
-
-	//tfs_read method:
-	//	Read blength bytes in buf from file_id
-	//	Returns the number of bytes read
-	public static int tfs_read(int file_id, byte[] buf, int blength)
+	//_tfs_max_file_size method:
+	//	Largest size a file of the mounted volume may have. Volumes made
+	//	before sizes had 64 bits keep files under 2 GB, so file systems of
+	//	that time can still read them.
+	private long _tfs_max_file_size()
 	{
-		return _tfs_read_bytes_fd(file_id, buf, blength);
+		return (pcb.version >= 1) ? MAX_FILE_SIZE : Integer.MAX_VALUE;
 	}
 
-	//tfs_write method:
-	//	Writes blength bytes of buf in memory
-	//	Returns the number of bytes written
-	public static int tfs_write(int file_id, byte[] buf, int blength)
+	//tfs_umount method:
+	//	Writes dirty pages, PCB and FAT from memory to disk
+	public synchronized int tfs_umount()
 	{
-		return _tfs_write_bytes_fd(file_id, buf, blength);
+		long start = stats.begin();
+		try {
+			if (pcb == null){
+				return -1; //Not mounted
+			}
+			tfs_sync();
+			_tfs_journal_checkpoint_all(); //Journal is left empty
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.UMOUNT, start);
+		}
 	}
 
-	//tfs_seek method:
-	//	returns new file pointer
-	public static int tfs_seek(int file_id, int position)
+	//tfs_sync method:
+	//	Synchronizes the file system (memory with disk)
+	//	Dirty pages of open files are written first. Returns once every
+	//	change is committed, even if commits are left to the journal thread.
+	public int tfs_sync()
 	{
-		return _tfs_seek_fd(file_id, position);
+		long start = stats.begin();
+		try {
+			_tfs_flush_all(); //Each file in operations of its own
+			_tfs_sync_meta();
+			_tfs_journal_commit_running();
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.SYNC, start);
+		}
 	}
 
-	//tfs_close method:
-	//	Removes the file descriptor from File Descriptor Table (FDT)
-	public static void tfs_close(int file_id)
+	//tfs_set_dirty_ceiling method:
+	//	Sets the most bytes of dirty pages kept in memory. Writers going over
+	//	it flush dirty pages themselves before writing more.
+	public int tfs_set_dirty_ceiling(int bytes)
 	{
-		_tfs_close_fd(file_id);
-		return;
+		if (bytes < BLOCK_SIZE){
+			return -1;
+		}
+		dirtyCeiling = bytes;
+		if (dirtyBackground > bytes){
+			dirtyBackground = bytes;
+		}
+		return 0;
 	}
 
-	//Helper method for tfs_create()
-	public static int helper_tfs_create(byte[] name, int nlength){
-		String str = new String(name); //Creating a string from name
-		String[] path = str.split("/"); //Creating a string array with the path
-		//If first character is not root then we don't have full path
-    if (str.charAt(0) != '/'){
-      return -1;
-    }
+	//tfs_set_dirty_background method:
+	//	Sets the bytes of dirty pages over which writers wake the flusher up
+	//	to write the files dirty for the longest, without waiting for it.
+	//	Kept below the dirty ceiling, where writers flush themselves.
+	public int tfs_set_dirty_background(int bytes)
+	{
+		if (bytes < BLOCK_SIZE || bytes > dirtyCeiling){
+			return -1;
+		}
+		dirtyBackground = bytes;
+		return 0;
+	}
 
-		//Find block that root belongs to => Root is located on block 67
-		//Retriever block 67
-		byte[] bDir = new byte[32]; //directory entry holder
-		byte[] tmp = new byte[BLOCK_SIZE]; //tmp block holder
-		byte[] n = new byte[16]; //name holder
-
-		int currName = 1;
-		boolean found = false;
-
-		//Reads root, as we are always starting at root
-		int entry = 67;
-		_tfs_read_block(entry, tmp);
-		bDir = _tfs_get_bytes_block(tmp, 0, 32);
-		//Retrieving size of directory (size of root right now)
-		int sizeOfDir = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF));
-		sizeOfDir = sizeOfDir/BLOCK_SIZE; //Amount of entries in each directory
-		//Retrieving first block number of root directory
-		int firstBlockNo = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
-
-		//Reading root directory items
-		_tfs_read_block(firstBlockNo, tmp);
-
-		while (true) {
-			found = false; //Setting false variable to false
-			//Iterate through
-			for (int i = 0, secondI = 0; i < sizeOfDir; i++, secondI++){
-				//If we read 4 entries already, we need to look at the following block that contains the rest of directory entries
-				if (i%4 == 0){
-					int nextBlock = fat.fatTable[entry];
-					if (nextBlock == -1){
-						return -1;
-					}
-					entry = nextBlock;
-					_tfs_read_block(nextBlock, tmp);
-					secondI = 0;
-				}
-				//Get the entry
-				bDir = _tfs_get_bytes_block(tmp, (secondI*32), 32);
+	//tfs_set_write_behind_delay method:
+	//	Sets how many milliseconds a dirty page waits before the flusher
+	//	thread writes it to disk
+	public int tfs_set_write_behind_delay(int millis)
+	{
+		if (millis < 0){
+			return -1;
+		}
+		writeBehindDelay = millis;
+		TFSFlusher t = flusher;
+		if (t != null){
+			t.wakeUp(); //Sleeps for the new delay from now on
+		}
+		return 0;
+	}
 
-				//Compare the names
-				for (int j = 8; j < 24; j++){
-					n[j-8] = bDir[j];
-				}
-				String strName = new String(n);
-				if (strName.equals(path[currName])){
-					//If we are at the end of the path and we are at the last entry then return the parent block
-					if (path.length-2 == currName){
-						found = true;
-						return (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entry
-					}
-					found = true;
-					currName++;
-					sizeOfDir = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF));
-					sizeOfDir = sizeOfDir/BLOCK_SIZE;
-					firstBlockNo = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
-					_tfs_read_block(firstBlockNo, tmp); //Reading new block
-					break; //Break out of first loop and look into next directory
-				}
-			}
-			//If we arrive at the end of the loop, we hav
-			if (found == false){
-				return -1;
+	//tfs_set_journal_commit_delay method:
+	//	0 (the default) makes operations changing metadata wait for the
+	//	commit of their transaction, shared with every operation waiting at
+	//	the same time. Above 0 they return right away and the journal thread
+	//	commits at least every millis milliseconds, so a crash loses at most
+	//	that much but each commit covers many more operations.
+	public int tfs_set_journal_commit_delay(int millis)
+	{
+		if (millis < 0){
+			return -1;
+		}
+		journalCommitDelay = millis;
+		synchronized (flusherLock){
+			if (journalThread != null){
+				journalThread.wakeUp(); //Sleeps for the new delay from now on
 			}
-
 		}
-
-
-
+		return 0;
 	}
 
-	//tfs_create method:
-	//	Create a file, name contains full path
-	//	Returns file descriptor entry
-	public static int tfs_create(byte[] name, int nlength)
+	//tfs_prrfs method:
+	// Loads PCB and FAT from disk into a buffer.
+	// Returns both in a string.
+	public String tfs_prrfs()
 	{
-		//Find the block number of parent directory
-		int block_no = helper_tfs_create(name, nlength); //Gets firstBlockNo of parent directory of name
-
-		String newName = new String(name); //Creating a string from name
-		String[] path = newName.split("/"); //Creating a string array with the path
-		byte[] n = path[path.length-1].getBytes();
+		long start = stats.begin();
+		try {
+			StringWriter out = new StringWriter();
+			out.write("\nIn File System:\n");
+			_tfs_dump(out, null, '\t', true, 0, Integer.MAX_VALUE, DUMP_ALL, null, 0);
+			return out.toString();
+		} catch (IOException ioe){
+			return null; //A StringWriter never fails
+		} finally {
+			stats.end(TFSStats.PRRFS, start);
+		}
+	}
 
-		//The method will allocate the entry on table for it
-		_tfs_create_entry_dir(block_no, n, (byte)n.length, (byte)1, pcb.freeBlockPointer, 0);
-		return tfs_open(name, nlength); //Creates a FileDescriptor in FDT for the new file
+	//tfs_prmfs method:
+	//	Writes PCB and FAT from disk to a string that is returned
+	public String tfs_prmfs()
+	{
+		long start = stats.begin();
+		try {
+			StringWriter out = new StringWriter();
+			out.write("\nIn Memory:\n");
+			_tfs_dump(out, null, '\t', false, 0, Integer.MAX_VALUE, DUMP_ALL, null, 0);
+			return out.toString();
+		} catch (IOException ioe){
+			return null;
+		} finally {
+			stats.end(TFSStats.PRMFS, start);
+		}
 	}
 
-	//tfs_delete method:
-	//	Delete a file, name contains full path
-	public static int tfs_delete(byte[] name, int nlength)
+	//tfs_dump method:
+	//	Writes PCB and the FAT entries of blocks from up to (not including)
+	//	to into out as it goes, one "block: entry" a line. With disk they are
+	//	dumped as they are on disk (like prrfs), otherwise as they are in
+	//	memory (like prmfs). filter is DUMP_ALL, DUMP_FREE (free blocks,
+	//	blocks of the volume itself left out, see _tfs_system_block),
+	//	DUMP_END (blocks ending a chain) or DUMP_CHAIN (blocks of the chain
+	//	of the file or directory name, in chain order). Only the FAT blocks
+	//	or pages of the blocks dumped are read.
+	//	Returns entries written, -1 if no file system is mounted, the range
+	//	or name is wrong or out fails
+	public int tfs_dump(Writer out, boolean disk, int from, int to, int filter, byte[] name, int nlength)
 	{
-		int parent_blockNo = _tfs_search_dir(name, nlength); //Getting parent block number
-		//Get name of the file only, not entire path
-		String newName = new String(name);
-		String path[] = newName.split("/");
-		byte[] n = path[path.length-1].getBytes();
+		try {
+			int count = _tfs_dump(out, null, '\n', disk, from, to, filter, name, nlength);
+			out.flush();
+			return count;
+		} catch (IOException ioe){
+			System.out.println("There was an error writing the dump: " + ioe.getMessage());
+			return -1;
+		}
+	}
 
-		return _tfs_delete_entry(parent_blockNo, n, (byte)n.length);
+	//tfs_dump method:
+	//	Same as above in a compact binary format, read back by
+	//	tfs_dump_read: int DUMP_MAGIC, int DUMP_FORMAT, byte 1 if from disk,
+	//	the PCB block, then for every entry the zigzag var of its block
+	//	minus the block before (from - 1 for the first) and the zigzag var
+	//	of its value, and a 0 after the last one (see TFSTrace for var)
+	public int tfs_dump(OutputStream out, boolean disk, int from, int to, int filter, byte[] name, int nlength)
+	{
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			int count = _tfs_dump(null, data, '\n', disk, from, to, filter, name, nlength);
+			data.flush();
+			return count;
+		} catch (IOException ioe){
+			System.out.println("There was an error writing the dump: " + ioe.getMessage());
+			return -1;
+		}
 	}
 
-	//tfs_create_dir method:
-	// Create a directory, name contains full path
-	public static int tfs_create_dir(byte[] name, int nlength)
+	//tfs_dump_read method:
+	//	Writes a binary dump from in as text to out, the way tfs_dump writes it
+	//	Returns entries written, -1 if in is not a dump
+	public static int tfs_dump_read(InputStream in, Writer out) throws IOException
 	{
-		//Find the block number of parent directory
-		int block_no = helper_tfs_create(name, nlength); //Gets firstBlockNo of parent directory of name
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		if (data.readInt() != DUMP_MAGIC || data.readInt() != DUMP_FORMAT){
+			return -1;
+		}
+		boolean disk = data.readByte() != 0;
+		byte[] pcbBlock = new byte[BLOCK_SIZE];
+		data.readFully(pcbBlock);
+		out.write(disk ? "In File System:\n" : "In Memory:\n");
+		_tfs_dump_pcb(out, new PCB(pcbBlock, BLOCK_SIZE));
+		long block = TFSTrace.readVar(data) - 1; //From - 1, so the first delta is never 0
+		int count = 0;
+		long delta;
+		while ((delta = TFSTrace.readZigzag(data)) != 0){
+			block += delta;
+			out.write(block + ": " + TFSTrace.readZigzag(data) + "\n");
+			count++;
+		}
+		out.flush();
+		return count;
+	}
 
-		String newName = new String(name); //Creating a string from name
-		String[] path = newName.split("/"); //Creating a string array with the path
-		byte[] n = path[path.length-1].getBytes();
+	//_tfs_dump method:
+	//	Dumps into text, or into binary if text is null, for tfs_dump. Entries
+	//	of text end with separator.
+	private int _tfs_dump(Writer text, DataOutputStream binary, char separator, boolean onDisk, int from, int to, int filter, byte[] name, int nlength) throws IOException
+	{
+		if (pcb == null || !disk.tfs_dio_is_open()){
+			return -1;
+		}
+		byte[] pcbBlock = new byte[BLOCK_SIZE];
+		if (onDisk){
+			_tfs_read_block(1, pcbBlock);
+		} else {
+			pcbBlock = pcb.pcbBlock.clone();
+		}
+		PCB p = new PCB(pcbBlock, BLOCK_SIZE);
+		to = Math.min(to, Math.min(p.fatSize, fat.fatSize));
+		if (from < 0 || from > to){
+			return -1;
+		}
+		int chain = -1; //First block of the chain dumped
+		if (filter == DUMP_CHAIN){
+			int parent = (name == null) ? -1 : _tfs_search_dir(name, nlength);
+			if (parent == -1){
+				return -1;
+			}
+			byte[] n = _tfs_get_last_name(name, nlength);
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+			if (_tfs_get_entry_dir(parent, n, (byte)n.length, is_directory, fbn, size) == -1){
+				return -1;
+			}
+			chain = fbn[0];
+		}
 
-		//The method will allocate the entry on table for it
-		_tfs_create_entry_dir(block_no, n, (byte)n.length, (byte)0, pcb.freeBlockPointer, 0);
-		return tfs_open(name, nlength); //Creates a FileDescriptor in FDT for the new file
+		if (text != null){
+			_tfs_dump_pcb(text, p);
+		} else {
+			binary.writeInt(DUMP_MAGIC);
+			binary.writeInt(DUMP_FORMAT);
+			binary.writeByte(onDisk ? 1 : 0);
+			binary.write(pcbBlock);
+			TFSTrace.writeVar(binary, from);
+		}
+		byte[] fatBuffer = new byte[BLOCK_SIZE];
+		int read = -1; //FAT block in fatBuffer
+		int count = 0;
+		long prev = from - 1;
+		int visited = 0;
+		List<int[]> system = _tfs_system_ranges(); //Never free, whatever their entries hold
+		for (int b = (chain == -1) ? from : chain; (chain == -1) ? b < to : (b > 0 && visited < fat.fatSize); visited++){
+			int value;
+			if (onDisk){
+				int block = fat.diskBlock(b);
+				if (block != read){
+					_tfs_read_block(block, fatBuffer);
+					read = block;
+				}
+				value = _tfs_get_int_block(fatBuffer, fat.diskIndex(b) * 4);
+			} else {
+				value = fat.get(b);
+			}
+			boolean dumped = (chain != -1) ? (b >= from && b < to)
+				: (filter == DUMP_ALL || (filter == DUMP_FREE && value == 0 && !_tfs_system_block(b, system)) || (filter == DUMP_END && FAT.nextOf(value) == -1));
+			if (dumped){
+				if (text != null){
+					text.write(b + ": " + value + separator);
+				} else {
+					TFSTrace.writeZigzag(binary, b - prev);
+					TFSTrace.writeZigzag(binary, value);
+					prev = b;
+				}
+				count++;
+			}
+			b = (chain == -1) ? b + 1 : FAT.nextOf(value);
+		}
+		if (binary != null){
+			TFSTrace.writeZigzag(binary, 0);
+		}
+		return count;
 	}
 
-	//tfs_delete_dir method:
-	//	Deletes a directory, name contains full path
-	public static int tfs_delete_dir(byte[] name, int nlength)
+	//_tfs_dump_pcb method:
+	//	Writes the fields of PCB p as text
+	private static void _tfs_dump_pcb(Writer out, PCB p) throws IOException
 	{
-		int parent_blockNo = _tfs_search_dir(name, nlength); //Getting parent block number
-		//Get name of the file only, not entire path
-		String newName = new String(name);
-		String path[] = newName.split("/");
-		byte[] n = path[path.length-1].getBytes();
-
-		return _tfs_delete_entry(parent_blockNo, n, (byte)n.length);
+		out.write("PCB:\nRoot Pointer (block #): " + p.rootPointer + "\tFirst Free Block: " + p.freeBlockPointer
+			+ "\tSize of FAT (blocks): " + p.numFatBlocks + "\tBlocks: " + p.fatSize + "\tHigh Water: " + p.highWater
+			+ "\tVersion: " + p.version + "\tExtents: " + Arrays.toString(p.extents) + "\n");
+		out.write("FAT:\n");
 	}
 
+	//tfs_open method:
+	//	Opens a file descriptor entry into fdt
+	public int tfs_open(byte[] name, int nlength)
+	{
+		long start = stats.begin(name, nlength);
+		try {
+			int fd = stats.result(_tfs_open_fd(name, nlength ));
+			if (fd >= 0 && stats.tracer != null){
+				OpenFile f = fdt.get(fd).file;
+				stats.opened(f.fileSize, f.isDirectory); //A replay makes the file if it is not there
+			}
+			return fd;
+		} finally {
+			stats.end(TFSStats.OPEN, start);
+		}
+	}
 
-	/*
-	 * TFS private methods to handle in-memory structures
-	 */
-
- 	private static int _tfs_read_block(int block_no, byte buf[])
- 	{
-		//Calling TFSDiskInputOuput read method
-		int response = disk.tfs_dio_read_block(block_no, buf);
- 		return response; //Returning response from method
- 	}
+	//tfs_read_dir() method:
+	//	Reads directory entries into arrays, at most as many as the arrays hold
+	public int tfs_read_dir(int fd, byte[] is_directory, byte[] nlength, byte[][] name, int[] first_block_no, long[] file_size){
+		long start = stats.begin(fd, is_directory.length);
+		try {
+			//Create FileDescriptor object from fd number given
+			FileDescriptor fdesc = fdt.get(fd); //Creating a reference to it
+			if (fdesc == null){
+				return -1; //fd is not open
+			}
+			OpenFile f = fdesc.file;
+			byte[] tmp = new byte[BLOCK_SIZE]; //This is where bytes will be temporarily stored
+			byte[] bDir = new byte[32];
+			int entry = f.startingBlock; //This is where the entries are held
+			boolean empty = true;
+			int count = 0;
+
+			ReentrantReadWriteLock.ReadLock lock = _tfs_dir_lock(entry).readLock(); //Entries can't move while they are read
+			lock.lock();
+			try {
+				while (true){
+					_tfs_read_block(f.snapshot, entry, tmp);
+					//Iterate through entries and saving them to array
+					for (int i = 0; i < 4; i++){
+						empty = true; //Reset variable
+						//Get directory entry
+						bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+
+						//If there is an entry then save it
+						//If it is empty then move to next entry
+						for (int j = 0; j < 32; j++){
+							if (bDir[j] != 0){
+								empty = false; //If we get here, that means the entry is not empty
+							}
+						}
+						if (empty == true){
+							continue; //If entry is empty, go to next entry
+						}
+						if (count == is_directory.length){
+							return stats.result(count); //Arrays are full
+						}
+						//If we get to this part of the code, it means the entry is not empty
+						//is_directory, nlength, name[][], first_block_no[] int, file_size[] int
+						is_directory[count] = bDir[4];
+						nlength[count] = bDir[5];
+						for (int k = 8; k < 24; k++){
+							name[count][k-8] = bDir[k];
+						}
+						first_block_no[count] = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
+						file_size[count] = _tfs_get_entry_size(bDir); //Retrieve filesize of directory entries
 
- 	private static int _tfs_write_block(int block_no, byte buf[])
- 	{
-		//Calling TFSDiskInputOutput write method
-		int response = disk.tfs_dio_write_block(block_no, buf);
- 		return response; //Returning response from method
- 	}
+						count++; //Increment count variable
+					}
+					int nextBlock = _tfs_next_block(f.snapshot, entry);
+					if (nextBlock == -1){
+						return stats.result(count);
+					}
+					entry = nextBlock;
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			stats.end(TFSStats.READ_DIR, start);
+		}
+	}
 
-	//_tfs_open_fd method:
-	//	Create a new entry in File Descriptor Table for a file or directory
-	//	Returns file descriptor
- 	private static int _tfs_open_fd(byte name[], int nlength)
- 	{
-		int blockNumber = _tfs_search_dir(name, nlength);
-		byte[] is_directory = new byte[1];
-		int[] fbn = new int[1];
-		int[] size = new int[1];
-		_tfs_get_entry_dir(blockNumber, name, (byte)nlength, is_directory, fbn, size);
-		//Creating File Descriptor object
-		FileDescriptor fd = new FileDescriptor(name, nlength, is_directory[0], fbn[0], size[0]);
-		fdt.add(fd); //Adding it to the File Descriptor Table (Implemented as a linked list)
- 		return (fdt.size() - 1); //Returning index of file descriptor
- 	}
 
-	//_tfs_seek_fd method:
-	//	Change the file pointer to offset
-	//	Returns the file pointer
-	//	NOTE: offset variable is based on indexes. These indexes go from 0 to n-1.
- 	private static int _tfs_seek_fd(int fd, int offset)
- 	{
-		//If offset is not valid, return error
-		if (offset < 0){
-			return -1; //-1 is error
+	//tfs_read method:
+	//	Read blength bytes in buf from file_id
+	//	Returns the number of bytes read
+	public int tfs_read(int file_id, byte[] buf, int blength)
+	{
+		long start = stats.begin(file_id, blength);
+		try {
+			return stats.read(_tfs_read_bytes_fd(file_id, buf, blength));
+		} finally {
+			stats.end(TFSStats.READ, start);
 		}
-		fdt.get(fd).filePointer = offset;
- 		return fdt.get(fd).filePointer;
- 	}
+	}
 
-	//_tfs_close_fd method:
-	//	Remove FileDescriptor of index fd from File Descriptor Table.
-	//	Updates the entry for the file/directory in the parent directory
- 	private static void _tfs_close_fd(int fd)
- 	{
-		FileDescriptor f = fdt.get(fd);
-		//Updates dir entry
-		_tfs_update_entry_dir(f.startingBlock, f.name, (byte)f.name.length, f.isDirectory, f.startingBlock, f.fileSize);
+	//tfs_write method:
+	//	Writes blength bytes of buf in memory
+	//	Returns the number of bytes written
+	public int tfs_write(int file_id, byte[] buf, int blength)
+	{
+		long start = stats.begin(file_id, blength);
+		try {
+			return stats.written(_tfs_write_bytes_fd(file_id, buf, blength));
+		} finally {
+			stats.end(TFSStats.WRITE, start);
+		}
+	}
 
-		fdt.remove(fd); //Removes FileDescriptor object from FDT
- 		return;
- 	}
+	//tfs_pread method:
+	//	Read blength bytes in buf from file_id starting at offset
+	//	The file pointer is not used nor changed
+	//	Returns the number of bytes read
+	public int tfs_pread(int file_id, byte[] buf, int blength, long offset)
+	{
+		long start = stats.begin(file_id, blength, offset);
+		try {
+			FileDescriptor f = fdt.get(file_id);
+			if (f == null || offset < 0){
+				return -1;
+			}
+			return stats.read(_tfs_read_bytes_at(f.file, buf, blength, offset));
+		} finally {
+			stats.end(TFSStats.PREAD, start);
+		}
+	}
 
-	//_tfs_search_dir method:
-	//	Returns the first block number of the parent directory in which name exists
-	public static int _tfs_search_dir(byte[] name, int nlength){
-		int parentBlockNo = 67; //This will be returned - It is the first block of the parent -- Initialize it to point to root block
-		String str = new String(name); //Creating a string from name
-		String[] path = str.split("/"); //Creating a string array with the path
-		//If first character is not root then we don't have full path
-    if (str.charAt(0) != '/'){
-      return -1;
-    }
+	//tfs_pwrite method:
+	//	Writes blength bytes of buf to file_id starting at offset
+	//	The file pointer is not used nor changed
+	//	Returns the number of bytes written
+	public int tfs_pwrite(int file_id, byte[] buf, int blength, long offset)
+	{
+		long start = stats.begin(file_id, blength, offset);
+		try {
+			FileDescriptor f = fdt.get(file_id);
+			if (f == null || offset < 0 || (f.flags & FileDescriptor.O_RDONLY) != 0){
+				return -1;
+			}
+			return stats.written(_tfs_write_bytes_at(f.file, buf, blength, offset));
+		} finally {
+			stats.end(TFSStats.PWRITE, start);
+		}
+	}
 
-		//Find block that root belongs to => Root is located on block 67
-		//Retriever block 67
-		byte[] bDir = new byte[32]; //directory entry holder
-		byte[] tmp = new byte[BLOCK_SIZE]; //tmp block holder
-		byte[] n = new byte[16]; //name holder
-
-		int currName = 1;
-		boolean found = false;
-
-		//Reads root, as we are always starting at root
-		int entry = 67;
-		_tfs_read_block(entry, tmp);
-		bDir = _tfs_get_bytes_block(tmp, 0, 32);
-		//Retrieving size of directory (size of root right now)
-		int sizeOfDir = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF));
-		sizeOfDir = sizeOfDir/BLOCK_SIZE; //Amount of entries in each directory
-		//Retrieving first block number of root directory
-		int firstBlockNo = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
-
-		//Reading root directory items
-		_tfs_read_block(firstBlockNo, tmp);
-
-		while (true) {
-			found = false; //Setting false variable to false
-			//Iterate through
-			for (int i = 0, secondI = 0; i < sizeOfDir; i++, secondI++){
-				//If we read 4 entries already, we need to look at the following block that contains the rest of directory entries
-				if (i%4 == 0){
-					int nextBlock = fat.fatTable[entry];
-					if (nextBlock == -1){
-						return -1;
-					}
-					entry = nextBlock;
-					_tfs_read_block(nextBlock, tmp);
-					secondI = 0;
+	//tfs_truncate method:
+	//	Sets the size of file_id to size bytes. Blocks past the new end are
+	//	returned to FAT; growing the file adds a hole that takes no blocks.
+	public int tfs_truncate(int file_id, long size)
+	{
+		long start = stats.begin(file_id, size);
+		try {
+			FileDescriptor fdesc = fdt.get(file_id);
+			if (fdesc == null || size < 0 || size > _tfs_max_file_size() || (fdesc.flags & FileDescriptor.O_RDONLY) != 0 || fdesc.file.isDirectory == 0){
+				return -1;
+			}
+			OpenFile f = fdesc.file;
+			ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(f.parentBlock, f.name).writeLock();
+			int[] at = _tfs_new_walk();
+			int response = 1;
+			while (response == 1){
+				//Dirty pages are written first so the chain is complete
+				if (!f.dirtyPages.isEmpty()){
+					_tfs_flush_fd(f);
 				}
-				//Get the entry
-				bDir = _tfs_get_bytes_block(tmp, (secondI*32), 32);
-
-				//Compare the names
-				for (int j = 8; j < 24; j++){
-					n[j-8] = bDir[j];
+				_tfs_begin_op();
+				lock.lock();
+				try {
+					//Pages written meanwhile are flushed first again
+					response = f.dirtyPages.isEmpty() ? _tfs_truncate_fd(f, size, at) : 1;
+				} finally {
+					lock.unlock();
+					_tfs_end_op(response != 1);
 				}
-				String strName = new String(n);
-				if (strName.equals(path[currName])){
-					//If we are at the end of the path and we are at the last entry then return the parent block
-					if (path.length-1 == currName){
-						found = true;
-						return parentBlockNo; //Retrieve parent block number of directory entry
-					}
-					found = true;
-					currName++;
-					sizeOfDir = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF));
-					sizeOfDir = sizeOfDir/BLOCK_SIZE;
-					firstBlockNo = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Retrieve first block number of directory entries
-					parentBlockNo = firstBlockNo; //Updating parent block number
-					_tfs_read_block(firstBlockNo, tmp); //Reading new block
-					break; //Break out of first loop and look into next directory
-				}
-			}
-			//If we arrive at the end of the loop, we hav
-			if (found == false){
-				return -1;
 			}
+			return stats.result(response);
+		} finally {
+			stats.end(TFSStats.TRUNCATE, start);
+		}
+	}
 
+	//tfs_seek method:
+	//	returns new file pointer
+	public long tfs_seek(int file_id, long position)
+	{
+		long start = stats.begin(file_id, position);
+		try {
+			return stats.result(_tfs_seek_fd(file_id, position));
+		} finally {
+			stats.end(TFSStats.SEEK, start);
 		}
+	}
 
+	//tfs_close method:
+	//	Removes the file descriptor from File Descriptor Table (FDT)
+	public void tfs_close(int file_id)
+	{
+		long start = stats.begin(file_id);
+		try {
+			_tfs_close_fd(file_id);
+		} finally {
+			stats.end(TFSStats.CLOSE, start);
+		}
 	}
 
-	//_tfs_get_entry_dir method:
-	//	Get the entry for name from the directory of which the first block number
-	//	is block_no
-	//	Returns -1 if name is not found, otherwise returns entry number in dir
-	public static int _tfs_get_entry_dir(int block_no, byte[] name, byte nlength, byte[] is_directory, int[] fbn, int[] size){
-		String strName = new String(name);
-		//Creating buffer and reading block into it
-		byte[] tmp = new byte[BLOCK_SIZE];
-		byte[] n = new byte[16]; //name entry holder
-		byte[] bDir = new byte[32]; //directory entry holder
+	//Helper method for tfs_create()
+	//	Walks the path from root and returns the first block number of the
+	//	parent directory of name. The last name in the path does not need to exist.
+	public int helper_tfs_create(byte[] name, int nlength){
+		return _tfs_walk_path(null, name, nlength);
+	}
 
-		int count = 0;
-		int entry = block_no;
+	//_tfs_walk_path method:
+	//	Same as helper_tfs_create, on the live volume if s is null or on
+	//	snapshot s otherwise
+	private int _tfs_walk_path(Snapshot s, byte[] name, int nlength){
+		String str = new String(name, 0, nlength); //Creating a string from name
+		//If first character is not root then we don't have full path
+		if (str.length() == 0 || str.charAt(0) != '/'){
+			return -1;
+		}
+		String[] path = str.split("/"); //Creating a string array with the path
 
-		while (true){
-			_tfs_read_block(entry, tmp);
-			//Iterate through entries
-			for (int i = 0; i < 4; i++){
-				//Get entry
-				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
 
-				//Compare names
-				for (int j = 8; j < 24; j++){
-					n[j-8] = bDir[j];
-				}
-				String currName = new String(n);
-				if (strName.equals(currName)){
-					//Saving variables here
-					nlength = bDir[5]; //Index 5 is nLength variable in Directory entry
-					is_directory[0] = bDir[4]; //Index 4 is is_directory in Directory entry
-					fbn[0] = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Getting firstBlockNo as an int
-					size[0] = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF)); //Getting directory size as an int
+		//Reads root, as we are always starting at root => Root entry is located on its own block after FAT
+		byte[] rootName = "/".getBytes();
+		if (_tfs_get_entry_dir(s, _tfs_root_block(), rootName, (byte)rootName.length, is_directory, fbn, size) == -1){
+			return -1;
+		}
+		int parentBlockNo = fbn[0]; //First block of root directory entries
 
-					return count + i; //This is equal to entry number in directory
-				}
+		//Walk every directory in the path except the last name
+		for (int currName = 1; currName < path.length-1; currName++){
+			byte[] n = path[currName].getBytes();
+			if (_tfs_get_entry_dir(s, parentBlockNo, n, (byte)n.length, is_directory, fbn, size) == -1){
+				return -1; //Directory in path does not exist
+			}
+			if (is_directory[0] != 0){
+				return -1; //Name in the middle of the path is a file
+			}
+			parentBlockNo = fbn[0]; //Moving down into the next directory
+		}
+		return parentBlockNo;
+	}
 
+	//tfs_create method:
+	//	Create a file, name contains full path
+	//	Returns file descriptor entry
+	public int tfs_create(byte[] name, int nlength)
+	{
+		long start = stats.begin(name, nlength);
+		try {
+			//Find the block number of parent directory
+			int block_no = helper_tfs_create(name, nlength); //Gets firstBlockNo of parent directory of name
+
+			String newName = new String(name); //Creating a string from name
+			String[] path = newName.split("/"); //Creating a string array with the path
+			byte[] n = path[path.length-1].getBytes();
+			if (block_no == -1){
+				return -1; //Parent directory does not exist
 			}
-			int nextBlock = fat.fatTable[entry];
-			if (nextBlock == -1){
+
+			//The method will allocate the entry on table for it, fails if name is already taken
+			_tfs_begin_op();
+			try {
+				if (_tfs_create_entry_dir(block_no, n, (byte)n.length, (byte)1, _tfs_allocate_block_fat(), 0) == -1){
+					return -1;
+				}
+			} finally {
+				_tfs_end_op(true);
+			}
+			return stats.result(tfs_open(name, nlength)); //Creates a FileDescriptor in FDT for the new file
+		} finally {
+			stats.end(TFSStats.CREATE, start);
+		}
+	}
+
+	//tfs_delete method:
+	//	Delete a file, name contains full path
+	//	Blocks of the file are returned to FAT
+	public int tfs_delete(byte[] name, int nlength)
+	{
+		long start = stats.begin(name, nlength);
+		try {
+			int parent_blockNo = _tfs_search_dir(name, nlength); //Getting parent block number
+			if (parent_blockNo == -1){
 				return -1;
 			}
-			entry = nextBlock;
-			count++;
+			//Get name of the file only, not entire path
+			byte[] n = _tfs_get_last_name(name, nlength);
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+			_tfs_begin_op();
+			ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(parent_blockNo, n).writeLock(); //Chain can't change while it is freed
+			lock.lock();
+			try {
+				if (_tfs_get_entry_dir(parent_blockNo, n, (byte)n.length, is_directory, fbn, size) == -1 || is_directory[0] == 0){
+					return -1; //Deleted already, directories are deleted with tfs_delete_dir
+				}
+
+				if (_tfs_delete_entry(parent_blockNo, n, (byte)n.length) == -1){
+					return -1;
+				}
+				_tfs_free_chain(fbn[0]);
+				//Open fds of the file keep working on memory only, new opens won't find it
+				synchronized (openFiles){
+					OpenFile of = openFiles.remove(_tfs_open_file_key(null, name, nlength));
+					if (of != null){
+						of.deleted = true;
+					}
+				}
+			} finally {
+				lock.unlock();
+				_tfs_end_op(true);
+			}
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.DELETE, start);
 		}
 	}
 
-	//_tfs_create_entry_dir method:
-	//	Creates an entry for name in the directory
-	//	Returns -1 if spot is not available for entry in this directory
-	public static int _tfs_create_entry_dir(int block_no, byte[] name, byte nlength, byte is_directory, int fbn, int size){
+	//tfs_create_dir method:
+	// Create a directory, name contains full path
+	public int tfs_create_dir(byte[] name, int nlength)
+	{
+		long start = stats.begin(name, nlength);
+		try {
+			//Find the block number of parent directory
+			int block_no = helper_tfs_create(name, nlength); //Gets firstBlockNo of parent directory of name
+
+			String newName = new String(name); //Creating a string from name
+			String[] path = newName.split("/"); //Creating a string array with the path
+			byte[] n = path[path.length-1].getBytes();
+			if (block_no == -1){
+				return -1; //Parent directory does not exist
+			}
 
-		//Creating new entry as an object
-		Directory d = new Directory(name, nlength, is_directory, fbn, size);
-		int entry = block_no;
-		//int count = 0;
-		boolean empty = true;
+			//The method will allocate the entry on table for it, fails if name is already taken
+			_tfs_begin_op();
+			try {
+				if (_tfs_create_entry_dir(block_no, n, (byte)n.length, (byte)0, _tfs_allocate_block_fat(), 0) == -1){
+					return -1;
+				}
+			} finally {
+				_tfs_end_op(true);
+			}
+			return stats.result(tfs_open(name, nlength)); //Creates a FileDescriptor in FDT for the new file
+		} finally {
+			stats.end(TFSStats.CREATE_DIR, start);
+		}
+	}
 
-		byte[] tmp = new byte[BLOCK_SIZE];
-		byte[] bDir = new byte[32];
-		//Check to see if there is a spot in the directory
-		while (true){
-			_tfs_read_block(entry, tmp);
-			//Iterate through entries
-			for (int i = 0; i < 4; i++){
-				empty = true; //Resets variable
-				//Get entry
-				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+	//tfs_create_entries method:
+	//	Creates count entries in the directory dir with one walk of its path:
+	//	fnames[i] (nlength[i] bytes) is a directory if is_directory[i] is 0
+	//	and a file of sizes[i] bytes otherwise, in a chain of blocks in a
+	//	row if a run that long is free. Files of up to CREATE_BATCH_BLOCKS
+	//	blocks are written with the sizes[i] bytes read from
+	//	contents.apply(i) (closed once read) before their entry is made,
+	//	so a crash never leaves an entry on blocks not written yet, and
+	//	sizes[i] gets the bytes there were. Larger files get their chain
+	//	with size 0 for the caller to write through tfs_open, which fills
+	//	it without allocating; one written shorter than its chain has to be
+	//	cut down to its size with tfs_truncate.
+	//	Entries go in CREATE_BATCH at a time (fewer if their chains are
+	//	over CREATE_BATCH_BLOCKS), every batch with one scan of the
+	//	directory and one operation making the entries once their chains
+	//	are made, which is not waited for: like
+	//	writes, the entries are durable once the volume is synced. fbn[i]
+	//	gets the first block of each
+	//	entry, -1 if its name is taken, there are no free blocks or its
+	//	contents could not be read (contents.apply(i) returned null).
+	//	Returns the number of entries made, -1 if dir is not a directory
+	public int tfs_create_entries(byte[] dir, int dlength, int count, byte[] is_directory, byte[] nlength, byte[][] fnames, long[] sizes, IntFunction<InputStream> contents, int[] fbn)
+	{
+		int directories = 0;
+		long bytes = 0;
+		for (int i = 0; i < count; i++){
+			if (is_directory[i] == 0){
+				directories++;
+			} else {
+				bytes += sizes[i];
+			}
+		}
+		long start = stats.begin(count, directories, bytes, dir, dlength);
+		try {
+			return stats.result(_tfs_create_entries(dir, dlength, count, is_directory, nlength, fnames, sizes, contents, fbn));
+		} finally {
+			stats.end(TFSStats.CREATE_ENTRIES, start);
+		}
+	}
 
-				//If there is a byte that is not 0 then the entry is not empty
-				for (int j = 0; j < 32; j++){
-					if (bDir[j] != (byte)0){
-						empty = false;
-						break; //Leave loop
+	//_tfs_create_entries method:
+	//	Does what tfs_create_entries does
+	private int _tfs_create_entries(byte[] dir, int dlength, int count, byte[] is_directory, byte[] nlength, byte[][] fnames, long[] sizes, IntFunction<InputStream> contents, int[] fbn)
+	{
+		if (pcb == null || !disk.tfs_dio_is_open()){
+			return -1;
+		}
+		int parent = _tfs_search_dir(dir, dlength);
+		if (parent == -1){
+			return -1;
+		}
+		byte[] n = _tfs_get_last_name(dir, dlength);
+		byte[] isDir = new byte[1];
+		int[] dirBlock = new int[1];
+		long[] size = new long[1];
+		if (_tfs_get_entry_dir(parent, n, (byte)n.length, isDir, dirBlock, size) == -1 || isDir[0] != 0){
+			return -1;
+		}
+		int made = 0;
+		int batchBlocks = OP_BLOCKS + 3 * CREATE_BATCH; //Journal kept by the operation making the entries of a batch
+		for (int from = 0, to; from < count; from = to){
+			long chained = 0;
+			for (to = from; to < count && to - from < CREATE_BATCH && chained < CREATE_BATCH_BLOCKS; to++){
+				chained += (is_directory[to] == 0) ? 1 : _tfs_blocks_for(sizes[to]);
+			}
+			//Chains are made and written first, in operations of their own: no entry reaches them yet
+			long[] written = new long[to - from];
+			for (int i = from; i < to; i++){
+				int blocks = (is_directory[i] == 0) ? 1 : _tfs_blocks_for(sizes[i]);
+				fbn[i] = _tfs_allocate_chain_fat(blocks, null, null);
+				if (fbn[i] == -1 || is_directory[i] == 0 || blocks > CREATE_BATCH_BLOCKS){
+					continue;
+				}
+				written[i - from] = _tfs_fill_chain(fbn[i], blocks, sizes[i], contents.apply(i), fnames[i]);
+				if (written[i - from] == -1){
+					_tfs_begin_op();
+					try {
+						_tfs_free_chain(fbn[i]);
+					} finally {
+						_tfs_end_op(false);
+					}
+					fbn[i] = -1;
+					continue;
+				}
+				sizes[i] = written[i - from];
+				stats.bytesWritten.add(written[i - from]);
+			}
+			List<Directory> batch = new ArrayList<Directory>();
+			List<Integer> index = new ArrayList<Integer>(); //i of every entry of the batch
+			_tfs_begin_op(batchBlocks);
+			try {
+				for (int i = from; i < to; i++){
+					if (fbn[i] == -1){
+						continue;
+					}
+					if (is_directory[i] == 0){
+						_tfs_write_block(fbn[i], new byte[BLOCK_SIZE]); //New directory starts out empty
 					}
+					batch.add(new Directory(fnames[i], nlength[i], is_directory[i], fbn[i], written[i - from]));
+					index.add(i);
 				}
-				//if we found an empty entry then we should write out directory entry there
-				if (empty == true){
-					//Allocate block number for directory
-					if (fat.fatTable[fbn] != 0){
-						System.out.println("The First Block Number (passed as parameter) of the directory entry being created is already being used.\nCreate entry with different first block number.");
+				boolean[] inserted = _tfs_insert_entries_dir(dirBlock[0], batch);
+				for (int j = 0; j < inserted.length; j++){
+					int i = index.get(j);
+					if (inserted[j]){
+						made++;
 					} else {
-						fat.fatTable[fbn] = -1; //Initialize it as one block alone
-						if (pcb.freeBlockPointer == fbn){
-							int newFreeBlock = fat.findFreeBlock();
-							if (newFreeBlock == -1){
-								pcb.updateFreeBlockPointer(-1);
-								return -1; //Return error because its full. No more free blocks.
-							}
-							pcb.updateFreeBlockPointer(newFreeBlock);
-							tfs_sync(); //Sync from memory to disk
-						}
+						_tfs_free_chain(fbn[i]);
+						fbn[i] = -1;
 					}
-					_tfs_put_bytes_block(tmp, (i*32), d.dirBlock, 32); //Adding entry to block
-					_tfs_write_block(entry, tmp); //Writing to disk
-					return 0;
 				}
+			} finally {
+				_tfs_end_op(false, batchBlocks);
+			}
+			_tfs_journal_commit_full();
+		}
+		return made;
+	}
+
+	//_tfs_blocks_for method:
+	//	Blocks of the chain of a file of size bytes, at least one
+	private int _tfs_blocks_for(long size){
+		return (int)Math.max(Math.min((size + BLOCK_SIZE - 1) / BLOCK_SIZE, Integer.MAX_VALUE), 1);
+	}
 
+	//_tfs_fill_chain method:
+	//	Writes up to size bytes read from in into the chain of blocks
+	//	blocks starting at block_no, the end of the last block zeroed. If in
+	//	ends first, the blocks past what it held are given back. in is closed.
+	//	No entry reaches the chain yet, so it is written in as many
+	//	operations as it takes. Called outside of any operation.
+	//	Returns the bytes written, -1 if in is null or could not be read
+	private long _tfs_fill_chain(int block_no, int blocks, long size, InputStream in, byte[] name){
+		if (in == null){
+			return -1;
+		}
+		byte[] tmp = new byte[BLOCK_SIZE];
+		long written = 0;
+		int last = block_no; //Last block written
+		_tfs_begin_op();
+		try {
+			try {
+				int b = block_no;
+				for (int j = 0; j < blocks && b > 0; j++){
+					Arrays.fill(tmp, (byte)0);
+					int n = (written < size) ? in.readNBytes(tmp, 0, (int)Math.min(BLOCK_SIZE, size - written)) : 0;
+					if (n == 0 && j > 0){
+						break; //Shorter than size
+					}
+					if (_tfs_write_cost(b) > 0 && _tfs_tx_full(_tfs_write_cost(b))){
+						_tfs_end_op(false);
+						_tfs_begin_op();
+					}
+					_tfs_write_block(b, tmp);
+					written += n;
+					last = b;
+					if (n < BLOCK_SIZE){
+						break;
+					}
+					b = _tfs_next_block(null, b);
+				}
+			} catch (IOException ioe){
+				System.out.println("There was an error reading the contents of " + new String(name).trim() + ": " + ioe.getMessage());
+				return -1;
+			} finally {
+				try {
+					in.close();
+				} catch (IOException ioe){
+				}
 			}
-			int nextBlock = fat.fatTable[entry];
-			if (nextBlock == -1){
-				//Update FAT and PCB
-				fat.fatTable[entry] = pcb.freeBlockPointer;
-				fat.fatTable[pcb.freeBlockPointer] = -1;
-				int freeBlock = fat.findFreeBlock(); //Gets new free block
-				pcb.updateFreeBlockPointer(freeBlock);
-				//Updating disk FAT and PCB
-				tfs_sync();
+			int rest = _tfs_next_block(null, last);
+			if (rest != -1){
+				_tfs_set_next_block(last, -1);
+				_tfs_free_chain(rest);
 			}
-			entry = nextBlock;
-			//count++;
+		} finally {
+			_tfs_end_op(false);
 		}
+		return written;
+	}
+
+	//tfs_delete_dir method:
+	//	Deletes a directory if it is empty, name contains full path
+	public int tfs_delete_dir(byte[] name, int nlength)
+	{
+		long start = stats.begin(name, nlength);
+		try {
+			int parent_blockNo = _tfs_search_dir(name, nlength); //Getting parent block number
+			if (parent_blockNo == -1 || parent_blockNo == _tfs_root_block()){
+				return -1; //Does not exist or is root
+			}
+			//Get name of the file only, not entire path
+			byte[] n = _tfs_get_last_name(name, nlength);
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+			if (_tfs_get_entry_dir(parent_blockNo, n, (byte)n.length, is_directory, fbn, size) == -1 || is_directory[0] != 0){
+				return -1; //Files are deleted with tfs_delete
+			}
+
+			//Lock the directory and its parent (in stripe order) so no entry is
+			//added to it while it is checked and deleted
+			int first = Math.min(fbn[0] & (LOCK_STRIPES-1), parent_blockNo & (LOCK_STRIPES-1));
+			int second = Math.max(fbn[0] & (LOCK_STRIPES-1), parent_blockNo & (LOCK_STRIPES-1));
+			_tfs_begin_op();
+			_tfs_dir_write_lock(first);
+			_tfs_dir_write_lock(second);
+			try {
+				//Look for any entry left in the directory
+				byte[] tmp = new byte[BLOCK_SIZE];
+				for (int entry = fbn[0]; entry != -1; entry = _tfs_next_block(null, entry)){
+					_tfs_read_block(entry, tmp);
+					for (int i = 0; i < BLOCK_SIZE; i++){
+						if (tmp[i] != 0){
+							return -1; //Directory is not empty
+						}
+					}
+				}
 
+				if (_tfs_delete_entry(parent_blockNo, n, (byte)n.length) == -1){
+					return -1;
+				}
+				_tfs_free_chain(fbn[0]);
+				synchronized (openFiles){
+					openFiles.remove(_tfs_open_file_key(null, name, nlength)); //New opens won't find it
+				}
+			} finally {
+				_tfs_dir_write_unlock(second);
+				_tfs_dir_write_unlock(first);
+				_tfs_end_op(true);
+			}
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.DELETE_DIR, start);
+		}
 	}
 
-	//_tfs_delete_entry method:
-	//	Deletes the entry for name from the directory of which first block number
-	//	is block_no
-	public static int _tfs_delete_entry(int block_no, byte[] name, byte nlength){
-		int entry = block_no;
-		byte[] tmp = new byte[BLOCK_SIZE];
-		byte[] bDir = new byte[32];
-		byte[] n = new byte[16];
+	//tfs_clone method:
+	//	Creates file dst sharing the block chain of file src (copy on write).
+	//	Takes constant time per block and no extra space; blocks are copied
+	//	only when one of the files writes to a shared block.
+	public int tfs_clone(byte[] src, int slength, byte[] dst, int dlength)
+	{
+		long start = stats.begin(src, slength, dst, dlength);
+		try {
+			int srcParent = _tfs_search_dir(src, slength); //Getting parent block number of source
+			int dstParent = helper_tfs_create(dst, dlength); //Getting parent block number of destination
+			if (srcParent == -1 || dstParent == -1 || _tfs_search_dir(dst, dlength) != -1){
+				return -1; //Source does not exist or destination can't be created
+			}
 
-		String strName = new String(name); //Creating a String from byte[] name
+			byte[] n = _tfs_get_last_name(src, slength);
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+			_tfs_begin_op();
+			ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(srcParent, n).writeLock(); //Chain of src can't change while it is shared
+			lock.lock();
+			try {
+				if (_tfs_get_entry_dir(srcParent, n, (byte)n.length, is_directory, fbn, size) == -1 || is_directory[0] == 0){
+					return -1; //Only files can be cloned
+				}
 
-		//Check for the file in directory
-		while (true){
-			_tfs_read_block(entry, tmp); //Reading block into buffer
-			//Iterate through entries looking for name
-			for (int i = 0; i < 4; i++){
-				//Get directory entry
-				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+				//Every block of the chain is now shared by one more file
+				_tfs_add_refs(fbn[0], 1);
 
-				//Compare names
-				for (int j = 8; j < 24; j++){
-					n[j-8] = bDir[j]; //Writing name to name buffer
+				byte[] dn = _tfs_get_last_name(dst, dlength);
+				Directory d = new Directory(dn, (byte)dn.length, (byte)1, fbn[0], size[0]);
+				if (_tfs_insert_entry_dir(dstParent, d) == -1){
+					//Undo the shared references
+					_tfs_add_refs(fbn[0], -1);
+					return -1;
 				}
-				String currName = new String(n); //Converting byte[] to String
-				//If we found the entry then delete the entry from directory
-				if (strName.equals(currName)){
-					//Setting all values of entry to 0
-					for (int j = 0; j < 32; j++){
-						bDir[j] = 0; //Set it to 0
+			} finally {
+				lock.unlock();
+				_tfs_end_op(true);
+			}
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.CLONE, start);
+		}
+	}
+
+	//tfs_copy method:
+	//	Creates file dst with the contents of file src in blocks of its own,
+	//	unlike tfs_clone. The chain of src is pinned the way a clone pins it,
+	//	so src can be written or deleted meanwhile without the copy seeing
+	//	it. dst gets its whole chain first, in a row if a run that long is
+	//	free and with the holes of src, then a reader thread reads runs of
+	//	src into a ring of COPY_BUFFERS buffers while this thread writes the
+	//	ones it filled to dst, a run of blocks a disk call. dst has size 0
+	//	until every block is copied.
+	//	Returns the bytes copied, -1 if src is not a file or dst can't be made
+	public long tfs_copy(byte[] src, int slength, byte[] dst, int dlength)
+	{
+		long start = stats.begin(src, slength, dst, dlength);
+		try {
+			int srcParent = _tfs_search_dir(src, slength);
+			int dstParent = helper_tfs_create(dst, dlength);
+			if (srcParent == -1 || dstParent == -1 || _tfs_search_dir(dst, dlength) != -1){
+				return -1; //Source does not exist or destination can't be created
+			}
+			byte[] n = _tfs_get_last_name(src, slength);
+			byte[] dn = _tfs_get_last_name(dst, dlength);
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+
+			//Every block of src is shared with the copy until it is done
+			ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(srcParent, n).writeLock();
+			boolean pinned = false;
+			while (!pinned){
+				OpenFile of;
+				synchronized (openFiles){
+					of = openFiles.get(_tfs_open_file_key(null, src, slength));
+				}
+				//Chain of an open file is only complete once its pages are written
+				if (of != null && !of.dirtyPages.isEmpty() && _tfs_flush_fd(of) == -1){
+					return -1;
+				}
+				_tfs_begin_op();
+				lock.lock();
+				try {
+					if (_tfs_get_entry_dir(srcParent, n, (byte)n.length, is_directory, fbn, size) == -1 || is_directory[0] == 0){
+						return -1; //Only files can be copied
+					}
+					synchronized (openFiles){
+						of = openFiles.get(_tfs_open_file_key(null, src, slength));
+					}
+					if (of != null && !of.dirtyPages.isEmpty()){
+						continue; //Written meanwhile, flushed again
+					}
+					if (of != null){
+						fbn[0] = of.startingBlock;
+						size[0] = of.fileSize;
+					}
+					_tfs_add_refs(fbn[0], 1);
+					pinned = true;
+				} finally {
+					lock.unlock();
+					_tfs_end_op(false);
+				}
+			}
+
+			try {
+				//Nodes of the chain of src: block and blocks it stands for if it is a hole, 0 otherwise
+				List<int[]> nodes = new ArrayList<int[]>();
+				for (int b = fbn[0]; b > 0 && nodes.size() < fat.fatSize; b = _tfs_next_block(null, b)){
+					nodes.add(new int[]{b, _tfs_hole_run(null, b)});
+				}
+				int[] chain = new int[nodes.size()];
+				int[] runs = new int[nodes.size()];
+				for (int j = 0; j < runs.length; j++){
+					runs[j] = nodes.get(j)[1];
+				}
+				int first = _tfs_allocate_chain_fat(chain.length, runs, chain);
+				if (first == -1){
+					System.out.println("There are no blocks available in FAT.");
+					return -1;
+				}
+				_tfs_begin_op();
+				try {
+					Directory d = new Directory(dn, (byte)dn.length, (byte)1, first, 0);
+					if (_tfs_insert_entry_dir(dstParent, d) == -1){
+						_tfs_free_chain(first);
+						return -1;
+					}
+				} finally {
+					_tfs_end_op(false);
+				}
+
+				if (_tfs_copy_blocks(nodes, chain) == -1){
+					tfs_delete(dst, dlength);
+					return -1;
+				}
+
+				_tfs_begin_op();
+				ReentrantReadWriteLock.WriteLock dstLock = _tfs_file_lock(dstParent, dn).writeLock();
+				dstLock.lock();
+				try {
+					byte[] isDir = new byte[1];
+					int[] dstFirst = new int[1];
+					long[] dstSize = new long[1];
+					if (_tfs_get_entry_dir(dstParent, dn, (byte)dn.length, isDir, dstFirst, dstSize) == -1 || dstFirst[0] != chain[0]){
+						return -1; //dst was deleted while it was copied
+					}
+					_tfs_update_entry_dir(dstParent, dn, (byte)dn.length, (byte)1, chain[0], Math.max(dstSize[0], size[0]));
+					OpenFile of;
+					synchronized (openFiles){
+						of = openFiles.get(_tfs_open_file_key(null, dst, dlength));
+					}
+					if (of != null && of.startingBlock == chain[0]){
+						of.fileSize = Math.max(of.fileSize, size[0]); //Its next flush would write size 0 back otherwise
+					}
+				} finally {
+					dstLock.unlock();
+					_tfs_end_op(true);
+				}
+				return stats.result(size[0]);
+			} finally {
+				_tfs_begin_op();
+				try {
+					_tfs_free_chain(fbn[0]); //Blocks src gave up meanwhile are freed now
+				} finally {
+					_tfs_end_op(false);
+				}
+			}
+		} finally {
+			stats.end(TFSStats.COPY, start);
+		}
+	}
+
+	//_tfs_copy_blocks method:
+	//	Copies the data blocks of the chain nodes (holes have none) to the
+	//	blocks of chain at the same positions. Blocks in a row in both are
+	//	copied a run of up to COPY_RUN at a time: a TFSCopyReader thread
+	//	reads them into the buffers of a ring while this thread writes the
+	//	ones it filled and gives them back.
+	//	Returns -1 if a block could not be read or written
+	private int _tfs_copy_blocks(List<int[]> nodes, int[] chain)
+	{
+		List<int[]> runs = new ArrayList<int[]>(); //Source block, destination block, blocks
+		int[] last = null;
+		for (int j = 0; j < chain.length; j++){
+			int b = nodes.get(j)[0];
+			if (nodes.get(j)[1] > 0){
+				last = null;
+			} else if (last != null && last[0] + last[2] == b && last[1] + last[2] == chain[j] && last[2] < COPY_RUN){
+				last[2]++;
+			} else {
+				last = new int[]{b, chain[j], 1};
+				runs.add(last);
+			}
+		}
+		TFSCopyReader reader = new TFSCopyReader(this, runs);
+		reader.start();
+		int response = 0;
+		boolean interrupted = false;
+		while (true){
+			TFSCopyReader.Segment segment;
+			try {
+				segment = reader.full.take();
+			} catch (InterruptedException ie){
+				interrupted = true; //The reader still hands back what it has, then stops
+				reader.cancelled = true;
+				continue;
+			}
+			if (segment.run == null){
+				break; //Reader is done
+			}
+			if (!reader.cancelled && _tfs_write_blocks(segment.run[1], segment.run[2], segment.buffer) == -1){
+				reader.cancelled = true;
+				response = -1;
+			}
+			reader.free.add(segment);
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+		return (interrupted || reader.failed) ? -1 : response;
+	}
+
+	//tfs_snapshot_create method:
+	//	Takes a point in time, read only snapshot of the volume. Only PCB is
+	//	copied and FAT shares its pages with the live one until either
+	//	changes them (in memory); every other block is copied the first time
+	//	it is overwritten afterwards. Snapshots are not kept on disk, the
+	//	blocks they kept are freed by the next mount.
+	//	Returns the snapshot id
+	public int tfs_snapshot_create()
+	{
+		long start = stats.begin();
+		try {
+			//Write dirty pages and sizes of open files so the snapshot is consistent
+			_tfs_flush_all();
+
+			Snapshot snap;
+			synchronized (snapshotLock){
+				fatLock.lock();
+				try {
+					snap = new Snapshot(nextSnapshotId++, pcb.pcbBlock, fat.copy());
+				} finally {
+					fatLock.unlock();
+				}
+				//Blocks holding old copies for other snapshots are not part of this one
+				for (Snapshot other : snapshots){
+					for (int copy : other.preserved.values()){
+						snap.fat.setEntry(copy, 0);
+					}
+				}
+				snapshots.add(snap);
+			}
+			return stats.result(snap.id);
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_CREATE, start);
+		}
+	}
+
+	//tfs_snapshot_list method:
+	//	Saves ids and creation times of the snapshots into the arrays
+	//	Returns the number of snapshots
+	public int tfs_snapshot_list(int[] ids, long[] created)
+	{
+		long start = stats.begin(ids.length);
+		try {
+			int count = 0;
+			for (Snapshot snap : snapshots){
+				if (count == ids.length){
+					break;
+				}
+				ids[count] = snap.id;
+				created[count] = snap.created;
+				count++;
+			}
+			return stats.result(count);
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_LIST, start);
+		}
+	}
+
+	//tfs_snapshot_delete method:
+	//	Deletes the snapshot and returns the blocks it was preserving to FAT
+	//	Returns -1 if the snapshot does not exist or is mounted
+	public int tfs_snapshot_delete(int id)
+	{
+		long start = stats.begin(id);
+		try {
+			_tfs_begin_op();
+			try {
+				synchronized (snapshotLock){
+					Snapshot snap = _tfs_get_snapshot(id);
+					if (snap == null || snap.mounted){
+						return -1;
+					}
+					for (int copy : snap.preserved.values()){
+						_tfs_free_chain(copy); //No file has it, so the ones that don't fit are freed later
+					}
+					snapshots.remove(snap);
+					fat.release(snap.fat);
+				}
+			} finally {
+				_tfs_end_op(true);
+			}
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_DELETE, start);
+		}
+	}
+
+	//tfs_snapshot_mount_ro method:
+	//	Mounts the snapshot read only so its files can be opened with
+	//	tfs_snapshot_open
+	public int tfs_snapshot_mount_ro(int id)
+	{
+		long start = stats.begin(id);
+		try {
+			Snapshot snap = _tfs_get_snapshot(id);
+			if (snap == null){
+				return -1;
+			}
+			snap.mounted = true;
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_MOUNT_RO, start);
+		}
+	}
+
+	//tfs_snapshot_umount method:
+	//	Unmounts the snapshot. Fails while files of it are still open.
+	public int tfs_snapshot_umount(int id)
+	{
+		long start = stats.begin(id);
+		try {
+			Snapshot snap = _tfs_get_snapshot(id);
+			if (snap == null){
+				return -1;
+			}
+			for (OpenFile f : _tfs_open_files()){
+				if (f.snapshot == snap){
+					return -1;
+				}
+			}
+			snap.mounted = false;
+			return stats.result(0);
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_UMOUNT, start);
+		}
+	}
+
+	//tfs_snapshot_open method:
+	//	Opens a file or directory of a mounted snapshot, name contains full path
+	//	Returns a read only file descriptor
+	public int tfs_snapshot_open(int id, byte[] name, int nlength)
+	{
+		long start = stats.begin(id, name, nlength);
+		try {
+			Snapshot snap = _tfs_get_snapshot(id);
+			if (snap == null || !snap.mounted){
+				return -1;
+			}
+			return stats.result(_tfs_open_fd(snap, name, nlength));
+		} finally {
+			stats.end(TFSStats.SNAPSHOT_OPEN, start);
+		}
+	}
+
+
+	/*
+	 * TFS private methods to handle in-memory structures
+	 */
+
+	//_tfs_get_snapshot method:
+	//	Returns the snapshot with the given id, null if there is none
+	private Snapshot _tfs_get_snapshot(int id)
+	{
+		for (Snapshot snap : snapshots){
+			if (snap.id == id){
+				return snap;
+			}
+		}
+		return null;
+	}
+
+ 	private int _tfs_read_block(int block_no, byte buf[])
+ 	{
+		//Metadata blocks not in place yet are read from memory
+		byte[] image = metaCache.get(block_no);
+		if (image != null){
+			stats.metaCacheHits.increment();
+			System.arraycopy(image, 0, buf, 0, BLOCK_SIZE);
+			return 0;
+		}
+		stats.metaCacheMisses.increment();
+		//Calling TFSDiskInputOuput read method
+		int response = disk.tfs_dio_read_block(block_no, buf);
+ 		return response; //Returning response from method
+ 	}
+
+ 	private int _tfs_write_block(int block_no, byte buf[])
+ 	{
+		//A block that was metadata and is not in place yet is logged too, or
+		//replaying the journal would bring back what it held before
+		if (metaCache.containsKey(block_no)){
+			return _tfs_write_meta_block(block_no, buf);
+		}
+		//Snapshots keep the contents the block had when they were taken
+		if (!snapshots.isEmpty()){
+			_tfs_preserve_block(block_no);
+		}
+		//Calling TFSDiskInputOutput write method
+		int response = disk.tfs_dio_write_block(block_no, buf);
+ 		return response; //Returning response from method
+ 	}
+
+	//_tfs_read_blocks method:
+	//	Reads count blocks in a row starting at block_no into buf with one
+	//	disk read. Blocks of metadata not in place yet are taken from memory.
+	int _tfs_read_blocks(int block_no, int count, byte buf[])
+	{
+		if (disk.tfs_dio_read_blocks(block_no, count, buf) == -1){
+			return -1;
+		}
+		if (!metaCache.isEmpty()){
+			for (int i = 0; i < count; i++){
+				byte[] image = metaCache.get(block_no + i);
+				if (image != null){
+					System.arraycopy(image, 0, buf, i * BLOCK_SIZE, BLOCK_SIZE);
+				}
+			}
+		}
+		return 0;
+	}
+
+	//_tfs_write_blocks method:
+	//	Writes count blocks in a row starting at block_no from buf with one
+	//	disk write, or one at a time if one of them is more than a write
+	//	(metadata not in place yet, or a block snapshots keep)
+	private int _tfs_write_blocks(int block_no, int count, byte buf[])
+	{
+		boolean each = !snapshots.isEmpty();
+		for (int i = 0; i < count && !each; i++){
+			each = metaCache.containsKey(block_no + i);
+		}
+		if (!each){
+			return disk.tfs_dio_write_blocks(block_no, count, buf);
+		}
+		byte[] tmp = new byte[BLOCK_SIZE];
+		for (int i = 0; i < count; i++){
+			System.arraycopy(buf, i * BLOCK_SIZE, tmp, 0, BLOCK_SIZE);
+			if (_tfs_write_block(block_no + i, tmp) == -1){
+				return -1;
+			}
+		}
+		return 0;
+	}
+
+	//_tfs_write_meta_block method:
+	//	Writes a PCB, FAT or directory block. With a journal the block is
+	//	logged by the running transaction and only written in place by a
+	//	checkpoint once it is committed, reads find it in metaCache until then.
+	private int _tfs_write_meta_block(int block_no, byte buf[])
+	{
+		if (journalBlocks == 0){
+			return _tfs_write_block(block_no, buf);
+		}
+		if (!snapshots.isEmpty()){
+			_tfs_preserve_block(block_no);
+		}
+		byte[] image = Arrays.copyOf(buf, BLOCK_SIZE); //Images never change once logged
+		txLock.readLock().lock();
+		try {
+			runningImages.put(block_no, image);
+			metaCache.put(block_no, image);
+		} finally {
+			txLock.readLock().unlock();
+		}
+		return 0;
+	}
+
+	//_tfs_read_block method:
+	//	Reads block_no as it is on the live volume if s is null or as it was
+	//	when snapshot s was taken otherwise
+	private int _tfs_read_block(Snapshot s, int block_no, byte buf[])
+	{
+		if (s == null){
+			return _tfs_read_block(block_no, buf);
+		}
+		//The live block can't be preserved and overwritten in the middle of the read
+		synchronized (snapshotLock){
+			if (s.preserved.containsKey(block_no)){
+				block_no = s.preserved.get(block_no); //Block changed after the snapshot, read the old copy
+			}
+			return _tfs_read_block(block_no, buf);
+		}
+	}
+
+	//_tfs_next_block method:
+	//	Next block of a chain in the live FAT if s is null or in the FAT of
+	//	snapshot s otherwise
+	private int _tfs_next_block(Snapshot s, int block_no)
+	{
+		if (s != null){
+			return FAT.nextOf(s.fat.get(block_no));
+		}
+		return FAT.nextOf(fat.get(block_no));
+	}
+
+	//_tfs_hole_run method:
+	//	Returns how many blocks of the file a hole block stands for, 0 if
+	//	block_no holds data. The length of the hole is kept in the first 4
+	//	bytes of the hole block.
+	private int _tfs_hole_run(Snapshot s, int block_no)
+	{
+		int value = (s != null) ? s.fat.get(block_no) : fat.get(block_no);
+		if (!FAT.isHole(value)){
+			return 0;
+		}
+		byte[] tmp = new byte[BLOCK_SIZE];
+		_tfs_read_block(s, block_no, tmp);
+		return _tfs_get_int_block(tmp, 0);
+	}
+
+	//_tfs_preserve_block method:
+	//	Copy on write for snapshots. Before a block that was in use when a
+	//	snapshot was taken is overwritten for the first time, its contents are
+	//	copied to a free block owned by that snapshot.
+	private void _tfs_preserve_block(int block_no)
+	{
+		synchronized (snapshotLock){
+			byte[] tmp = null;
+			for (Snapshot s : snapshots){
+				if (block_no >= s.fat.fatSize || s.fat.get(block_no) == 0 || s.preserved.containsKey(block_no)){
+					continue; //Block was free when snapshot was taken or is already preserved
+				}
+				if (tmp == null){
+					tmp = new byte[BLOCK_SIZE];
+					_tfs_read_block(block_no, tmp); //Contents as the volume sees them, which may not be in place yet
+				}
+				int copy = _tfs_allocate_block_fat();
+				if (copy == -1){
+					System.out.println("There are no blocks available to preserve block " + block_no + " for snapshot " + s.id + ".");
+					continue;
+				}
+				s.preserved.put(block_no, copy);
+				_tfs_write_block(copy, tmp); //Copy may itself need to be preserved for another snapshot
+			}
+		}
+	}
+
+	//_tfs_open_fd method:
+	//	Create a new entry in File Descriptor Table for a file or directory
+	//	Returns file descriptor, -1 if name does not exist
+ 	private int _tfs_open_fd(byte name[], int nlength)
+ 	{
+		return _tfs_open_fd(null, name, nlength);
+ 	}
+
+	//_tfs_open_fd method:
+	//	Same as above, on the live volume if s is null or on snapshot s
+	//	otherwise. A file that is already open only costs a lookup in the
+	//	open file table, its path is walked again only the first time.
+	private int _tfs_open_fd(Snapshot s, byte name[], int nlength)
+	{
+		String key = _tfs_open_file_key(s, name, nlength);
+		OpenFile of;
+		synchronized (openFiles){
+			of = openFiles.get(key);
+			if (of != null){
+				of.openCount++;
+			}
+		}
+		if (of == null){
+			int blockNumber = _tfs_search_dir(s, name, nlength);
+			if (blockNumber == -1){
+				return -1;
+			}
+			byte[] n = _tfs_get_last_name(name, nlength); //Entries only hold the name, not the full path
+			byte[] is_directory = new byte[1];
+			int[] fbn = new int[1];
+			long[] size = new long[1];
+			//The defragmenter moves the first block of files that are not open
+			//under the write lock, so the entry read here stays right until
+			//the file is in the table
+			ReentrantReadWriteLock.ReadLock lock = _tfs_file_lock(blockNumber, n).readLock();
+			lock.lock();
+			try {
+				if (_tfs_get_entry_dir(s, blockNumber, n, (byte)n.length, is_directory, fbn, size) == -1){
+					return -1; //Deleted in the meantime
+				}
+				OpenFile created = new OpenFile(key, n, is_directory[0], fbn[0], size[0]);
+				created.parentBlock = blockNumber; //Needed to update the entry on close
+				created.snapshot = s;
+				synchronized (openFiles){
+					of = openFiles.get(key);
+					if (of == null){
+						of = created; //Another thread may have opened it while the path was walked
+						openFiles.put(key, of);
+					}
+					of.openCount++;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		//Creating File Descriptor object
+		FileDescriptor fd = new FileDescriptor(of, (s != null) ? FileDescriptor.O_RDONLY : 0);
+		int response = fdt.add(fd); //Adding it to the File Descriptor Table, returns its fd number
+		if (response == -1){
+			_tfs_release_open_file(of);
+		}
+		return response;
+	}
+
+	//_tfs_open_file_key method:
+	//	Key of a file in the open file table. Empty names in the path are
+	//	skipped so every way of writing a path gives the same key.
+	private String _tfs_open_file_key(Snapshot s, byte[] name, int nlength)
+	{
+		StringBuilder path = new StringBuilder();
+		for (String part : new String(name, 0, nlength).split("/")){
+			if (part.length() > 0){
+				path.append('/').append(part);
+			}
+		}
+		if (path.length() == 0){
+			path.append('/'); //Root
+		}
+		//Files of a snapshot are not the live files
+		return (s != null) ? "@" + s.id + path : path.toString();
+	}
+
+	//_tfs_release_open_file method:
+	//	Drops a reference to of, taking it out of the open file table when
+	//	it was the last one
+	private void _tfs_release_open_file(OpenFile of)
+	{
+		synchronized (openFiles){
+			of.openCount--;
+			if (of.openCount == 0 && openFiles.get(of.key) == of){
+				openFiles.remove(of.key);
+			}
+		}
+	}
+
+	//_tfs_open_files method:
+	//	Copy of the open file table, so it can be gone through without
+	//	holding its lock
+	private List<OpenFile> _tfs_open_files()
+	{
+		synchronized (openFiles){
+			return new ArrayList<OpenFile>(openFiles.values());
+		}
+	}
+
+	//_tfs_seek_fd method:
+	//	Change the file pointer to offset
+	//	Returns the file pointer
+	//	NOTE: offset variable is based on indexes. These indexes go from 0 to n-1.
+ 	private long _tfs_seek_fd(int fd, long offset)
+ 	{
+		FileDescriptor f = fdt.get(fd);
+		//If offset or fd is not valid, return error
+		if (f == null || offset < 0){
+			return -1; //-1 is error
+		}
+		synchronized (f){
+			f.filePointer = offset;
+			return f.filePointer;
+		}
+ 	}
+
+	//_tfs_close_fd method:
+	//	Remove FileDescriptor of index fd from File Descriptor Table.
+	//	Updates the entry for the file/directory in the parent directory
+ 	private void _tfs_close_fd(int fd)
+ 	{
+		FileDescriptor f = fdt.get(fd);
+		if (f == null){
+			return; //Already closed
+		}
+		synchronized (f){
+			if (fdt.get(fd) != f){
+				return; //Closed by another thread
+			}
+			fdt.remove(fd); //Removes FileDescriptor object from FDT
+		}
+		//Writes dirty pages and updates dir entry, snapshots are read only.
+		//The file stays in the open file table until this is done.
+		if (f.file.snapshot == null){
+			_tfs_flush_fd(f.file);
+		}
+		_tfs_release_open_file(f.file);
+		_tfs_journal_commit_full();
+ 		return;
+ 	}
+
+	//_tfs_search_dir method:
+	//	Returns the first block number of the parent directory in which name exists
+	public int _tfs_search_dir(byte[] name, int nlength){
+		return _tfs_search_dir(null, name, nlength);
+	}
+
+	//_tfs_search_dir method:
+	//	Same as above, on the live volume if s is null or on snapshot s otherwise
+	private int _tfs_search_dir(Snapshot s, byte[] name, int nlength){
+		String str = new String(name, 0, nlength); //Creating a string from name
+		//Root directory entry itself is kept on its own block after FAT
+		if (str.equals("/")){
+			return _tfs_root_block();
+		}
+		int parentBlockNo = _tfs_walk_path(s, name, nlength); //First block of the parent directory
+		if (parentBlockNo == -1){
+			return -1;
+		}
+
+		//Check that the last name of the path exists in the parent directory
+		byte[] n = _tfs_get_last_name(name, nlength);
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
+		if (_tfs_get_entry_dir(s, parentBlockNo, n, (byte)n.length, is_directory, fbn, size) == -1){
+			return -1;
+		}
+		return parentBlockNo;
+	}
+
+	//_tfs_get_last_name method:
+	//	Returns the last name of a full path (the file or directory name only)
+	private byte[] _tfs_get_last_name(byte[] name, int nlength){
+		String str = new String(name, 0, nlength);
+		if (str.equals("/")){
+			return str.getBytes();
+		}
+		String[] path = str.split("/"); //Creating a string array with the path
+		return path[path.length-1].getBytes();
+	}
+
+	//_tfs_get_entry_dir method:
+	//	Get the entry for name from the directory of which the first block number
+	//	is block_no
+	//	Returns -1 if name is not found, otherwise returns entry number in dir
+	public int _tfs_get_entry_dir(int block_no, byte[] name, byte nlength, byte[] is_directory, int[] fbn, long[] size){
+		return _tfs_get_entry_dir(null, block_no, name, nlength, is_directory, fbn, size);
+	}
+
+	//_tfs_get_entry_dir method:
+	//	Same as above, on the live volume if s is null or on snapshot s otherwise.
+	//	Optimistic: the directory is read without a lock and the read only
+	//	counts if no writer of its stripe started or finished in the meantime.
+	//	After OPTIMISTIC_TRIES tries that were in the way of writers the read
+	//	lock is taken, so readers can't starve.
+	private int _tfs_get_entry_dir(Snapshot s, int block_no, byte[] name, byte nlength, byte[] is_directory, int[] fbn, long[] size){
+		StampedLock stamps = dirStamps[block_no & (LOCK_STRIPES-1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = stamps.tryOptimisticRead();
+			if (stamp == 0){
+				Thread.onSpinWait(); //A writer is changing the directory
+				continue;
+			}
+			int response;
+			try {
+				response = _tfs_scan_entry_dir(s, block_no, name, is_directory, fbn, size);
+			} catch (RuntimeException re){
+				continue; //Followed a chain while it changed, what was read does not count
+			}
+			if (stamps.validate(stamp)){
+				return response;
+			}
+		}
+		ReentrantReadWriteLock.ReadLock lock = _tfs_dir_lock(block_no).readLock();
+		lock.lock();
+		try {
+			return _tfs_scan_entry_dir(s, block_no, name, is_directory, fbn, size);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//_tfs_scan_entry_dir method:
+	//	Goes through the directory for _tfs_get_entry_dir. Stops with an
+	//	exception on a chain that can't be right, which only happens when it
+	//	is read without a lock while it changes.
+	private int _tfs_scan_entry_dir(Snapshot s, int block_no, byte[] name, byte[] is_directory, int[] fbn, long[] size){
+		String strName = new String(name);
+		//Creating buffer and reading block into it
+		byte[] tmp = new byte[BLOCK_SIZE];
+		byte[] n = new byte[16]; //name entry holder
+		byte[] bDir = new byte[32]; //directory entry holder
+		int count = 0;
+		int entry = block_no;
+
+		while (true){
+			if (entry <= 0 || count > fat.fatSize){
+				throw new IllegalStateException("Directory chain changed while it was read");
+			}
+			_tfs_read_block(s, entry, tmp);
+			//Iterate through entries
+			for (int i = 0; i < 4; i++){
+				//Get entry
+				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+
+				//Compare names
+				for (int j = 8; j < 24; j++){
+					n[j-8] = bDir[j];
+				}
+				String currName = new String(n).trim(); //Names are padded with 0s
+				if (strName.equals(currName)){
+					//Saving variables here
+					is_directory[0] = bDir[4]; //Index 4 is is_directory in Directory entry
+					fbn[0] = (((bDir[24] & 0xFF) << 24)|((bDir[25] & 0xFF) << 16)|((bDir[26] & 0xFF) << 8)|(bDir[27] & 0xFF)); //Getting firstBlockNo as an int
+					size[0] = _tfs_get_entry_size(bDir); //Getting directory size as a long
+
+					return (count*4) + i; //This is equal to entry number in directory
+				}
+
+			}
+			int nextBlock = _tfs_next_block(s, entry);
+			if (nextBlock == -1){
+				return -1;
+			}
+			entry = nextBlock;
+			count++;
+		}
+	}
+
+	//_tfs_get_entry_size method:
+	//	Size of the directory entry bDir. Its low 32 bits are in bytes 28 to
+	//	31 and its high 32 bits in bytes 0 to 3, which were always 0 before
+	//	sizes had 64 bits.
+	private long _tfs_get_entry_size(byte[] bDir){
+		long high = (((bDir[0] & 0xFF) << 24)|((bDir[1] & 0xFF) << 16)|((bDir[2] & 0xFF) << 8)|(bDir[3] & 0xFF));
+		long low = (((bDir[28] & 0xFF) << 24)|((bDir[29] & 0xFF) << 16)|((bDir[30] & 0xFF) << 8)|(bDir[31] & 0xFF)) & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+
+	//_tfs_create_entry_dir method:
+	//	Creates an entry for name in the directory. fbn is a block taken
+	//	from FAT with _tfs_allocate_block_fat, it is given back on error.
+	//	Returns -1 if name is already taken or the directory can't grow
+	public int _tfs_create_entry_dir(int block_no, byte[] name, byte nlength, byte is_directory, int fbn, long size){
+
+		//Allocate block number for directory
+		if (fbn == -1){
+			System.out.println("There are no blocks available in FAT.");
+			return -1;
+		}
+		if (fat.get(fbn) != -1){
+			System.out.println("The First Block Number (passed as parameter) of the directory entry being created is not a block allocated for it.\nCreate entry with a block from _tfs_allocate_block_fat.");
+			return -1;
+		}
+		_tfs_write_block(fbn, new byte[BLOCK_SIZE]); //New block starts out empty
+
+		//Creating new entry as an object
+		Directory d = new Directory(name, nlength, is_directory, fbn, size);
+		if (_tfs_insert_entry_dir(block_no, d) == -1){
+			_tfs_return_block_fat(fbn);
+			return -1;
+		}
+		return 0;
+	}
+
+	//_tfs_insert_entry_dir method:
+	//	Writes the entry d into the first empty spot of the directory of which
+	//	the first block number is block_no. The directory grows by one block if
+	//	it is full. Does not allocate any block for the entry itself.
+	//	Returns -1 if the name of d is already taken or there are no free
+	//	blocks left to grow the directory
+	private int _tfs_insert_entry_dir(int block_no, Directory d){
+		String strName = new String(d.name).trim();
+		_tfs_dir_write_lock(block_no);
+		try {
+			int entry = block_no;
+			int emptyBlock = -1; //First empty spot found
+			int emptyIndex = -1;
+
+			byte[] tmp = new byte[BLOCK_SIZE];
+			byte[] bDir = new byte[32];
+			byte[] n = new byte[16];
+			//Check to see if there is a spot in the directory and that the name is not taken
+			while (true){
+				_tfs_read_block(entry, tmp);
+				//Iterate through entries
+				for (int i = 0; i < 4; i++){
+					//Get entry
+					bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+
+					//If there is a byte that is not 0 then the entry is not empty
+					boolean empty = true;
+					for (int j = 0; j < 32; j++){
+						if (bDir[j] != (byte)0){
+							empty = false;
+							break; //Leave loop
+						}
+					}
+					if (empty == true){
+						if (emptyBlock == -1){
+							emptyBlock = entry;
+							emptyIndex = i;
+						}
+						continue;
+					}
+					for (int j = 8; j < 24; j++){
+						n[j-8] = bDir[j];
+					}
+					if (strName.equals(new String(n).trim())){
+						return -1; //Name is already taken
+					}
+				}
+				int nextBlock = fat.get(entry);
+				if (nextBlock == -1){
+					break;
+				}
+				entry = nextBlock;
+			}
+
+			if (emptyBlock == -1){
+				//Directory is full, update FAT and PCB
+				emptyBlock = _tfs_allocate_block_fat();
+				if (emptyBlock == -1){
+					return -1; //No more free blocks
+				}
+				_tfs_write_block(emptyBlock, new byte[BLOCK_SIZE]); //New directory block starts out empty
+				_tfs_set_next_block(entry, emptyBlock);
+				emptyIndex = 0;
+			}
+			//We found an empty entry so we write our directory entry there
+			_tfs_read_block(emptyBlock, tmp);
+			_tfs_put_bytes_block(tmp, (emptyIndex*32), d.dirBlock, 32); //Adding entry to block
+			_tfs_write_meta_block(emptyBlock, tmp); //Writing to disk
+			return 0;
+		} finally {
+			_tfs_dir_write_unlock(block_no);
+		}
+	}
+
+	//_tfs_insert_entries_dir method:
+	//	Same as _tfs_insert_entry_dir for every entry of ds with one scan of
+	//	the directory: the entries fill its empty spots in order and it
+	//	grows by as many blocks as the rest need. Every block changed is
+	//	written once.
+	//	Returns which entries were written, not the ones of which the name
+	//	is taken or that found no free block to grow the directory
+	private boolean[] _tfs_insert_entries_dir(int block_no, List<Directory> ds){
+		boolean[] inserted = new boolean[ds.size()];
+		if (ds.isEmpty()){
+			return inserted;
+		}
+		_tfs_dir_write_lock(block_no);
+		try {
+			Set<String> taken = new HashSet<String>();
+			List<int[]> empty = new ArrayList<int[]>(); //Empty spots, block and index in it
+			Map<Integer, byte[]> changed = new LinkedHashMap<Integer, byte[]>(); //Blocks to write, in order
+			int entry = block_no;
+			int last;
+			byte[] n = new byte[16];
+			while (true){
+				byte[] tmp = new byte[BLOCK_SIZE];
+				_tfs_read_block(entry, tmp);
+				for (int i = 0; i < 4; i++){
+					boolean isEmpty = true;
+					for (int j = 0; j < 32; j++){
+						if (tmp[i*32 + j] != (byte)0){
+							isEmpty = false;
+							break;
+						}
+					}
+					if (isEmpty){
+						if (empty.isEmpty() || empty.get(empty.size()-1)[0] != entry){
+							changed.put(entry, tmp); //Read once, the entries of the batch go in this copy
+						}
+						empty.add(new int[]{entry, i});
+						continue;
+					}
+					System.arraycopy(tmp, i*32 + 8, n, 0, 16);
+					taken.add(new String(n).trim());
+				}
+				last = entry;
+				int nextBlock = fat.get(entry);
+				if (nextBlock == -1){
+					break;
+				}
+				entry = nextBlock;
+			}
+
+			int spot = 0;
+			for (int d = 0; d < ds.size(); d++){
+				if (!taken.add(new String(ds.get(d).name).trim())){
+					continue; //Name is already taken
+				}
+				if (spot == empty.size()){
+					//Directory is full, grows by one block
+					int newBlock = _tfs_allocate_block_fat();
+					if (newBlock == -1){
+						break; //No more free blocks
+					}
+					_tfs_set_next_block(last, newBlock);
+					last = newBlock;
+					changed.put(newBlock, new byte[BLOCK_SIZE]); //New directory block starts out empty
+					for (int i = 0; i < 4; i++){
+						empty.add(new int[]{newBlock, i});
+					}
+				}
+				int[] at = empty.get(spot++);
+				_tfs_put_bytes_block(changed.get(at[0]), at[1]*32, ds.get(d).dirBlock, 32);
+				inserted[d] = true;
+			}
+			for (int i = 0; i < spot; i++){
+				int b = empty.get(i)[0];
+				byte[] image = changed.remove(b);
+				if (image != null){
+					_tfs_write_meta_block(b, image);
+				}
+			}
+			return inserted;
+		} finally {
+			_tfs_dir_write_unlock(block_no);
+		}
+	}
+
+	//_tfs_delete_entry method:
+	//	Deletes the entry for name from the directory of which first block number
+	//	is block_no
+	public int _tfs_delete_entry(int block_no, byte[] name, byte nlength){
+		int entry = block_no;
+		byte[] tmp = new byte[BLOCK_SIZE];
+		byte[] bDir = new byte[32];
+		byte[] n = new byte[16];
+
+		String strName = new String(name); //Creating a String from byte[] name
+
+		_tfs_dir_write_lock(block_no);
+		try {
+			//Check for the file in directory
+			while (true){
+				_tfs_read_block(entry, tmp); //Reading block into buffer
+				//Iterate through entries looking for name
+				for (int i = 0; i < 4; i++){
+					//Get directory entry
+					bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+
+					//Compare names
+					for (int j = 8; j < 24; j++){
+						n[j-8] = bDir[j]; //Writing name to name buffer
+					}
+					String currName = new String(n).trim(); //Converting byte[] to String, names are padded with 0s
+					//If we found the entry then delete the entry from directory
+					if (strName.equals(currName)){
+						//Setting all values of entry to 0
+						for (int j = 0; j < 32; j++){
+							bDir[j] = 0; //Set it to 0
+						}
+
+						_tfs_put_bytes_block(tmp, (i*32), bDir, 32); //Add changes to block
+						_tfs_write_meta_block(entry, tmp); //Write block to disk
+						return 0;
+					}
+				}
+				int nextBlock = fat.get(entry);
+				if (nextBlock == -1){
+					return -1;
+				}
+				entry = nextBlock;
+			}
+		} finally {
+			_tfs_dir_write_unlock(block_no);
+		}
+	}
+
+	//_tfs_update_entry_dir method:
+	//	Update the entry for name in the directory of which the first block number
+	//	is block_no
+	public int _tfs_update_entry_dir(int block_no, byte[] name, byte nlength, byte is_directory, int fbn, long size){
+		int entry = block_no;
+		byte[] tmp = new byte[BLOCK_SIZE];
+		byte[] bDir = new byte[32];
+		byte[] n = new byte[16];
+
+		String strName = new String(name); //Creating a String from byte[] name
+
+		_tfs_dir_write_lock(block_no);
+		try {
+			//Find file and update it
+			while (true) {
+				_tfs_read_block(entry, tmp); //Reading block into buffer
+				//Iterate through entries
+				for (int i = 0; i < 4; i++){
+					//Get directory entry
+					bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
+
+					//Compare names
+					for (int j = 8; j < 24; j++){
+						n[j-8] = bDir[j]; //Writing name to name buffer
+					}
+					String currName = new String(n).trim(); //Names are padded with 0s
+					//If we found the entry then update it
+					if (strName.equals(currName)){
+						byte[] old = bDir.clone();
+						bDir[4] = is_directory;
+						bDir[5] = nlength;
+						byte[] tmpInt = new byte[4];
+						tmpInt[3] = (byte)fbn; tmpInt[2] = (byte)(fbn>>8); tmpInt[1] = (byte)(fbn>>16); tmpInt[0] = (byte)(fbn>>24);
+						//Copying first block number
+						for (int j = 24; j<28; j++){
+							bDir[j] = tmpInt[j-24];
+						}
+						tmpInt[3] = (byte)size; tmpInt[2] = (byte)(size>>8); tmpInt[1] = (byte)(size>>16); tmpInt[0] = (byte)(size>>24);
+						//Copying size, low 32 bits
+						for (int j = 28; j < 32; j++){
+							bDir[j] = tmpInt[j-28];
+						}
+						tmpInt[3] = (byte)(size>>32); tmpInt[2] = (byte)(size>>40); tmpInt[1] = (byte)(size>>48); tmpInt[0] = (byte)(size>>56);
+						//High 32 bits of size
+						for (int j = 0; j < 4; j++){
+							bDir[j] = tmpInt[j];
+						}
+
+						if (Arrays.equals(old, bDir)){
+							return 0; //Nothing changed, nothing to log
+						}
+						_tfs_put_bytes_block(tmp, (i*32), bDir, 32);
+						_tfs_write_meta_block(entry, tmp);
+						return 0;
+					}
+				}
+				int nextBlock = fat.get(entry);
+				if (nextBlock == -1){
+					return -1;
+				}
+				entry = nextBlock;
+			}
+		} finally {
+			_tfs_dir_write_unlock(block_no);
+		}
+	}
+
+	//_tfs_read_bytes_fd method:
+	//	Read up to length bytes from FileDescriptor starting at offset
+	//	Returns number of bytes read
+	private int _tfs_read_bytes_fd(int fd, byte[] buf, int length)
+	{
+		FileDescriptor f = fdt.get(fd); //Create a reference to the FileDescriptor
+		if (f == null){
+			return -1;
+		}
+		synchronized (f){
+			int bytesRead = _tfs_read_bytes_at(f.file, buf, length, f.filePointer);
+			f.filePointer += bytesRead;
+			return bytesRead;
+		}
+	}
+
+	//_tfs_write_bytes_fd method:
+	//	Write up to length bytes from buffer to file FileDescriptor points to
+	//	Returns number of bytes written
+	private int _tfs_write_bytes_fd(int fd, byte[] buf, int length)
+	{
+		FileDescriptor f = fdt.get(fd); //Create a reference to the FileDescriptor
+		if (f == null || (f.flags & FileDescriptor.O_RDONLY) != 0){
+			return -1;
+		}
+		synchronized (f){
+			int bytesWritten = _tfs_write_bytes_at(f.file, buf, length, f.filePointer);
+			if (bytesWritten > 0){
+				f.filePointer += bytesWritten;
+			}
+			return bytesWritten;
+		}
+	}
+
+	//_tfs_read_bytes_at method:
+	//	Read up to length bytes of file f starting at position
+	//	Dirty pages that were not flushed yet are read from memory.
+	//	Returns number of bytes read
+	private int _tfs_read_bytes_at(OpenFile f, byte[] buf, int length, long position)
+	{
+		byte[] block = new byte[BLOCK_SIZE]; //This is where the bytes will be temporarily stored
+		int bytesRead = 0;
+
+		//Readers of the file share the lock, pages and chain only change while it is held for writing
+		ReentrantReadWriteLock.ReadLock lock = _tfs_file_lock(f.parentBlock, f.name).readLock();
+		lock.lock();
+		try {
+			//Never read past the end of the file
+			if (length > f.fileSize - position){
+				length = (int)Math.max(f.fileSize - position, 0);
+			}
+
+			while (bytesRead < length){
+				byte[] page = f.dirtyPages.get((int)(position/BLOCK_SIZE));
+				if (page != null){
+					stats.pageCacheHits.increment();
+				} else {
+					stats.pageCacheMisses.increment();
+					//Finding the right block that the position points to
+					int blockNo = _tfs_get_block_no_fd(f, position); //Finding location of block using position as the offset
+					if (blockNo == -1){
+						Arrays.fill(block, (byte)0); //Only written in memory so far
+					} else {
+						_tfs_read_block(f.snapshot, blockNo, block); //Read (copy) the block number found above
+					}
+					page = block;
+				}
+
+				//position holds the offset to read from. We minus the amount of bytes in Blocks we skiped
+				int offset = (int)(position % BLOCK_SIZE);
+				int n = Math.min(BLOCK_SIZE - offset, length - bytesRead); //Bytes to copy from this block
+				System.arraycopy(page, offset, buf, bytesRead, n);
+
+				bytesRead += n;
+				position += n;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return bytesRead;
+	}
+
+	//_tfs_write_bytes_at method:
+	//	Write up to length bytes from buffer to file f starting at position
+	//	Bytes go into dirty pages of the file, one page per block of the
+	//	file, so small writes are coalesced into whole block writes when
+	//	the pages are flushed.
+	//	Returns number of bytes written
+	private int _tfs_write_bytes_at(OpenFile f, byte[] buf, int length, long position)
+	{
+		int bytesWritten = 0;
+
+		//Files opened from a snapshot are read only
+		if (f.snapshot != null || position + length > _tfs_max_file_size()){
+			return -1;
+		}
+
+		ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(f.parentBlock, f.name).writeLock();
+		boolean over = false; //Over the dirty ceiling with pages of f to flush
+		while (bytesWritten < length){
+			if (over){
+				//Backpressure: over the ceiling the writer flushes the pages of its file before dirtying more memory,
+				//outside of its lock so the flush takes as many transactions as it needs
+				_tfs_flush_fd(f);
+				over = false;
+			}
+			lock.lock();
+			try {
+				while (bytesWritten < length){
+					int index = (int)(position/BLOCK_SIZE); //Block of the file the position points to
+					int offset = (int)(position % BLOCK_SIZE); //position holds the offset to write to. We minus the amount of bytes in Blocks we skiped
+					int n = Math.min(BLOCK_SIZE - offset, length - bytesWritten); //Bytes to copy into this block
+
+					byte[] page = f.dirtyPages.get(index);
+					if (page != null){
+						stats.pageCacheHits.increment();
+					} else {
+						if (dirtyBytes.get() + BLOCK_SIZE > dirtyCeiling && !f.dirtyPages.isEmpty()){
+							over = true;
+							break;
+						}
+						stats.pageCacheMisses.increment();
+						page = new byte[BLOCK_SIZE];
+						//Only read the old block when part of it is kept
+						if (n < BLOCK_SIZE && (long)index*BLOCK_SIZE < f.fileSize){
+							int blockNo = _tfs_get_block_no_fd(f, (long)index*BLOCK_SIZE);
+							if (blockNo != -1){
+								_tfs_read_block(blockNo, page); //Reading bytes into buffer
+							}
+						}
+						if (f.dirtyPages.isEmpty()){
+							f.dirtySince = System.currentTimeMillis();
+						}
+						f.dirtyPages.put(index, page);
+						if (dirtyBytes.addAndGet(BLOCK_SIZE) > dirtyBackground){
+							_tfs_start_flusher().wakeUp(); //Flusher starts on the oldest files while this writer goes on
+						}
+					}
+					//Overwriting bytes with new data
+					System.arraycopy(buf, bytesWritten, page, offset, n);
+
+					bytesWritten += n;
+					position += n;
+					if (position > f.fileSize){
+						f.fileSize = position; //File grew
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return bytesWritten;
+	}
+
+	//_tfs_flush_fd method:
+	//	Finds the block of every dirty page of f with one walk of the chain
+	//	(_tfs_place_pages), writes the pages in block order, a run of blocks
+	//	in a row with one disk write, and then updates the entry in the
+	//	parent directory. Pages of a file that was deleted while open are
+	//	dropped. Called outside of an operation, the pages go in as many
+	//	operations as it takes for each to fit in the journal, every one
+	//	going on with the walk where the last one stopped.
+	//	FAT is not written here: the commit of the operation (or the flusher
+	//	on volumes without a journal) writes the FAT blocks that changed.
+	//	Returns -1 if there were not enough free blocks
+	private int _tfs_flush_fd(OpenFile f)
+	{
+		int[] at = _tfs_in_op() ? null : _tfs_new_walk(); //Where the walk stopped, null if it can't stop
+		int response = 1;
+		while (response == 1){
+			_tfs_begin_op();
+			ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(f.parentBlock, f.name).writeLock();
+			lock.lock();
+			try {
+				int dirty = f.dirtyPages.size();
+				if (f.deleted){
+					f.dirtyPages.clear();
+					response = -1;
+				} else {
+					TreeMap<Integer, byte[]> sorted = new TreeMap<Integer, byte[]>(); //Block number -> page
+					response = _tfs_place_pages(f, f.dirtyPages, sorted, at);
+					if (response == -1){
+						System.out.println("There are no blocks available in FAT.");
+					}
+					//One pass over the disk instead of jumping back and forth
+					_tfs_write_pages(sorted);
+					if (response != 1){
+						f.dirtyPages.clear();
+					}
+					if (f.snapshot == null){
+						_tfs_update_entry_dir(f.parentBlock, f.name, (byte)f.name.length, f.isDirectory, f.startingBlock, f.fileSize);
+					}
+				}
+				dirtyBytes.addAndGet(-(dirty - f.dirtyPages.size()) * BLOCK_SIZE);
+			} finally {
+				lock.unlock();
+				_tfs_end_op(false);
+			}
+		}
+		return response;
+	}
+
+	//_tfs_new_walk method:
+	//	Where a walk of a chain that can stop half way keeps its place: the
+	//	block it got to, the block before it, the index in the file of the
+	//	first block it stands for, and the chainVersion of the file and
+	//	refsAdded when it stopped. A new one starts from the first block.
+	private int[] _tfs_new_walk(){
+		return new int[]{-1, -1, 0, -1, -1};
+	}
+
+	//_tfs_walk_stopped method:
+	//	Keeps in at where the walk of the chain of f stopped
+	private void _tfs_walk_stopped(OpenFile f, int[] at, int prev, int blockNo, int first){
+		at[0] = prev;
+		at[1] = blockNo;
+		at[2] = first;
+		at[3] = f.chainVersion;
+		at[4] = refsAdded;
+	}
+
+	//_tfs_walk_goes_on method:
+	//	True if the walk at stopped at can go on from there: neither the
+	//	chain of f nor the blocks shared changed since
+	private boolean _tfs_walk_goes_on(OpenFile f, int[] at){
+		return at != null && at[3] == f.chainVersion && at[4] == refsAdded;
+	}
+
+	//_tfs_walk_full method:
+	//	True if a walk that can stop (at is not null) and took a step
+	//	already has to stop before a step that may log blocks blocks
+	private boolean _tfs_walk_full(int[] at, int steps, int blocks){
+		return at != null && steps > 0 && _tfs_tx_full(blocks);
+	}
+
+	//_tfs_place_pages method:
+	//	Finds the block every page of pages (index in the file -> page) goes
+	//	to, walking the chain of f once in file order: blocks shared with
+	//	clones are copied on the way, a page falling in a hole takes its
+	//	block out of the hole, and the pages past the end of the chain get
+	//	new blocks linked as one chain, in a row if a run that long is free,
+	//	with holes for the blocks skipped between them, CHAIN_STEP new
+	//	blocks at a time. Pages are whole blocks, so the blocks they go to
+	//	are not zeroed first. Pages that found their block are taken out of
+	//	pages and placed gets block number -> page for each. If at is not
+	//	null the walk stops at the first step the running transaction has
+	//	no room for and at keeps where, for the next call to go on from.
+	//	Returns 1 if it stopped, -1 if there were not enough free blocks
+	private int _tfs_place_pages(OpenFile f, NavigableMap<Integer, byte[]> pages, Map<Integer, byte[]> placed, int[] at)
+	{
+		int prev = -1; //Block before blockNo in the chain
+		int blockNo = f.startingBlock;
+		int first = 0; //Index in the file of the first block blockNo stands for
+		if (_tfs_walk_goes_on(f, at) && !pages.isEmpty() && pages.firstKey() >= at[2]){
+			prev = at[0];
+			blockNo = at[1];
+			first = at[2];
+		}
+		f.chainChanged();
+		int cost = _tfs_write_cost(-1);
+		int pending = 0; //Blocks writing the pages placed so far may log
+		int steps = 0;
+		Iterator<Map.Entry<Integer, byte[]>> it = pages.entrySet().iterator();
+		Map.Entry<Integer, byte[]> page = it.hasNext() ? it.next() : null;
+		int length = 1; //Blocks of the file blockNo stands for
+		while (page != null){
+			if (fat.refs(blockNo) > 0){
+				//Shared blocks come last in a chain, so the ones before were copied already
+				if (_tfs_walk_full(at, steps, 2 + cost + pending)){
+					_tfs_walk_stopped(f, at, prev, blockNo, first);
+					return 1;
+				}
+				blockNo = _tfs_unshare_block(f, prev, blockNo);
+				if (blockNo == -1){
+					return -1;
+				}
+				steps++;
+			}
+			int run = _tfs_hole_run(null, blockNo);
+			length = (run > 0) ? run : 1;
+			int index = page.getKey();
+			if (index < first + length){
+				if (run > 0){
+					if (_tfs_walk_full(at, steps, 3 + 2 * cost + pending)){
+						_tfs_walk_stopped(f, at, prev, blockNo, first);
+						return 1;
+					}
+					int hole = blockNo;
+					blockNo = _tfs_fill_hole(hole, index - first, run);
+					if (blockNo == -1){
+						return -1;
+					}
+					if (blockNo != hole){
+						prev = hole; //Hole block still stands for the blocks before index
+					}
+					first = index;
+					length = 1;
+					steps++;
+				}
+				int write = _tfs_write_cost(blockNo);
+				if (write > 0 && _tfs_walk_full(at, steps, write + pending)){
+					_tfs_walk_stopped(f, at, prev, blockNo, first);
+					return 1;
+				}
+				placed.put(blockNo, page.getValue());
+				pending += write;
+				steps++;
+				it.remove();
+				page = it.hasNext() ? it.next() : null;
+				continue;
+			}
+			int next = _tfs_next_block(null, blockNo);
+			if (next == -1){
+				break;
+			}
+			first += length;
+			prev = blockNo;
+			blockNo = next;
+		}
+
+		//Pages past the end of the chain, each with a hole before it for the blocks skipped
+		int[] runs = new int[CHAIN_STEP]; //Blocks a new node stands for if it is a hole, 0 for a page
+		int[] starts = new int[CHAIN_STEP]; //Index in the file of the first block of each new node
+		int[] nodes = new int[CHAIN_STEP];
+		while (!pages.isEmpty()){
+			int k = 0;
+			int holes = 0;
+			int end = first + length;
+			for (Map.Entry<Integer, byte[]> p : pages.entrySet()){
+				int gap = p.getKey() - end;
+				if (k + ((gap > 0) ? 2 : 1) > CHAIN_STEP || (gap > 0 && k > 0 && (holes + 1) * cost > OP_BLOCKS / 2)){
+					break;
+				}
+				if (gap > 0){
+					runs[k] = gap;
+					starts[k++] = end;
+					holes++;
+				}
+				runs[k] = 0;
+				starts[k++] = p.getKey();
+				end = p.getKey() + 1;
+			}
+			if (_tfs_walk_full(at, steps, OP_BLOCKS + pending)){
+				_tfs_walk_stopped(f, at, prev, blockNo, first);
+				return 1;
+			}
+			k = _tfs_allocate_chain_step(blockNo, k, runs, nodes);
+			if (k == -1){
+				return -1;
+			}
+			for (int j = 0; j < k; j++){
+				if (runs[j] == 0){
+					placed.put(nodes[j], pages.remove(starts[j]));
+					pending += _tfs_write_cost(nodes[j]);
+				}
+			}
+			prev = (k > 1) ? nodes[k-2] : blockNo;
+			blockNo = nodes[k-1];
+			first = starts[k-1];
+			length = (runs[k-1] > 0) ? runs[k-1] : 1;
+			steps++;
+		}
+		return 0;
+	}
+
+	//_tfs_write_pages method:
+	//	Writes every page of sorted (block number -> page) to its block, a
+	//	run of up to COPY_RUN blocks in a row with one disk write
+	private void _tfs_write_pages(TreeMap<Integer, byte[]> sorted)
+	{
+		byte[] buf = new byte[COPY_RUN * BLOCK_SIZE];
+		int start = -1; //First block of the run in buf
+		int count = 0;
+		for (Map.Entry<Integer, byte[]> page : sorted.entrySet()){
+			int b = page.getKey();
+			if (count > 0 && (b != start + count || count == COPY_RUN)){
+				_tfs_write_blocks(start, count, buf);
+				count = 0;
+			}
+			if (count == 0){
+				start = b;
+			}
+			System.arraycopy(page.getValue(), 0, buf, count * BLOCK_SIZE, BLOCK_SIZE);
+			count++;
+		}
+		if (count > 0){
+			_tfs_write_blocks(start, count, buf);
+		}
+	}
+
+	//_tfs_flush_all method:
+	//	Flushes dirty pages of every open file, one file at a time
+	private void _tfs_flush_all()
+	{
+		for (OpenFile f : _tfs_open_files()){
+			if (!f.dirtyPages.isEmpty()){
+				_tfs_flush_fd(f);
+			}
+		}
+	}
+
+	//_tfs_flush_background method:
+	//	Called by the flusher thread. Flushes files with pages dirty for
+	//	longer than writeBehindDelay and, while there are more than
+	//	dirtyBackground bytes of dirty pages, the files dirty for the longest.
+	//	Grows the volume if the allocator asked for it. On volumes without
+	//	a journal it then writes the FAT blocks and PCB that changed, which
+	//	operations leave to it.
+	void _tfs_flush_background()
+	{
+		long now = System.currentTimeMillis();
+		List<OpenFile> dirty = new ArrayList<OpenFile>();
+		final Map<OpenFile, Long> since = new HashMap<OpenFile, Long>(); //Taken once, writers may change it while sorting
+		for (OpenFile f : _tfs_open_files()){
+			if (!f.dirtyPages.isEmpty()){
+				dirty.add(f);
+				since.put(f, f.dirtySince);
+			}
+		}
+		Collections.sort(dirty, new Comparator<OpenFile>(){
+			public int compare(OpenFile a, OpenFile b){
+				return Long.compare(since.get(a), since.get(b));
+			}
+		});
+		for (OpenFile f : dirty){
+			if (now - since.get(f) >= writeBehindDelay || dirtyBytes.get() > dirtyBackground){
+				_tfs_flush_fd(f);
+			}
+		}
+		if (growWanted){
+			_tfs_auto_grow();
+		}
+		if (journalBlocks == 0 && pcb != null && _tfs_meta_dirty()){
+			_tfs_sync_meta();
+		}
+		if (pcb != null){
+			_tfs_journal_commit_full();
+		}
+	}
+
+	//_tfs_start_flusher method:
+	//	Starts the write behind thread if it is not running
+	//	Returns the thread
+	private TFSFlusher _tfs_start_flusher()
+	{
+		TFSFlusher t = flusher;
+		if (t != null){
+			return t;
+		}
+		synchronized (flusherLock){
+			if (flusher == null){
+				flusher = new TFSFlusher(this);
+				flusher.start();
+			}
+			return flusher;
+		}
+	}
+
+	//_tfs_new_hole method:
+	//	Allocates a hole block standing for run blocks of zeros, followed by next
+	//	Returns the hole block, -1 if there are no free blocks
+	private int _tfs_new_hole(int run, int next)
+	{
+		int hole = _tfs_allocate_block_fat();
+		if (hole == -1){
+			return -1;
+		}
+		byte[] tmp = new byte[BLOCK_SIZE];
+		_tfs_put_int_block(tmp, 0, run);
+		_tfs_write_block(hole, tmp);
+		_tfs_set_fat(hole, FAT.holeValue(next));
+		return hole;
+	}
+
+	//_tfs_fill_hole method:
+	//	Turns the k-th block of the hole into a data block. The hole is split
+	//	into the part before k (kept in the hole block) and the part after k
+	//	(a new hole block). If k is 0 the hole block itself becomes the data
+	//	block. The data block is not written, the caller writes all of it.
+	//	Returns the data block, -1 if there are no free blocks
+	private int _tfs_fill_hole(int hole, int k, int run)
+	{
+		int next = _tfs_next_block(null, hole);
+		int after = run - k - 1; //Blocks of the hole after k
+		if (after > 0){
+			next = _tfs_new_hole(after, next);
+			if (next == -1){
+				return -1;
+			}
+		}
+		if (k == 0){
+			_tfs_set_fat(hole, next); //Hole block now holds data
+			return hole;
+		}
+		int newBlock = _tfs_allocate_block_fat();
+		if (newBlock == -1){
+			return -1;
+		}
+		_tfs_set_fat(newBlock, next);
+		//Hole block now only stands for the blocks before k
+		byte[] tmp = new byte[BLOCK_SIZE];
+		_tfs_put_int_block(tmp, 0, k);
+		_tfs_write_block(hole, tmp);
+		_tfs_set_next_block(hole, newBlock);
+		return newBlock;
+	}
+
+	//_tfs_unshare_block method:
+	//	Gives f its own copy of the shared block block_no of its chain, which
+	//	comes after prev (-1 if it is the first block). Shared blocks are
+	//	never written, so it can be read before taking the reference away.
+	//	Returns the block f has now, -1 if there are no free blocks
+	private int _tfs_unshare_block(OpenFile f, int prev, int block_no)
+	{
+		byte[] tmp = new byte[BLOCK_SIZE];
+		_tfs_read_block(block_no, tmp);
+		int newBlock = _tfs_copy_shared_block(block_no);
+		if (newBlock == -1 || newBlock == block_no){
+			return newBlock;
+		}
+		_tfs_write_block(newBlock, tmp);
+		if (prev == -1){
+			f.startingBlock = newBlock; //Entry is updated on close
+		} else {
+			_tfs_set_next_block(prev, newBlock);
+		}
+		return newBlock;
+	}
+
+	//_tfs_copy_shared_block method:
+	//	Takes one reference away from the shared block_no and allocates the
+	//	block the copy goes to, pointing to the same next block. If the other
+	//	files stopped sharing it in the meantime block_no is returned instead.
+	//	Returns -1 if there are no free blocks
+	private int _tfs_copy_shared_block(int block_no)
+	{
+		fatLock.lock();
+		try {
+			if (fat.refs(block_no) == 0){
+				return block_no; //Not shared anymore, no copy needed
+			}
+			int newBlock = _tfs_allocate_block_fat();
+			if (newBlock == -1){
+				return -1;
+			}
+			fat.setEntry(newBlock, fat.get(block_no)); //Rest of the chain is still shared, hole blocks stay holes
+			fat.setRefs(block_no, fat.refs(block_no) - 1);
+			return newBlock;
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_truncate_fd method:
+	//	Sets the size of file f. Growing the file attaches a hole, shrinking it
+	//	cuts the chain after the last block still needed and gives the rest of
+	//	the chain back to FAT. Blocks up to there that are still shared with
+	//	a clone are copied on the way (copy on write, the copy keeps
+	//	pointing to the rest of the shared chain), as many as the running
+	//	transaction has room for: at keeps where the walk stopped for the
+	//	next call to go on from. The caller holds the write lock of the file
+	//	and flushed its dirty pages.
+	//	Returns 1 if it has to be called again in another operation, -1 if
+	//	there are no free blocks
+	private int _tfs_truncate_fd(OpenFile f, long size, int[] at)
+	{
+		int keep = (int)((size + BLOCK_SIZE - 1) / BLOCK_SIZE); //Blocks of the file still needed
+
+		//Find the node holding the last block still needed
+		int prev = -1;
+		int blockNo = f.startingBlock;
+		int first = 0;
+		if (_tfs_walk_goes_on(f, at)){
+			prev = at[0];
+			blockNo = at[1];
+			first = at[2];
+		}
+		f.chainChanged();
+		int cost = _tfs_write_cost(-1);
+		int steps = 0;
+		int run;
+		int length;
+		while (true){
+			if (fat.refs(blockNo) > 0){
+				if (_tfs_walk_full(at, steps, 2 + cost)){
+					_tfs_walk_stopped(f, at, prev, blockNo, first);
+					return 1;
+				}
+				blockNo = _tfs_unshare_block(f, prev, blockNo);
+				if (blockNo == -1){
+					return -1;
+				}
+				steps++;
+			}
+			run = _tfs_hole_run(null, blockNo);
+			length = (run > 0) ? run : 1;
+			int next = _tfs_next_block(null, blockNo);
+			if (first + length >= keep || next == -1){
+				break;
+			}
+			first += length;
+			prev = blockNo;
+			blockNo = next;
+		}
+
+		if (first + length < keep){
+			//Growing, the new blocks are a hole at the end of the chain
+			int hole = _tfs_new_hole(keep - (first + length), -1);
+			if (hole == -1){
+				return -1;
+			}
+			_tfs_set_next_block(blockNo, hole);
+		} else {
+			byte[] tmp = new byte[BLOCK_SIZE];
+			if (run > 0 && keep - first == 0){
+				//Empty file, the hole block becomes an empty data block
+				_tfs_write_block(blockNo, tmp);
+				_tfs_set_fat(blockNo, _tfs_next_block(null, blockNo));
+				run = 0;
+			} else if (run > 0 && keep - first < run){
+				//Hole ends at the new end of the file
+				_tfs_put_int_block(tmp, 0, keep - first);
+				_tfs_write_block(blockNo, tmp);
+			} else if (run == 0 && size % BLOCK_SIZE != 0){
+				//Zero the end of the last block so growing again reads 0s
+				_tfs_read_block(blockNo, tmp);
+				Arrays.fill(tmp, (int)(size % BLOCK_SIZE), BLOCK_SIZE, (byte)0);
+				_tfs_write_block(blockNo, tmp);
+			} else if (run == 0 && size == 0){
+				_tfs_write_block(blockNo, tmp);
+			}
+			//Cut the chain and return the rest of it
+			int rest = _tfs_next_block(null, blockNo);
+			_tfs_set_next_block(blockNo, -1);
+			_tfs_free_chain(rest);
+		}
+
+		f.fileSize = size;
+		_tfs_update_entry_dir(f.parentBlock, f.name, (byte)f.name.length, f.isDirectory, f.startingBlock, f.fileSize);
+		return 0;
+	}
+
+	//_tfs_free_chain method:
+	//	Returns every block of the chain starting at block_no to FAT. Blocks
+	//	shared with a clone only lose one reference. FAT is not synced.
+	//	No entry may reach the chain anymore: once the running transaction
+	//	has no room left the rest of it goes to chainsToFree, which the end
+	//	of the operation gives back (tfs_mount does if a crash comes first).
+	private void _tfs_free_chain(int block_no)
+	{
+		fatLock.lock();
+		try {
+			while (block_no != -1 && block_no != 0){
+				if (_tfs_tx_full(1)){
+					chainsToFree.add(block_no);
+					return;
+				}
+				int next = _tfs_next_block(null, block_no);
+				if (fat.refs(block_no) > 0){
+					fat.setRefs(block_no, fat.refs(block_no) - 1);
+				} else {
+					_tfs_return_block_fat(block_no);
+				}
+				block_no = next;
+			}
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_free_pending method:
+	//	Gives back the chains in chainsToFree, in as many operations as it
+	//	takes. One thread does it at a time, chains left while it runs are
+	//	taken by it or by the end of the next operation. Called holding no
+	//	lock.
+	private void _tfs_free_pending()
+	{
+		if (freeLock.isHeldByCurrentThread() || !freeLock.tryLock()){
+			return;
+		}
+		try {
+			Integer chain;
+			while ((chain = chainsToFree.poll()) != null){
+				_tfs_begin_op();
+				try {
+					_tfs_free_chain(chain);
+				} finally {
+					_tfs_end_op(false);
+				}
+			}
+		} finally {
+			freeLock.unlock();
+		}
+	}
+
+	//_tfs_add_refs method:
+	//	Adds delta to the reference count of every block of the chain
+	//	starting at block_no
+	private void _tfs_add_refs(int block_no, int delta)
+	{
+		fatLock.lock();
+		try {
+			refsAdded++;
+			for (int b = block_no; b != -1 && b != 0; b = _tfs_next_block(null, b)){
+				fat.setRefs(b, fat.refs(b) + delta);
+			}
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_get_block_no_fd method:
+	//	Block number for the offset in the file represented by f, found in the
+	//	block map of f (built from FAT the first time it is needed)
+	//	Returns -1 if the offset is in a hole or past the end of the chain
+ 	private int _tfs_get_block_no_fd(OpenFile f, long offset)
+ 	{
+		BlockMap map = f.blockMap;
+		if (map == null){
+			map = _tfs_build_block_map(f);
+			f.blockMap = map; //Readers may build it at the same time, they build the same map
+		}
+		return map.find((int)(offset/BLOCK_SIZE));
+ 	}
+
+	//_tfs_build_block_map method:
+	//	Walks the chain of f once and keeps where each block of the file is
+	private BlockMap _tfs_build_block_map(OpenFile f)
+	{
+		BlockMap map = new BlockMap(16);
+		int blockNo = f.startingBlock; //Initializing to where file is located
+		//Check for two error cases
+		while (blockNo != -1 && blockNo != 0){
+			int run = _tfs_hole_run(f.snapshot, blockNo);
+			map.add((run > 0) ? -1 : blockNo, (run > 0) ? run : 1); //Holes read as 0s
+			blockNo = _tfs_next_block(f.snapshot, blockNo); //Updates block number to next block
+		}
+		return map;
+	}
+
+	//_tfs_write_pcb method:
+	//	Write PCB back into disk, if it changed since it was last written
+	private void _tfs_write_pcb(){
+		byte[] pcbBlock;
+		fatLock.lock();
+		try {
+			if (loggedPcb != null && Arrays.equals(pcb.pcbBlock, loggedPcb)){
+				return;
+			}
+			pcbBlock = pcb.pcbBlock.clone(); //Free block pointer can't change half way through
+		} finally {
+			fatLock.unlock();
+		}
+		loggedPcb = pcbBlock;
+		//Write pcb at block 1 location
+		_tfs_write_meta_block(1, pcbBlock);
+	}
+
+	//_tfs_read_pcb method:
+	//	Read PCB from disk into memory
+	private void _tfs_read_pcb(){
+		byte[] pcbBuffer = new byte[BLOCK_SIZE]; //Creating and initializing buffer
+		_tfs_read_block(1, pcbBuffer); //Reading block of bytes into buffer
+		pcb.updatePCB(pcbBuffer); //Updates in memory pcb with disk pcb
+	}
+
+	//_tfs_write_fat method:
+	//	Write FAT back into disk. Only the blocks of FAT marked dirty since
+	//	they were last written are written (logged) again.
+	private void _tfs_write_fat(){
+		TreeMap<Integer, byte[]> fatBlocks = new TreeMap<Integer, byte[]>();
+		fatLock.lock();
+		try {
+			for (int block_no : fat.dirty){
+				fatBlocks.put(block_no, fat.blockBytes(block_no));
+			}
+			fat.dirty.clear();
+		} finally {
+			fatLock.unlock();
+		}
+		//Write FAT blocks where they live on disk, without holding the allocator lock
+		for (Map.Entry<Integer, byte[]> e : fatBlocks.entrySet()){
+			_tfs_write_meta_block(e.getKey(), e.getValue());
+		}
+	}
+
+	//_tfs_meta_dirty method:
+	//	True if a FAT block or the PCB changed since they were last written
+	private boolean _tfs_meta_dirty(){
+		fatLock.lock();
+		try {
+			if (!fat.dirty.isEmpty()){
+				return true;
+			}
+			return loggedPcb == null || !Arrays.equals(pcb.pcbBlock, loggedPcb);
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_sync_meta method:
+	//	Writes PCB and FAT from memory to disk (logs them with a journal).
+	//	Dirty pages of open files are not written. Called by tfs_sync, by
+	//	every commit and by the flusher, never in the middle of an operation.
+	private void _tfs_sync_meta(){
+		_tfs_begin_op();
+		syncLock.lock();
+		try {
+			_tfs_write_pcb();
+			_tfs_write_fat();
+		} finally {
+			syncLock.unlock();
+			_tfs_end_op(false);
+		}
+	}
+
+	//_tfs_begin_op method:
+	//	Starts an operation that changes metadata. Until _tfs_end_op every
+	//	block it logs goes into the same transaction, so a transaction is
+	//	never committed with half an operation in it. Taken before any lock
+	//	but the FileDescriptor monitor, or again inside another operation.
+	//	The outermost operation keeps OP_BLOCKS blocks of the journal for
+	//	itself, committing the running transaction first if it has no room
+	//	for them.
+	private void _tfs_begin_op(){
+		_tfs_begin_op(OP_BLOCKS);
+	}
+
+	//_tfs_begin_op method:
+	//	Same as above, keeping blocks blocks of the journal
+	private void _tfs_begin_op(int blocks){
+		if (_tfs_in_op()){
+			txLock.readLock().lock(); //The outermost operation kept the room
+			return;
+		}
+		while (true){
+			txLock.readLock().lock();
+			long seq = runningSeq;
+			if (_tfs_tx_reserve(blocks)){
+				return;
+			}
+			txLock.readLock().unlock();
+			_tfs_journal_commit(seq);
+		}
+	}
+
+	//_tfs_end_op method:
+	//	Ends an operation started with _tfs_begin_op. The outermost one
+	//	gives back the chains it left to free, then, if durable, waits for
+	//	the commit of its transaction unless commits are left to the
+	//	journal thread.
+	private void _tfs_end_op(boolean durable){
+		_tfs_end_op(durable, OP_BLOCKS);
+	}
+
+	//_tfs_end_op method:
+	//	Same as above for an operation started with _tfs_begin_op(blocks)
+	private void _tfs_end_op(boolean durable, int blocks){
+		long seq = runningSeq; //Can't change while the operation is running
+		boolean outermost = txLock.getReadHoldCount() == 1 && !txLock.isWriteLockedByCurrentThread();
+		if (outermost){
+			fatLock.lock();
+			try {
+				txReserved -= blocks;
+			} finally {
+				fatLock.unlock();
+			}
+		}
+		txLock.readLock().unlock();
+		if (outermost && !chainsToFree.isEmpty()){
+			_tfs_free_pending();
+		}
+		if (durable && journalCommitDelay == 0 && txLock.getReadHoldCount() == 0){
+			_tfs_journal_commit(seq);
+		}
+	}
+
+	//_tfs_in_op method:
+	//	True if the calling thread is inside an operation or a commit
+	private boolean _tfs_in_op(){
+		return txLock.getReadHoldCount() > 0 || txLock.isWriteLockedByCurrentThread();
+	}
+
+	//_tfs_tx_reserve method:
+	//	Keeps blocks blocks of the journal for an operation starting now.
+	//	There has to be room for them and OP_BLOCKS more once the running
+	//	transaction and the blocks kept by the operations running are
+	//	counted, unless the transaction is empty and no operation is
+	//	running, so one always gets in.
+	//	Returns false if the running transaction has to be committed first
+	private boolean _tfs_tx_reserve(int blocks){
+		fatLock.lock();
+		try {
+			if (journalBlocks > 0 && _tfs_tx_size() + txReserved + blocks + OP_BLOCKS > _tfs_tx_limit() && (txReserved > 0 || _tfs_tx_size() > 1)){
+				return false;
+			}
+			txReserved += blocks;
+			return true;
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_tx_full method:
+	//	True if blocks more blocks logged by the running transaction could
+	//	leave the operations running without the room they kept. Steps of
+	//	an operation that may log more than that room ask before they start
+	//	and go on in another operation if it is full.
+	private boolean _tfs_tx_full(int blocks){
+		return _tfs_tx_room() < blocks;
+	}
+
+	//_tfs_tx_room method:
+	//	Blocks the running transaction can still log past the room kept by
+	//	the operations running, Integer.MAX_VALUE on volumes without a
+	//	journal
+	private int _tfs_tx_room(){
+		if (journalBlocks == 0){
+			return Integer.MAX_VALUE;
+		}
+		fatLock.lock();
+		try {
+			return _tfs_tx_limit() - _tfs_tx_size() - txReserved;
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_tx_size method:
+	//	Blocks the running transaction would log if it was committed now,
+	//	its images and the FAT blocks and PCB that go with them. The
+	//	caller holds fatLock.
+	private int _tfs_tx_size(){
+		return runningImages.size() + fat.dirty.size() + 1;
+	}
+
+	//_tfs_tx_limit method:
+	//	Most blocks one transaction can log: the journal less the
+	//	descriptor blocks and commit block that go with them
+	private int _tfs_tx_limit(){
+		return journalBlocks - 1 - (journalBlocks + JOURNAL_TAGS - 1) / JOURNAL_TAGS;
+	}
+
+	//_tfs_write_cost method:
+	//	Most blocks writing a block adds to the running transaction: its
+	//	image if it was metadata that is not in place yet, and a copy (FAT
+	//	block and image) for every snapshot that keeps it. -1 for any block.
+	private int _tfs_write_cost(int block_no){
+		return ((block_no == -1 || metaCache.containsKey(block_no)) ? 1 : 0) + 2 * snapshots.size();
+	}
+
+	//_tfs_journal_commit method:
+	//	Returns once the transaction with id seq is committed. The first
+	//	thread to get here writes every operation finished so far as one
+	//	transaction with a single force (group commit), the threads coming in
+	//	while it writes wait and are committed together by the next one.
+	//	Never called while holding a lock.
+	private void _tfs_journal_commit(long seq){
+		if (journalBlocks == 0){
+			return; //Metadata is written in place
+		}
+		while (true){
+			synchronized (commitMonitor){
+				while (committing && committedSeq < seq){
+					try {
+						commitMonitor.wait();
+					} catch (InterruptedException ie){
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (committedSeq >= seq){
+					return;
+				}
+				committing = true; //This thread writes the next group
+			}
+			long done = seq;
+			try {
+				done = _tfs_journal_write();
+			} finally {
+				synchronized (commitMonitor){
+					committing = false;
+					committedSeq = Math.max(committedSeq, done);
+					commitMonitor.notifyAll();
+				}
+			}
+		}
+	}
+
+	//_tfs_journal_commit_running method:
+	//	Commits every operation finished so far
+	void _tfs_journal_commit_running(){
+		txLock.readLock().lock();
+		long seq = runningSeq;
+		txLock.readLock().unlock();
+		_tfs_journal_commit(seq);
+	}
+
+	//_tfs_journal_commit_full method:
+	//	Commits the running transaction once it holds half of the journal,
+	//	so operations that don't wait for their commit (closes, writes left
+	//	to the flusher) can't make it too large to be logged. Called
+	//	holding no lock.
+	private void _tfs_journal_commit_full(){
+		if (journalBlocks == 0){
+			return;
+		}
+		int fatBlocks;
+		fatLock.lock();
+		try {
+			fatBlocks = fat.dirty.size();
+		} finally {
+			fatLock.unlock();
+		}
+		if (runningImages.size() + fatBlocks + 1 > journalBlocks / 2){ //PCB goes with them
+			_tfs_journal_commit_running();
+		}
+	}
+
+	//_tfs_journal_write method:
+	//	Closes the running transaction, once no operation is inside it, and
+	//	writes it to the journal.
+	//	Returns the id of the transaction
+	private long _tfs_journal_write(){
+		journalLock.lock();
+		try {
+			Map<Integer, byte[]> images;
+			long seq;
+			txLock.writeLock().lock();
+			try {
+				//FAT blocks and PCB changed by the operations go with them
+				if (pcb != null && journalBlocks > 0){
+					_tfs_sync_meta();
+				}
+				images = runningImages;
+				runningImages = new ConcurrentHashMap<Integer, byte[]>();
+				seq = runningSeq++;
+			} finally {
+				txLock.writeLock().unlock();
+			}
+			if (!images.isEmpty() && journalBlocks > 0){
+				_tfs_journal_append(images);
+			}
+			return seq;
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	//_tfs_journal_append method:
+	//	Writes the images of a transaction after the head of the journal:
+	//	a descriptor block with the block numbers of the next JOURNAL_TAGS
+	//	images, the images, and so on, then a commit block with the checksum
+	//	of every image. Checkpoints first if the journal has no room left.
+	//	Caller holds journalLock.
+	private void _tfs_journal_append(Map<Integer, byte[]> images){
+		List<Integer> blocks = new ArrayList<Integer>(images.keySet());
+		int n = blocks.size();
+		int needed = (n + JOURNAL_TAGS - 1) / JOURNAL_TAGS + n + 1;
+		if (needed > journalBlocks - journalUsed){
+			_tfs_journal_checkpoint();
+		}
+		if (needed > journalBlocks){
+			//Operations keep their transactions under _tfs_tx_limit, so this is a bug
+			throw new IllegalStateException("Transaction of " + n + " blocks does not fit in the journal");
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] tmp = new byte[BLOCK_SIZE];
+		int pos = journalHead;
+		for (int i = 0; i < n; i += JOURNAL_TAGS){
+			int count = Math.min(JOURNAL_TAGS, n - i);
+			Arrays.fill(tmp, (byte)0);
+			_tfs_put_int_block(tmp, 0, JOURNAL_DESCRIPTOR);
+			_tfs_put_int_block(tmp, 4, journalSeq);
+			_tfs_put_int_block(tmp, 8, count);
+			for (int k = 0; k < count; k++){
+				_tfs_put_int_block(tmp, 12 + (k*4), blocks.get(i+k));
+			}
+			disk.tfs_dio_write_block(_tfs_journal_block(pos), tmp);
+			pos = (pos + 1) % journalBlocks;
+			for (int k = 0; k < count; k++){
+				byte[] image = images.get(blocks.get(i+k));
+				crc.update(image, 0, BLOCK_SIZE);
+				disk.tfs_dio_write_block(_tfs_journal_block(pos), image);
+				pos = (pos + 1) % journalBlocks;
+			}
+		}
+		Arrays.fill(tmp, (byte)0);
+		_tfs_put_int_block(tmp, 0, JOURNAL_COMMIT);
+		_tfs_put_int_block(tmp, 4, journalSeq);
+		_tfs_put_int_block(tmp, 8, (int)crc.getValue());
+		disk.tfs_dio_write_block(_tfs_journal_block(pos), tmp);
+		//One force for the whole group, data blocks written before it go with it
+		disk.tfs_dio_force();
+
+		journalHead = (pos + 1) % journalBlocks;
+		journalUsed += needed;
+		journalSeq++;
+		committedImages.putAll(images);
+	}
+
+	//_tfs_journal_checkpoint method:
+	//	Writes every committed image in place, then moves the tail of the
+	//	journal to its head so the area can be used again. Images are dropped
+	//	from metaCache unless a newer one was logged in the meantime.
+	void _tfs_journal_checkpoint(){
+		journalLock.lock();
+		try {
+			if (journalBlocks == 0 || journalUsed == 0){
+				return;
+			}
+			for (Map.Entry<Integer, byte[]> image : committedImages.entrySet()){
+				disk.tfs_dio_write_block(image.getKey(), image.getValue());
+			}
+			disk.tfs_dio_force(); //Blocks are in place before the journal forgets them
+			journalUsed = 0;
+			_tfs_journal_write_header(journalHead, journalSeq);
+			disk.tfs_dio_force();
+			for (Map.Entry<Integer, byte[]> image : committedImages.entrySet()){
+				metaCache.remove(image.getKey(), image.getValue());
+			}
+			committedImages.clear();
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	//_tfs_journal_checkpoint_all method:
+	//	Commits every operation finished so far and checkpoints, leaving the
+	//	journal empty and every block in place
+	private void _tfs_journal_checkpoint_all(){
+		if (journalBlocks == 0){
+			return;
+		}
+		_tfs_journal_commit_running();
+		_tfs_journal_checkpoint();
+	}
+
+	//_tfs_journal_background method:
+	//	Called by the journal thread. Commits operations that did not wait
+	//	for their commit, and checkpoints when the journal is more than half
+	//	full or nothing was logged since the last time.
+	void _tfs_journal_background(){
+		if (journalBlocks == 0){
+			return;
+		}
+		txLock.readLock().lock();
+		boolean idle = runningImages.isEmpty() && !_tfs_meta_dirty();
+		txLock.readLock().unlock();
+		if (!idle){
+			_tfs_journal_commit_running();
+		}
+		journalLock.lock();
+		try {
+			if (idle || journalUsed > journalBlocks / 2){
+				_tfs_journal_checkpoint();
+			}
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	//_tfs_journal_open method:
+	//	Starts using the journal of blocks blocks after the header block
+	//	start, empty from position tail with the next sequence number seq
+	private void _tfs_journal_open(int start, int blocks, int tail, int seq){
+		journalLock.lock();
+		try {
+			journalStart = start;
+			journalHead = tail;
+			journalUsed = 0;
+			journalSeq = seq;
+			journalBlocks = blocks;
+			_tfs_journal_write_header(tail, seq);
+			disk.tfs_dio_force();
+		} finally {
+			journalLock.unlock();
+		}
+		synchronized (flusherLock){
+			if (journalThread == null){
+				journalThread = new TFSJournalThread(this);
+				journalThread.start();
+			}
+		}
+	}
+
+	//_tfs_journal_reset method:
+	//	Stops using the journal and forgets every block not in place. Used
+	//	before a volume is made, mounted or closed.
+	private void _tfs_journal_reset(){
+		journalLock.lock();
+		try {
+			txLock.writeLock().lock();
+			try {
+				journalBlocks = 0;
+				journalUsed = 0;
+				runningImages.clear();
+				committedImages.clear();
+				metaCache.clear();
+				loggedPcb = null;
+				chainsToFree.clear(); //Blocks of the old volume, mount finds the ones lost again
+			} finally {
+				txLock.writeLock().unlock();
+			}
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	//_tfs_journal_replay method:
+	//	Writes in place every complete transaction found after the tail of
+	//	the journal, in order. A transaction is complete if its commit block
+	//	is there with the right sequence number and checksum; the first one
+	//	that is not ends the journal.
+	private void _tfs_journal_replay(int start, int blocks){
+		byte[] tmp = new byte[BLOCK_SIZE];
+		disk.tfs_dio_read_block(start, tmp);
+		int pos = 0;
+		int seq = 1;
+		if (_tfs_get_int_block(tmp, 0) == JOURNAL_HEADER){
+			pos = _tfs_get_int_block(tmp, 4);
+			seq = _tfs_get_int_block(tmp, 8);
+		}
+		if (pos < 0 || pos >= blocks){
+			pos = 0;
+		}
+		int replayed = 0;
+		while (true){
+			List<Integer> homes = new ArrayList<Integer>();
+			List<byte[]> images = new ArrayList<byte[]>();
+			CRC32 crc = new CRC32();
+			int p = pos;
+			boolean complete = false;
+			while (homes.size() + 1 < blocks){
+				byte[] record = new byte[BLOCK_SIZE];
+				disk.tfs_dio_read_block(start + 1 + p, record);
+				p = (p + 1) % blocks;
+				int magic = _tfs_get_int_block(record, 0);
+				if (_tfs_get_int_block(record, 4) != seq){
+					break; //Older record left from before, the journal ends here
+				}
+				if (magic == JOURNAL_COMMIT){
+					complete = !homes.isEmpty() && _tfs_get_int_block(record, 8) == (int)crc.getValue();
+					break;
+				}
+				int count = _tfs_get_int_block(record, 8);
+				if (magic != JOURNAL_DESCRIPTOR || count < 1 || count > JOURNAL_TAGS){
+					break;
+				}
+				int k = 0;
+				for (; k < count; k++){
+					int home = _tfs_get_int_block(record, 12 + (k*4));
+					if (home < 1 || home >= start){
+						break; //Not a block of this volume
+					}
+					byte[] image = new byte[BLOCK_SIZE];
+					disk.tfs_dio_read_block(start + 1 + p, image);
+					p = (p + 1) % blocks;
+					crc.update(image, 0, BLOCK_SIZE);
+					homes.add(home);
+					images.add(image);
+				}
+				if (k < count){
+					break;
+				}
+			}
+			if (!complete){
+				break;
+			}
+			for (int i = 0; i < homes.size(); i++){
+				disk.tfs_dio_write_block(homes.get(i), images.get(i));
+			}
+			pos = p;
+			seq++;
+			replayed++;
+		}
+		if (replayed > 0){
+			System.out.println("Journal: replayed " + replayed + " transactions.");
+		}
+		disk.tfs_dio_force(); //Replayed blocks are in place before the journal is emptied
+		_tfs_journal_open(start, blocks, pos, seq);
+	}
+
+	//_tfs_journal_write_header method:
+	//	Writes where the journal starts (its tail) and the sequence number
+	//	of the first transaction there to the header block
+	private void _tfs_journal_write_header(int tail, int seq){
+		byte[] tmp = new byte[BLOCK_SIZE];
+		_tfs_put_int_block(tmp, 0, JOURNAL_HEADER);
+		_tfs_put_int_block(tmp, 4, tail);
+		_tfs_put_int_block(tmp, 8, seq);
+		disk.tfs_dio_write_block(journalStart, tmp);
+	}
+
+	//_tfs_journal_block method:
+	//	Block number of position pos in the circular area of the journal
+	private int _tfs_journal_block(int pos){
+		return journalStart + 1 + pos;
+	}
+
+	//_tfs_read_fat method:
+	//	Read FAT from the disk into memory. Pages of it are read the first
+	//	time they are used, the ones past the high water mark need no read.
+	//	Returns the blocks of every file and directory
+	private BitSet _tfs_read_fat(){
+		fat.attach(disk, pcb.highWater, _tfs_load_from());
+		//Clones are not recorded on disk, so count how many files share each block again
+		return _tfs_count_refs();
+	}
+
+	//_tfs_free_lost_blocks method:
+	//	Returns to FAT every block in use that is not in reached, the blocks
+	//	of files and directories: copies kept for snapshots of the last
+	//	mount, which are only in memory, and chains a crash left half
+	//	freed. Blocks of the volume itself (_tfs_system_block) and the ones
+	//	snapshots taken before a mount again keep are left alone, as are
+	//	volumes made before the layout had a version. Called by tfs_mount.
+	private void _tfs_free_lost_blocks(BitSet reached){
+		if (pcb.version < 1){
+			return;
+		}
+		for (Snapshot snap : snapshots){
+			for (int copy : snap.preserved.values()){
+				reached.set(copy);
+			}
+		}
+		List<Integer> lost = new ArrayList<Integer>();
+		List<int[]> system = _tfs_system_ranges();
+		int end = Math.min(pcb.highWater, pcb.fatSize);
+		for (int b = reached.nextClearBit(_tfs_root_block() + 1); b < end; b = reached.nextClearBit(b + 1)){
+			if (fat.get(b) != 0 && !_tfs_system_block(b, system)){
+				lost.add(b);
+			}
+		}
+		_tfs_begin_op();
+		try {
+			for (int b : lost){
+				if (_tfs_tx_full(1)){
+					//Blocks go back one at a time, so the transaction can end between any two
+					_tfs_end_op(false);
+					_tfs_begin_op();
+				}
+				_tfs_return_block_fat(b);
+			}
+		} finally {
+			_tfs_end_op(true);
+		}
+	}
+
+	//_tfs_system_block method:
+	//	True if block_no is a block of the volume itself, never in a chain:
+	//	block 0, PCB, FAT, the spare block and root, the journal or a block
+	//	holding the FAT of an extent. ranges is what _tfs_system_ranges
+	//	returned, taken once by callers asking about many blocks.
+	private boolean _tfs_system_block(int block_no, List<int[]> ranges){
+		if (block_no <= _tfs_root_block()){
+			return true;
+		}
+		for (int[] s : ranges){
+			if (block_no >= s[0] && block_no < s[1]){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//_tfs_system_ranges method:
+	//	Blocks of the volume itself past root, by first block: the journal
+	//	(header block and area) and the blocks holding the FAT of every
+	//	extent, each as its first block and the block after its last
+	private List<int[]> _tfs_system_ranges(){
+		List<int[]> ranges = new ArrayList<int[]>();
+		if (pcb.journalBlocks > 0){
+			ranges.add(new int[]{pcb.journalStart, pcb.journalStart + pcb.journalBlocks + 1});
+		}
+		int[] extents = pcb.extents;
+		for (int j = 0; j < extents.length; j++){
+			int end = (j + 1 < extents.length) ? extents[j+1] : pcb.fatSize;
+			ranges.add(new int[]{extents[j], extents[j] + (int)(((long)(end - extents[j]) * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE)});
+		}
+		Collections.sort(ranges, new Comparator<int[]>(){
+			public int compare(int[] a, int[] b){
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+		return ranges;
+	}
+
+	//_tfs_get_block_fat method
+	//	Gets a free block from FAT
+	private int _tfs_get_block_fat(){
+		return pcb.freeBlockPointer; //Returns index of free block in disk stored in PCB object
+	}
+
+	//_tfs_allocate_block_fat method:
+	//	Takes the free block from FAT, marks it as the end of a chain and
+	//	finds the next free block
+	//	Returns -1 if there are no free blocks
+	private int _tfs_allocate_block_fat(){
+		fatLock.lock();
+		try {
+			int block_no = _tfs_get_block_fat();
+			if (block_no == -1 && autoGrowIncrement > 0 && _tfs_grow_locked(_tfs_auto_grow_size()) == 0){
+				block_no = _tfs_get_block_fat(); //Background growth did not keep up, grow right here
+			}
+			if (block_no == -1){
+				return -1;
+			}
+			fat.setEntry(block_no, -1); //Block is now the end of a chain
+			fat.setRefs(block_no, 0);
+			if (block_no >= pcb.highWater){
+				pcb.updateHighWater(block_no + 1);
+			}
+			int next = _tfs_next_free_block(block_no + 1);
+			pcb.updateFreeBlockPointer(next);
+			stats.allocScan.record(((next == -1) ? pcb.fatSize : next) - block_no); //FAT entries looked at
+			if (_tfs_low_on_blocks()){
+				growWanted = true;
+				TFSFlusher t = flusher;
+				if (t != null){
+					t.wakeUp();
+				}
+			}
+			return block_no;
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_next_free_block method:
+	//	Lowest free block from block_no on, -1 if there is none. The free
+	//	block pointer is the lowest free block, so blocks are looked for up
+	//	to the high water mark and every block from there on is free but
+	//	the journal and FAT extents. The caller holds the allocator lock.
+	private int _tfs_next_free_block(int block_no){
+		int next = fat.findFreeBlock(block_no, pcb.highWater);
+		if (next == -1){
+			next = Math.max(block_no, pcb.highWater);
+			while (next < pcb.fatSize && fat.get(next) != 0){
+				next++;
+			}
+			if (next == pcb.fatSize){
+				next = -1;
+			}
+		}
+		return next;
+	}
+
+	//_tfs_allocate_run_fat method:
+	//	Takes the count free blocks starting at block_no from FAT, each
+	//	marked as the end of a chain. The caller holds the allocator lock
+	//	and checked that they are free.
+	private void _tfs_allocate_run_fat(int block_no, int count){
+		for (int b = block_no; b < block_no + count; b++){
+			fat.setEntry(b, -1);
+			fat.setRefs(b, 0);
+		}
+		if (block_no + count > pcb.highWater){
+			pcb.updateHighWater(block_no + count);
+		}
+		int free = pcb.freeBlockPointer;
+		if (free >= block_no && free < block_no + count){
+			pcb.updateFreeBlockPointer(_tfs_next_free_block(block_no + count));
+		}
+	}
+
+	//_tfs_allocate_run_chain method:
+	//	Takes count free blocks in a row linked as one chain: the ones
+	//	right from hint if they are free (0 for none), the first run from
+	//	the free block pointer on otherwise.
+	//	Returns the first block of the chain, -1 if no run that long is free
+	private int _tfs_allocate_run_chain(int count, int hint){
+		fatLock.lock();
+		try {
+			int base = -1;
+			if (hint > 0 && (long)hint + count <= fat.fatSize){
+				base = fat.findFreeRun(hint, hint + count, count);
+			}
+			int free = pcb.freeBlockPointer;
+			if (base == -1 && free != -1){
+				base = fat.findFreeRun(free, fat.fatSize, count);
+			}
+			if (base == -1){
+				return -1;
+			}
+			_tfs_allocate_run_fat(base, count);
+			for (int b = base; b < base + count - 1; b++){
+				fat.setEntry(b, b + 1);
+			}
+			return base;
+		} finally {
+			fatLock.unlock();
+		}
+	}
+
+	//_tfs_allocate_chain_step method:
+	//	One step of a chain being made: takes count blocks in a row, the
+	//	ones after last if they are free, or else a single block, and links
+	//	them after last (-1 to start a chain). The j-th block is a hole
+	//	standing for runs[j] blocks if that is over 0 (runs may be null).
+	//	nodes gets the blocks taken.
+	//	Returns how many blocks were taken, -1 if there are no free blocks
+	private int _tfs_allocate_chain_step(int last, int count, int[] runs, int[] nodes){
+		int b = (count > 1) ? _tfs_allocate_run_chain(count, last + 1) : -1;
+		if (b == -1){
+			count = 1;
+			b = _tfs_allocate_block_fat();
+			if (b == -1){
+				return -1;
+			}
+		}
+		if (last != -1){
+			_tfs_set_next_block(last, b);
+		}
+		byte[] tmp = new byte[BLOCK_SIZE];
+		for (int j = 0; j < count; j++){
+			nodes[j] = b + j;
+			if (runs != null && runs[j] > 0){
+				_tfs_put_int_block(tmp, 0, runs[j]);
+				_tfs_write_block(b + j, tmp);
+				_tfs_set_fat(b + j, FAT.holeValue((j + 1 < count) ? b + j + 1 : -1));
+			}
+		}
+		return count;
+	}
+
+	//_tfs_step_nodes method:
+	//	Nodes of the next step of a chain whose nodes from from on stand
+	//	for runs (null for data blocks only): up to CHAIN_STEP of them, with
+	//	no more holes than the half of OP_BLOCKS the step leaves can log
+	private int _tfs_step_nodes(int[] runs, int from, int count){
+		int cost = _tfs_write_cost(-1);
+		int k = 0;
+		for (int holes = 0; k < CHAIN_STEP && from + k < count; k++){
+			if (runs != null && runs[from + k] > 0){
+				if (k > 0 && (holes + 1) * cost > OP_BLOCKS / 2){
+					break;
+				}
+				holes++;
+			}
+		}
+		return k;
+	}
+
+	//_tfs_allocate_chain_fat method:
+	//	Takes count free blocks from FAT linked as one chain, in a row if a
+	//	run that long is free. The chain is made a step at a time
+	//	(_tfs_allocate_chain_step), in as many operations as it takes for
+	//	each to fit in the journal; no entry reaches it until the caller
+	//	makes one, so a crash half way leaves blocks tfs_mount gives back.
+	//	The j-th block is a hole standing for runs[j] blocks if that is
+	//	over 0 (runs may be null), chain gets every block if it is not
+	//	null. Called outside of any operation.
+	//	Returns the first block of the chain, -1 if there are not enough free blocks
+	private int _tfs_allocate_chain_fat(int count, int[] runs, int[] chain){
+		int[] nodes = new int[CHAIN_STEP];
+		int first = -1;
+		int last = -1;
+		_tfs_begin_op();
+		try {
+			for (int done = 0; done < count; ){
+				int k = _tfs_step_nodes(runs, done, count);
+				if (done > 0 && _tfs_tx_full(OP_BLOCKS)){
+					//Nothing reaches the chain yet, so its transaction can end here
+					_tfs_end_op(false);
+					_tfs_begin_op();
+				}
+				k = _tfs_allocate_chain_step(last, k, (runs == null) ? null : Arrays.copyOfRange(runs, done, done + k), nodes);
+				if (k == -1){
+					_tfs_free_chain(first);
+					return -1;
+				}
+				if (chain != null){
+					System.arraycopy(nodes, 0, chain, done, k);
+				}
+				if (first == -1){
+					first = nodes[0];
+				}
+				last = nodes[k-1];
+				done += k;
+			}
+		} finally {
+			_tfs_end_op(false);
+		}
+		return first;
+	}
+
+	//_tfs_load_from method:
+	//	First block past the ones mkfs left free. The journal and the FAT
+	//	of extents the volume grew by are there, so FAT pages from it on
+	//	are always read.
+	private int _tfs_load_from(){
+		int from = (pcb.extents.length > 0) ? pcb.extents[0] : pcb.fatSize;
+		return (pcb.journalBlocks > 0) ? Math.min(pcb.journalStart, from) : from;
+	}
+
+	//_tfs_low_on_blocks method:
+	//	True if auto grow is on and nothing below the high water mark is
+	//	free with less than a quarter of the increment left past it, and
+	//	the PCB has room for another extent. The caller holds the allocator
+	//	lock.
+	private boolean _tfs_low_on_blocks(){
+		int increment = autoGrowIncrement;
+		if (increment == 0 || pcb.version < 1 || pcb.fatSize == Integer.MAX_VALUE || pcb.extents.length >= PCB.MAX_EXTENTS){
+			return false;
+		}
+		int free = pcb.freeBlockPointer;
+		return free == -1 || (free >= pcb.highWater && pcb.fatSize - free < increment / 4);
+	}
+
+	//_tfs_auto_grow_size method:
+	//	Size of the volume after one auto grow: the increment or, once the
+	//	volume is larger, as many blocks as it has, so the extents the PCB
+	//	has room for take it up to the largest volume
+	private int _tfs_auto_grow_size(){
+		return (int)Math.min((long)pcb.fatSize + Math.max(autoGrowIncrement, pcb.fatSize), Integer.MAX_VALUE);
+	}
+
+	//_tfs_auto_grow method:
+	//	Called by the flusher thread when the allocator ran low on blocks.
+	//	Grows the volume by one increment if it still needs it.
+	void _tfs_auto_grow()
+	{
+		growWanted = false;
+		if (pcb == null){
+			return;
+		}
+		_tfs_begin_op();
+		fatLock.lock();
+		try {
+			if (_tfs_low_on_blocks()){
+				_tfs_grow_locked(_tfs_auto_grow_size());
+			}
+		} finally {
+			fatLock.unlock();
+			_tfs_end_op(false);
+		}
+	}
+
+	//_tfs_grow_locked method:
+	//	Grows the volume to size blocks. The disk file grows sparsely and
+	//	the new blocks become an extent that keeps its FAT entries in its
+	//	own first blocks, which FAT never hands out. Only the PCB is
+	//	written with the running transaction. The caller holds the
+	//	allocator lock.
+	//	Returns -1 if the volume can't grow to size
+	private int _tfs_grow_locked(int size){
+		int old = pcb.fatSize;
+		int fatBlocks = (int)(((long)(size - old) * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		if (size <= old + fatBlocks || pcb.version < 1){
+			return -1;
+		}
+		if (pcb.extents.length >= PCB.MAX_EXTENTS){
+			System.out.println("The volume can't grow past " + old + " blocks, the PCB has no room for another extent.");
+			return -1;
+		}
+		if (disk.tfs_dio_set_size(size) == -1){
+			return -1;
+		}
+		fat.grow(size);
+		pcb.addExtent(old, size);
+		pcb.updateVersion(TFS_VERSION); //Builds before extents can't read the volume anymore
+		if (pcb.freeBlockPointer == -1){
+			pcb.updateFreeBlockPointer(old + fatBlocks);
+		}
+		return 0;
+	}
+
+	//_tfs_root_block method:
+	//	Block holding the entry of the root directory itself. Block 0, PCB,
+	//	FAT and one spare block come before it.
+	private int _tfs_root_block(){
+		return pcb.numFatBlocks + 3;
+	}
+
+	//_tfs_count_refs method:
+	//	Rebuilds FAT reference counts by walking every file chain from root.
+	//	refs holds how many files share a block besides the first one.
+	//	Returns the blocks of every file and directory
+	private BitSet _tfs_count_refs(){
+		BitSet seen = new BitSet(); //Blocks of files counted once already
+		BitSet dirs = new BitSet(); //Blocks of directories read already
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
+		byte[] rootName = "/".getBytes();
+		if (_tfs_get_entry_dir(_tfs_root_block(), rootName, (byte)rootName.length, is_directory, fbn, size) != -1){
+			_tfs_count_refs_dir(fbn[0], seen, dirs);
+		}
+		seen.or(dirs);
+		return seen;
+	}
+
+	//_tfs_count_refs_dir method:
+	//	Counts the blocks of every file in the directory that starts at
+	//	block_no and under it. Directories are walked with a stack and a
+	//	block of a directory read before is not read again, so a damaged
+	//	volume (a directory holding itself) can't keep it going; chains
+	//	stop after as many blocks as the volume has.
+	private void _tfs_count_refs_dir(int block_no, BitSet seen, BitSet dirs){
+		byte[] tmp = new byte[BLOCK_SIZE];
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		stack.push(block_no);
+		while (!stack.isEmpty()){
+			int entry = stack.pop();
+			while (entry > 0 && entry < fat.fatSize && !dirs.get(entry)){
+				dirs.set(entry);
+				_tfs_read_block(entry, tmp);
+				for (int i = 0; i < 4; i++){
+					int fbn = _tfs_get_int_block(tmp, (i*32)+24);
+					if (fbn <= 0 || fbn >= fat.fatSize){
+						continue; //Empty entry, or not a block of the volume
+					}
+					if (_tfs_get_byte_block(tmp, (i*32)+4) == 0){
+						stack.push(fbn); //Subdirectory
+						continue;
+					}
+					//File, every block of its chain seen before is one more reference
+					int b = fbn;
+					for (int count = 0; b > 0 && b < fat.fatSize && count < fat.fatSize; count++){
+						if (seen.get(b)){
+							fat.setRefs(b, fat.refs(b) + 1);
+						} else {
+							seen.set(b);
+						}
+						b = _tfs_next_block(null, b);
 					}
-
-					_tfs_put_bytes_block(tmp, (i*32), bDir, 32); //Add changes to block
-					_tfs_write_block(entry, tmp); //Write block to disk
-					return 0;
 				}
+				entry = fat.get(entry);
 			}
-			int nextBlock = fat.fatTable[entry];
-			if (nextBlock == -1){
-				return -1;
-			}
-			entry = nextBlock;
 		}
+	}
 
+	//_tfs_list_files method:
+	//	Paths and first blocks of every file of the volume, depth first.
+	//	Directories are read without a lock, so a file made or deleted
+	//	while it runs may or may not be in it.
+	Map<String, Integer> _tfs_list_files(){
+		Map<String, Integer> files = new LinkedHashMap<String, Integer>();
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
+		byte[] rootName = "/".getBytes();
+		if (_tfs_get_entry_dir(_tfs_root_block(), rootName, (byte)rootName.length, is_directory, fbn, size) != -1){
+			_tfs_list_files_dir(fbn[0], "", files, new BitSet());
+		}
+		return files;
 	}
 
-	//_tfs_update_entry_dir method:
-	//	Update the entry for name in the directory of which the first block number
-	//	is block_no
-	public static int _tfs_update_entry_dir(int block_no, byte[] name, byte nlength, byte is_directory, int fbn, int size){
-		int entry = block_no;
+	//_tfs_list_files_dir method:
+	//	Adds the files in the directory that starts at block_no and under it.
+	//	dirs holds the first blocks of directories listed already, a
+	//	directory holding itself (roots made by the first mkfs, before
+	//	tfs_upgrade) is listed once.
+	private void _tfs_list_files_dir(int block_no, String path, Map<String, Integer> files, BitSet dirs){
+		if (block_no >= fat.fatSize || dirs.get(block_no)){
+			return;
+		}
+		dirs.set(block_no);
 		byte[] tmp = new byte[BLOCK_SIZE];
-		byte[] bDir = new byte[32];
-		byte[] n = new byte[16];
-
-		String strName = new String(name); //Creating a String from byte[] name
-
-		//Find file and update it
-		while (true) {
-			_tfs_read_block(entry, tmp); //Reading block into buffer
-			//Iterate through entries
+		int entry = block_no;
+		for (int count = 0; entry > 0 && count < fat.fatSize; count++){
+			_tfs_read_block(entry, tmp);
 			for (int i = 0; i < 4; i++){
-				//Get directory entry
-				bDir = _tfs_get_bytes_block(tmp, (i*32), 32);
-
-				//Compare names
-				for (int j = 8; j < 24; j++){
-					n[j-8] = bDir[j]; //Writing name to name buffer
+				int fbn = _tfs_get_int_block(tmp, (i*32)+24);
+				if (fbn <= 0){
+					continue; //Empty entry
 				}
-				String currName = new String(n);
-				//If we found the entry then update it
-				if (strName.equals(currName)){
-					bDir[4] = is_directory;
-					bDir[5] = nlength;
-					byte[] tmpInt = new byte[4];
-					tmpInt[3] = (byte)fbn; tmpInt[2] = (byte)(fbn>>8); tmpInt[1] = (byte)(fbn>>16); tmpInt[0] = (byte)(fbn>>24);
-					//Copying first block number
-					for (int j = 24; j<28; j++){
-						bDir[j] = tmpInt[j-24];
-					}
-					tmpInt[3] = (byte)size; tmpInt[2] = (byte)(size>>8); tmpInt[1] = (byte)(size>>16); tmpInt[0] = (byte)(size>>24);
-					//Copying size
-					for (int j = 28; j < 32; j++){
-						bDir[j] = tmpInt[j-28];
-					}
-
-					_tfs_put_bytes_block(tmp, (i*32), bDir, 32);
-					_tfs_write_block(entry, tmp);
-					return 0;
+				String name = path + "/" + new String(_tfs_get_bytes_block(tmp, (i*32)+8, 16)).trim(); //Names are padded with 0s
+				if (_tfs_get_byte_block(tmp, (i*32)+4) == 0){
+					_tfs_list_files_dir(fbn, name, files, dirs); //Subdirectory
+				} else {
+					files.put(name, fbn);
 				}
 			}
-			int nextBlock = fat.fatTable[entry];
-			if (nextBlock == -1){
-				return -1;
-			}
-			entry = nextBlock;
+			entry = _tfs_next_block(null, entry);
 		}
-
 	}
 
-	//_tfs_read_bytes_fd method:
-	//	Read up to length bytes from FileDescriptor starting at offset
-	//	Returns number of bytes read
-	private static int _tfs_read_bytes_fd(int fd, byte[] buf, int length)
-	{
-		FileDescriptor f = fdt.get(fd); //Create a reference to the FileDescriptor
-		byte[] block = new byte[BLOCK_SIZE]; //This is where the bytes will be temporarily stored
-
-		//Finding the right block that the filePointer points to
-		int blockNo = _tfs_get_block_no_fd(fd, f.filePointer); //Finding location of block using file pointer as the offset
-		_tfs_read_block(blockNo, block); //Read (copy) the block number found above
-
-		//filePointer holds the offset to read from. We minus the amount of bytes in Blocks we skiped
-		//This is done because we already retrieved the block equivalent to that offset just above
-		buf = _tfs_get_bytes_block(block, f.filePointer - ((f.filePointer/BLOCK_SIZE)*BLOCK_SIZE), length); //Pass byte array into buffer using the block where filepointer points to, offset, and length of buffer
-
-		return buf.length;
+	//_tfs_chain_runs method:
+	//	Blocks in the chain starting at block_no and runs of blocks in a
+	//	row they make on disk. Hole blocks count as one block.
+	private int[] _tfs_chain_runs(int block_no){
+		int[] chain = new int[2];
+		int prev = -2;
+		for (int b = block_no; b > 0 && chain[0] < fat.fatSize; b = _tfs_next_block(null, b)){
+			if (b != prev + 1){
+				chain[1]++;
+			}
+			chain[0]++;
+			prev = b;
+		}
+		return chain;
 	}
 
-	//_tfs_write_bytes_fd method:
-	//	Write up to length bytes from buffer to file FileDescriptor points to
-	//	Returns number of bytes written
-	private static int _tfs_write_bytes_fd(int fd, byte[] buf, int length)
+	//_tfs_defrag_step method:
+	//	Moves up to count blocks of the file name so its chain becomes one
+	//	run of blocks in a row. The blocks right after the part already in
+	//	a row are used if the rest of the file fits there, otherwise the
+	//	file starts over in the first free run that holds all of it. The
+	//	blocks are copied, then the chain (and the entry if the first block
+	//	moved) is linked to the copies and the old blocks freed in one
+	//	transaction, so the file is whole after every step, crash or not.
+	//	Directories, files sharing blocks with clones and volumes with
+	//	snapshots are left as they are. chain gets the blocks and runs of
+	//	the file before the step.
+	//	Returns blocks moved, 0 if none can be, -1 if the file is gone
+	int _tfs_defrag_step(byte[] name, int count, int[] chain)
 	{
-		FileDescriptor f = fdt.get(fd); //Create a reference to the FileDescriptor
-
-		//Finding the right block that the FilePointer points to
-		int blockNo = _tfs_get_block_no_fd(fd, f.filePointer); //Finding location of block using file pointer as the offset
-		int offset = f.filePointer - ((f.filePointer/BLOCK_SIZE)*BLOCK_SIZE); //		//filePointer holds the offset to read from. We minus the amount of bytes in Blocks we skiped
-
-		//Holds block that will be modified
-		byte[] block = new byte[BLOCK_SIZE];
-		_tfs_read_block(blockNo, block); //Reading bytes into buffer
-
-		//Overwriting bytes with new data
-		_tfs_put_bytes_block(block, offset, buf, length);
+		int parent = _tfs_search_dir(name, name.length);
+		if (parent == -1){
+			return -1;
+		}
+		byte[] n = _tfs_get_last_name(name, name.length);
+		byte[] is_directory = new byte[1];
+		int[] fbn = new int[1];
+		long[] size = new long[1];
+		OpenFile of;
+		synchronized (openFiles){
+			of = openFiles.get(_tfs_open_file_key(null, name, name.length));
+		}
+		//Chain of an open file is only complete once its pages are written
+		if (of != null && !of.dirtyPages.isEmpty() && _tfs_flush_fd(of) == -1){
+			return 0;
+		}
+		_tfs_begin_op();
+		ReentrantReadWriteLock.WriteLock lock = _tfs_file_lock(parent, n).writeLock(); //Readers and writers of the file wait for the step
+		lock.lock();
+		try {
+			if (_tfs_get_entry_dir(parent, n, (byte)n.length, is_directory, fbn, size) == -1){
+				return -1;
+			}
+			if (is_directory[0] == 0){
+				return 0;
+			}
+			synchronized (openFiles){
+				of = openFiles.get(_tfs_open_file_key(null, name, name.length));
+			}
+			if (of != null){
+				if (!of.dirtyPages.isEmpty()){
+					return 0; //Written meanwhile, left for the next step
+				}
+				fbn[0] = of.startingBlock;
+				size[0] = of.fileSize;
+			}
+			int[] runs = _tfs_chain_runs(fbn[0]);
+			chain[0] = runs[0];
+			chain[1] = runs[1];
+			if (runs[1] <= 1 || !snapshots.isEmpty()){
+				return 0; //Moving a block would copy it for every snapshot
+			}
+			List<Integer> blocks = new ArrayList<Integer>();
+			for (int b = fbn[0]; b > 0; b = _tfs_next_block(null, b)){
+				if (fat.refs(b) > 0 || blocks.size() >= fat.fatSize){
+					return 0; //Shared with a clone
+				}
+				blocks.add(b);
+			}
+			int k = blocks.size();
+			int first = blocks.get(0);
+			int done = 1; //Blocks of the file already in a row from its first block
+			while (done < k && blocks.get(done) == first + done){
+				done++;
+			}
+			if (done == k){
+				return 0;
+			}
 
-		return length;
-	}
+			int from; //First block of the file moved by this step
+			int base; //Where it goes
+			int moving;
+			fatLock.lock();
+			try {
+				from = done;
+				base = first + done;
+				if ((long)base + (k - from) > fat.fatSize || fat.findFreeRun(base, base + (k - from), k - from) != base){
+					from = 0;
+					int free = pcb.freeBlockPointer;
+					base = (free == -1) ? -1 : fat.findFreeRun(free, fat.fatSize, k);
+					if (base == -1){
+						return 0; //No room for the file in a row
+					}
+				}
+				//Every block moved may take a FAT block for the old one and log its copy
+				moving = Math.min(Math.min(count, k - from), Math.max(1, _tfs_tx_room() / 2));
+				_tfs_allocate_run_fat(base, moving);
+			} finally {
+				fatLock.unlock();
+			}
 
-	//_tfs_get_block_no_fd method:
-	//	Block number for the offset in the file represented by fd (Check FAT table for correct block)
- 	private static int _tfs_get_block_no_fd(int fd, int offset)
- 	{
-		FileDescriptor f = fdt.get(fd);
-		int blockNo = f.startingBlock; //Initializing to where file is located
-		int blockJumpCount = 0; //Number of blocks ahead of startingBlock (# of hops)
-		if (offset > (BLOCK_SIZE-1)){ //BLOCK_SIZE-1 because offset is a list index from 0 to n-1
-			blockJumpCount += (offset/BLOCK_SIZE);
+			byte[] tmp = new byte[BLOCK_SIZE];
+			for (int j = 0; j < moving; j++){
+				int old = blocks.get(from + j);
+				int next = (j + 1 < moving) ? base + j + 1 : ((from + j + 1 < k) ? blocks.get(from + j + 1) : -1);
+				_tfs_read_block(old, tmp);
+				_tfs_write_block(base + j, tmp);
+				_tfs_set_fat(base + j, FAT.isHole(fat.get(old)) ? FAT.holeValue(next) : next); //Hole blocks stay holes
+			}
+			if (from == 0){
+				_tfs_update_entry_dir(parent, n, (byte)n.length, is_directory[0], base, size[0]);
+				if (of != null){
+					of.startingBlock = base;
+				}
+			} else {
+				_tfs_set_next_block(blocks.get(from - 1), base);
+			}
+			for (int j = 0; j < moving; j++){
+				_tfs_return_block_fat(blocks.get(from + j));
+			}
+			if (of != null){
+				of.chainChanged();
+			}
+			return moving;
+		} finally {
+			lock.unlock();
+			_tfs_end_op(true);
 		}
+	}
 
-		//Retrieve the block that the file would be located at
-		for (int i = 0; i < blockJumpCount; i++){
-			blockNo = fat.fatTable[blockNo]; //Updates block number to next block
-			//Check for two error cases
-			if (blockNo == -1 || blockNo == 0){
-				return -1; //Returns error
+	//_tfs_return_block_fat method:
+	//	Returns a free block to File Allocation Table
+	private void _tfs_return_block_fat(int block_no){
+		fatLock.lock();
+		try {
+			fat.setEntry(block_no, 0); //0 means the block is free
+			//Keep free block pointer on the lowest free block
+			if (pcb.freeBlockPointer == -1 || block_no < pcb.freeBlockPointer){
+				pcb.updateFreeBlockPointer(block_no);
 			}
+		} finally {
+			fatLock.unlock();
 		}
-
- 		return blockNo; //If there is no error, return block number
- 	}
-
-	//_tfs_write_pcb method:
-	//	Write PCB back into disk
-	private static void _tfs_write_pcb(){
-		//Write pcb at block 1 location
-		_tfs_write_block(1, pcb.pcbBlock);
+		return;
 	}
 
-	//_tfs_read_pcb method:
-	//	Read PCB from disk into memory
-	private static void _tfs_read_pcb(){
-		byte[] pcbBuffer = new byte[BLOCK_SIZE]; //Creating and initializing buffer
-		_tfs_read_block(1, pcbBuffer); //Reading block of bytes into buffer
-		pcb.updatePCB(pcbBuffer); //Updates in memory pcb with disk pcb
+	//_tfs_set_fat method:
+	//	Sets the FAT entry of block_no to value
+	private void _tfs_set_fat(int block_no, int value){
+		fatLock.lock();
+		try {
+			fat.setEntry(block_no, value);
+		} finally {
+			fatLock.unlock();
+		}
 	}
 
-	//_tfs_write_fat method:
-	//	Write FAT back into disk
-	private static void _tfs_write_fat(){
-		//Write fat starting at location 2
-		for (int i = 2; i < fat.numBlocks+2; i++){
-			_tfs_write_block(i, fat.fatBlocks[i-2]);
+	//_tfs_set_next_block method:
+	//	Links block_no to next in FAT, keeping it a hole block if it is one
+	private void _tfs_set_next_block(int block_no, int next){
+		fatLock.lock();
+		try {
+			fat.setNextBlock(block_no, next);
+		} finally {
+			fatLock.unlock();
 		}
 	}
 
-	//_tfs_read_fat method:
-	//	Read FAT from the disk into memory
-	private static void _tfs_read_fat(){
-		byte[] fatBuffer = new byte[BLOCK_SIZE]; //Creating and initializing buffer
-		for (int i = 2; i < fat.numBlocks+2; i++){
-			_tfs_read_block(i, fatBuffer); //Reads block of FAT from disk
-			fat.updateFATBlocks(fatBuffer, i-2); //Updates each block every iteration
+	//_tfs_dir_lock method:
+	//	Lock of the directory of which the first block number is block_no
+	private ReentrantReadWriteLock _tfs_dir_lock(int block_no){
+		return dirLocks[block_no & (LOCK_STRIPES-1)];
+	}
+
+	//_tfs_dir_write_lock method:
+	//	Takes the write lock of the directory of which the first block number
+	//	is block_no. The outermost hold also write locks the stamp of the
+	//	stripe, so lookups reading it without a lock know to try again.
+	private void _tfs_dir_write_lock(int block_no){
+		int stripe = block_no & (LOCK_STRIPES-1);
+		dirLocks[stripe].writeLock().lock();
+		if (dirLocks[stripe].getWriteHoldCount() == 1){
+			dirWriteStamps[stripe] = dirStamps[stripe].writeLock();
 		}
-		//Update FAT Table entries
-		fat.updateFATTable();
 	}
 
-	//_tfs_get_block_fat method
-	//	Gets a free block from FAT
-	private static int _tfs_get_block_fat(){
-		return pcb.freeBlockPointer; //Returns index of free block in disk stored in PCB object
+	//_tfs_dir_write_unlock method:
+	//	Releases what _tfs_dir_write_lock took
+	private void _tfs_dir_write_unlock(int block_no){
+		int stripe = block_no & (LOCK_STRIPES-1);
+		if (dirLocks[stripe].getWriteHoldCount() == 1){
+			dirStamps[stripe].unlockWrite(dirWriteStamps[stripe]);
+		}
+		dirLocks[stripe].writeLock().unlock();
 	}
 
-	//_tfs_return_block_fat method:
-	//	Returns a free block to File Allocation Table
-	private static void _tfs_return_block_fat(int block_no){
-		fat.fatTable[block_no] = 0; //0 means the block is free
-		return;
+	//_tfs_file_lock method:
+	//	Lock of the block chain of the file with entry name in the directory
+	//	of which the first block number is parent_block. It goes by the entry
+	//	and not the first block, which changes when a shared block is copied.
+	private ReentrantReadWriteLock _tfs_file_lock(int parent_block, byte[] name){
+		int h = parent_block * 31 + new String(name).trim().hashCode();
+		h ^= (h >>> 16);
+		return fileLocks[h & (LOCK_STRIPES-1)];
 	}
 
 	//_tfs_attach_block_fat method:
 	//	Attach new block to the end of the file (on FAT)
-	private static int _tfs_attach_block_fat(int start_block_no, int new_block_no){
-		int a = fat.fatTable[start_block_no];
+	private int _tfs_attach_block_fat(int start_block_no, int new_block_no){
+		int a = fat.get(start_block_no);
 
 		if (a == 0){
 			return -1;
 		}
 		//Keep checking until we find -1 which means end of file
-		while (fat.fatTable[a] != -1){
-			a = fat.fatTable[a];
+		while (fat.get(a) != -1){
+			a = fat.get(a);
 		}
 		//Attach new block to the end of the file
-		fat.fatTable[a] = new_block_no;
-		fat.fatTable[new_block_no] = -1; //Set new block to point to end of file in fat
+		fat.setEntry(a, new_block_no);
+		fat.setEntry(new_block_no, -1); //Set new block to point to end of file in fat
 
 		return 0;
 	}
@@ -963,7 +4834,7 @@ public class TFSFileSystem
 	//===Block handling utilities===
 	//_tfs_get_int_block method:
 	//	Get an integer from a block
-	private static int _tfs_get_int_block(byte[] block, int offset){
+	private int _tfs_get_int_block(byte[] block, int offset){
 		byte[] tmp = new byte[4];
 		int num;
 		//Storing four bytes that form an int into tmp
@@ -975,7 +4846,7 @@ public class TFSFileSystem
 
 	//_tfs_put_int_block method:
 	//	Puts an integer into a block
-	private static void _tfs_put_int_block(byte[] block, int offset, int data){
+	private void _tfs_put_int_block(byte[] block, int offset, int data){
 		//Translating data to byte array
 		byte[] tmp = new byte[4];
 		tmp[3] = (byte)data; tmp[2] = (byte)(data>>8); tmp[1] = (byte)(data>>16); tmp[0] = (byte)(data>>24);
@@ -984,19 +4855,19 @@ public class TFSFileSystem
 
 	//_tfs_get_byte_block method:
 	//	Get a byte from a block
-	private static byte _tfs_get_byte_block(byte[] block, int offset){
+	private byte _tfs_get_byte_block(byte[] block, int offset){
 		return block[offset];
 	}
 
 	//_tfs_put_byte_block method:
 	//	Put a byte into a block
-	private static void _tfs_put_byte_block(byte[] block, int offset, byte data){
+	private void _tfs_put_byte_block(byte[] block, int offset, byte data){
 		block[offset] = data;
 	}
 
 	//_tfs_get_bytes_block method:
 	//	Get bytes from a block
-	private static byte[] _tfs_get_bytes_block(byte[] block, int offset, int length){
+	private byte[] _tfs_get_bytes_block(byte[] block, int offset, int length){
 		//Creating and initializing byte buffer
 		byte[] buffer = new byte[length];
 		for (int i = offset; i < (offset + length); i++){
@@ -1007,7 +4878,7 @@ public class TFSFileSystem
 
 	//_tfs_put_bytes_block method:
 	//	Put bytes into a block
-	private static void _tfs_put_bytes_block(byte[] block, int offset, byte[] buf, int length){
+	private void _tfs_put_bytes_block(byte[] block, int offset, byte[] buf, int length){
 		//Iterating through part of block and updating it
 		for (int i = offset; i < (offset + length); i++){
 			block[i] = buf[i-offset];
@@ -1024,20 +4895,21 @@ class PCB{
 	//Creating class variables
 	byte[] pcbBlock; //Byte array representes PCB block
 
-	static int fatSize; //Size of FAT
-	static int numFatBlocks;
-	static int rootPointer; //Location of root
-	static int freeBlockPointer; //Location of first free block
+	int fatSize; //Size of FAT
+	int numFatBlocks;
+	int rootPointer; //Location of root
+	int freeBlockPointer; //Location of first free block
+	int journalStart; //Header block of the journal, 0 if the volume has none
+	int journalBlocks; //Blocks of the journal after its header block
+	int highWater; //Blocks from here on were never handed out since mkfs, besides the journal
+	int version; //Layout of the volume, 0 if it was made before PCB had one
+	int[] extents = new int[0]; //First block of each region the volume grew by, its FAT is kept in its first blocks
+	static final int MAX_EXTENTS = 24; //Extents that fit in the PCB block
 
 	//Object constructor
 	PCB(int fatSize, int BLOCK_SIZE){
 		this.fatSize = fatSize; //Size of fat table entries (int array)
-		numFatBlocks = fatSize * 4; //*4 because an int is 4 bytes in java
-		if (numFatBlocks % BLOCK_SIZE > 0){
-			numFatBlocks = (numFatBlocks / BLOCK_SIZE) + 1;
-		} else {
-			numFatBlocks = numFatBlocks / BLOCK_SIZE;
-		}
+		numFatBlocks = (int)(((long)fatSize * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE); //*4 because an int is 4 bytes in java
 
 		rootPointer = 1 + 1 + numFatBlocks; //Block location where root is being initialized to (+1 +1 because of PCB and BCB)
 		freeBlockPointer = 2 + numFatBlocks + 1; //0, 1, and FAT occupied blocks + 1 block after that will represent root directory
@@ -1056,14 +4928,39 @@ class PCB{
 		pcbBlock[8] = tmp[0]; pcbBlock[9] = tmp [1]; pcbBlock[10] = tmp[2]; pcbBlock[11] = tmp[3];
 	}
 
+	//Object constructor from the PCB block on disk, used when a volume is mounted
+	PCB(byte[] pcbBuffer, int BLOCK_SIZE){
+		pcbBlock = new byte[BLOCK_SIZE];
+		updatePCB(pcbBuffer);
+	}
+
 	//Receives in PCB block from disk and updates in memory object attributes
 	public void updatePCB(byte[] pcbBuffer){
+		System.arraycopy(pcbBuffer, 0, pcbBlock, 0, pcbBlock.length);
 		//Updating root pointer from memory retrieved pcb buffer
-		fatSize = (((pcbBuffer[0] & 0xFF) << 24)|((pcbBuffer[1] & 0xFF) << 16)|((pcbBuffer[2] & 0xFF) << 8)|(pcbBuffer[3] & 0xFF))*4/128;
+		fatSize = (((pcbBuffer[0] & 0xFF) << 24)|((pcbBuffer[1] & 0xFF) << 16)|((pcbBuffer[2] & 0xFF) << 8)|(pcbBuffer[3] & 0xFF));
 		//Updating free block pointer from memory retrieved pcb buffer
 		rootPointer = (((pcbBuffer[4] & 0xFF) << 24)|((pcbBuffer[5] & 0xFF) << 16)|((pcbBuffer[6] & 0xFF) << 8)|(pcbBuffer[7] & 0xFF));
 		//Updating fat size from pointer from memory retrieved pcb buffer
 		freeBlockPointer = (((pcbBuffer[8] & 0xFF) << 24)|((pcbBuffer[9] & 0xFF) << 16)|((pcbBuffer[10] & 0xFF) << 8)|(pcbBuffer[11] & 0xFF));
+		//Journal, 0s on volumes made before it
+		journalStart = (((pcbBuffer[12] & 0xFF) << 24)|((pcbBuffer[13] & 0xFF) << 16)|((pcbBuffer[14] & 0xFF) << 8)|(pcbBuffer[15] & 0xFF));
+		journalBlocks = (((pcbBuffer[16] & 0xFF) << 24)|((pcbBuffer[17] & 0xFF) << 16)|((pcbBuffer[18] & 0xFF) << 8)|(pcbBuffer[19] & 0xFF));
+		highWater = (((pcbBuffer[20] & 0xFF) << 24)|((pcbBuffer[21] & 0xFF) << 16)|((pcbBuffer[22] & 0xFF) << 8)|(pcbBuffer[23] & 0xFF));
+		if (highWater == 0){
+			highWater = fatSize; //Volumes made before it, any block may be in use
+		}
+		version = (((pcbBuffer[24] & 0xFF) << 24)|((pcbBuffer[25] & 0xFF) << 16)|((pcbBuffer[26] & 0xFF) << 8)|(pcbBuffer[27] & 0xFF));
+		//Bytes 28 to 31 hold the number of extents, their first blocks follow
+		int count = (((pcbBuffer[28] & 0xFF) << 24)|((pcbBuffer[29] & 0xFF) << 16)|((pcbBuffer[30] & 0xFF) << 8)|(pcbBuffer[31] & 0xFF));
+		extents = new int[Math.min(Math.max(count, 0), MAX_EXTENTS)];
+		for (int i = 0; i < extents.length; i++){
+			int j = 32 + (i*4);
+			extents[i] = (((pcbBuffer[j] & 0xFF) << 24)|((pcbBuffer[j+1] & 0xFF) << 16)|((pcbBuffer[j+2] & 0xFF) << 8)|(pcbBuffer[j+3] & 0xFF));
+		}
+		//FAT at block 2 only covers the blocks the volume was made with
+		int base = (extents.length > 0) ? extents[0] : fatSize;
+		numFatBlocks = (int)(((long)base * 4 + pcbBlock.length - 1) / pcbBlock.length);
 	}
 
 	public void updateFreeBlockPointer(int pointer){
@@ -1073,90 +4970,45 @@ class PCB{
 		pcbBlock[8] = tmp[0]; pcbBlock[9] = tmp [1]; pcbBlock[10] = tmp[2]; pcbBlock[11] = tmp[3];
 	}
 
-}
-
-//FAT Class
-// Table from 0 to TotalBlockNumbers-1.
-// The index of the block number contains the link to the next
-// block. populateTest and populateBlock methods were created for
-// testing purposes.
-class FAT{
-	//Creating class variables
-	int BLOCK_SIZE;
-	int fatSize;//number of entries
-	int[] fatTable; //int array to represent table
-
-	int numBlocks; //Size of fat in blocks of bytes
-	byte[][] fatBlocks = null; //Array of bytes of n blocks. Each row is a block.
-
-	//Object constructor
-	FAT(int size, int BLOCK_SIZE){
-			this.BLOCK_SIZE = BLOCK_SIZE;
-			this.fatSize = size; //Setting size of FAT in entries
-			fatTable = new int[fatSize]; //Initializing the file allocation table array
-
-			numBlocks = size * 4; //*4 because an int is 4 bytes in java
-			if (numBlocks % this.BLOCK_SIZE > 0){
-				numBlocks = (numBlocks / this.BLOCK_SIZE) + 1;
-			} else {
-				numBlocks = numBlocks/this.BLOCK_SIZE;
-			}
-			// double tmp1 = ((double)fatSize*4.0)/(double)this.BLOCK_SIZE; //Number of blocks FAT will take up in DiskFile
-			// int tmp = (int)Math.ceil(tmp1);
-
-			fatBlocks = new byte[numBlocks][this.BLOCK_SIZE]; //Number of blocks needed to represent FAT in disk
+	//Bytes 12 to 15 hold the header block of the journal and 16 to 19 its number of blocks
+	public void updateJournal(int start, int blocks){
+		journalStart = start;
+		journalBlocks = blocks;
+		byte[] tmp = new byte[4];
+		tmp[3] = (byte)start; tmp[2] = (byte)(start>>8); tmp[1] = (byte)(start>>16); tmp[0] = (byte)(start>>24);
+		pcbBlock[12] = tmp[0]; pcbBlock[13] = tmp [1]; pcbBlock[14] = tmp[2]; pcbBlock[15] = tmp[3];
+		tmp[3] = (byte)blocks; tmp[2] = (byte)(blocks>>8); tmp[1] = (byte)(blocks>>16); tmp[0] = (byte)(blocks>>24);
+		pcbBlock[16] = tmp[0]; pcbBlock[17] = tmp [1]; pcbBlock[18] = tmp[2]; pcbBlock[19] = tmp[3];
 	}
 
-	//updateFATBlocks method:
-	//	Updates the FAT blocks of bytes in memory using bytes from disk
-	public void updateFATBlocks(byte[] fatBuffer, int k){
-		for (int i = 0; i < fatBuffer.length; i++){
-			//Copying bytes
-			fatBlocks[k][i] = fatBuffer[i];
-		}
+	//Volume grew to size blocks, the new ones starting at block first
+	public void addExtent(int first, int size){
+		extents = Arrays.copyOf(extents, extents.length + 1);
+		extents[extents.length - 1] = first;
+		int j = 32 + ((extents.length - 1)*4);
+		pcbBlock[j] = (byte)(first>>24); pcbBlock[j+1] = (byte)(first>>16); pcbBlock[j+2] = (byte)(first>>8); pcbBlock[j+3] = (byte)first;
+		int count = extents.length;
+		pcbBlock[28] = (byte)(count>>24); pcbBlock[29] = (byte)(count>>16); pcbBlock[30] = (byte)(count>>8); pcbBlock[31] = (byte)count;
+		fatSize = size;
+		pcbBlock[0] = (byte)(size>>24); pcbBlock[1] = (byte)(size>>16); pcbBlock[2] = (byte)(size>>8); pcbBlock[3] = (byte)size;
 	}
 
-	//update fat from table to blocks
-	public void updateBlocksFromTable(int entry, int value){
-
-		int i = entry/32; //Gives i position in 2D block array
-		int j = (entry-(32*i))*4; //times 4 because each int is 4 bytes
-
+	//Bytes 24 to 27 hold the version of the layout
+	public void updateVersion(int v){
+		version = v;
 		byte[] tmp = new byte[4];
-		tmp[3] = (byte)value; tmp[2] = (byte)(value>>8); tmp[1] = (byte)(value>>16); tmp[0] = (byte)(value>>24);
-		//Updating blocks
-		fatBlocks[i][j] = tmp[0]; fatBlocks[i][j+1] = tmp[1]; fatBlocks[i][j+2] = tmp[2]; fatBlocks[i][j+3] = tmp[3];
+		tmp[3] = (byte)v; tmp[2] = (byte)(v>>8); tmp[1] = (byte)(v>>16); tmp[0] = (byte)(v>>24);
+		pcbBlock[24] = tmp[0]; pcbBlock[25] = tmp [1]; pcbBlock[26] = tmp[2]; pcbBlock[27] = tmp[3];
 	}
-	//updateFATBlocks method:
-	//	Updates the FAT Table in memory using bytes from already updated from disk
-	public void updateFATTable(){
+
+	//Bytes 20 to 23 hold the high water mark of the allocator
+	public void updateHighWater(int block){
+		highWater = block;
 		byte[] tmp = new byte[4];
-		int num;
-		int k = 0; //Index of fat entry we are updating
-		//Iterating through FAT blocks and inserting them into in memory FAT table
-		for (int i = 0; i < fatBlocks.length; i++){
-			for (int j = 0; j < fatBlocks[i].length/4; j++){
-				//Storing four bytes that form an int into tmp
-				tmp[0] = fatBlocks[i][j*4]; tmp[1] = fatBlocks[i][(j*4)+1]; tmp[2] = fatBlocks[i][(j*4)+2]; tmp[3] = fatBlocks[i][(j*4)+3];
-				//Converting 4 bytes into int
-				num = (((tmp[0] & 0xFF) << 24)|((tmp[1] & 0xFF) << 16)|((tmp[2] & 0xFF) << 8)|(tmp[3] & 0xFF));
-				fatTable[k] = num; //Updating FAT table entry
-				k++; //Updating our index
-			}
-		}
+		tmp[3] = (byte)block; tmp[2] = (byte)(block>>8); tmp[1] = (byte)(block>>16); tmp[0] = (byte)(block>>24);
+		pcbBlock[20] = tmp[0]; pcbBlock[21] = tmp [1]; pcbBlock[22] = tmp[2]; pcbBlock[23] = tmp[3];
 	}
 
-	//findFreeBlock method:
-	//	Goes through in memory fat and finds free block - Starting at 68
-	//	Returns -1 if no free blocks are available
-	public int findFreeBlock(){
-		for (int i = 68; i < fatTable.length; i++){
-			if (fatTable[i] == 0){
-				return i;
-			}
-		}
-		return -1; //Returns -1 if no free blocks
-	}
 }
 
 //Directory Class:
@@ -1164,9 +5016,9 @@ class FAT{
 //	Each directory entry will take up 32 bytes (128/32 = 4 entries per block)
 //	Structure of each entry (by index)(to is inclusive):
 //
-//		Byte 0 to 3 = parentBlockNo, byte 4 = isDirectory, byte 5 = nLength,
+//		Byte 0 to 3 = high 32 bits of size, byte 4 = isDirectory, byte 5 = nLength,
 //		byte 6 to 7 = reserved, byte 8 to 23 = name, byte 24 to 27 = firstBlockNo,
-//		byte 28 to 31 = size
+//		byte 28 to 31 = low 32 bits of size
 //
 class Directory {
 	//Creating and initializing linked list
@@ -1180,7 +5032,6 @@ class Directory {
 
 	//-------------------- These should be once only --------------------
 	//int noEntries; //Total number of entries
-	int parentBlockNo; //The first block number of the parent dir
 
 	byte isDirectory; //0: subdirectory, 1: file
 	byte nLength; //name length
@@ -1188,12 +5039,15 @@ class Directory {
 	byte reserved2;
 	byte[] name = new byte[16]; //not a full path
 	int firstBlockNo; // The first block number
-	int size; // The size of the file or subdirectory
+	long size; // The size of the file or subdirectory
 
 
 	//Object constructor
-	Directory(byte[] name, byte nlength, byte is_directory, int fbn, int size){
-		this.name = name;
+	Directory(byte[] name, byte nlength, byte is_directory, int fbn, long size){
+		//Names are stored padded with 0s up to 16 bytes
+		for (int i = 0; i < name.length && i < 16; i++){
+			this.name[i] = name[i];
+		}
 		this.nLength = nlength;
 		this.isDirectory = is_directory;
 		this.firstBlockNo = fbn;
@@ -1209,8 +5063,8 @@ class Directory {
 
 	public void createDirBlock(){
 		//Translating ints to byte
-		byte[] pbn = new byte[4];
-		pbn[3] = (byte)parentBlockNo; pbn[2] = (byte)(parentBlockNo>>8); pbn[1] = (byte)(parentBlockNo>>16); pbn[0] = (byte)(parentBlockNo>>24);
+		byte[] high = new byte[4];
+		high[3] = (byte)(size>>32); high[2] = (byte)(size>>40); high[1] = (byte)(size>>48); high[0] = (byte)(size>>56);
 		byte[] fbn = new byte[4];
 		fbn[3] = (byte)firstBlockNo; fbn[2] = (byte)(firstBlockNo>>8); fbn[1] = (byte)(firstBlockNo>>16); fbn[0] = (byte)(firstBlockNo>>24);
 		byte[] s = new byte[4];
@@ -1219,7 +5073,7 @@ class Directory {
 
 		//Populating directory block to be written to disk
 		for (int i = 0; i < 4; i++){
-			dirBlock[i] = pbn[i];
+			dirBlock[i] = high[i];
 		}
 		dirBlock[4] = isDirectory;
 		dirBlock[5] = nLength;
@@ -1238,28 +5092,495 @@ class Directory {
 }
 
 //File Descriptor Class
-//	Implemented as a linked list
+//	One per tfs_open. Only holds what is private to the open, the rest of
+//	the file is in the OpenFile shared by every fd of the file.
 class FileDescriptor{
-	//Class variables
+	static final int O_RDONLY = 1; //Writes fail, used for files of snapshots
+
+	OpenFile file; //Shared state of the file
+	int flags;
+	long filePointer; //This is the offset where the process reads from or writes to
+
+	FileDescriptor (OpenFile file, int flags){
+		this.file = file;
+		this.flags = flags;
+	}
+}
+
+//OpenFile Class
+//	Entry of the open file table. There is one per open file or directory,
+//	shared by every FileDescriptor of it and counted so it is dropped from
+//	the table when the last one is closed. Its fields are guarded by the
+//	file lock of the entry.
+class OpenFile{
+	String key; //Key in the open file table: path, with the snapshot id for files of snapshots
 	byte[] name;
 	byte isDirectory;
 	int startingBlock;
-	int filePointer; //This is the offset where the process reads from or writes to
-	int fileSize; //Total size in bytes
-
-	FileDescriptor (byte name[], int nlength, byte is_directory, int first_block_no, int file_size){
+	int parentBlock; //First block of the parent directory, where the entry is kept
+	Snapshot snapshot; //Snapshot the file was opened from, null for the live volume
+	TreeMap<Integer, byte[]> dirtyPages = new TreeMap<Integer, byte[]>(); //Block index in file -> page not written to disk yet
+	long dirtySince; //Time the oldest dirty page was written in milliseconds
+	long fileSize; //Total size in bytes
+	int openCount; //Number of FileDescriptors of the file, guarded by the open file table
+	boolean deleted; //Entry was deleted while open, pages are dropped instead of written
+	volatile BlockMap blockMap; //Blocks of the chain, built on the first read and dropped when the chain changes
+	int chainVersion; //Changes with the chain, so a walk of it stopped half way can tell it has to start over
+
+	OpenFile (String key, byte name[], byte is_directory, int first_block_no, long file_size){
+		this.key = key;
 		this.name = name;
 		this.isDirectory = is_directory;
 		this.startingBlock = first_block_no;
 		this.fileSize = file_size;
 	}
 
-	FileDescriptor (byte name[], byte isDirectory, int startingBlock, int filePointer, int fileSize){
-		this.name = name;
-		this.isDirectory = isDirectory;
-		this.startingBlock = startingBlock;
-		this.filePointer = filePointer;
-		this.fileSize = fileSize;
+	//chainChanged method:
+	//	Drops the block map and the walks stopped half way. Called holding
+	//	the write lock of the file before its chain changes.
+	void chainChanged(){
+		blockMap = null;
+		chainVersion++;
+	}
+}
+
+//BlockMap Class
+//	Block chain of a file as arrays, so finding the block for an offset is a
+//	binary search instead of a walk through FAT. Every node of the chain is
+//	either one data block or one hole block standing for several blocks.
+class BlockMap{
+	int[] block; //Block number of each node, -1 for holes
+	int[] first; //Index in the file of the first block each node stands for
+	int count; //Number of nodes
+	int end; //Number of blocks the chain stands for
+
+	BlockMap(int capacity){
+		block = new int[capacity];
+		first = new int[capacity];
+	}
+
+	//add method:
+	//	Appends a node standing for length blocks
+	void add(int block_no, int length){
+		if (count == block.length){
+			block = Arrays.copyOf(block, count * 2);
+			first = Arrays.copyOf(first, count * 2);
+		}
+		block[count] = block_no;
+		first[count] = end;
+		count++;
+		end += length;
+	}
+
+	//find method:
+	//	Block number holding the index-th block of the file, -1 if it is in
+	//	a hole or past the end of the chain
+	int find(int index){
+		if (index < 0 || index >= end){
+			return -1;
+		}
+		int lo = 0;
+		int hi = count - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (first[mid] <= index){
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return block[lo];
+	}
+}
+
+//FileDescriptorTable Class
+//	Array of FileDescriptor slots with a stack of free slots. An fd number is
+//	the slot index in the low SLOT_BITS bits and the generation of the slot
+//	above them. The generation goes up every time the slot is freed, so a
+//	closed fd is never mistaken for the file that reuses its slot.
+class FileDescriptorTable implements Iterable<FileDescriptor>{
+	static final int SLOT_BITS = 20; //Up to 1048576 files open at once
+	static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1; //Keeps fd numbers positive
+
+	FileDescriptor[] slots = new FileDescriptor[16];
+	int[] generation = new int[16]; //Generation of each slot
+	int[] freeSlots = new int[16]; //Stack of slots that were freed
+	int numFree = 0; //Number of slots in the free stack
+	int numSlots = 0; //Slots handed out so far, slots after it were never used
+	int numOpen = 0; //Number of open file descriptors
+	int peak = 0; //Most file descriptors open at once
+
+	//add method:
+	//	Puts f in a free slot, growing the table if every slot is taken
+	//	Returns the fd number, -1 if the table is full
+	synchronized int add(FileDescriptor f){
+		int slot;
+		if (numFree > 0){
+			slot = freeSlots[--numFree];
+		} else {
+			if (numSlots > SLOT_MASK){
+				return -1;
+			}
+			if (numSlots == slots.length){
+				slots = Arrays.copyOf(slots, slots.length * 2);
+				generation = Arrays.copyOf(generation, generation.length * 2);
+			}
+			slot = numSlots++;
+		}
+		slots[slot] = f;
+		numOpen++;
+		peak = Math.max(peak, numOpen);
+		return (generation[slot] << SLOT_BITS) | slot;
+	}
+
+	//get method:
+	//	Returns the FileDescriptor of fd, null if fd is not open
+	synchronized FileDescriptor get(int fd){
+		if (fd < 0){
+			return null;
+		}
+		int slot = fd & SLOT_MASK;
+		if (slot >= numSlots || generation[slot] != (fd >>> SLOT_BITS)){
+			return null; //Never opened or closed already
+		}
+		return slots[slot];
+	}
+
+	//remove method:
+	//	Frees the slot of fd and bumps its generation
+	synchronized void remove(int fd){
+		if (get(fd) == null){
+			return;
+		}
+		int slot = fd & SLOT_MASK;
+		slots[slot] = null;
+		generation[slot] = (generation[slot] + 1) & GENERATION_MASK;
+		if (numFree == freeSlots.length){
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+		}
+		freeSlots[numFree++] = slot;
+		numOpen--;
+	}
+
+	synchronized int size(){
+		return numOpen;
+	}
+
+	synchronized int peak(){
+		return peak;
+	}
+
+	//iterator method:
+	//	Goes through every open FileDescriptor
+	public synchronized Iterator<FileDescriptor> iterator(){
+		List<FileDescriptor> open = new ArrayList<FileDescriptor>(numOpen);
+		for (int i = 0; i < numSlots; i++){
+			if (slots[i] != null){
+				open.add(slots[i]);
+			}
+		}
+		return open.iterator();
+	}
+}
+
+//TFSFlusher Class
+//	Write behind thread of one volume. Wakes up every so often, or when
+//	writers go over the background threshold, and writes dirty pages that
+//	have been in memory for longer than the write behind delay or the
+//	files dirty for the longest until they are back under the threshold.
+//	It is stopped with shutdown and never interrupted, because an
+//	interrupt in the middle of a read or write closes the disk file
+//	channel.
+class TFSFlusher extends Thread{
+	TFSFileSystem fs; //Volume the dirty pages belong to
+	volatile boolean stopped = false;
+	boolean woken = false; //Woken up while it was flushing, flush again right away
+
+	TFSFlusher(TFSFileSystem fs){
+		this.fs = fs;
+		setDaemon(true); //Don't keep the shell from exiting
+		setName("tfs-flusher");
+	}
+
+	//shutdown method:
+	//	Stops the thread after the pages it is writing, if any
+	synchronized void shutdown(){
+		stopped = true;
+		notifyAll();
+	}
+
+	//finish method:
+	//	Waits for the thread to stop after shutdown
+	void finish(){
+		boolean interrupted = false;
+		while (isAlive()){
+			try {
+				join();
+			} catch (InterruptedException ie){
+				interrupted = true;
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//wakeUp method:
+	//	Makes the thread flush now, used when dirty pages go over the
+	//	background threshold or the delay changes
+	synchronized void wakeUp(){
+		woken = true;
+		notifyAll();
+	}
+
+	public void run(){
+		while (!stopped){
+			synchronized (this){
+				try {
+					if (!woken){
+						wait(Math.max(fs.writeBehindDelay / 2, 10));
+					}
+					woken = false;
+				} catch (InterruptedException ie){
+					return;
+				}
+			}
+			if (!stopped){
+				fs._tfs_flush_background();
+			}
+		}
+	}
+}
+
+//TFSJournalThread Class
+//	Commit and checkpoint thread of the metadata journal of one volume.
+//	Commits operations that don't wait for their commit at least every
+//	journal commit delay, and checkpoints the journal. Like the flusher it
+//	is stopped with shutdown and never interrupted.
+class TFSJournalThread extends Thread{
+	TFSFileSystem fs; //Volume the journal belongs to
+	volatile boolean stopped = false;
+
+	TFSJournalThread(TFSFileSystem fs){
+		this.fs = fs;
+		setDaemon(true); //Don't keep the shell from exiting
+		setName("tfs-journal");
+	}
+
+	//shutdown method:
+	//	Stops the thread after the commit or checkpoint it is writing, if any
+	synchronized void shutdown(){
+		stopped = true;
+		notifyAll();
+	}
+
+	//wakeUp method:
+	//	Starts waiting again, used when the commit delay changes
+	synchronized void wakeUp(){
+		notifyAll();
+	}
+
+	public void run(){
+		while (!stopped){
+			synchronized (this){
+				try {
+					int delay = fs.journalCommitDelay;
+					wait((delay > 0) ? delay : 200);
+				} catch (InterruptedException ie){
+					return;
+				}
+			}
+			if (!stopped){
+				fs._tfs_journal_background();
+			}
+		}
+	}
+}
+
+//TFSDefragmenter Class
+//	Background thread that moves the blocks of every file of a volume into
+//	runs of blocks in a row, a few blocks of a file at a time so the file
+//	stays in use in between. It moves at most rate blocks a second and
+//	stops once it went through every file. Like the flusher it is stopped
+//	with shutdown and never interrupted.
+class TFSDefragmenter extends Thread{
+	static final int MAX_STEP = 256; //Most blocks moved by one step, the file is locked while they move
+
+	TFSFileSystem fs; //Volume being defragmented
+	int rate; //Most blocks moved a second
+	volatile boolean stopped = false;
+	volatile int files; //Files of the volume when it started
+	volatile int filesDone; //Files it went through
+	volatile int filesMoved; //Files it moved blocks of
+	volatile int filesSkipped; //Files left in more than one run: shared, no room in a row, or taken by writers
+	volatile long blocksMoved;
+
+	TFSDefragmenter(TFSFileSystem fs, int rate){
+		this.fs = fs;
+		this.rate = rate;
+		setDaemon(true); //Don't keep the shell from exiting
+		setName("tfs-defrag");
+	}
+
+	//shutdown method:
+	//	Stops the thread after the step it is taking, if any
+	synchronized void shutdown(){
+		stopped = true;
+		notifyAll();
+	}
+
+	//finish method:
+	//	Waits for the thread to stop after shutdown
+	void finish(){
+		boolean interrupted = false;
+		while (isAlive()){
+			try {
+				join();
+			} catch (InterruptedException ie){
+				interrupted = true;
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//status method:
+	//	How far it got
+	String status(){
+		String state = isAlive() ? "running" : (stopped ? "stopped" : "done");
+		return "Defragmenter " + state + ": " + filesDone + " of " + files + " files, " + filesMoved + " moved, "
+			+ filesSkipped + " skipped, " + blocksMoved + " blocks moved at " + rate + " blocks/s";
+	}
+
+	public void run(){
+		long started = System.nanoTime();
+		int step = Math.max(1, Math.min(MAX_STEP, rate / 10)); //About 10 steps a second
+		Map<String, Integer> paths = fs._tfs_list_files();
+		files = paths.size();
+		for (String path : paths.keySet()){
+			byte[] name = path.getBytes();
+			int[] chain = new int[2];
+			long moved = 0;
+			int n = 0;
+			while (!stopped){
+				n = fs._tfs_defrag_step(name, step, chain);
+				if (n <= 0){
+					break;
+				}
+				moved += n;
+				blocksMoved += n;
+				if (moved > 2L * chain[0]){
+					n = 0; //Writers keep taking the blocks it moves to
+					break;
+				}
+				//Wait until moving this many blocks fits the rate
+				long due = started + blocksMoved * 1000000000L / rate;
+				synchronized (this){
+					long wait;
+					while (!stopped && (wait = due - System.nanoTime()) > 0){
+						try {
+							wait(wait / 1000000, (int)(wait % 1000000));
+						} catch (InterruptedException ie){
+							return;
+						}
+					}
+				}
+			}
+			if (stopped){
+				return;
+			}
+			filesDone++;
+			if (moved > 0){
+				filesMoved++;
+			}
+			if (n == 0 && chain[1] > 1){
+				filesSkipped++;
+			}
+		}
+	}
+}
+
+//Snapshot Class
+//	Read only, point in time view of the volume. Holds copies of the PCB
+//	block and FAT table as they were when the snapshot was taken. Blocks
+//	in use at that time are copied to a new block right before the live
+//	volume overwrites them, the map keeps where each old copy is.
+//	Snapshots only live while the volume is mounted.
+class Snapshot{
+	int id;
+	long created; //Time the snapshot was taken in milliseconds
+	byte[] pcbBlock; //Copy of the PCB block
+	FAT fat; //Copy of the FAT table, never written to disk
+	Map<Integer, Integer> preserved = new HashMap<Integer, Integer>(); //Block number -> block holding its old contents
+	volatile boolean mounted; //True while the snapshot is mounted read only
+
+	Snapshot(int id, byte[] pcbBlock, FAT fat){
+		this.id = id;
+		this.created = System.currentTimeMillis();
+		this.pcbBlock = pcbBlock.clone();
+		this.fat = fat;
+	}
+}
+
+//TFSCopyReader Class
+//	Reader stage of tfs_copy. Reads runs of blocks of the source into the
+//	buffers of a ring of COPY_BUFFERS and hands them to the writer, which
+//	gives them back once written, so it is never more than the ring ahead.
+//	Never interrupted: an interrupt in the middle of a read would close the
+//	disk file, so the writer stops it with cancelled instead.
+class TFSCopyReader extends Thread{
+	TFSFileSystem fs;
+	List<int[]> runs; //Source block, destination block, blocks
+	BlockingQueue<Segment> free = new ArrayBlockingQueue<Segment>(TFSFileSystem.COPY_BUFFERS);
+	BlockingQueue<Segment> full = new ArrayBlockingQueue<Segment>(TFSFileSystem.COPY_BUFFERS + 1); //Room for the end too
+	volatile boolean cancelled = false;
+	volatile boolean failed = false;
+
+	//Segment Class
+	//	One buffer of the ring and the run it holds, null for the end
+	static class Segment{
+		byte[] buffer;
+		int[] run;
+
+		Segment(byte[] buffer){
+			this.buffer = buffer;
+		}
+	}
+
+	TFSCopyReader(TFSFileSystem fs, List<int[]> runs){
+		super("tfs-copy-reader");
+		setDaemon(true);
+		this.fs = fs;
+		this.runs = runs;
+		int longest = 0;
+		for (int[] run : runs){
+			longest = Math.max(longest, run[2]);
+		}
+		for (int i = 0; i < TFSFileSystem.COPY_BUFFERS; i++){
+			free.add(new Segment(new byte[longest * TFSFileSystem.BLOCK_SIZE]));
+		}
 	}
 
+	public void run(){
+		try {
+			for (int[] run : runs){
+				if (cancelled){
+					break;
+				}
+				Segment segment = free.take();
+				if (fs._tfs_read_blocks(run[0], run[2], segment.buffer) == -1){
+					failed = true;
+					break;
+				}
+				segment.run = run;
+				full.put(segment);
+			}
+		} catch (InterruptedException ie){
+			failed = true;
+		} finally {
+			full.add(new Segment(null));
+		}
+	}
 }
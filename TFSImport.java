@@ -0,0 +1,303 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//TFSImport Class
+//	Copies a directory tree of the host into a directory of a mounted
+//	volume. A pool of workers takes one host directory at a time and
+//	builds it bottom up with one tfs_create_entries: the contents of every
+//	file go into a chain of blocks in a row before the entries are
+//	written, a batch of them at a time, so paths are walked and the
+//	directory scanned once per batch, not once per entry. Files too large
+//	to write with their entry are filled by a task of their own through
+//	a file descriptor, and every subdirectory is taken the same way.
+//	Nothing is synced until everything is written, which syncs once.
+//
+//	Entries of the host that can't be entries of a volume are skipped:
+//	names longer than 16 bytes or empty, links and anything that is not
+//	a file or a directory. Names taken in the volume already are errors.
+//
+//	Shell: import -r hostdir tfsdir [threads]
+//	Command line: java TFSImport [-disk file] [-j threads] hostdir tfsdir,
+//	which makes the volume first if it can't be mounted (-blocks n sets
+//	its size).
+public class TFSImport
+{
+	static final int BUFFER = 1 << 16; //Bytes read from the host and written at once
+
+	TFSFileSystem fs;
+	int threads;
+	ExecutorService pool;
+	int tasks = 0; //Tasks submitted and not done, guarded by this
+
+	AtomicLong dirs = new AtomicLong();
+	AtomicLong files = new AtomicLong();
+	AtomicLong bytes = new AtomicLong();
+	AtomicLong skipped = new AtomicLong();
+	AtomicLong errors = new AtomicLong();
+
+	public static void main(String args[])
+	{
+		String disk = TFSFileSystem.DISK_FILE;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int blocks = 0;
+		List<String> paths = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++){
+				if (args[i].equals("-disk") && i + 1 < args.length){
+					disk = args[++i];
+				} else if (args[i].equals("-j") && i + 1 < args.length){
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-blocks") && i + 1 < args.length){
+					blocks = Integer.parseInt(args[++i]);
+				} else {
+					paths.add(args[i]);
+				}
+			}
+		} catch (NumberFormatException nfe){
+			paths.clear();
+		}
+		if (paths.size() != 2 || threads < 1){
+			System.out.println("Usage: java TFSImport [-disk file] [-j threads] [-blocks n] hostdir tfsdir");
+			System.exit(2);
+		}
+		TFSFileSystem fs = new TFSFileSystem(disk);
+		if (fs.tfs_mount() == -1){
+			if (blocks == 0){
+				long needed = TFSImport.blocksFor(new File(paths.get(0))) * 2 + 8192;
+				blocks = (int)Math.min(needed, Integer.MAX_VALUE);
+			}
+			if (fs.tfs_mkfs(blocks) == -1){
+				System.out.println("Could not make a volume in " + disk + ".");
+				System.exit(1);
+			}
+		}
+		TFSImport importer = new TFSImport(fs, threads);
+		System.out.print(importer.run(new File(paths.get(0)), paths.get(1)));
+		fs.tfs_exit();
+		System.exit(importer.errors.get() == 0 ? 0 : 1);
+	}
+
+	TFSImport(TFSFileSystem fs, int threads)
+	{
+		this.fs = fs;
+		this.threads = Math.max(threads, 1);
+	}
+
+	//blocksFor method:
+	//	Blocks the files and directories under host take once imported,
+	//	about, to size a volume for them
+	static long blocksFor(File host)
+	{
+		long blocks = 1;
+		File[] children = host.listFiles();
+		if (children == null){
+			return blocks;
+		}
+		blocks += children.length / 4 + 1; //Entries of the directory
+		for (File c : children){
+			if (Files.isSymbolicLink(c.toPath())){
+				continue;
+			}
+			blocks += c.isDirectory() ? blocksFor(c) : Math.max((c.length() + TFSFileSystem.BLOCK_SIZE - 1) / TFSFileSystem.BLOCK_SIZE, 1);
+		}
+		return blocks;
+	}
+
+	//run method:
+	//	Imports everything under host into target, made if it does not
+	//	exist (its parent has to). Returns the report
+	String run(File host, String target)
+	{
+		if (!host.isDirectory()){
+			errors.incrementAndGet();
+			return host + " is not a directory.\n";
+		}
+		if (!target.startsWith("/")){
+			errors.incrementAndGet();
+			return target + " is not a path from /.\n";
+		}
+		if (target.length() > 1 && target.endsWith("/")){
+			target = target.substring(0, target.length() - 1);
+		}
+		byte[] t = target.getBytes();
+		int fd = fs.tfs_open(t, t.length);
+		if (fd == -1){
+			fd = fs.tfs_create_dir(t, t.length);
+			if (fd == -1){
+				errors.incrementAndGet();
+				return "Could not make " + target + ".\n";
+			}
+			dirs.incrementAndGet();
+		}
+		fs.tfs_close(fd);
+
+		long began = System.nanoTime();
+		pool = Executors.newFixedThreadPool(threads);
+		try {
+			final String dir = target;
+			submit(() -> importDir(host, dir));
+			synchronized (this){
+				while (tasks > 0){
+					wait();
+				}
+			}
+		} catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			pool.shutdownNow();
+			errors.incrementAndGet();
+			return "Interrupted.\n";
+		} finally {
+			pool.shutdown();
+		}
+		if (fs.tfs_sync() == -1){
+			errors.incrementAndGet();
+			System.out.println("Could not sync the file system.");
+		}
+		return report(System.nanoTime() - began);
+	}
+
+	//submit method:
+	//	Runs task on the pool, run waits for it to be done
+	void submit(final Runnable task)
+	{
+		synchronized (this){
+			tasks++;
+		}
+		pool.execute(() -> {
+			try {
+				task.run();
+			} catch (RuntimeException re){
+				errors.incrementAndGet();
+				System.out.println("Import failed: " + re);
+			} finally {
+				synchronized (TFSImport.this){
+					if (--tasks == 0){
+						TFSImport.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	//importDir method:
+	//	Makes every entry of the host directory in the directory dir of the
+	//	volume at once and submits the files to fill and the directories
+	//	to import
+	void importDir(File host, String dir)
+	{
+		File[] children = host.listFiles();
+		if (children == null){
+			errors.incrementAndGet();
+			System.out.println("Could not list " + host + ".");
+			return;
+		}
+		List<File> kept = new ArrayList<File>();
+		for (File c : children){
+			int length = c.getName().getBytes().length;
+			if (length == 0 || length > 16 || Files.isSymbolicLink(c.toPath()) || !(c.isFile() || c.isDirectory())){
+				skipped.incrementAndGet();
+				continue;
+			}
+			kept.add(c);
+		}
+		int count = kept.size();
+		if (count == 0){
+			return;
+		}
+		byte[] isDirectory = new byte[count];
+		byte[] nlength = new byte[count];
+		byte[][] names = new byte[count][];
+		long[] sizes = new long[count];
+		int[] fbn = new int[count];
+		for (int i = 0; i < count; i++){
+			File c = kept.get(i);
+			names[i] = c.getName().getBytes();
+			nlength[i] = (byte)names[i].length;
+			isDirectory[i] = (byte)(c.isDirectory() ? 0 : 1); //Entries keep 0 for directories
+			sizes[i] = c.isDirectory() ? 0 : c.length();
+		}
+		byte[] d = dir.getBytes();
+		int made = fs.tfs_create_entries(d, d.length, count, isDirectory, nlength, names, sizes, (i) -> {
+			try {
+				return new FileInputStream(kept.get(i));
+			} catch (IOException ioe){
+				System.out.println("Could not read " + kept.get(i) + ": " + ioe.getMessage());
+				return null;
+			}
+		}, fbn);
+		if (made == -1){
+			errors.addAndGet(count);
+			System.out.println("Could not make the entries of " + dir + ".");
+			return;
+		}
+		for (int i = 0; i < count; i++){
+			final File c = kept.get(i);
+			final String path = dir.equals("/") ? "/" + c.getName() : dir + "/" + c.getName();
+			final int chain = (int)Math.min((sizes[i] + TFSFileSystem.BLOCK_SIZE - 1) / TFSFileSystem.BLOCK_SIZE, Integer.MAX_VALUE);
+			if (fbn[i] == -1){
+				errors.incrementAndGet();
+				System.out.println("Could not make " + path + ", it exists, could not be read or the volume is full.");
+			} else if (isDirectory[i] == 0){
+				dirs.incrementAndGet();
+				submit(() -> importDir(c, path));
+			} else if (chain > TFSFileSystem.CREATE_BATCH_BLOCKS){
+				submit(() -> importFile(c, path, chain)); //Made empty, too large to write with its entry
+			} else {
+				files.incrementAndGet();
+				bytes.addAndGet(sizes[i]);
+			}
+		}
+	}
+
+	//importFile method:
+	//	Writes the contents of the host file into the file path of the
+	//	volume, made empty with a chain of blocks blocks. A file that turns out
+	//	shorter than its chain (it changed or could not be read to its end)
+	//	is cut down to what was written.
+	void importFile(File host, String path, int blocks)
+	{
+		byte[] p = path.getBytes();
+		int fd = fs.tfs_open(p, p.length);
+		if (fd == -1){
+			errors.incrementAndGet();
+			System.out.println("Could not open " + path + ".");
+			return;
+		}
+		long written = 0;
+		try (InputStream in = new FileInputStream(host)){
+			byte[] buf = new byte[BUFFER];
+			int n;
+			while ((n = in.read(buf)) > 0){
+				if (fs.tfs_write(fd, buf, n) != n){
+					errors.incrementAndGet();
+					System.out.println("Could not write " + path + ", the volume may be full.");
+					break;
+				}
+				written += n;
+			}
+		} catch (IOException ioe){
+			errors.incrementAndGet();
+			System.out.println("Could not read " + host + ": " + ioe.getMessage());
+		}
+		if ((written + TFSFileSystem.BLOCK_SIZE - 1) / TFSFileSystem.BLOCK_SIZE < blocks){
+			fs.tfs_truncate(fd, written); //Blocks past the end are not the file's to read
+		}
+		fs.tfs_close(fd);
+		files.incrementAndGet();
+		bytes.addAndGet(written);
+	}
+
+	//report method:
+	//	What was imported, how fast and what went wrong
+	String report(long elapsed)
+	{
+		double seconds = elapsed / 1e9;
+		long f = files.get();
+		long b = bytes.get();
+		return String.format(Locale.ROOT, "Imported %d directories and %d files, %d bytes, in %.3f s (%.1f files/s, %.2f MB/s), %d skipped, %d errors%n",
+			dirs.get(), f, b, seconds, (seconds > 0) ? f / seconds : 0, (seconds > 0) ? b / seconds / 1048576 : 0, skipped.get(), errors.get());
+	}
+}
@@ -0,0 +1,329 @@
+import java.io.*;
+import java.util.*;
+
+//TFSReplay Class
+//	Runs the calls of a trace recorded by TFSTrace again on a fresh volume
+//	and reports how long each kind of call took, next to how long it took
+//	when it was recorded.
+//
+//	Usage: java TFSReplay trace [-paced] [-disk file] [-blocks n]
+//
+//		-paced	starts every call when it started in the trace, instead
+//			of right after the one before
+//		-disk	disk file of the volume, TFSReplayDisk if left out. It is
+//			formatted first.
+//		-blocks	size of the volume, the one the trace was recorded on if
+//			left out
+//
+//	The volume grows on its own only if the one the trace was recorded on
+//	did, by as much, so calls that failed for want of room fail again.
+//
+//	Calls run one after the other on one thread, in the order they ended
+//	when they were recorded. fds and snapshot ids of the trace are mapped
+//	to the ones of the replay. Files and directories the trace opened but
+//	were made before it started are made, as large as they were, the
+//	first time they are opened. Writes write 0s of the length recorded.
+public class TFSReplay
+{
+	TFSFileSystem fs;
+	boolean paced = false;
+	Map<Long, Integer> fds = new HashMap<Long, Integer>(); //fd of the trace -> fd of the replay
+	Map<Long, Integer> snapshots = new HashMap<Long, Integer>(); //Snapshot id of the trace -> id of the replay
+	Histogram[] traced = new Histogram[TFSStats.OPS.length]; //ns the calls took when recorded
+	Histogram[] replayed = new Histogram[TFSStats.OPS.length]; //ns they take now
+	long diverged = 0; //Calls that failed in the trace and not now, or the other way around
+	boolean mounted = true; //False after the trace exits, until it mounts again
+	long entries = 0; //Entries made by create_entries so far, names them
+	byte[] buffer = new byte[TFSFileSystem.BLOCK_SIZE];
+
+	public static void main(String args[]) throws IOException
+	{
+		String traceFile = null;
+		String disk = "TFSReplayDisk";
+		int blocks = 0;
+		boolean paced = false;
+		try {
+			for (int i = 0; i < args.length; i++){
+				if (args[i].equals("-paced")){
+					paced = true;
+				} else if (args[i].equals("-disk") && i + 1 < args.length){
+					disk = args[++i];
+				} else if (args[i].equals("-blocks") && i + 1 < args.length){
+					blocks = Integer.parseInt(args[++i]);
+				} else if (traceFile == null && !args[i].startsWith("-")){
+					traceFile = args[i];
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (IllegalArgumentException iae){
+			traceFile = null;
+		}
+		if (traceFile == null){
+			System.out.println("Usage: java TFSReplay trace [-paced] [-disk file] [-blocks n]");
+			System.exit(2);
+		}
+		TFSTrace.Reader reader = new TFSTrace.Reader(traceFile);
+		if (blocks == 0){
+			blocks = (reader.blocks > 0) ? reader.blocks : TFSFileSystem.DISK_FILE_SIZE;
+		}
+		TFSReplay replay = new TFSReplay(new TFSFileSystem(disk), paced);
+		if (replay.fs.tfs_mkfs(blocks) == -1){
+			System.out.println("Could not make a volume of " + blocks + " blocks in " + disk + ".");
+			System.exit(1);
+		}
+		replay.fs.tfs_set_auto_grow(reader.autoGrow);
+		long elapsed = replay.run(reader);
+		reader.close();
+		if (replay.mounted){
+			replay.fs.tfs_exit();
+		}
+		System.out.print(replay.report(elapsed));
+	}
+
+	TFSReplay(TFSFileSystem fs, boolean paced)
+	{
+		this.fs = fs;
+		this.paced = paced;
+		for (int i = 0; i < TFSStats.OPS.length; i++){
+			traced[i] = new Histogram();
+			replayed[i] = new Histogram();
+		}
+	}
+
+	//run method:
+	//	Runs every call of the trace, returns the ns it took
+	long run(TFSTrace.Reader reader) throws IOException
+	{
+		long began = System.nanoTime();
+		long first = -1;
+		TFSTrace.Record r;
+		while ((r = reader.next()) != null){
+			if (first == -1){
+				first = r.start;
+			}
+			if (paced){
+				long wait = (r.start - first) - (System.nanoTime() - began);
+				if (wait > 0){
+					try {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					} catch (InterruptedException ie){
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			prepare(r);
+			long start = System.nanoTime();
+			long result = call(r);
+			replayed[r.op].record(System.nanoTime() - start);
+			traced[r.op].record(r.nanos);
+			if ((result < 0) != (r.result < 0)){
+				diverged++;
+			}
+			mapResult(r, result);
+			if (r.op == TFSStats.EXIT || r.op == TFSStats.MOUNT || r.op == TFSStats.MKFS){
+				mounted = (r.op != TFSStats.EXIT);
+			}
+		}
+		return System.nanoTime() - began;
+	}
+
+	//prepare method:
+	//	Makes what the call needs that the trace did not make, so it is not
+	//	timed: files opened before the trace started and their directories
+	void prepare(TFSTrace.Record r)
+	{
+		if (r.result < 0){
+			return;
+		}
+		if (r.op == TFSStats.OPEN){
+			byte[] name = r.names[0];
+			int fd = fs.tfs_open(name, name.length);
+			if (fd >= 0){
+				fs.tfs_close(fd);
+				return;
+			}
+			makeParents(name);
+			boolean isDirectory = (r.args[1] == 0); //Entries keep 0 for directories
+			fd = isDirectory ? fs.tfs_create_dir(name, name.length) : fs.tfs_create(name, name.length);
+			if (fd >= 0){
+				if (!isDirectory){
+					fs.tfs_truncate(fd, r.args[0]); //A hole as large as the file was
+				}
+				fs.tfs_close(fd);
+			}
+		} else if (r.op == TFSStats.CREATE || r.op == TFSStats.CREATE_DIR){
+			makeParents(r.names[0]);
+		} else if (r.op == TFSStats.CLONE || r.op == TFSStats.COPY){
+			makeParents(r.names[1]);
+		} else if (r.op == TFSStats.CREATE_ENTRIES){
+			String dir = new String(r.names[0]);
+			makeParents((dir.endsWith("/") ? dir + "e" : dir + "/e").getBytes()); //The directory itself too
+		}
+	}
+
+	//makeParents method:
+	//	Makes every directory on the path of name that does not exist
+	void makeParents(byte[] name)
+	{
+		String path = new String(name);
+		int slash = path.indexOf('/', 1);
+		while (slash != -1){
+			byte[] dir = path.substring(0, slash).getBytes();
+			int fd = fs.tfs_open(dir, dir.length);
+			if (fd == -1){
+				fd = fs.tfs_create_dir(dir, dir.length);
+			}
+			if (fd >= 0){
+				fs.tfs_close(fd);
+			}
+			slash = path.indexOf('/', slash + 1);
+		}
+	}
+
+	//call method:
+	//	Runs the call of r, returns what it returned
+	long call(TFSTrace.Record r)
+	{
+		long[] a = r.args;
+		byte[][] n = r.names;
+		switch (r.op){
+			case TFSStats.MKFS: return fs.tfs_mkfs((int)a[0]);
+			case TFSStats.MOUNT: return fs.tfs_mount();
+			case TFSStats.UMOUNT: return fs.tfs_umount();
+			case TFSStats.EXIT: fs.tfs_exit(); return 0;
+			case TFSStats.SYNC: return fs.tfs_sync();
+			case TFSStats.OPEN: return fs.tfs_open(n[0], n[0].length);
+			case TFSStats.READ_DIR: {
+				int max = (int)a[1];
+				return fs.tfs_read_dir(fd(a[0]), new byte[max], new byte[max], new byte[max][16], new int[max], new long[max]);
+			}
+			case TFSStats.READ: return fs.tfs_read(fd(a[0]), buffer(a[1]), (int)a[1]);
+			case TFSStats.WRITE: return fs.tfs_write(fd(a[0]), buffer(a[1]), (int)a[1]);
+			case TFSStats.PREAD: return fs.tfs_pread(fd(a[0]), buffer(a[1]), (int)a[1], a[2]);
+			case TFSStats.PWRITE: return fs.tfs_pwrite(fd(a[0]), buffer(a[1]), (int)a[1], a[2]);
+			case TFSStats.TRUNCATE: return fs.tfs_truncate(fd(a[0]), a[1]);
+			case TFSStats.SEEK: return fs.tfs_seek(fd(a[0]), a[1]);
+			case TFSStats.CLOSE: fs.tfs_close(fd(a[0])); return 0;
+			case TFSStats.CREATE: return fs.tfs_create(n[0], n[0].length);
+			case TFSStats.DELETE: return fs.tfs_delete(n[0], n[0].length);
+			case TFSStats.CREATE_DIR: return fs.tfs_create_dir(n[0], n[0].length);
+			case TFSStats.DELETE_DIR: return fs.tfs_delete_dir(n[0], n[0].length);
+			case TFSStats.CLONE: return fs.tfs_clone(n[0], n[0].length, n[1], n[1].length);
+			case TFSStats.COPY: return fs.tfs_copy(n[0], n[0].length, n[1], n[1].length);
+			case TFSStats.CREATE_ENTRIES: return createEntries(n[0], (int)a[0], (int)a[1], a[2]);
+			case TFSStats.SNAPSHOT_CREATE: return fs.tfs_snapshot_create();
+			case TFSStats.SNAPSHOT_LIST: return fs.tfs_snapshot_list(new int[(int)a[0]], new long[(int)a[0]]);
+			case TFSStats.SNAPSHOT_DELETE: return fs.tfs_snapshot_delete(snapshot(a[0]));
+			case TFSStats.SNAPSHOT_MOUNT_RO: return fs.tfs_snapshot_mount_ro(snapshot(a[0]));
+			case TFSStats.SNAPSHOT_UMOUNT: return fs.tfs_snapshot_umount(snapshot(a[0]));
+			case TFSStats.SNAPSHOT_OPEN: return fs.tfs_snapshot_open(snapshot(a[0]), n[0], n[0].length);
+			case TFSStats.GROW: return fs.tfs_grow((int)a[0]);
+			case TFSStats.UPGRADE: return fs.tfs_upgrade();
+			case TFSStats.PRRFS: fs.tfs_prrfs(); return 0;
+			case TFSStats.PRMFS: fs.tfs_prmfs(); return 0;
+		}
+		return -1;
+	}
+
+	//createEntries method:
+	//	Makes count entries in dir with one tfs_create_entries, the first
+	//	directories of them directories and the others files sharing bytes
+	//	bytes of 0s. Names are made up, the trace does not keep them.
+	long createEntries(byte[] dir, int count, int directories, long bytes)
+	{
+		byte[] is_directory = new byte[count];
+		byte[] nlength = new byte[count];
+		byte[][] names = new byte[count][];
+		long[] sizes = new long[count];
+		int files = count - directories;
+		for (int i = 0; i < count; i++){
+			names[i] = ("e" + entries++).getBytes();
+			nlength[i] = (byte)names[i].length;
+			is_directory[i] = (byte)((i < directories) ? 0 : 1); //Entries keep 0 for directories
+			if (i >= directories){
+				sizes[i] = bytes / files + ((i - directories < bytes % files) ? 1 : 0);
+			}
+		}
+		final long[] lengths = sizes.clone(); //sizes gets the bytes written
+		return fs.tfs_create_entries(dir, dir.length, count, is_directory, nlength, names, sizes,
+			(i) -> new ByteArrayInputStream(buffer(lengths[i]), 0, (int)lengths[i]), new int[count]);
+	}
+
+	//mapResult method:
+	//	Keeps the fd or snapshot id the call returned for the calls after it
+	void mapResult(TFSTrace.Record r, long result)
+	{
+		switch (r.op){
+			case TFSStats.OPEN:
+			case TFSStats.CREATE:
+			case TFSStats.CREATE_DIR:
+			case TFSStats.SNAPSHOT_OPEN:
+				if (r.result >= 0){
+					fds.put(r.result, (int)result);
+				}
+				break;
+			case TFSStats.CLOSE:
+				fds.remove(r.args[0]);
+				break;
+			case TFSStats.SNAPSHOT_CREATE:
+				if (r.result >= 0){
+					snapshots.put(r.result, (int)result);
+				}
+				break;
+			case TFSStats.EXIT:
+			case TFSStats.MKFS:
+				fds.clear(); //Gone with the volume
+				snapshots.clear();
+				break;
+		}
+	}
+
+	int fd(long traced)
+	{
+		Integer fd = fds.get(traced);
+		return (fd == null) ? -1 : fd;
+	}
+
+	int snapshot(long traced)
+	{
+		Integer id = snapshots.get(traced);
+		return (id == null) ? -1 : id;
+	}
+
+	//buffer method:
+	//	Buffer of at least length bytes, 0s when it is written
+	byte[] buffer(long length)
+	{
+		if (buffer.length < length){
+			buffer = new byte[(int)length];
+		}
+		return buffer;
+	}
+
+	//report method:
+	//	Calls, their latencies when recorded and replayed, and throughput
+	String report(long elapsed)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-18s %10s %12s %12s %12s %12s %12s %12s%n", "call", "count",
+			"trace mean", "trace p99", "mean us", "p50 us", "p99 us", "max us"));
+		long calls = 0;
+		for (int i = 0; i < TFSStats.OPS.length; i++){
+			Histogram h = replayed[i];
+			long count = h.count();
+			if (count == 0){
+				continue;
+			}
+			calls += count;
+			sb.append(String.format(Locale.ROOT, "%-18s %10d %12.1f %12.1f %12.1f %12.1f %12.1f %12.1f%n", TFSStats.OPS[i], count,
+				traced[i].mean() / 1000, traced[i].percentile(99) / 1000.0,
+				h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.max() / 1000.0));
+		}
+		double seconds = elapsed / 1e9;
+		sb.append(String.format(Locale.ROOT, "%d calls in %.3f s, %.1f calls/s, %d diverged from the trace%n",
+			calls, seconds, (seconds > 0) ? calls / seconds : 0, diverged));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//TFSServer Class
+//	Serves one mounted TFSFileSystem to many clients over TCP on the loopback
+//	address. Every connection gets a thread of its own (a virtual thread when
+//	the JVM has them) and all of them share the volume, its FDT and the dirty
+//	pages of its files.
+//
+//	Protocol: every request is one op byte followed by its arguments, every
+//	answer starts with an int that is -1 on error. Ints and longs are big
+//	endian.
+//
+//		OPEN    byte flags, short nlength, name	-> int fd
+//		READ    int fd, int length			-> int n, n bytes
+//		WRITE   int fd, int length, bytes		-> int n
+//		SEEK    int fd, long position		-> int 0, long position
+//		CLOSE   int fd					-> int 0
+//		READDIR int fd, int max				-> int count, count entries of
+//							   byte is_directory, byte nlength,
+//							   16 bytes name, int first block, long size
+//
+//	A client can only use the fds it opened, and they are closed when the
+//	client disconnects.
+public class TFSServer extends Thread
+{
+	static final int OP_OPEN = 1;
+	static final int OP_READ = 2;
+	static final int OP_WRITE = 3;
+	static final int OP_SEEK = 4;
+	static final int OP_CLOSE = 5;
+	static final int OP_READDIR = 6;
+
+	static final int O_CREATE = 1; //OPEN flag: create the file if it does not exist
+	static final int MAX_IO = 1 << 20; //Largest READ or WRITE in bytes
+	static final int MAX_ENTRIES = 4096; //Largest READDIR
+
+	TFSFileSystem fs; //Volume being served
+	ServerSocket serverSocket;
+	ExecutorService connections; //Runs one task per connection
+	Set<Socket> sockets = ConcurrentHashMap.newKeySet(); //Open connections
+
+	//Starts listening on port of the loopback address, 0 picks a free port
+	public TFSServer(TFSFileSystem fs, int port) throws IOException
+	{
+		this.fs = fs;
+		serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+		connections = newConnectionExecutor("tfs-connection");
+		setDaemon(true);
+		setName("tfs-server");
+	}
+
+	//getPort method:
+	//	Port the server listens on
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	public void run()
+	{
+		while (!serverSocket.isClosed()){
+			try {
+				final Socket socket = serverSocket.accept();
+				sockets.add(socket);
+				connections.execute(() -> serve(socket));
+			} catch (IOException ioe){
+				if (!serverSocket.isClosed()){
+					System.out.println("There was an error accepting a connection: " + ioe.getMessage());
+				}
+			} catch (RejectedExecutionException ree){
+				return; //Shutting down
+			}
+		}
+	}
+
+	//shutdown method:
+	//	Stops accepting connections and closes the open ones. Connection
+	//	threads are not interrupted, an interrupt in the middle of a disk
+	//	read or write closes the disk file channel.
+	public void shutdown()
+	{
+		try {
+			serverSocket.close();
+		} catch (IOException ioe){
+			System.out.println("There was an error closing the server: " + ioe.getMessage());
+		}
+		for (Socket socket : sockets){
+			try {
+				socket.close();
+			} catch (IOException ioe){
+			}
+		}
+		connections.shutdown();
+	}
+
+	//newConnectionExecutor method:
+	//	One virtual thread per task when the JVM has them (Java 21 and later),
+	//	otherwise a cached pool of daemon threads with small stacks
+	static ExecutorService newConnectionExecutor(final String name)
+	{
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException roe){
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(null, r, name, 256 * 1024);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	//serve method:
+	//	Answers the requests of one client until it disconnects
+	void serve(Socket socket)
+	{
+		Set<Integer> fds = new HashSet<Integer>(); //fds opened by this client
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true){
+				int op = in.read();
+				if (op == -1){
+					break; //Client is done
+				}
+				if (handle(op, in, out, fds) == -1){
+					break; //Unknown op, the rest of the stream can't be parsed
+				}
+				out.flush();
+			}
+		} catch (IOException ioe){
+			//Client went away
+		} finally {
+			for (int fd : fds){
+				fs.tfs_close(fd);
+			}
+			sockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException ioe){
+			}
+		}
+	}
+
+	//handle method:
+	//	Reads the arguments of op, calls the file system and writes the answer
+	//	Returns -1 if op is unknown
+	int handle(int op, DataInputStream in, DataOutputStream out, Set<Integer> fds) throws IOException
+	{
+		switch (op){
+			case OP_OPEN: {
+				int flags = in.readByte();
+				byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+				int fd = fs.tfs_open(name, name.length);
+				if (fd == -1 && (flags & O_CREATE) != 0){
+					fd = fs.tfs_create(name, name.length);
+					if (fd == -1){
+						fd = fs.tfs_open(name, name.length); //Another client created it first
+					}
+				}
+				if (fd != -1){
+					fds.add(fd);
+				}
+				out.writeInt(fd);
+				return 0;
+			}
+			case OP_READ: {
+				int fd = in.readInt();
+				int length = in.readInt();
+				if (!fds.contains(fd) || length < 0 || length > MAX_IO){
+					out.writeInt(-1);
+					return 0;
+				}
+				byte[] buf = new byte[length];
+				int n = fs.tfs_read(fd, buf, length);
+				out.writeInt(n);
+				if (n > 0){
+					out.write(buf, 0, n);
+				}
+				return 0;
+			}
+			case OP_WRITE: {
+				int fd = in.readInt();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_IO){
+					out.writeInt(-1);
+					return -1; //Can't skip the data, so the connection is dropped
+				}
+				byte[] buf = new byte[length];
+				in.readFully(buf);
+				out.writeInt(fds.contains(fd) ? fs.tfs_write(fd, buf, length) : -1);
+				return 0;
+			}
+			case OP_SEEK: {
+				int fd = in.readInt();
+				long position = in.readLong();
+				position = fds.contains(fd) ? fs.tfs_seek(fd, position) : -1;
+				out.writeInt((position == -1) ? -1 : 0);
+				if (position != -1){
+					out.writeLong(position);
+				}
+				return 0;
+			}
+			case OP_CLOSE: {
+				int fd = in.readInt();
+				if (!fds.remove(fd)){
+					out.writeInt(-1);
+					return 0;
+				}
+				fs.tfs_close(fd);
+				out.writeInt(0);
+				return 0;
+			}
+			case OP_READDIR: {
+				int fd = in.readInt();
+				int max = in.readInt();
+				if (!fds.contains(fd) || max < 0 || max > MAX_ENTRIES){
+					out.writeInt(-1);
+					return 0;
+				}
+				byte[] is_directory = new byte[max];
+				byte[] nlength = new byte[max];
+				byte[][] name = new byte[max][16];
+				int[] first_block_no = new int[max];
+				long[] file_size = new long[max];
+				int count = fs.tfs_read_dir(fd, is_directory, nlength, name, first_block_no, file_size);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++){
+					out.writeByte(is_directory[i]);
+					out.writeByte(nlength[i]);
+					out.write(name[i]);
+					out.writeInt(first_block_no[i]);
+					out.writeLong(file_size[i]);
+				}
+				return 0;
+			}
+			default:
+				out.writeInt(-1);
+				out.flush();
+				return -1;
+		}
+	}
+}
+
+
+//TFSClient Class
+//	Client side of the TFSServer protocol, one connection per object
+class TFSClient
+{
+	Socket socket;
+	DataInputStream in;
+	DataOutputStream out;
+
+	TFSClient(String host, int port) throws IOException
+	{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	int open(String name, boolean create) throws IOException
+	{
+		byte[] n = name.getBytes();
+		out.writeByte(TFSServer.OP_OPEN);
+		out.writeByte(create ? TFSServer.O_CREATE : 0);
+		out.writeShort(n.length);
+		out.write(n);
+		out.flush();
+		return in.readInt();
+	}
+
+	int read(int fd, byte[] buf, int length) throws IOException
+	{
+		out.writeByte(TFSServer.OP_READ);
+		out.writeInt(fd);
+		out.writeInt(length);
+		out.flush();
+		int n = in.readInt();
+		if (n > 0){
+			in.readFully(buf, 0, n);
+		}
+		return n;
+	}
+
+	int write(int fd, byte[] buf, int length) throws IOException
+	{
+		out.writeByte(TFSServer.OP_WRITE);
+		out.writeInt(fd);
+		out.writeInt(length);
+		out.write(buf, 0, length);
+		out.flush();
+		return in.readInt();
+	}
+
+	long seek(int fd, long position) throws IOException
+	{
+		out.writeByte(TFSServer.OP_SEEK);
+		out.writeInt(fd);
+		out.writeLong(position);
+		out.flush();
+		if (in.readInt() == -1){
+			return -1;
+		}
+		return in.readLong();
+	}
+
+	int close(int fd) throws IOException
+	{
+		out.writeByte(TFSServer.OP_CLOSE);
+		out.writeInt(fd);
+		out.flush();
+		return in.readInt();
+	}
+
+	//readdir method:
+	//	Returns the names of up to max entries of the directory open as fd,
+	//	null on error
+	List<String> readdir(int fd, int max) throws IOException
+	{
+		out.writeByte(TFSServer.OP_READDIR);
+		out.writeInt(fd);
+		out.writeInt(max);
+		out.flush();
+		int count = in.readInt();
+		if (count == -1){
+			return null;
+		}
+		List<String> names = new ArrayList<String>(count);
+		byte[] name = new byte[16];
+		for (int i = 0; i < count; i++){
+			in.readByte(); //is_directory
+			int nlength = in.readByte();
+			in.readFully(name);
+			in.readInt(); //first block
+			in.readLong(); //size
+			names.add(new String(name, 0, Math.min(nlength, 16)));
+		}
+		return names;
+	}
+
+	void disconnect() throws IOException
+	{
+		socket.close();
+	}
+}
+
+
+//TFSLoadClient Class
+//	Local load generator for TFSServer. Opens many connections at once, each
+//	one writing and reading back a file over and over, and prints the
+//	throughput and the number of errors.
+//	Usage: java TFSLoadClient port [clients] [ops per client] [files]
+class TFSLoadClient
+{
+	public static void main(String argv[]) throws Exception
+	{
+		if (argv.length < 1){
+			System.out.println("Usage: java TFSLoadClient port [clients] [ops per client] [files]");
+			return;
+		}
+		final int port = Integer.parseInt(argv[0]);
+		final int clients = (argv.length > 1) ? Integer.parseInt(argv[1]) : 1000;
+		final int ops = (argv.length > 2) ? Integer.parseInt(argv[2]) : 100;
+		final int files = (argv.length > 3) ? Integer.parseInt(argv[3]) : 64;
+
+		final LongAdder errors = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(clients);
+		ExecutorService pool = TFSServer.newConnectionExecutor("tfs-load-client");
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++){
+			final int id = c;
+			pool.execute(() -> {
+				try {
+					TFSClient client = new TFSClient("127.0.0.1", port);
+					int fd = client.open("/load" + (id % files), true);
+					byte[] buf = new byte[256];
+					Arrays.fill(buf, (byte)('a' + id % 26));
+					for (int i = 0; i < ops; i++){
+						if (fd == -1 || client.seek(fd, 0) == -1 || client.write(fd, buf, buf.length) != buf.length){
+							errors.add(1);
+							continue;
+						}
+						client.seek(fd, 0);
+						if (client.read(fd, buf, buf.length) != buf.length){
+							errors.add(1);
+						}
+					}
+					if (fd != -1){
+						client.close(fd);
+					}
+					client.disconnect();
+				} catch (IOException ioe){
+					errors.add(1);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		pool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long requests = (long)clients * ops * 4;
+		System.out.printf("%d clients, %d requests in %.2f s: %.0f requests/s, %d errors%n", clients, requests, seconds, requests / seconds, errors.sum());
+	}
+}
@@ -1,14 +1,29 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class TFSShell extends Thread
 {
 
-	//Creating and initializing TFSFileSystem object
-	static TFSFileSystem  fs = new TFSFileSystem();
+	static final int STATUS_OK = 0; //Status of a command that worked
+	static final int STATUS_FAILED = 1; //Command that did not work
+	static final int STATUS_USAGE = 2; //Command that was not written right
+	static final int STATUS_NOT_FOUND = 127; //No such command
+
+	//TFSFileSystem object of the volume the shell works on
+	TFSFileSystem fs;
+	TFSServer server; //Network front end, null until serve is used
+	volatile boolean exited = false; //exit was run
+	ThreadLocal<int[]> status = ThreadLocal.withInitial(() -> new int[1]); //Status of the command the thread is running
 
 	public TFSShell()
 	{
+		this(new TFSFileSystem());
+	}
+
+	public TFSShell(TFSFileSystem fs)
+	{
+		this.fs = fs;
 	}
 
 	public void run()
@@ -22,8 +37,6 @@ public class TFSShell extends Thread
 
 	void readCmdLine()
 	{
-		String line, cmd, arg1, arg2, arg3, arg4;
-		StringTokenizer stokenizer;
 		Scanner scanner = new Scanner(System.in);
 
 		System.out.println("Hal: Good morning, Dave!\n");
@@ -32,164 +45,458 @@ public class TFSShell extends Thread
 
 			System.out.print("ush> ");
 
-			line = scanner.nextLine();
-			line = line.trim();
-			stokenizer = new StringTokenizer(line);
-			if (stokenizer.hasMoreTokens()) {
-				cmd = stokenizer.nextToken();
-
-				if (cmd.equals("mkfs"))
-					mkfs();
-				else if (cmd.equals("mount"))
-					mount();
-				else if (cmd.equals("unmount"))
-					unmount();
-				else if (cmd.equals("sync"))
-					sync();
-				else if (cmd.equals("prrfs"))
-					prrfs();
-				else if (cmd.equals("prmfs"))
-					prmfs();
-
-				else if (cmd.equals("mkdir")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						mkdir(arg1);
-					}
-					else
-						System.out.println("Usage: mkdir directory");
+			execute(scanner.nextLine());
+			if (exited) {
+				System.out.println("\nHal: Good bye, Dave!\n");
+				break;
+			}
+		}
+
+
+	}
+
+	//execute method:
+	//	Runs one command line of the shell
+	//	Returns its status: STATUS_OK, STATUS_FAILED if it did not work,
+	//	STATUS_USAGE if it was not written right or STATUS_NOT_FOUND
+	int execute(String line)
+	{
+		String cmd, arg1, arg2, arg3, arg4;
+		StringTokenizer stokenizer;
+		int[] status = this.status.get();
+		status[0] = STATUS_OK;
+
+		line = line.trim();
+		stokenizer = new StringTokenizer(line);
+		if (stokenizer.hasMoreTokens()) {
+			cmd = stokenizer.nextToken();
+
+			if (cmd.equals("mkfs")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				try {
+					mkfs((arg1 != null) ? Integer.parseInt(arg1) : TFSFileSystem.DISK_FILE_SIZE);
+				} catch (NumberFormatException nfe) {
+					usage("Usage: mkfs [blocks]");
 				}
-				else if (cmd.equals("rmdir")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						rmdir(arg1);
-					}
-					else
-						System.out.println("Usage: rmdir directory");
+			}
+			else if (cmd.equals("mount"))
+				mount();
+			else if (cmd.equals("unmount"))
+				unmount();
+			else if (cmd.equals("sync"))
+				sync();
+			else if (cmd.equals("prrfs"))
+				prrfs();
+			else if (cmd.equals("prmfs"))
+				prmfs();
+
+			else if (cmd.equals("mkdir")) {
+				if (stokenizer.hasMoreTokens()) {
+					arg1 = stokenizer.nextToken();
+					mkdir(arg1);
 				}
-				else if (cmd.equals("ls")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						ls(arg1);
-					}
-					else
-						System.out.println("Usage: ls directory");
+				else
+					usage("Usage: mkdir directory");
+			}
+			else if (cmd.equals("rmdir")) {
+				if (stokenizer.hasMoreTokens()) {
+					arg1 = stokenizer.nextToken();
+					rmdir(arg1);
 				}
-				else if (cmd.equals("create")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						create(arg1);
-					}
-					else
-						System.out.println("Usage: create file");
+				else
+					usage("Usage: rmdir directory");
+			}
+			else if (cmd.equals("ls")) {
+				if (stokenizer.hasMoreTokens()) {
+					arg1 = stokenizer.nextToken();
+					ls(arg1);
 				}
-				else if (cmd.equals("rm")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						rm(arg1);
-					}
-					else
-						System.out.println("Usage: rm file");
-				}
-				else if (cmd.equals("print")) {
-					if (stokenizer.hasMoreTokens())
-						arg1 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: print file position number");
-						continue;
-					}
-					if (stokenizer.hasMoreTokens())
-						arg2 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: print file position number");
-						continue;
-					}
-					if (stokenizer.hasMoreTokens())
-						arg3 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: print file position number");
-						continue;
-					}
-					try {
-						print(arg1, Integer.parseInt(arg2), Integer.parseInt(arg3));
-					} catch (NumberFormatException nfe) {
-						System.out.println("Usage: print file position number");
-					}
+				else
+					usage("Usage: ls directory");
+			}
+			else if (cmd.equals("create")) {
+				if (stokenizer.hasMoreTokens()) {
+					arg1 = stokenizer.nextToken();
+					create(arg1);
 				}
-				else if (cmd.equals("append")) {
-					if (stokenizer.hasMoreTokens())
-						arg1 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: append file number");
-						continue;
-					}
-					if (stokenizer.hasMoreTokens())
-						arg2 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: append file number");
-						continue;
-					}
-					try {
-						append(arg1, Integer.parseInt(arg2));
-					} catch (NumberFormatException nfe) {
-						System.out.println("Usage: append file number");
-					}
+				else
+					usage("Usage: create file");
+			}
+			else if (cmd.equals("rm")) {
+				if (stokenizer.hasMoreTokens()) {
+					arg1 = stokenizer.nextToken();
+					rm(arg1);
 				}
-				else if (cmd.equals("cp")) {
-					if (stokenizer.hasMoreTokens())
-						arg1 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: cp file directory");
-						continue;
-					}
-					if (stokenizer.hasMoreTokens())
-						arg2 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: cp file directory");
-						continue;
-					}
-					cp(arg1, arg2);
+				else
+					usage("Usage: rm file");
+			}
+			else if (cmd.equals("print")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: print file position number");
+					return status[0];
 				}
-				else if (cmd.equals("rename")) {
-					if (stokenizer.hasMoreTokens())
-						arg1 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: rename src_file dest_file");
-						continue;
-					}
-					if (stokenizer.hasMoreTokens())
-						arg2 = stokenizer.nextToken();
-					else {
-						System.out.println("Usage: rename src_file dest_file");
-						continue;
-					}
-					rename(arg1, arg2);
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: print file position number");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg3 = stokenizer.nextToken();
+				else {
+					usage("Usage: print file position number");
+					return status[0];
+				}
+				try {
+					print(arg1, Integer.parseInt(arg2), Integer.parseInt(arg3));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: print file position number");
+				}
+			}
+			else if (cmd.equals("append")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: append file number");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: append file number");
+					return status[0];
+				}
+				try {
+					append(arg1, Integer.parseInt(arg2));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: append file number");
+				}
+			}
+			else if (cmd.equals("truncate")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: truncate file size");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: truncate file size");
+					return status[0];
+				}
+				try {
+					truncate(arg1, Long.parseLong(arg2));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: truncate file size");
+				}
+			}
+			else if (cmd.equals("cp")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: cp file directory");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: cp file directory");
+					return status[0];
+				}
+				cp(arg1, arg2);
+			}
+			else if (cmd.equals("copy")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: copy src_file dest_file");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: copy src_file dest_file");
+					return status[0];
+				}
+				copy(arg1, arg2);
+			}
+			else if (cmd.equals("rename")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: rename src_file dest_file");
+					return status[0];
+				}
+				if (stokenizer.hasMoreTokens())
+					arg2 = stokenizer.nextToken();
+				else {
+					usage("Usage: rename src_file dest_file");
+					return status[0];
+				}
+				rename(arg1, arg2);
+			}
+			else if (cmd.equals("snapshot")) {
+				if (stokenizer.hasMoreTokens())
+					arg1 = stokenizer.nextToken();
+				else {
+					usage("Usage: snapshot create | list | delete id | ls id directory");
+					return status[0];
 				}
+				arg2 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg3 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				try {
+					snapshot(arg1, arg2, arg3);
+				} catch (NumberFormatException nfe) {
+					usage("Usage: snapshot create | list | delete id | ls id directory");
+				}
+			}
 
-				else if (cmd.equals("exit")) {
-					exit();
-					System.out.println("\nHal: Good bye, Dave!\n");
-					break;
+			else if (cmd.equals("tune")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg2 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				try {
+					tune(arg1, (arg2 != null) ? Integer.parseInt(arg2) : -1);
+				} catch (NumberFormatException nfe) {
+					usage("Usage: tune [dirty_background|dirty_ceiling|write_behind|commit_delay|auto_grow|tier value]");
 				}
+			}
 
-				else
-					System.out.println("-ush: " + cmd + ": command not found");
+			else if (cmd.equals("serve")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : "0";
+				try {
+					serve(Integer.parseInt(arg1));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: serve [port]");
+				}
+			}
+
+			else if (cmd.equals("upgrade"))
+				upgrade();
+
+			else if (cmd.equals("trace")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg2 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				trace(arg1, arg2);
+			}
+
+			else if (cmd.equals("stats")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				stats(arg1);
+			}
+
+			else if (cmd.equals("dump")) {
+				List<String> args = new ArrayList<String>();
+				while (stokenizer.hasMoreTokens())
+					args.add(stokenizer.nextToken());
+				dump(args);
+			}
+
+			else if (cmd.equals("frag"))
+				frag();
+
+			else if (cmd.equals("defrag")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg2 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : "1024";
+				try {
+					defrag(arg1, Integer.parseInt(arg2));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: defrag [start [blocks_per_second] | stop]");
+				}
+			}
+
+			else if (cmd.equals("bench")) {
+				List<String> options = new ArrayList<String>();
+				while (stokenizer.hasMoreTokens())
+					options.add(stokenizer.nextToken());
+				bench(options);
+			}
+
+			else if (cmd.equals("import")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg2 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				arg3 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				String threads = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : String.valueOf(Runtime.getRuntime().availableProcessors());
+				try {
+					if (!"-r".equals(arg1) || arg3 == null)
+						throw new NumberFormatException();
+					importTree(arg2, arg3, Integer.parseInt(threads));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: import -r hostdir tfsdir [threads]");
+				}
+			}
+
+			else if (cmd.equals("grow")) {
+				arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+				try {
+					grow(Integer.parseInt(arg1));
+				} catch (NumberFormatException nfe) {
+					usage("Usage: grow blocks");
+				}
+			}
+
+			else if (cmd.equals("exit")) {
+				exit();
+				exited = true;
+			}
+
+			else {
+				System.out.println("-ush: " + cmd + ": command not found");
+				status[0] = STATUS_NOT_FOUND;
 			}
 		}
+		return status[0];
+	}
 
 
+	//fail method:
+	//	Prints why the command did not work and makes it fail
+	void fail(String message)
+	{
+		System.out.println(message);
+		status.get()[0] = STATUS_FAILED;
 	}
 
+	//usage method:
+	//	Prints how the command is written and makes it fail
+	void usage(String message)
+	{
+		System.out.println(message);
+		status.get()[0] = STATUS_USAGE;
+	}
 
 /*
  * You need to implement these commands
  */
 
  	//mkfs method:
- 	// Creates file system.
-	void mkfs()
+ 	// Creates file system of size blocks.
+	void mkfs(int size)
+	{
+		if (fs.tfs_mkfs(size) == -1){
+			fail("There was an error creating the file system.");
+		}
+		return;
+	}
+
+	//upgrade method:
+	//	Brings the mounted file system up to the layout of this version
+	void upgrade()
+	{
+		if (fs.tfs_upgrade() == -1){
+			fail("There is no file system mounted.");
+		}
+		return;
+	}
+
+	//trace method:
+	//	Starts recording the calls the shell makes into a trace file for
+	//	TFSReplay, or stops it
+	void trace(String arg, String file)
+	{
+		if ("start".equals(arg) && file != null){
+			if (fs.tfs_trace_start(file) == 0){
+				System.out.println("Tracing into " + file + ".");
+			} else {
+				fail("Could not trace into " + file + ".");
+			}
+		} else if ("stop".equals(arg)){
+			fs.tfs_trace_stop();
+		} else {
+			usage("Usage: trace start file | trace stop");
+		}
+		return;
+	}
+
+	//stats method:
+	//	Prints the statistics of the volume, or sets them back to 0 with reset
+	void stats(String arg)
+	{
+		if (arg == null){
+			System.out.print(fs.tfs_stats().report());
+		} else if (arg.equals("reset")){
+			fs.tfs_stats().reset();
+		} else {
+			usage("Usage: stats [reset]");
+		}
+		return;
+	}
+
+	//frag method:
+	//	Prints how fragmented the files and free space of the file system are
+	void frag()
+	{
+		String report = fs.tfs_frag();
+		if (report == null){
+			fail("There is no file system mounted.");
+			return;
+		}
+		System.out.print(report);
+		return;
+	}
+
+	//defrag method:
+	//	Starts or stops moving the blocks of every file into runs in the
+	//	background, at most rate blocks a second, or prints how far it got
+	void defrag(String arg, int rate)
+	{
+		if (arg == null || arg.equals("stop")){
+			if (arg != null){
+				fs.tfs_defrag_stop();
+			}
+			String status = fs.tfs_defrag_status();
+			System.out.println((status == null) ? "The defragmenter was not started." : status);
+		} else if (arg.equals("start")){
+			if (fs.tfs_defrag_start(rate) == -1){
+				fail("The defragmenter could not start, it is running or there is no file system mounted.");
+			}
+		} else {
+			usage("Usage: defrag [start [blocks_per_second] | stop]");
+		}
+		return;
+	}
+
+	//bench method:
+	//	Runs a synthetic workload against the mounted file system, see
+	//	TFSBench for its options
+	void bench(List<String> options)
+	{
+		TFSBench bench = new TFSBench(fs);
+		String error = bench.parse(options);
+		if (error != null){
+			usage(error);
+			usage("Usage: bench [threads=n time=ms rw=randrw mix=% bs=n size=n files=n fanout=n depth=n churn=% dir=path keep=1]");
+			return;
+		}
+		System.out.print(bench.run());
+		if (bench.errors.get() > 0){
+			fail("The bench failed with " + bench.errors.get() + " errors.");
+		}
+		return;
+	}
+
+	//importTree method:
+	//	Copies the directory tree hostdir of the host into tfsdir with
+	//	threads workers, see TFSImport
+	void importTree(String hostdir, String tfsdir, int threads)
+	{
+		TFSImport importer = new TFSImport(fs, threads);
+		System.out.print(importer.run(new File(hostdir), tfsdir));
+		if (importer.errors.get() > 0){
+			fail("The import failed with " + importer.errors.get() + " errors.");
+		}
+		return;
+	}
+
+	//grow method:
+	//	Grows the mounted file system to size blocks without unmounting it
+	void grow(int size)
 	{
-		fs.tfs_mkfs();
+		if (fs.tfs_grow(size) == -1){
+			fail("The file system could not grow to " + size + " blocks.");
+		}
 		return;
 	}
 
@@ -197,7 +504,9 @@ public class TFSShell extends Thread
 	//	Mounts file system
 	void mount()
 	{
-		fs.tfs_mount();
+		if (fs.tfs_mount() == -1){
+			fail("There is no file system to mount, use mkfs first.");
+		}
 		return;
 	}
 
@@ -221,7 +530,8 @@ public class TFSShell extends Thread
   // Prints out FAT and PCB in disk file.
 	void prrfs()
 	{
-		System.out.println(fs.tfs_prrfs());
+		System.out.print("\nIn File System:\n");
+		dump(Arrays.asList("disk"));
 		return;
 	}
 
@@ -229,7 +539,78 @@ public class TFSShell extends Thread
 	//	Prints out FAT and PCB in memory
 	void prmfs()
 	{
-		System.out.println(fs.tfs_prmfs());
+		System.out.print("\nIn Memory:\n");
+		dump(new ArrayList<String>());
+		return;
+	}
+
+	//dump method:
+	//	Prints PCB and FAT entries as they go, in memory or with disk as
+	//	they are on disk. from and to limit the blocks, free, end and chain
+	//	path which ones are printed. bin file writes them to file in the
+	//	binary format instead, read file prints such a file.
+	void dump(List<String> args)
+	{
+		boolean disk = false;
+		int from = 0;
+		int to = Integer.MAX_VALUE;
+		int numbers = 0;
+		int filter = TFSFileSystem.DUMP_ALL;
+		String chain = null;
+		String bin = null;
+		try {
+			for (int i = 0; i < args.size(); i++){
+				String arg = args.get(i);
+				if (arg.equals("disk") || arg.equals("memory")){
+					disk = arg.equals("disk");
+				} else if (arg.equals("free")){
+					filter = TFSFileSystem.DUMP_FREE;
+				} else if (arg.equals("end")){
+					filter = TFSFileSystem.DUMP_END;
+				} else if (arg.equals("chain") && i + 1 < args.size()){
+					filter = TFSFileSystem.DUMP_CHAIN;
+					chain = args.get(++i);
+				} else if (arg.equals("bin") && i + 1 < args.size()){
+					bin = args.get(++i);
+				} else if (arg.equals("read") && i + 1 < args.size()){
+					try (InputStream in = new FileInputStream(args.get(++i))){
+						if (TFSFileSystem.tfs_dump_read(in, new BufferedWriter(new OutputStreamWriter(System.out))) == -1){
+							fail(args.get(i) + " is not a dump.");
+						}
+					}
+					return;
+				} else if (numbers < 2){
+					int n = Integer.parseInt(arg);
+					from = (numbers == 0) ? n : from;
+					to = (numbers == 1) ? n : to;
+					numbers++;
+				} else {
+					throw new NumberFormatException(arg);
+				}
+			}
+		} catch (NumberFormatException nfe){
+			usage("Usage: dump [disk|memory] [from [to]] [free|end|chain path] [bin file] | dump read file");
+			return;
+		} catch (IOException ioe){
+			fail("There was an error reading the dump: " + ioe.getMessage());
+			return;
+		}
+		byte[] name = (chain == null) ? null : chain.getBytes();
+		int nlength = (chain == null) ? 0 : name.length;
+		int count;
+		if (bin != null){
+			try (OutputStream out = new FileOutputStream(bin)){
+				count = fs.tfs_dump(out, disk, from, to, filter, name, nlength);
+			} catch (IOException ioe){
+				fail("There was an error writing " + bin + ": " + ioe.getMessage());
+				return;
+			}
+		} else {
+			count = fs.tfs_dump(new BufferedWriter(new OutputStreamWriter(System.out)), disk, from, to, filter, name, nlength);
+		}
+		if (count == -1){
+			fail("Nothing to dump: no file system is mounted, the range is wrong or the file does not exist.");
+		}
 		return;
 	}
 
@@ -238,7 +619,12 @@ public class TFSShell extends Thread
 	void mkdir(String directory)
 	{
 		byte[] name = directory.getBytes();
-		fs.tfs_create_dir(name, name.length);
+		int fd = fs.tfs_create_dir(name, name.length);
+		if (fd == -1){
+			fail("There was an error creating the directory.");
+			return;
+		}
+		fs.tfs_close(fd);
 		return;
 	}
 
@@ -247,7 +633,9 @@ public class TFSShell extends Thread
 	void rmdir(String directory)
 	{
 		byte[] name = directory.getBytes();
-		fs.tfs_delete_dir(name, name.length);
+		if (fs.tfs_delete_dir(name, name.length) == -1){
+			fail("There was an error removing the directory, it may not be empty.");
+		}
 		return;
 	}
 
@@ -255,11 +643,15 @@ public class TFSShell extends Thread
 	{
 		byte[] name = directory.getBytes();
 		int fd = fs.tfs_open(name, name.length); //Opening FD entry
+		if (fd == -1){
+			fail("Directory does not exist.");
+			return;
+		}
 		byte[] is_directory = new byte[10];
 		byte[] nlength = new byte[10]; //Won't have more than 10 entries - Assumption: this could be changed
 		byte[][] name_arr = new byte[10][16];
 		int[] first_block_no = new int[10];
-		int[] file_size = new int[10];
+		long[] file_size = new long[10];
 
 		//Number of entries
 		int numEntries = fs.tfs_read_dir(fd, is_directory, nlength, name_arr, first_block_no, file_size);
@@ -270,6 +662,7 @@ public class TFSShell extends Thread
 			System.out.println("\t"+ new String(name_arr[i]) + "\tis_directory: "+ is_directory[i] + "\tFirstBlockNo: " + first_block_no[i] + "\tSize: " + file_size[i]+"bytes");
 		}
 		System.out.println("\n");
+		fs.tfs_close(fd);
 
 		return;
 	}
@@ -279,7 +672,12 @@ public class TFSShell extends Thread
 	void create(String file)
 	{
 		byte[] name = file.getBytes();
-		fs.tfs_create(name, name.length);
+		int fd = fs.tfs_create(name, name.length);
+		if (fd == -1){
+			fail("There was an error creating the file.");
+			return;
+		}
+		fs.tfs_close(fd);
 		return;
 	}
 
@@ -288,7 +686,9 @@ public class TFSShell extends Thread
 	void rm(String file)
 	{
 		byte[] name = file.getBytes();
-		fs.tfs_delete(name, name.length);
+		if (fs.tfs_delete(name, name.length) == -1){
+			fail("There was an error removing the file.");
+		}
 		return;
 	}
 
@@ -296,6 +696,10 @@ public class TFSShell extends Thread
 	{
 		byte[] name = file.getBytes();
 		int fd = fs.tfs_open(name, name.length); //Opening fd entry
+		if (fd == -1){
+			fail("File does not exist.");
+			return;
+		}
 		byte[] buffer = new byte[number*2]; //Each char is 2 bytes
 
 		System.out.println("\nRead from file:");
@@ -308,6 +712,7 @@ public class TFSShell extends Thread
 			System.out.print(new String(tmp));
 		}
 		System.out.println("\n");
+		fs.tfs_close(fd);
 		return;
 	}
 
@@ -317,41 +722,81 @@ public class TFSShell extends Thread
 		int fd = fs.tfs_open(name, name.length); //Opening fd entry
 
 		if (fd == -1){
-			System.out.println("File does not exist.");
+			fail("File does not exist.");
 			return;
 		}
 
-		String data = "";
-		for (int i = 0; i < number; i++){
-			data += "D"; //Adding random character Number times
+		//Number 'D's, written a buffer at a time
+		byte[] buf = new byte[Math.min(Math.max(number, 0), 65536)];
+		Arrays.fill(buf, (byte)'D');
+		for (int left = number; left > 0; left -= buf.length){
+			int n = Math.min(left, buf.length);
+			if (fs.tfs_write(fd, buf, n) != n){
+				fail("There was an error writing the file.");
+				break;
+			}
 		}
-		byte[] buf = data.getBytes();
+		fs.tfs_close(fd);
+		return;
+	}
+
+	//truncate method:
+	//	Shrinks or grows a file to size bytes. Growing leaves a hole.
+	void truncate(String file, long size)
+	{
+		byte[] name = file.getBytes();
+		int fd = fs.tfs_open(name, name.length); //Opening fd entry
 
-		fs.tfs_write(fd, buf, buf.length);
+		if (fd == -1){
+			fail("File does not exist.");
+			return;
+		}
+		if (fs.tfs_truncate(fd, size) == -1){
+			fail("There was an error truncating the file.");
+		}
+		fs.tfs_close(fd);
 		return;
 	}
 
+	//cp method:
+	//	Clones file into a new file. Both share the same blocks until one of
+	//	them is written to.
 	void cp(String file, String directory)
 	{
 		byte[] sourceName = file.getBytes();
 		byte[] destinationName = directory.getBytes();
-		int fd1 = fs.tfs_open(sourceName, sourceName.length); //Opening fd entry
 
-		if (fd1 == -1){
-			System.out.println("Source file does not exist");
+		if (fs._tfs_search_dir(sourceName, sourceName.length) == -1){
+			fail("Source file does not exist");
 			return;
 		}
 
-		fs.tfs_create(destinationName, destinationName.length); //Creating file entry
-		int fd2 = fs.tfs_open(destinationName, destinationName.length); //Opening FD
-		byte[] buf = new byte[128];
-		//Copying data
-		fs.tfs_read(fd1, buf, buf.length);
-		fs.tfs_write(fd2, buf, buf.length);
+		if (fs.tfs_clone(sourceName, sourceName.length, destinationName, destinationName.length) == -1){
+			fail("There was an error copying the file.");
+		}
 
 		return;
 	}
 
+	//copy method:
+	//	Copies file into a new file with blocks of its own and reports how
+	//	fast it went
+	void copy(String file, String destination)
+	{
+		byte[] sourceName = file.getBytes();
+		byte[] destinationName = destination.getBytes();
+		long start = System.nanoTime();
+		long bytes = fs.tfs_copy(sourceName, sourceName.length, destinationName, destinationName.length);
+		if (bytes == -1){
+			fail("There was an error copying the file.");
+			return;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "Copied %d bytes in %.3f s, %.2f MB/s",
+			bytes, seconds, (seconds > 0) ? bytes / seconds / 1048576 : 0));
+		return;
+	}
+
 	void rename(String source_file, String destination_file)
 	{
 		byte[] sourceName = source_file.getBytes();
@@ -359,7 +804,7 @@ public class TFSShell extends Thread
 		int entryNo = fs._tfs_search_dir(sourceName, sourceName.length);
 
 		if (entryNo == -1){
-			System.out.println("There was an error finding the source file.");
+			fail("There was an error finding the source file.");
 			return;
 		}
 
@@ -368,40 +813,375 @@ public class TFSShell extends Thread
 
 		byte[] is_directory = new byte[1];
 		int[] fbn = new int[1];
-		int[] size = new int[1];
+		long[] size = new long[1];
 		if (fs._tfs_get_entry_dir(entryNo, n, (byte)n.length, is_directory, fbn, size) == -1){
-			System.out.println("There was an error.");
+			fail("There was an error.");
 			return;
 		}
 
 		if (fs._tfs_update_entry_dir(entryNo, n, (byte)n.length, is_directory[0], fbn[0], size[0]) == -1){
-			System.out.println("There was an error.");
+			fail("There was an error.");
+			return;
+		}
+
+		return;
+	}
+
+	//snapshot method:
+	//	Creates, lists and deletes snapshots. ls mounts a snapshot read only
+	//	and lists a directory as it was when the snapshot was taken.
+	void snapshot(String action, String arg, String directory)
+	{
+		if (action.equals("create")){
+			int id = fs.tfs_snapshot_create();
+			if (id == -1){
+				fail("There was an error creating the snapshot.");
+				return;
+			}
+			System.out.println("Created snapshot " + id);
+		}
+		else if (action.equals("list")){
+			int[] ids = new int[64];
+			long[] created = new long[64];
+			int count = fs.tfs_snapshot_list(ids, created);
+			System.out.println("\nSnapshots:");
+			for (int i = 0; i < count; i++){
+				System.out.println("\t" + ids[i] + "\tcreated: " + new Date(created[i]));
+			}
+			System.out.println("\n");
+		}
+		else if (action.equals("delete") && arg != null){
+			if (fs.tfs_snapshot_delete(Integer.parseInt(arg)) == -1){
+				fail("There was an error deleting the snapshot.");
+			}
+		}
+		else if (action.equals("ls") && arg != null && directory != null){
+			int id = Integer.parseInt(arg);
+			if (fs.tfs_snapshot_mount_ro(id) == -1){
+				fail("Snapshot does not exist.");
+				return;
+			}
+			byte[] name = directory.getBytes();
+			int fd = fs.tfs_snapshot_open(id, name, name.length);
+			if (fd == -1){
+				fail("Directory does not exist.");
+				fs.tfs_snapshot_umount(id);
+				return;
+			}
+			byte[] is_directory = new byte[10];
+			byte[] nlength = new byte[10];
+			byte[][] name_arr = new byte[10][16];
+			int[] first_block_no = new int[10];
+			long[] file_size = new long[10];
+			int numEntries = fs.tfs_read_dir(fd, is_directory, nlength, name_arr, first_block_no, file_size);
+
+			System.out.println("\nEntries in snapshot " + id + " directory:");
+			for (int i = 0; i < numEntries; i++){
+				System.out.println("\t"+ new String(name_arr[i]) + "\tis_directory: "+ is_directory[i] + "\tFirstBlockNo: " + first_block_no[i] + "\tSize: " + file_size[i]+"bytes");
+			}
+			System.out.println("\n");
+			fs.tfs_close(fd);
+			fs.tfs_snapshot_umount(id);
+		}
+		else
+			usage("Usage: snapshot create | list | delete id | ls id directory");
+		return;
+	}
+
+	//tune method:
+	//	Sets a flushing threshold of the volume while it runs, or prints
+	//	them all with no name. Bytes for the dirty page thresholds,
+	//	milliseconds for the delays, blocks for auto grow and the memory
+	//	tier.
+	void tune(String name, int value)
+	{
+		int response = 0;
+		if (name == null){
+			System.out.println("dirty_background " + fs.dirtyBackground + " bytes\tdirty_ceiling " + fs.dirtyCeiling + " bytes\twrite_behind " + fs.writeBehindDelay + " ms\tcommit_delay " + fs.journalCommitDelay + " ms\tauto_grow " + fs.autoGrowIncrement + " blocks\ttier " + fs.disk.tierBlocks + " blocks");
 			return;
+		} else if (name.equals("dirty_background")){
+			response = fs.tfs_set_dirty_background(value);
+		} else if (name.equals("dirty_ceiling")){
+			response = fs.tfs_set_dirty_ceiling(value);
+		} else if (name.equals("write_behind")){
+			response = fs.tfs_set_write_behind_delay(value);
+		} else if (name.equals("commit_delay")){
+			response = fs.tfs_set_journal_commit_delay(value);
+		} else if (name.equals("auto_grow")){
+			response = fs.tfs_set_auto_grow(value);
+		} else if (name.equals("tier")){
+			response = fs.tfs_set_tier(value);
+		} else {
+			usage("Usage: tune [dirty_background|dirty_ceiling|write_behind|commit_delay|auto_grow|tier value]");
+			return;
+		}
+		if (response == -1){
+			fail("Value " + value + " is not valid for " + name + ".");
 		}
+		return;
+	}
 
+	//serve method:
+	//	Serves the volume to TFSClient connections on port of the loopback
+	//	address, 0 picks a free port. The shell keeps working meanwhile.
+	void serve(int port)
+	{
+		if (server != null){
+			fail("Already serving on port " + server.getPort() + ".");
+			return;
+		}
+		try {
+			server = new TFSServer(fs, port);
+		} catch (IOException ioe){
+			fail("Could not serve on port " + port + ": " + ioe.getMessage());
+			return;
+		}
+		server.start();
+		System.out.println("Serving on port " + server.getPort() + ".");
 		return;
 	}
 
+	//runScript method:
+	//	Runs the commands of a script one line at a time, without prompt or
+	//	banner. Lines ending with & run at the same time as the & lines
+	//	next to them, on up to threads threads; any other line and wait
+	//	first wait for them. Empty lines and lines starting with # are
+	//	skipped. After the output of every command a line gives its wall
+	//	time, the blocks its thread read and wrote and its status. The
+	//	script stops at the first command that fails unless keepGoing,
+	//	and at exit; the volume is exited at the end if it is mounted.
+	//	Returns the status of the first command that failed, 0 if none did
+	int runScript(BufferedReader in, int threads, boolean keepGoing) throws IOException
+	{
+		PrintStream console = System.out;
+		ScriptOutput output = new ScriptOutput(console);
+		System.setOut(new PrintStream(output, true)); //What commands print is kept with them
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+		List<Future<ScriptCommand>> running = new ArrayList<Future<ScriptCommand>>(); //& lines not waited for yet
+		List<ScriptCommand> done = new ArrayList<ScriptCommand>();
+		long began = System.nanoTime();
+		try {
+			String line;
+			int number = 0;
+			while (!exited && (keepGoing || firstFailure(done) == STATUS_OK) && (line = in.readLine()) != null){
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				boolean background = line.endsWith("&");
+				if (!background){
+					//Lines before it are done first, so it sees what they did
+					waitFor(running, done, console);
+					if (line.equals("wait")){
+						continue;
+					}
+				}
+				ScriptCommand c = new ScriptCommand(number, background ? line.substring(0, line.length() - 1).trim() : line);
+				if (background){
+					running.add(pool.submit(() -> runCommand(output, c)));
+				} else {
+					console.print(runCommand(output, c).report);
+					done.add(c);
+				}
+			}
+			waitFor(running, done, console);
+		} finally {
+			pool.shutdown();
+			System.setOut(console);
+		}
+		if (!exited && fs.pcb != null){
+			exit(); //Nothing is left in memory only
+		}
+		int failed = 0;
+		for (ScriptCommand c : done){
+			failed += (c.status != STATUS_OK) ? 1 : 0;
+		}
+		console.printf(Locale.ROOT, "# %d commands, %d failed, %.3f s%n", done.size(), failed, (System.nanoTime() - began) / 1e9);
+		return firstFailure(done);
+	}
+
+	//runCommand method:
+	//	Runs the command of c, keeping what it printed and how it went in c
+	ScriptCommand runCommand(ScriptOutput output, ScriptCommand c)
+	{
+		TFSStats stats = fs.tfs_stats();
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		output.capture(printed);
+		long reads = stats.threadBlockReads();
+		long writes = stats.threadBlockWrites();
+		long start = System.nanoTime();
+		try {
+			c.status = execute(c.text);
+		} catch (Throwable t){ //An Error such as StackOverflowError fails the command, not the script
+			System.out.println(t);
+			c.status = STATUS_FAILED;
+		} finally {
+			output.capture(null);
+		}
+		long nanos = System.nanoTime() - start;
+		c.report = printed.toString() + String.format(Locale.ROOT, "# %d: %s  %.3f ms  reads %d  writes %d  status %d%n",
+			c.line, c.text, nanos / 1e6, stats.threadBlockReads() - reads, stats.threadBlockWrites() - writes, c.status);
+		return c;
+	}
+
+	//waitFor method:
+	//	Waits for the & lines still running, printing what each of them
+	//	printed in the order of the script
+	void waitFor(List<Future<ScriptCommand>> running, List<ScriptCommand> done, PrintStream console)
+	{
+		boolean interrupted = false;
+		for (Future<ScriptCommand> f : running){
+			while (true){
+				try {
+					ScriptCommand c = f.get();
+					console.print(c.report);
+					done.add(c);
+					break;
+				} catch (InterruptedException ie){
+					interrupted = true;
+				} catch (ExecutionException ee){
+					break; //runCommand catches what commands throw
+				}
+			}
+		}
+		running.clear();
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//firstFailure method:
+	//	Status of the first command of done that failed, 0 if none did
+	int firstFailure(List<ScriptCommand> done)
+	{
+		for (ScriptCommand c : done){
+			if (c.status != STATUS_OK){
+				return c.status;
+			}
+		}
+		return STATUS_OK;
+	}
+
 	//exit method:
   // Closes the disk file and exits file system.
 	void exit()
 	{
+		if (server != null){
+			server.shutdown();
+		}
 		fs.tfs_exit();
+		fs.tfs_trace_stop(); //After tfs_exit, so the trace has it
 		return;
 	}
 }
 
 
+//ScriptCommand Class
+//	One line of a script run by TFSShell.runScript, with what it printed
+//	and how it went
+class ScriptCommand
+{
+	int line; //Line of the script
+	String text;
+	int status = -1;
+	String report; //What it printed and its timing line
+
+	ScriptCommand(int line, String text)
+	{
+		this.line = line;
+		this.text = text;
+	}
+}
+
+//ScriptOutput Class
+//	System.out while a script runs. A thread running a command prints
+//	into the buffer of the command, so commands running at the same time
+//	don't mix their lines; anything else goes to the console.
+class ScriptOutput extends OutputStream
+{
+	PrintStream console;
+	ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<ByteArrayOutputStream>();
+
+	ScriptOutput(PrintStream console)
+	{
+		this.console = console;
+	}
+
+	//capture method:
+	//	Sends what the calling thread prints to buf, or back to the console if null
+	void capture(ByteArrayOutputStream buf)
+	{
+		buffer.set(buf);
+	}
+
+	public void write(int b)
+	{
+		ByteArrayOutputStream buf = buffer.get();
+		if (buf != null){
+			buf.write(b);
+		} else {
+			console.write(b);
+		}
+	}
+
+	public void write(byte[] b, int off, int len)
+	{
+		ByteArrayOutputStream buf = buffer.get();
+		if (buf != null){
+			buf.write(b, off, len);
+		} else {
+			console.write(b, off, len);
+		}
+	}
+
+	public void flush()
+	{
+		console.flush();
+	}
+}
+
 /*
  * main method
  */
 
 class TFSMain
 {
-	public static void main(String argv[]) throws InterruptedException
+	//Usage: java TFSMain [-f script [-j threads] [-k]]
+	//	-f runs the commands of script (- for standard input) instead of
+	//	reading them from the user, -j runs lines ending with & on up to
+	//	threads threads (4 if left out), -k goes on after a command fails.
+	//	The exit status is that of the first command that failed.
+	public static void main(String argv[]) throws InterruptedException, IOException
 	{
 		TFSFileSystem tfs = new TFSFileSystem();
-		TFSShell shell = new TFSShell();
+		TFSShell shell = new TFSShell(tfs);
+
+		String script = null;
+		int threads = 4;
+		boolean keepGoing = false;
+		try {
+			for (int i = 0; i < argv.length; i++){
+				if (argv[i].equals("-f") && i + 1 < argv.length){
+					script = argv[++i];
+				} else if (argv[i].equals("-j") && i + 1 < argv.length){
+					threads = Integer.parseInt(argv[++i]);
+				} else if (argv[i].equals("-k")){
+					keepGoing = true;
+				} else {
+					throw new IllegalArgumentException(argv[i]);
+				}
+			}
+		} catch (IllegalArgumentException iae){
+			System.out.println("Usage: java TFSMain [-f script [-j threads] [-k]]");
+			System.exit(TFSShell.STATUS_USAGE);
+		}
+		if (script != null){
+			BufferedReader in = new BufferedReader(script.equals("-") ? new InputStreamReader(System.in) : new FileReader(script));
+			int status = shell.runScript(in, threads, keepGoing);
+			in.close();
+			System.exit(status);
+		}
 
 		shell.start();
 //		try {
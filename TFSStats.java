@@ -0,0 +1,525 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+//TFSStats Class
+//	Runtime statistics of one volume: how many times every tfs_* call ran,
+//	a histogram of how long it took and how many blocks it read and wrote,
+//	block I/O of the disk file, bytes moved by file reads and writes, hits
+//	of the metadata and page caches, how far the allocator scanned FAT and
+//	gauges such as the number of open file descriptors.
+//
+//	Counters are LongAdders, which keep a cell per contending thread, so
+//	calls on many threads don't fight over one cache line; histograms are
+//	power of two buckets of LongAdders. Nothing is locked on the way in.
+//	Numbers are read by the stats command of the shell and by JMX, where
+//	the volume is the MBean TFS:type=Stats,volume=<disk file> while it is
+//	mounted.
+//
+//	A TFSTrace can be attached to record the calls made from outside the
+//	file system; begin takes their arguments and result keeps what they
+//	returned while it is.
+public class TFSStats implements DynamicMBean
+{
+	//Calls that are counted, by index
+	static final String[] OPS = {"mkfs", "mount", "umount", "exit", "sync", "open", "read_dir", "read", "write",
+		"pread", "pwrite", "truncate", "seek", "close", "create", "delete", "create_dir", "delete_dir", "clone",
+		"snapshot_create", "snapshot_list", "snapshot_delete", "snapshot_mount_ro", "snapshot_umount",
+		"snapshot_open", "grow", "upgrade", "prrfs", "prmfs", "copy", "create_entries"};
+	static final int MKFS = 0;
+	static final int MOUNT = 1;
+	static final int UMOUNT = 2;
+	static final int EXIT = 3;
+	static final int SYNC = 4;
+	static final int OPEN = 5;
+	static final int READ_DIR = 6;
+	static final int READ = 7;
+	static final int WRITE = 8;
+	static final int PREAD = 9;
+	static final int PWRITE = 10;
+	static final int TRUNCATE = 11;
+	static final int SEEK = 12;
+	static final int CLOSE = 13;
+	static final int CREATE = 14;
+	static final int DELETE = 15;
+	static final int CREATE_DIR = 16;
+	static final int DELETE_DIR = 17;
+	static final int CLONE = 18;
+	static final int SNAPSHOT_CREATE = 19;
+	static final int SNAPSHOT_LIST = 20;
+	static final int SNAPSHOT_DELETE = 21;
+	static final int SNAPSHOT_MOUNT_RO = 22;
+	static final int SNAPSHOT_UMOUNT = 23;
+	static final int SNAPSHOT_OPEN = 24;
+	static final int GROW = 25;
+	static final int UPGRADE = 26;
+	static final int PRRFS = 27;
+	static final int PRMFS = 28;
+	static final int COPY = 29;
+	static final int CREATE_ENTRIES = 30;
+
+	Histogram[] latency = new Histogram[OPS.length]; //Nanoseconds of every call
+	LongAdder[] opBlockReads = new LongAdder[OPS.length]; //Blocks read from the disk file during calls, calls they make included
+	LongAdder[] opBlockWrites = new LongAdder[OPS.length];
+
+	//Disk file
+	LongAdder blockReads = new LongAdder();
+	LongAdder blockWrites = new LongAdder();
+	LongAdder forces = new LongAdder();
+	//Files
+	LongAdder bytesRead = new LongAdder();
+	LongAdder bytesWritten = new LongAdder();
+	//Caches: metadata blocks not in place yet and dirty pages of open files
+	LongAdder metaCacheHits = new LongAdder();
+	LongAdder metaCacheMisses = new LongAdder();
+	LongAdder pageCacheHits = new LongAdder();
+	LongAdder pageCacheMisses = new LongAdder();
+	//Memory tier of the disk file: reads of single blocks it held or not, blocks moved in and out
+	LongAdder tierHits = new LongAdder();
+	LongAdder tierMisses = new LongAdder();
+	LongAdder tierPromotions = new LongAdder();
+	LongAdder tierDemotions = new LongAdder();
+	//Allocator: FAT entries looked at to find the next free block
+	Histogram allocScan = new Histogram();
+
+	Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>(); //Read when shown, not kept
+
+	ObjectName registered = null; //Name of the MBean while it is registered
+	volatile TFSTrace tracer = null; //Records calls while it is set
+
+	//Blocks read and written by this thread so far, and what they were
+	//when each call it is in started
+	static class Frame{
+		long reads;
+		long writes;
+		long[] stack = new long[16];
+		int depth = 0;
+		Call call = new Call(); //Outermost call, the one a trace records
+	}
+	ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new);
+
+	//Call Class
+	//	Arguments and result of the call a thread is in, kept for the trace
+	static class Call{
+		boolean traced; //Tracing was on when the call started
+		long a;
+		long b;
+		long c;
+		byte[] name;
+		byte[] name2;
+		long result;
+	}
+
+	public TFSStats()
+	{
+		for (int i = 0; i < OPS.length; i++){
+			latency[i] = new Histogram();
+			opBlockReads[i] = new LongAdder();
+			opBlockWrites[i] = new LongAdder();
+		}
+	}
+
+	//begin method:
+	//	Starts timing a call, returns what end takes. Every begin is
+	//	followed by an end on the same thread.
+	long begin()
+	{
+		push();
+		return System.nanoTime();
+	}
+
+	//begin method:
+	//	Same as above for a call with arguments a, b and c, which a trace keeps
+	long begin(long a, long b, long c)
+	{
+		Call call = push();
+		if (call != null){
+			call.a = a;
+			call.b = b;
+			call.c = c;
+		}
+		return System.nanoTime();
+	}
+
+	long begin(long a, long b)
+	{
+		return begin(a, b, 0);
+	}
+
+	long begin(long a)
+	{
+		return begin(a, 0, 0);
+	}
+
+	//begin method:
+	//	Same as above for a call with argument a and the path name
+	long begin(long a, byte[] name, int nlength)
+	{
+		Call call = push();
+		if (call != null){
+			call.a = a;
+			call.name = Arrays.copyOf(name, nlength);
+		}
+		return System.nanoTime();
+	}
+
+	long begin(byte[] name, int nlength)
+	{
+		return begin(0, name, nlength);
+	}
+
+	//begin method:
+	//	Same as above for a call with arguments a, b and c and the path name
+	long begin(long a, long b, long c, byte[] name, int nlength)
+	{
+		Call call = push();
+		if (call != null){
+			call.a = a;
+			call.b = b;
+			call.c = c;
+			call.name = Arrays.copyOf(name, nlength);
+		}
+		return System.nanoTime();
+	}
+
+	//begin method:
+	//	Same as above for a call with two path names
+	long begin(byte[] name, int nlength, byte[] name2, int nlength2)
+	{
+		Call call = push();
+		if (call != null){
+			call.name = Arrays.copyOf(name, nlength);
+			call.name2 = Arrays.copyOf(name2, nlength2);
+		}
+		return System.nanoTime();
+	}
+
+	//push method:
+	//	Keeps the blocks read and written so far for the call starting.
+	//	Returns the Call to put its arguments in if it is traced, null if
+	//	tracing is off or it is made by another call.
+	private Call push()
+	{
+		Frame f = frames.get();
+		if (f.depth + 2 > f.stack.length){
+			f.stack = Arrays.copyOf(f.stack, f.stack.length * 2);
+		}
+		f.stack[f.depth++] = f.reads;
+		f.stack[f.depth++] = f.writes;
+		if (f.depth > 2){
+			return null;
+		}
+		Call call = f.call;
+		call.traced = (tracer != null);
+		if (!call.traced){
+			return null;
+		}
+		call.a = 0;
+		call.b = 0;
+		call.c = 0;
+		call.name = null;
+		call.name2 = null;
+		call.result = -1;
+		return call;
+	}
+
+	//result method:
+	//	Keeps what the call returns for the trace, returns r
+	int result(int r)
+	{
+		result((long)r);
+		return r;
+	}
+
+	long result(long r)
+	{
+		if (tracer != null){
+			Frame f = frames.get();
+			if (f.depth == 2){
+				f.call.result = r;
+			}
+		}
+		return r;
+	}
+
+	//opened method:
+	//	Keeps size and kind of the file a traced tfs_open opened, so a
+	//	replay can make it if it does not exist
+	void opened(long size, int isDirectory)
+	{
+		if (tracer != null){
+			Frame f = frames.get();
+			if (f.depth == 2){
+				f.call.a = size;
+				f.call.b = isDirectory;
+			}
+		}
+	}
+
+	//end method:
+	//	Counts a call of op that started at start
+	void end(int op, long start)
+	{
+		long nanos = System.nanoTime() - start;
+		Frame f = frames.get();
+		long writes = f.writes - f.stack[--f.depth];
+		long reads = f.reads - f.stack[--f.depth];
+		latency[op].record(nanos);
+		if (reads != 0){
+			opBlockReads[op].add(reads);
+		}
+		if (writes != 0){
+			opBlockWrites[op].add(writes);
+		}
+		TFSTrace t = tracer;
+		if (t != null && f.depth == 0 && f.call.traced){
+			t.record(op, start, nanos, reads, writes, f.call);
+		}
+	}
+
+	//threadBlockReads method:
+	//	Blocks the calling thread read from the disk file so far
+	long threadBlockReads()
+	{
+		return frames.get().reads;
+	}
+
+	//threadBlockWrites method:
+	//	Blocks the calling thread wrote to the disk file so far. Pages
+	//	written behind by the flusher are counted in its thread.
+	long threadBlockWrites()
+	{
+		return frames.get().writes;
+	}
+
+	//blockRead method:
+	//	Counts a block read from the disk file
+	void blockRead()
+	{
+		blockReads.increment();
+		frames.get().reads++;
+	}
+
+	//blockWrite method:
+	//	Counts a block written to the disk file
+	void blockWrite()
+	{
+		blockWrites.increment();
+		frames.get().writes++;
+	}
+
+	//blocksRead method:
+	//	Counts count blocks read from the disk file at once
+	void blocksRead(int count)
+	{
+		blockReads.add(count);
+		frames.get().reads += count;
+	}
+
+	//blocksWritten method:
+	//	Counts count blocks written to the disk file at once
+	void blocksWritten(int count)
+	{
+		blockWrites.add(count);
+		frames.get().writes += count;
+	}
+
+	//read method:
+	//	Counts bytes read from a file by a call that returned n, returns n
+	int read(int n)
+	{
+		if (n > 0){
+			bytesRead.add(n);
+		}
+		return result(n);
+	}
+
+	//written method:
+	//	Counts bytes written to a file by a call that returned n, returns n
+	int written(int n)
+	{
+		if (n > 0){
+			bytesWritten.add(n);
+		}
+		return result(n);
+	}
+
+	//gauge method:
+	//	Adds a value that is read from the volume when it is shown
+	void gauge(String name, LongSupplier value)
+	{
+		gauges.put(name, value);
+	}
+
+	//reset method:
+	//	Sets every counter and histogram back to 0
+	public void reset()
+	{
+		for (int i = 0; i < OPS.length; i++){
+			latency[i].reset();
+			opBlockReads[i].reset();
+			opBlockWrites[i].reset();
+		}
+		for (LongAdder a : counters().values()){
+			a.reset();
+		}
+		allocScan.reset();
+	}
+
+	//counters method:
+	//	Counters by the name they are shown with
+	Map<String, LongAdder> counters()
+	{
+		Map<String, LongAdder> m = new LinkedHashMap<String, LongAdder>();
+		m.put("BlockReads", blockReads);
+		m.put("BlockWrites", blockWrites);
+		m.put("Forces", forces);
+		m.put("BytesRead", bytesRead);
+		m.put("BytesWritten", bytesWritten);
+		m.put("MetaCacheHits", metaCacheHits);
+		m.put("MetaCacheMisses", metaCacheMisses);
+		m.put("PageCacheHits", pageCacheHits);
+		m.put("PageCacheMisses", pageCacheMisses);
+		m.put("TierHits", tierHits);
+		m.put("TierMisses", tierMisses);
+		m.put("TierPromotions", tierPromotions);
+		m.put("TierDemotions", tierDemotions);
+		return m;
+	}
+
+	//report method:
+	//	Statistics as text, calls that never ran are left out
+	public String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-18s %10s %10s %10s %10s %10s %10s %10s%n", "call", "count", "mean us", "p50 us", "p99 us", "max us", "reads/call", "writes/call"));
+		for (int i = 0; i < OPS.length; i++){
+			Histogram h = latency[i];
+			long count = h.count();
+			if (count == 0){
+				continue;
+			}
+			sb.append(String.format(Locale.ROOT, "%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.2f %10.2f%n", OPS[i], count,
+				h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.max() / 1000.0,
+				(double)opBlockReads[i].sum() / count, (double)opBlockWrites[i].sum() / count));
+		}
+		for (Map.Entry<String, LongAdder> e : counters().entrySet()){
+			sb.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+		}
+		sb.append(String.format(Locale.ROOT, "Allocations %d\tAllocScanMean %.1f\tAllocScanP99 %d\tAllocScanMax %d%n",
+			allocScan.count(), allocScan.mean(), allocScan.percentile(99), allocScan.max()));
+		for (Map.Entry<String, LongSupplier> e : gauges.entrySet()){
+			sb.append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	//register method:
+	//	Makes the statistics of volume visible through JMX. A volume of the
+	//	same disk file already registered (by another instance) is left as it is.
+	void register(String volume)
+	{
+		if (registered != null){
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName("TFS:type=Stats,volume=" + ObjectName.quote(volume));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			registered = name;
+		} catch (JMException jme){
+			//Statistics are still kept, only JMX does not see them
+		}
+	}
+
+	//unregister method:
+	//	Takes the MBean away when the volume is not mounted anymore
+	void unregister()
+	{
+		if (registered == null){
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+		} catch (JMException jme){
+			//Already gone
+		}
+		registered = null;
+	}
+
+	//attributes method:
+	//	Every JMX attribute and how to read it. Calls have Count, MeanNanos,
+	//	P99Nanos and MaxNanos attributes named after them, e.g. readCount.
+	Map<String, LongSupplier> attributes()
+	{
+		Map<String, LongSupplier> m = new LinkedHashMap<String, LongSupplier>();
+		for (int i = 0; i < OPS.length; i++){
+			final Histogram h = latency[i];
+			String op = OPS[i];
+			m.put(op + "Count", h::count);
+			m.put(op + "MeanNanos", () -> (long)h.mean());
+			m.put(op + "P99Nanos", () -> h.percentile(99));
+			m.put(op + "MaxNanos", h::max);
+		}
+		for (Map.Entry<String, LongAdder> e : counters().entrySet()){
+			m.put(e.getKey(), e.getValue()::sum);
+		}
+		m.put("Allocations", allocScan::count);
+		m.put("AllocScanMean", () -> (long)allocScan.mean());
+		m.put("AllocScanMax", allocScan::max);
+		m.putAll(gauges);
+		return m;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		LongSupplier value = attributes().get(attribute);
+		if (value == null){
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value.getAsLong();
+	}
+
+	public AttributeList getAttributes(String[] names)
+	{
+		Map<String, LongSupplier> all = attributes();
+		AttributeList list = new AttributeList();
+		for (String name : names){
+			LongSupplier value = all.get(name);
+			if (value != null){
+				list.add(new Attribute(name, value.getAsLong()));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList(); //Read only
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+	{
+		if (actionName.equals("reset") && (params == null || params.length == 0)){
+			reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+		for (String name : attributes().keySet()){
+			attrs.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+		MBeanOperationInfo[] ops = {new MBeanOperationInfo("reset", "Sets every counter back to 0", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+		return new MBeanInfo(getClass().getName(), "Statistics of a TFS volume", attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+	}
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.util.*;
+
+//TFSTrace Class
+//	Records the tfs_* calls of a volume into a compact binary file that
+//	TFSReplay runs again. Only calls made from outside the file system are
+//	recorded, calls they make (the tfs_open of a tfs_create) are part of
+//	them. Every record holds the call, its arguments and result, when it
+//	started, how long it took and the blocks it read and wrote; data of
+//	reads and writes is left out, only its length is kept.
+//
+//	File: "TFST", int format, long start (ms since the epoch), int blocks
+//	of the volume, int auto grow increment (0 if it was off; not in format
+//	1 traces), then one record per call:
+//
+//		byte op, var thread, zigzag start (ns after the start of the record
+//		before), var nanos, var block reads, var block writes, zigzag result,
+//		zigzag args (ARGS[op] of them), names (NAMES[op] of them, var
+//		length and bytes)
+//
+//	var numbers take 7 bits a byte, low bits first, the top bit set on
+//	every byte but the last; zigzag ones keep small negatives small.
+public class TFSTrace
+{
+	static final int MAGIC = 0x54465354; //"TFST"
+	static final int FORMAT = 2;
+
+	//Arguments and names of every call, by TFSStats op index:
+	//	mkfs size | open size, is_directory, name (size and is_directory of
+	//	the file opened) | read_dir fd, max | read, write fd, length |
+	//	pread, pwrite fd, length, offset | truncate fd, size | seek fd,
+	//	position | close fd | create, create_dir, delete, delete_dir name |
+	//	clone, copy src, dst | snapshot_list max | snapshot_delete, mount_ro,
+	//	umount id | snapshot_open id, name | grow size | create_entries
+	//	count, directories, bytes of the files, dir (names of the entries
+	//	and what the files hold are left out)
+	static final int[] ARGS = {1, 0, 0, 0, 0, 2, 2, 2, 2, 3, 3, 2, 2, 1, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 3};
+	static final int[] NAMES = {0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 2, 1};
+
+	DataOutputStream out;
+	long startNanos; //System.nanoTime() when recording started
+	long lastStart = 0; //Start of the record written last, after startNanos
+	boolean closed = false;
+
+	//Starts a trace of a volume of blocks blocks that grows by autoGrow
+	//blocks on its own in file
+	TFSTrace(String file, int blocks, int autoGrow) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+		out.writeLong(System.currentTimeMillis());
+		out.writeInt(blocks);
+		out.writeInt(autoGrow);
+		startNanos = System.nanoTime();
+	}
+
+	//record method:
+	//	Writes the record of a call of op. Calls on many threads are written
+	//	one at a time in the order they end.
+	synchronized void record(int op, long start, long nanos, long reads, long writes, TFSStats.Call call)
+	{
+		if (closed){
+			return;
+		}
+		try {
+			long at = start - startNanos;
+			out.writeByte(op);
+			writeVar(out, Thread.currentThread().getId());
+			writeZigzag(out, at - lastStart);
+			lastStart = at;
+			writeVar(out, nanos);
+			writeVar(out, reads);
+			writeVar(out, writes);
+			boolean returns = (op != TFSStats.CLOSE && op != TFSStats.EXIT && op != TFSStats.PRRFS && op != TFSStats.PRMFS);
+			writeZigzag(out, returns ? call.result : 0); //Calls that return nothing succeed
+			long[] args = {call.a, call.b, call.c};
+			for (int i = 0; i < ARGS[op]; i++){
+				writeZigzag(out, args[i]);
+			}
+			byte[][] names = {call.name, call.name2};
+			for (int i = 0; i < NAMES[op]; i++){
+				byte[] name = (names[i] == null) ? new byte[0] : names[i];
+				writeVar(out, name.length);
+				out.write(name);
+			}
+		} catch (IOException ioe){
+			System.out.println("There was an error writing the trace: " + ioe.getMessage());
+			closed = true;
+		}
+	}
+
+	//close method:
+	//	Writes what is buffered and closes the file, calls after it are not recorded
+	synchronized void close()
+	{
+		if (closed){
+			return;
+		}
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException ioe){
+			System.out.println("There was an error closing the trace: " + ioe.getMessage());
+		}
+	}
+
+	static void writeVar(DataOutputStream out, long v) throws IOException
+	{
+		while ((v & ~0x7FL) != 0){
+			out.writeByte((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	static void writeZigzag(DataOutputStream out, long v) throws IOException
+	{
+		writeVar(out, (v << 1) ^ (v >> 63));
+	}
+
+	static long readVar(DataInputStream in) throws IOException
+	{
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7){
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0){
+				return v;
+			}
+		}
+		throw new IOException("malformed number in trace");
+	}
+
+	static long readZigzag(DataInputStream in) throws IOException
+	{
+		long v = readVar(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	//Record Class
+	//	One call read back from a trace
+	static class Record{
+		int op;
+		long thread;
+		long start; //ns after the start of the trace
+		long nanos;
+		long reads;
+		long writes;
+		long result;
+		long[] args = new long[3];
+		byte[][] names = new byte[2][];
+	}
+
+	//Reader Class
+	//	Reads the records of a trace one at a time
+	static class Reader implements Closeable{
+		DataInputStream in;
+		long started; //ms since the epoch
+		int blocks;
+		int autoGrow = 0; //Auto grow increment of the volume, 0 if it was off
+		long at = 0;
+
+		Reader(String file) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if (in.readInt() != MAGIC){
+				in.close();
+				throw new IOException(file + " is not a trace");
+			}
+			int format = in.readInt();
+			if (format < 1 || format > FORMAT){
+				in.close();
+				throw new IOException(file + " is a trace of format " + format + ", this build reads up to " + FORMAT);
+			}
+			started = in.readLong();
+			blocks = in.readInt();
+			if (format >= 2){
+				autoGrow = in.readInt();
+			}
+		}
+
+		//next method:
+		//	Next record, null at the end of the trace
+		Record next() throws IOException
+		{
+			int op = in.read();
+			if (op == -1){
+				return null;
+			}
+			if (op >= ARGS.length){
+				throw new IOException("unknown call " + op + " in trace");
+			}
+			Record r = new Record();
+			r.op = op;
+			r.thread = readVar(in);
+			at += readZigzag(in);
+			r.start = at;
+			r.nanos = readVar(in);
+			r.reads = readVar(in);
+			r.writes = readVar(in);
+			r.result = readZigzag(in);
+			for (int i = 0; i < ARGS[op]; i++){
+				r.args[i] = readZigzag(in);
+			}
+			for (int i = 0; i < NAMES[op]; i++){
+				byte[] name = new byte[(int)readVar(in)];
+				in.readFully(name);
+				r.names[i] = name;
+			}
+			return r;
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}